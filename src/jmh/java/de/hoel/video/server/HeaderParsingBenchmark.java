@@ -0,0 +1,74 @@
+package de.hoel.video.server;
+
+import de.hoel.video.server.MultipartFileSender.HttpUtils;
+import de.hoel.video.server.MultipartFileSender.Range;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the request headers that decide what is sent: Range, Accept and If-(None-)Match, and the encoding of the
+ * multipart headers of the parsed ranges.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderParsingBenchmark {
+
+    private static final long LENGTH = 4_000_000_000L;
+    private static final String ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,video/webm,video/*;q=0.8,*/*;q=0.5";
+    private static final String ETAG = "\"c8daa304b20672223f25caa3d576ee01\"";
+    private static final String IF_NONE_MATCH = "W/\"5e8f2a\", \"0b6c1d9e\", " + ETAG;
+
+    private final long[] bounds = new long[2 * MultipartFileSender.DEFAULT_MAX_RANGES];
+    private final byte[] partHeaderPrefix = Range.partHeaderPrefix("video/mp4");
+    private final Range part = new Range(1_234_567_890L, 1_234_987_654L, LENGTH);
+
+    @State(Scope.Thread)
+    public static class RangeHeader {
+
+        @Param({"bytes=0-", "bytes=1048576-2097151", "bytes=-65536", "bytes=0-99,4096-8191,1048576-,200-299"})
+        public String range;
+
+        List<Range> ranges = new ArrayList<>();
+
+        @Setup
+        public void parse() {
+            long[] bounds = new long[2 * MultipartFileSender.DEFAULT_MAX_RANGES];
+            int count = HttpUtils.parseRanges(range, LENGTH, bounds);
+            for (int i = 0; i < count; i++) {
+                ranges.add(new Range(bounds[2 * i], bounds[2 * i + 1], LENGTH));
+            }
+        }
+    }
+
+    @Benchmark
+    public int parseRanges(RangeHeader header) {
+        return HttpUtils.parseRanges(header.range, LENGTH, bounds);
+    }
+
+    @Benchmark
+    public List<Range> coalesce(RangeHeader header) {
+        return Range.coalesce(new ArrayList<>(header.ranges), 80);
+    }
+
+    @Benchmark
+    public boolean accepts() {
+        return HttpUtils.accepts(ACCEPT, "video/mp4");
+    }
+
+    @Benchmark
+    public boolean matches() {
+        return HttpUtils.matches(IF_NONE_MATCH, ETAG, true);
+    }
+
+    @Benchmark
+    public byte[] partHeader() {
+        return Range.partHeader(partHeaderPrefix, part);
+    }
+}
@@ -0,0 +1,119 @@
+package de.hoel.video.server;
+
+import de.hoel.video.server.MultipartFileSender.Range;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy of single and multi part ranges from a file into a discarding output stream, as the senders do it without
+ * sendfile: the buffered stream copy with positional reads and the channel transfer in steps. The file is read from
+ * the page cache after the first iteration, so this measures the copy itself and not the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RangeCopyBenchmark {
+
+    @Param({"1048576", "16777216", "134217728"})
+    public long fileSize;
+
+    @Param({"8192", "20480", "65536", "262144"})
+    public int bufferSize;
+
+    /**
+     * Number of parts, 1 for a single range over the whole file. Multiple parts cover every other slice of the file.
+     */
+    @Param({"1", "8"})
+    public int parts;
+
+    private Path file;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private Discard output;
+    private WritableByteChannel outputChannel;
+    private Range[] ranges;
+    private byte[][] partHeaders;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("range-copy", ".mp4");
+        byte[] block = new byte[1 << 20];
+        new Random(fileSize).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < fileSize; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        buffer = ByteBuffer.allocate(bufferSize);
+        output = new Discard();
+        outputChannel = Channels.newChannel(output);
+
+        ranges = new Range[parts];
+        partHeaders = new byte[parts][];
+        byte[] prefix = Range.partHeaderPrefix("video/mp4");
+        long slice = parts == 1 ? fileSize : fileSize / (2 * parts);
+        for (int i = 0; i < parts; i++) {
+            long start = parts == 1 ? 0 : 2 * i * slice;
+            ranges[i] = new Range(start, start + slice - 1, fileSize);
+            partHeaders[i] = parts == 1 ? Range.NO_HEADER : Range.partHeader(prefix, ranges[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long streamCopy() throws IOException {
+        output.count = 0;
+        for (int i = 0; i < parts; i++) {
+            Range.copy(channel, output, buffer, null, null, partHeaders[i], ranges[i].start, ranges[i].length);
+        }
+        return output.count;
+    }
+
+    @Benchmark
+    public long channelTransfer() throws IOException {
+        output.count = 0;
+        for (int i = 0; i < parts; i++) {
+            output.write(partHeaders[i]);
+            Range.transfer(channel, outputChannel, null, null, ranges[i].start, ranges[i].length, bufferSize);
+        }
+        return output.count;
+    }
+
+    /**
+     * Counts the bytes written to it and drops them.
+     */
+    static class Discard extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package de.hoel.video.server;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole {@link MultipartFileSender#serveResource()} calls, from the request headers to the last byte of the body,
+ * either against mocked servlet requests and responses or through a local Tomcat connector and a client on the
+ * loopback interface. Only the latter can hand single ranges to sendfile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ServeResourceBenchmark {
+
+    private static final int FILE_SIZE = 16 << 20;
+
+    @Param({"mock", "tomcat"})
+    public String connector;
+
+    @Param({"false", "true"})
+    public boolean zeroCopy;
+
+    /**
+     * The Range header, empty for the full file.
+     */
+    @Param({"", "bytes=1048576-2097151", "bytes=0-99,1048576-1114111,8388608-8454143"})
+    public String range;
+
+    private Path file;
+    private BufferPool buffers;
+    private Tomcat tomcat;
+    private URL url;
+
+    @Setup
+    public void setUp() throws IOException, LifecycleException {
+        file = Files.createTempFile("serve-resource", ".mp4");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(data);
+        Files.write(file, data);
+        buffers = new BufferPool(new StreamingProperties());
+
+        if ("tomcat".equals(connector)) {
+            tomcat = new Tomcat();
+            tomcat.setBaseDir(Files.createTempDirectory("tomcat").toString());
+            tomcat.setPort(0);
+            Context context = tomcat.addContext("", null);
+            Tomcat.addServlet(context, "video", new HttpServlet() {
+                @Override
+                protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+                    try {
+                        serve(request, response);
+                    } catch (IOException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        throw new IOException(e);
+                    }
+                }
+            });
+            context.addServletMappingDecoded("/video", "video");
+            tomcat.start();
+            url = new URL("http://localhost:" + tomcat.getConnector().getLocalPort() + "/video");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, LifecycleException {
+        if (tomcat != null) {
+            tomcat.stop();
+            tomcat.destroy();
+        }
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long serveResource() throws Exception {
+        return "tomcat".equals(connector) ? request() : mock();
+    }
+
+    private void serve(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        MultipartFileSender.fromPath(file)
+                .with(request)
+                .with(response)
+                .withZeroCopy(zeroCopy)
+                .with(buffers)
+                .serveResource();
+    }
+
+    private long mock() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/video");
+        if (!range.isEmpty()) {
+            request.addHeader("Range", range);
+        }
+        Discard output = new Discard();
+        MockHttpServletResponse response = new MockHttpServletResponse() {
+            @Override
+            public ServletOutputStream getOutputStream() {
+                return output;
+            }
+        };
+        serve(request, response);
+        return output.count;
+    }
+
+    private long request() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (!range.isEmpty()) {
+            connection.setRequestProperty("Range", range);
+        }
+        long count = 0;
+        byte[] drain = new byte[65536];
+        try (InputStream input = connection.getInputStream()) {
+            for (int n; (n = input.read(drain)) > 0; ) {
+                count += n;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Counts the bytes written to it and drops them.
+     */
+    static class Discard extends ServletOutputStream {
+
+        long count;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
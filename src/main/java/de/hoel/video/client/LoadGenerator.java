@@ -0,0 +1,329 @@
+package de.hoel.video.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Simulates video players against a running server to find out how many concurrent viewers it sustains.
+ * <p>
+ * Every player probes the video with a two byte range request and then plays it: it requests the next few seconds
+ * of video as a byte range whenever its buffer isn't full, and plays the buffer in real time at the given bitrate.
+ * Now and then it seeks to a random position, which drops the buffer, or issues a multi-range request like players
+ * that look up the index of a video. A stall is counted whenever the buffer runs empty during playback.
+ * <p>
+ * Every ten seconds and at the end the generator logs time to first byte, stalls and throughput. Arguments are
+ * given as {@code --name=value}:
+ * <ul>
+ * <li>{@code url}: the video, default {@code http://localhost:8080/videos/test}.</li>
+ * <li>{@code players}: number of concurrent players, default 50.</li>
+ * <li>{@code duration}: seconds to run, default 60.</li>
+ * <li>{@code bitrate}: bits per second of the video, default 12000000 for 1080p60.</li>
+ * <li>{@code segment}: seconds of video per request, default 2.</li>
+ * <li>{@code buffer}: seconds of video players buffer ahead, default 10.</li>
+ * <li>{@code start}: seconds of video needed to start or resume playback, default 1.</li>
+ * <li>{@code seek}: probability of a seek before every request, default 0.02.</li>
+ * <li>{@code multi-range}: probability of a multi-range request before every request, default 0.05.</li>
+ * </ul>
+ * Run it with {@code mvn verify -Ploadtest}, which starts the server on localhost first.
+ */
+public class LoadGenerator {
+
+	private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+	private static final long MULTI_RANGE_PART = 65536;
+
+	private final URL url;
+	private final int players;
+	private final long duration;
+	private final double bytesPerSecond;
+	private final double segmentSeconds;
+	private final double bufferSeconds;
+	private final double startSeconds;
+	private final double seekProbability;
+	private final double multiRangeProbability;
+
+	private final Samples firstBytes = new Samples();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong seeks = new AtomicLong();
+	private final AtomicLong stalls = new AtomicLong();
+	private final AtomicLong stallNanos = new AtomicLong();
+	private final AtomicInteger stalledPlayers = new AtomicInteger();
+	private volatile boolean running = true;
+
+	public LoadGenerator(Map<String, String> options) throws IOException {
+		url = new URL(options.getOrDefault("url", "http://localhost:8080/videos/test"));
+		players = Integer.parseInt(options.getOrDefault("players", "50"));
+		duration = Long.parseLong(options.getOrDefault("duration", "60"));
+		bytesPerSecond = Double.parseDouble(options.getOrDefault("bitrate", "12000000")) / 8;
+		segmentSeconds = Double.parseDouble(options.getOrDefault("segment", "2"));
+		bufferSeconds = Double.parseDouble(options.getOrDefault("buffer", "10"));
+		startSeconds = Double.parseDouble(options.getOrDefault("start", "1"));
+		seekProbability = Double.parseDouble(options.getOrDefault("seek", "0.02"));
+		multiRangeProbability = Double.parseDouble(options.getOrDefault("multi-range", "0.05"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (arg.startsWith("--") && separator > 2) {
+				options.put(arg.substring(2, separator), arg.substring(separator + 1));
+			}
+		}
+		new LoadGenerator(options).run();
+	}
+
+	public void run() throws InterruptedException {
+		// Keep a connection per player alive between its requests.
+		System.setProperty("http.maxConnections", String.valueOf(players));
+		logger.info(String.format("%d players at %.1f Mbit/s against %s for %d s", players, bytesPerSecond * 8 / 1e6, url, duration));
+
+		ExecutorService executor = Executors.newFixedThreadPool(players);
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		long started = System.nanoTime();
+		long[] last = {started, 0};
+		reporter.scheduleAtFixedRate(() -> {
+			long now = System.nanoTime();
+			long sent = bytes.get();
+			report("", now - last[0], sent - last[1], firstBytes.drain());
+			last[0] = now;
+			last[1] = sent;
+		}, 10, 10, TimeUnit.SECONDS);
+
+		for (int i = 0; i < players; i++) {
+			long seed = i;
+			executor.execute(() -> new Player(new Random(seed)).play());
+		}
+		Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+		running = false;
+		reporter.shutdownNow();
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+
+		report("total ", System.nanoTime() - started, bytes.get(), firstBytes.all());
+		logger.info("players without stalls: {} of {}", players - stalledPlayers.get(), players);
+	}
+
+	private void report(String label, long nanos, long sent, long[] ttfb) {
+		Arrays.sort(ttfb);
+		logger.info(String.format("%srequests=%d errors=%d throughput=%.1f Mbit/s ttfb p50=%.1f ms p99=%.1f ms stalls=%d (%.1f s) seeks=%d",
+				label, requests.get(), errors.get(), sent * 8 / (nanos / 1e9) / 1e6,
+				percentile(ttfb, 0.5) / 1e6, percentile(ttfb, 0.99) / 1e6,
+				stalls.get(), stallNanos.get() / 1e9, seeks.get()));
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+	}
+
+	/**
+	 * One simulated player with its playback buffer.
+	 */
+	private class Player {
+
+		private final Random random;
+		private final byte[] drain = new byte[65536];
+		/** Seconds of video buffered ahead of the playhead. */
+		private double buffered;
+		private boolean playing;
+		private boolean stalled;
+		private boolean everStalled;
+		private long stalledSince;
+		private long lastUpdate = System.nanoTime();
+
+		Player(Random random) {
+			this.random = random;
+		}
+
+		void play() {
+			long total = probe();
+			if (total <= 0) {
+				return;
+			}
+			long segment = Math.max(1, (long) (bytesPerSecond * segmentSeconds));
+			long position = 0;
+
+			while (running) {
+				if (random.nextDouble() < seekProbability) {
+					position = (long) (random.nextDouble() * total);
+					buffered = 0;
+					playing = false;
+					stalled = false;
+					seeks.incrementAndGet();
+				}
+				if (random.nextDouble() < multiRangeProbability) {
+					fetchMultiRange(total);
+				}
+
+				long end = Math.min(position + segment, total) - 1;
+				if (fetch("bytes=" + position + "-" + end, true) < 0) {
+					pause(1);
+					continue;
+				}
+				position = end + 1 < total ? end + 1 : 0; // Loop the video.
+
+				// Players stop requesting while their buffer is full.
+				update(0);
+				if (buffered > bufferSeconds) {
+					pause(buffered - bufferSeconds);
+					update(0);
+				}
+			}
+		}
+
+		/**
+		 * @return The size of the video, or -1 if the probe failed.
+		 */
+		private long probe() {
+			long sent = System.nanoTime();
+			try {
+				HttpURLConnection connection = open("bytes=0-1");
+				String contentRange = connection.getHeaderField("Content-Range");
+				read(connection, false, sent);
+				return contentRange != null ? Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1)) : -1;
+			} catch (IOException | NumberFormatException e) {
+				errors.incrementAndGet();
+				logger.warn("Probe failed : {}", e.toString());
+				return -1;
+			}
+		}
+
+		private void fetchMultiRange(long total) {
+			if (total < 4 * MULTI_RANGE_PART) {
+				return;
+			}
+			StringBuilder range = new StringBuilder("bytes=0-").append(MULTI_RANGE_PART - 1);
+			long start = MULTI_RANGE_PART + (long) (random.nextDouble() * (total - 2 * MULTI_RANGE_PART));
+			range.append(',').append(start).append('-').append(start + MULTI_RANGE_PART - 1);
+			fetch(range.toString(), false);
+		}
+
+		/**
+		 * @return The number of bytes read, or -1 if the request failed.
+		 */
+		private long fetch(String range, boolean playback) {
+			long sent = System.nanoTime();
+			try {
+				return read(open(range), playback, sent);
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				return -1;
+			}
+		}
+
+		private HttpURLConnection open(String range) throws IOException {
+			HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setRequestProperty("Range", range);
+			requests.incrementAndGet();
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				connection.disconnect();
+				throw new IOException("Status " + connection.getResponseCode() + " for " + range);
+			}
+			return connection;
+		}
+
+		private long read(HttpURLConnection connection, boolean playback, long sent) throws IOException {
+			long count = 0;
+			try (InputStream input = connection.getInputStream()) {
+				for (int n; (n = input.read(drain)) > 0; ) {
+					if (count == 0) {
+						firstBytes.add(System.nanoTime() - sent);
+					}
+					count += n;
+					bytes.addAndGet(n);
+					if (playback) {
+						update(n);
+					}
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Plays the buffer up to now and adds the given bytes to it.
+		 */
+		private void update(long received) {
+			long now = System.nanoTime();
+			if (playing) {
+				buffered -= (now - lastUpdate) / 1e9;
+				if (buffered <= 0) {
+					buffered = 0;
+					playing = false;
+					stalled = true;
+					stalledSince = now;
+					stalls.incrementAndGet();
+					if (!everStalled) {
+						everStalled = true;
+						stalledPlayers.incrementAndGet();
+					}
+				}
+			}
+			lastUpdate = now;
+			buffered += received / bytesPerSecond;
+
+			// Playback starts, resumes after a stall or continues after a seek once enough is buffered.
+			if (!playing && buffered >= startSeconds) {
+				playing = true;
+				if (stalled) {
+					stallNanos.addAndGet(now - stalledSince);
+					stalled = false;
+				}
+			}
+		}
+
+		private void pause(double seconds) {
+			try {
+				Thread.sleep((long) (seconds * 1000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Time to first byte samples, in nanoseconds.
+	 */
+	private static class Samples {
+
+		private long[] all = new long[1024];
+		private int size;
+		private int drained;
+
+		synchronized void add(long sample) {
+			if (size == all.length) {
+				all = Arrays.copyOf(all, 2 * size);
+			}
+			all[size++] = sample;
+		}
+
+		/**
+		 * @return The samples added since the last call.
+		 */
+		synchronized long[] drain() {
+			long[] samples = Arrays.copyOfRange(all, drained, size);
+			drained = size;
+			return samples;
+		}
+
+		synchronized long[] all() {
+			return Arrays.copyOf(all, size);
+		}
+	}
+}
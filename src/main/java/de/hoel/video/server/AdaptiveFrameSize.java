@@ -0,0 +1,55 @@
+package de.hoel.video.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size of the frames written to one client, adapted to how fast the client drains them: a frame should take about
+ * the target latency to drain. Fast clients get large frames and few syscalls, slow clients small frames that don't
+ * sit in buffers for long.
+ */
+class AdaptiveFrameSize {
+
+    private final int minFrame;
+    private final int maxFrame;
+    private final long targetLatency;
+
+    private double drainRate;
+    private int frame;
+
+    /**
+     * Construct a frame size starting at the minimum.
+     * @param settings Minimum and maximum frame size and the target latency.
+     */
+    AdaptiveFrameSize(StreamingProperties.Coalescing settings) {
+        this.minFrame = settings.getMinFrame();
+        this.maxFrame = settings.getMaxFrame();
+        this.targetLatency = TimeUnit.MILLISECONDS.toNanos(settings.getTargetLatency());
+        this.frame = minFrame;
+    }
+
+    /**
+     * Records how fast the client drains the written bytes.
+     * @param bytes Bytes the client took.
+     * @param nanos Time the client took for them.
+     */
+    void record(long bytes, long nanos) {
+        double rate = bytes / (double) Math.max(nanos, 1);
+        drainRate = drainRate == 0 ? rate : (drainRate + rate) / 2;
+        frame = (int) Math.max(minFrame, Math.min(maxFrame, drainRate * targetLatency));
+    }
+
+    int get() {
+        return frame;
+    }
+
+    int getMax() {
+        return maxFrame;
+    }
+
+    /**
+     * @return Measured drain rate in bytes per second, 0 if nothing has been measured yet.
+     */
+    double getDrainRate() {
+        return drainRate * TimeUnit.SECONDS.toNanos(1);
+    }
+}
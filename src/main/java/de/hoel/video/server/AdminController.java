@@ -0,0 +1,272 @@
+package de.hoel.video.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.google.common.cache.CacheStats;
+
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    private final ChunkCache chunkCache;
+    private final BandwidthShaper bandwidthShaper;
+    private final ReadAhead readAhead;
+    private final BufferPool bufferPool;
+    private final TieredStorage tieredStorage;
+    private final AdmissionControl admissionControl;
+    private final StallDetector stallDetector;
+    private final FileHandleCache fileHandleCache;
+    private final PeerFill peerFill;
+    private final GrowingFiles growingFiles;
+
+    public AdminController(ChunkCache chunkCache, BandwidthShaper bandwidthShaper, ReadAhead readAhead,
+                           BufferPool bufferPool, TieredStorage tieredStorage, AdmissionControl admissionControl,
+                           StallDetector stallDetector, FileHandleCache fileHandleCache,
+                           PeerFill peerFill, GrowingFiles growingFiles) {
+        this.chunkCache = chunkCache;
+        this.bandwidthShaper = bandwidthShaper;
+        this.readAhead = readAhead;
+        this.bufferPool = bufferPool;
+        this.tieredStorage = tieredStorage;
+        this.admissionControl = admissionControl;
+        this.stallDetector = stallDetector;
+        this.fileHandleCache = fileHandleCache;
+        this.peerFill = peerFill;
+        this.growingFiles = growingFiles;
+    }
+
+    /**
+     * Counters of the chunk cache, used to size it.
+     */
+    @RequestMapping(value="/cache", method = RequestMethod.GET)
+    public Map<String, Object> getCacheStats() {
+        CacheStats stats = chunkCache.getStats();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hits", stats.hitCount());
+        result.put("misses", stats.missCount());
+        result.put("hitRate", stats.hitRate());
+        result.put("evictions", stats.evictionCount());
+        result.put("loads", chunkCache.getLoadCount());
+        result.put("coalescedReads", chunkCache.getCoalescedReads());
+        result.put("chunks", chunkCache.getChunkCount());
+        result.put("size", chunkCache.getSize());
+        result.put("maxSize", chunkCache.getMaxSize());
+        result.put("chunkSize", chunkCache.getChunkSize());
+        return result;
+    }
+
+    /**
+     * Counters of the read-ahead: how much of what was prefetched got read, used to size the window.
+     */
+    @RequestMapping(value="/read-ahead", method = RequestMethod.GET)
+    public Map<String, Object> getReadAheadStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sessions", readAhead.getSessionCount());
+        result.put("seeks", readAhead.getSeeks());
+        result.put("prefetchedBytes", readAhead.getPrefetchedBytes());
+        result.put("usedBytes", readAhead.getUsedBytes());
+        result.put("wastedBytes", readAhead.getWastedBytes());
+        result.put("accuracy", readAhead.getAccuracy());
+        result.put("droppedLoads", readAhead.getDroppedLoads());
+        return result;
+    }
+
+    /**
+     * Counters of the buffer pool: misses and discarded buffers mean the pool is too small for the load, outstanding
+     * leases that keep growing mean buffers aren't returned.
+     */
+    @RequestMapping(value="/buffers", method = RequestMethod.GET)
+    public Map<String, Object> getBufferStats() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("leases", bufferPool.getLeases());
+        result.put("misses", bufferPool.getMisses());
+        result.put("discarded", bufferPool.getDiscarded());
+        result.put("outstanding", bufferPool.getOutstanding());
+        result.put("pooledBytes", bufferPool.getPooledBytes());
+        result.put("leakDetection", bufferPool.isLeakDetection());
+        result.put("leaks", bufferPool.getLeaks());
+        return result;
+    }
+
+    /**
+     * Counters of the disk cache in front of the backing store: hits and misses count chunks, a low hit rate with many
+     * evictions means the cache is too small for the videos being watched.
+     */
+    @RequestMapping(value="/storage", method = RequestMethod.GET)
+    public Map<String, Object> getStorageStats() {
+        long hits = tieredStorage.getHits();
+        long misses = tieredStorage.getMisses();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", tieredStorage.isEnabled());
+        result.put("videos", tieredStorage.getVideoCount());
+        result.put("hits", hits);
+        result.put("misses", misses);
+        result.put("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 1.0);
+        result.put("fetchedBytes", tieredStorage.getFetchedBytes());
+        result.put("failedFetches", tieredStorage.getFailedFetches());
+        result.put("evictions", tieredStorage.getEvictions());
+        result.put("size", tieredStorage.getSize());
+        result.put("maxSize", tieredStorage.getMaxSize());
+        result.put("chunkSize", tieredStorage.getChunkSize());
+        return result;
+    }
+
+    /**
+     * State of the admission control and its counters per priority: requests admitted right away, admitted after
+     * waiting, and answered with 503. Many rejected probes mean max-streams is too low for the load.
+     */
+    @RequestMapping(value="/admission", method = RequestMethod.GET)
+    public Map<String, Object> getAdmissionStats() {
+        StreamingProperties.Admission settings = admissionControl.getSettings();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", settings.isEnabled());
+        result.put("active", admissionControl.getActive());
+        result.put("maxStreams", settings.getMaxStreams());
+        result.put("egress", Math.round(admissionControl.getEgress()));
+        result.put("maxEgress", settings.getMaxEgress());
+        result.put("queued", admissionControl.getQueueLength());
+        for (AdmissionControl.Priority priority : AdmissionControl.Priority.values()) {
+            Map<String, Object> counts = new LinkedHashMap<>();
+            counts.put("admitted", admissionControl.getAdmitted(priority));
+            counts.put("queued", admissionControl.getDelayed(priority));
+            counts.put("rejected", admissionControl.getRejected(priority));
+            result.put(priority.name().toLowerCase(), counts);
+        }
+        return result;
+    }
+
+    /**
+     * Stalled bodies per client class. The longest gap of the finished bodies shows how long a client class pauses
+     * without giving up, idle-timeout should stay above it.
+     */
+    @RequestMapping(value="/stalls", method = RequestMethod.GET)
+    public Map<String, Object> getStallStats() {
+        StreamingProperties.Stalls settings = stallDetector.getSettings();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", settings.isEnabled());
+        result.put("watched", stallDetector.getWatched());
+        result.put("idleTimeout", settings.getIdleTimeout());
+        result.put("minDrainRate", settings.getMinDrainRate());
+        result.put("drainWindow", settings.getDrainWindow());
+        Map<String, Object> classes = new LinkedHashMap<>();
+        stallDetector.getClientClasses().forEach((name, clientClass) -> {
+            Map<String, Object> counts = new LinkedHashMap<>();
+            counts.put("streams", clientClass.getStreams());
+            counts.put("idle", clientClass.getIdle());
+            counts.put("slow", clientClass.getSlow());
+            counts.put("longestGap", clientClass.getLongestGap());
+            classes.put(name, counts);
+        });
+        result.put("clients", classes);
+        return result;
+    }
+
+    /**
+     * Counters of the shared file handles. Many misses with few open handles mean idle-timeout is too short, overflows
+     * mean max-open is too small for the files being read at once.
+     */
+    @RequestMapping(value="/handles", method = RequestMethod.GET)
+    public Map<String, Object> getHandleStats() {
+        StreamingProperties.Handles settings = fileHandleCache.getSettings();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", settings.isEnabled());
+        result.put("open", fileHandleCache.getOpen());
+        result.put("leased", fileHandleCache.getLeased());
+        result.put("maxOpen", settings.getMaxOpen());
+        result.put("hits", fileHandleCache.getHits());
+        result.put("misses", fileHandleCache.getMisses());
+        result.put("overflows", fileHandleCache.getOverflows());
+        result.put("idleClosed", fileHandleCache.getIdleClosed());
+        result.put("evicted", fileHandleCache.getEvicted());
+        result.put("invalidated", fileHandleCache.getInvalidated());
+        return result;
+    }
+
+    /**
+     * Members of the cluster and where this node's chunks came from. Owned chunks are cached here, the others are
+     * fetched from their owner or served by a replica.
+     */
+    @RequestMapping(value="/cluster", method = RequestMethod.GET)
+    public Map<String, Object> getCluster() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", peerFill.getSettings().isEnabled());
+        result.put("self", peerFill.getSelf());
+        result.put("members", peerFill.getMembers());
+        result.put("down", peerFill.getDown());
+        result.put("owned", peerFill.getOwned());
+        result.put("replicaHits", peerFill.getReplicaHits());
+        result.put("fetched", peerFill.getFetched());
+        result.put("fetchedBytes", peerFill.getFetchedBytes());
+        result.put("failed", peerFill.getFailed());
+        result.put("served", peerFill.getServed());
+        result.put("servedBytes", peerFill.getServedBytes());
+        result.put("replicaSize", peerFill.getReplicaSize());
+        return result;
+    }
+
+    /**
+     * Growing files being followed and their viewers, who share one tail per file.
+     */
+    @RequestMapping(value="/live", method = RequestMethod.GET)
+    public Map<String, Object> getLive() {
+        StreamingProperties.Live settings = growingFiles.getSettings();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", settings.isEnabled());
+        result.put("files", growingFiles.getFiles());
+        result.put("viewers", growingFiles.getViewers());
+        result.put("endTimeout", settings.getEndTimeout());
+        result.put("endMarker", settings.getEndMarker());
+        result.put("window", settings.getWindow());
+        return result;
+    }
+
+    /**
+     * Current egress limits of the bandwidth shaper.
+     */
+    @RequestMapping(value="/shaping", method = RequestMethod.GET)
+    public StreamingProperties.Shaping getShaping() {
+        return bandwidthShaper.getLimits();
+    }
+
+    /**
+     * Replaces the egress limits at runtime, active streams included.
+     */
+    @RequestMapping(value="/shaping", method = RequestMethod.PUT)
+    public StreamingProperties.Shaping putShaping(@RequestBody StreamingProperties.Shaping limits) {
+        bandwidthShaper.update(limits);
+        return bandwidthShaper.getLimits();
+    }
+
+    /**
+     * Effective rate of every active stream.
+     */
+    @RequestMapping(value="/shaping/streams", method = RequestMethod.GET)
+    public List<Map<String, Object>> getShapedStreams() {
+        return bandwidthShaper.getStreams().stream().map(stream -> {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("id", stream.getId());
+            result.put("client", stream.getClient());
+            result.put("video", stream.getVideo());
+            result.put("weight", stream.getWeight());
+            result.put("bytes", stream.getBytes());
+            result.put("rate", Math.round(stream.getRate()));
+            result.put("allottedRate", Math.round(stream.getAllottedRate()));
+            result.put("bursting", stream.isBursting());
+            return result;
+        }).collect(Collectors.toList());
+    }
+}
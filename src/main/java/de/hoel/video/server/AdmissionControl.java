@@ -0,0 +1,347 @@
+package de.hoel.video.server;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission control of the response bodies. Every body needs a permit, which is handed out while the node has
+ * capacity: fewer than max-streams bodies are being written and, if a limit is set, the egress measured by the
+ * {@link StreamMetrics} stays below max-egress. Small ranges (probes, the first segment after a seek) go first and
+ * don't count against egress, other ranges come next, and downloads of whole files are only admitted while the node
+ * runs below its bulk share. Requests without capacity wait in that order until the queue timeout, then they are
+ * answered with 503 and a Retry-After header, so a saturated node sheds some requests cleanly instead of slowing down
+ * every stream.
+ */
+@Component
+public class AdmissionControl {
+
+    private static final long TICK = 100; // ..ms.
+
+    /**
+     * Kinds of requests, in the order they are admitted.
+     */
+    public enum Priority {
+        /** Small ranges, e.g. probes of the container or the first segment after a seek. */
+        PROBE,
+        /** Larger ranges, players streaming from their position. */
+        PLAYBACK,
+        /** Whole files requested without a Range header, downloads. */
+        BULK
+    }
+
+    private final StreamingProperties.Admission settings;
+    private final StreamMetrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>(
+            Comparator.comparing((Waiter waiter) -> waiter.priority).thenComparingLong(waiter -> waiter.sequence));
+    private final Map<Priority, long[]> counts = new EnumMap<>(Priority.class);
+
+    private int active;
+    private long sequence;
+    private volatile double egress;
+    private long measuredBytes;
+    private long measuredAt = System.nanoTime();
+
+    public AdmissionControl(StreamingProperties properties, StreamMetrics metrics, MeterRegistry registry) {
+        this.settings = properties.getAdmission();
+        this.metrics = properties.getMetrics().isEnabled() ? metrics : null;
+        for (Priority priority : Priority.values()) {
+            counts.put(priority, new long[3]);
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("admission-control").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+
+        registry.gauge("video.admission.active", this, AdmissionControl::getActive);
+        registry.gauge("video.admission.queued", this, AdmissionControl::getQueueLength);
+        registry.gauge("video.admission.egress", this, AdmissionControl::getEgress);
+        for (Priority priority : Priority.values()) {
+            String tag = priority.name().toLowerCase();
+            FunctionCounter.builder("video.admission.requests", this, control -> control.getAdmitted(priority))
+                    .tags("priority", tag, "result", "admitted").register(registry);
+            FunctionCounter.builder("video.admission.requests", this, control -> control.getDelayed(priority))
+                    .tags("priority", tag, "result", "queued").register(registry);
+            FunctionCounter.builder("video.admission.requests", this, control -> control.getRejected(priority))
+                    .tags("priority", tag, "result", "rejected").register(registry);
+        }
+    }
+
+    /**
+     * @param requested True if the client asked for ranges, false for the whole file.
+     * @param bytes Length of the body.
+     * @return The priority of the response.
+     */
+    public Priority classify(boolean requested, long bytes) {
+        if (bytes <= settings.getSmallRange()) {
+            return Priority.PROBE;
+        }
+        return requested ? Priority.PLAYBACK : Priority.BULK;
+    }
+
+    /**
+     * Asks for a permit to write a response body, without blocking.
+     * @param priority Priority of the response.
+     * @return Completes with a permit once there is capacity, or with a rejected one after the queue timeout.
+     */
+    public CompletableFuture<Permit> admit(Priority priority) {
+        CompletableFuture<Permit> result = new CompletableFuture<>();
+        synchronized (this) {
+            Waiter first = queue.peek();
+            if ((first == null || first.priority.compareTo(priority) > 0) && admissible(priority)) {
+                active++;
+                counts.get(priority)[0]++;
+                result.complete(new Permit(priority, true));
+            } else if (settings.getQueueTimeout() <= 0) {
+                counts.get(priority)[2]++;
+                result.complete(new Permit(priority, false));
+            } else {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getQueueTimeout());
+                queue.add(new Waiter(priority, sequence++, deadline, result));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Asks for a permit to write a response body and waits for it, for the servlet stack.
+     * @param priority Priority of the response.
+     * @return The permit, which may be rejected.
+     * @throws InterruptedIOException If the thread was interrupted while waiting.
+     */
+    public Permit await(Priority priority) throws InterruptedIOException {
+        CompletableFuture<Permit> permit = admit(priority);
+        try {
+            return permit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!permit.cancel(false)) {
+                permit.join().close(); // Admitted in the meantime.
+            }
+            throw new InterruptedIOException("Interrupted while waiting for admission");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause()); // Never completed exceptionally.
+        }
+    }
+
+    /**
+     * @return Seconds to send in the Retry-After header of a rejected request.
+     */
+    public int getRetryAfter() {
+        return settings.getRetryAfter();
+    }
+
+    private boolean admissible(Priority priority) {
+        boolean bulk = priority == Priority.BULK;
+        double share = bulk ? settings.getBulkShare() : 1;
+        if (active >= Math.ceil(settings.getMaxStreams() * share)) {
+            return false;
+        }
+        return priority == Priority.PROBE || settings.getMaxEgress() <= 0 || egress < settings.getMaxEgress() * share;
+    }
+
+    private void release() {
+        List<Waiter> admitted;
+        synchronized (this) {
+            active--;
+            admitted = drain();
+        }
+        complete(admitted, true);
+    }
+
+    /**
+     * Takes the waiting requests in order for as long as there is capacity. Later ones have stricter limits, so the
+     * first one that doesn't fit ends the round.
+     * @return The admitted requests, to be completed once the lock is released.
+     */
+    private List<Waiter> drain() {
+        List<Waiter> admitted = new ArrayList<>();
+        Waiter waiter;
+        while ((waiter = queue.peek()) != null) {
+            if (waiter.permit.isDone()) {
+                queue.poll(); // Gave up waiting.
+                continue;
+            }
+            if (!admissible(waiter.priority)) {
+                break;
+            }
+            queue.poll();
+            active++;
+            counts.get(waiter.priority)[1]++;
+            admitted.add(waiter);
+        }
+        return admitted;
+    }
+
+    /**
+     * Hands out the permits of waiting requests. The futures run their callbacks, e.g. whole reactive responses, so
+     * this must not hold the lock.
+     */
+    private void complete(List<Waiter> waiters, boolean admitted) {
+        for (Waiter waiter : waiters) {
+            Permit permit = new Permit(waiter.priority, admitted);
+            if (!waiter.permit.complete(permit)) {
+                permit.close(); // Gave up waiting in the meantime.
+            }
+        }
+    }
+
+    /**
+     * Measures the egress, rejects the requests that waited too long and admits waiting requests if the egress fell.
+     */
+    private void tick() {
+        List<Waiter> expired = new ArrayList<>();
+        List<Waiter> admitted;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (metrics != null) {
+                long sent = metrics.getSentBytes();
+                double instant = (sent - measuredBytes) * 1e9 / (now - measuredAt);
+                egress = egress * 0.8 + instant * 0.2; // About the last half second.
+                measuredBytes = sent;
+                measuredAt = now;
+            }
+
+            for (Iterator<Waiter> waiters = queue.iterator(); waiters.hasNext(); ) {
+                Waiter waiter = waiters.next();
+                if (now - waiter.deadline >= 0) {
+                    waiters.remove();
+                    if (!waiter.permit.isDone()) {
+                        counts.get(waiter.priority)[2]++;
+                        expired.add(waiter);
+                    }
+                }
+            }
+            admitted = drain();
+        }
+        complete(expired, false);
+        complete(admitted, true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        List<Waiter> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<>(queue);
+            queue.clear();
+        }
+        complete(waiting, false);
+    }
+
+    /**
+     * @return Number of response bodies being written.
+     */
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * @return Number of requests waiting for admission.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * @return Measured egress in bytes per second.
+     */
+    public double getEgress() {
+        return egress;
+    }
+
+    /**
+     * @return Requests of the given priority admitted right away.
+     */
+    public synchronized long getAdmitted(Priority priority) {
+        return counts.get(priority)[0];
+    }
+
+    /**
+     * @return Requests of the given priority admitted after waiting in the queue.
+     */
+    public synchronized long getDelayed(Priority priority) {
+        return counts.get(priority)[1];
+    }
+
+    /**
+     * @return Requests of the given priority answered with 503.
+     */
+    public synchronized long getRejected(Priority priority) {
+        return counts.get(priority)[2];
+    }
+
+    public StreamingProperties.Admission getSettings() {
+        return settings;
+    }
+
+    /**
+     * Permission to write one response body, to be closed once the body is done.
+     */
+    public final class Permit implements Closeable {
+        private final Priority priority;
+        private final boolean admitted;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Permit(Priority priority, boolean admitted) {
+            this.priority = priority;
+            this.admitted = admitted;
+        }
+
+        /**
+         * @return False if the request has to be answered with 503.
+         */
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Hands the capacity back, only the first call has an effect.
+         */
+        @Override
+        public void close() {
+            if (admitted && closed.compareAndSet(false, true)) {
+                release();
+            }
+        }
+    }
+
+    private static final class Waiter {
+        final Priority priority;
+        final long sequence;
+        final long deadline;
+        final CompletableFuture<Permit> permit;
+
+        Waiter(Priority priority, long sequence, long deadline, CompletableFuture<Permit> permit) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.deadline = deadline;
+            this.permit = permit;
+        }
+    }
+}
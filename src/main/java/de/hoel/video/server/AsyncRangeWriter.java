@@ -0,0 +1,440 @@
+package de.hoel.video.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the body of a range response with non-blocking I/O. Chunks are only written while the output stream reports
+ * to be ready, so no thread waits for a slow client; the container calls back once the socket is writable again.
+ * <p>
+ * The container's threads only copy what is in memory already: part headers and chunks that are cached. Reads of the
+ * file, of chunks missing in the cache and of growing files run on the reader threads of {@link AsyncStreaming},
+ * writing resumes on a container thread once they are done. A slow disk or a cache miss makes the stream wait for a
+ * reader, not the container.
+ */
+class AsyncRangeWriter implements WriteListener, AsyncListener {
+
+    // Drain rates are measured over windows spanning several frames, a single frame mostly fills socket buffers.
+    private static final long SAMPLE_WINDOW = TimeUnit.MILLISECONDS.toNanos(200);
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AsyncContext context;
+    private final AsyncStreaming streaming;
+    private final ChunkCache cache;
+    private final ChunkCache.FileVersion version;
+    private final FileChannel channel;
+    private final GrowingFiles.Tail tail;
+    private final ServletOutputStream output;
+    private final AdaptiveFrameSize frames;
+    private final long startupBytes;
+    private final Deque<Part> parts = new ArrayDeque<>();
+    private final BandwidthShaper.Stream shaped;
+    private final ReadAhead.Session readAhead;
+    private final StreamMetrics.Stream metered;
+    private final StallDetector.Watch watch;
+    private final BufferPool pool;
+
+    private BufferPool.Lease lease;
+    private ByteBuffer buffer;
+    private Part current;
+    private boolean reserved;
+    private boolean blocked;
+    private boolean closed;
+    private long sampled;
+    private long sampleStart = System.nanoTime();
+    private long heldAt;
+    private long written;
+
+    /**
+     * Construct a writer reading either from the chunk cache, the file channel or the tail of a growing file.
+     * @param context The started async context of the request.
+     * @param streaming Scheduler for resuming shaped streams.
+     * @param cache The chunk cache to read from, or null to read the channel.
+     * @param version The file version to read from the cache.
+     * @param channel The file to read if there is no cache, closed when the writer is done.
+     * @param tail The growing file to read instead, or null. Its parts are written as the file grows, the writer
+     * waits for more at its end. Closed when the writer is done.
+     * @param shaped The stream's bandwidth shaping, or null to write as fast as the client reads. Closed with the writer.
+     * @param readAhead The read-ahead session to advance while reading, may be null.
+     * @param metered Measurements of the body, or null. Closed with the writer.
+     * @param watch Progress watch of the body, or null. Aborts the writer once the client stalls, closed with it.
+     * @param coalescing Frame sizes adapting to the client's drain rate, or null to write fixed size chunks.
+     * @param pool Pool to lease the buffer from, or null to allocate it. Returned when the writer is done.
+     * @param bufferSize Size of the chunks written at once without coalescing.
+     * @throws IOException If the output stream can't be obtained.
+     */
+    AsyncRangeWriter(AsyncContext context, AsyncStreaming streaming, ChunkCache cache, ChunkCache.FileVersion version,
+                     FileChannel channel, GrowingFiles.Tail tail, BandwidthShaper.Stream shaped, ReadAhead.Session readAhead,
+                     StreamMetrics.Stream metered, StallDetector.Watch watch, StreamingProperties.Coalescing coalescing,
+                     BufferPool pool, int bufferSize) throws IOException {
+        this.context = context;
+        this.streaming = streaming;
+        this.cache = cache;
+        this.version = version;
+        this.channel = channel;
+        this.tail = tail;
+        this.shaped = shaped;
+        this.readAhead = readAhead;
+        this.metered = metered;
+        this.watch = watch;
+        this.pool = pool;
+        this.output = context.getResponse().getOutputStream();
+        this.frames = coalescing != null ? new AdaptiveFrameSize(coalescing) : null;
+        this.startupBytes = coalescing != null ? coalescing.getStartupBytes() : 0;
+        this.lease = BufferPool.lease(pool, frames != null ? frames.get() : bufferSize);
+        this.buffer = lease.buffer();
+        this.buffer.flip();
+    }
+
+    /**
+     * Queues a part of the body.
+     * @param header Bytes to write before the range, may be null.
+     * @param start Start of the range in the file.
+     * @param length Length of the range, may be 0 to only write the header. Of a growing file, up to where it ends.
+     */
+    void add(byte[] header, long start, long length) {
+        parts.add(new Part(header, start, length));
+    }
+
+    /**
+     * Starts writing; the calling thread returns right away.
+     */
+    void start() {
+        context.setTimeout(streaming.getTimeout());
+        context.addListener(this);
+        streaming.opened();
+        if (watch != null) {
+            watch.onStall(this::abort);
+        }
+        output.setWriteListener(this);
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        if (heldAt != 0) {
+            // Resumed after the server held the body back, the client wasn't draining meanwhile.
+            sampleStart += System.nanoTime() - heldAt;
+            heldAt = 0;
+        }
+        while (!closed && output.isReady()) {
+            if (!buffer.hasRemaining() && !fill(false)) {
+                if (blocked) {
+                    heldAt = System.nanoTime();
+                    streaming.read(this::read);
+                    return;
+                }
+                drained();
+                return;
+            }
+
+            // Wait for the shaper off-thread; the reservation stays valid for the buffered bytes.
+            if (shaped != null && !reserved) {
+                reserved = true;
+                long wait = shaped.reserve(buffer.remaining());
+                if (wait > 0) {
+                    // Don't keep already written bytes in the response buffer while waiting.
+                    output.flush();
+                    pause();
+                    streaming.schedule(this::waited, wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+
+            int frameWritten = buffer.remaining();
+            output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            reserved = false;
+            if (metered != null) {
+                metered.sent(frameWritten);
+            }
+            if (watch != null) {
+                watch.progress(frameWritten);
+            }
+            if (frames != null) {
+                sample(frameWritten);
+            }
+
+            // Get the first bytes after a seek out right away.
+            written += frameWritten;
+            if (written - frameWritten < startupBytes && output.isReady()) {
+                output.flush();
+            }
+        }
+    }
+
+    /**
+     * Adds written bytes to the drain rate sample, and records it once it spans the sample window.
+     */
+    private void sample(int bytes) {
+        sampled += bytes;
+        long now = System.nanoTime();
+        if (now - sampleStart >= SAMPLE_WINDOW) {
+            frames.record(sampled, now - sampleStart);
+            sampled = 0;
+            sampleStart = now;
+        }
+    }
+
+    /**
+     * Nothing left to write for now: completes the body, or waits for a growing file to grow.
+     */
+    private void drained() throws IOException {
+        if (tail != null && current != null && !current.isDone()) {
+            // At the end of a growing file: send what is written and go on once it grew.
+            output.flush();
+            pause();
+            tail.await(current.position, this::waited);
+            return;
+        }
+        close();
+    }
+
+    /**
+     * Fills the buffer on a reader thread and resumes writing on a container thread. A close in the meantime waits
+     * for the read to finish.
+     */
+    private void read() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!fill(true)) {
+                    drained();
+                    return;
+                }
+            } catch (IOException | RuntimeException e) {
+                onError(e);
+                return;
+            }
+        }
+        grown();
+    }
+
+    /**
+     * Stops the watch's clock and the drain rate sample while the server holds the body back, the client isn't slow
+     * meanwhile.
+     */
+    private void pause() {
+        heldAt = System.nanoTime();
+        if (watch != null) {
+            watch.pause();
+        }
+    }
+
+    private void waited() {
+        if (watch != null) {
+            watch.resume();
+        }
+        grown();
+    }
+
+    private void grown() {
+        try {
+            context.start(this::resume);
+        } catch (IllegalStateException e) {
+            logger.debug("Async stream ended while waiting for the file", e);
+        }
+    }
+
+    private void resume() {
+        try {
+            onWritePossible();
+        } catch (IOException | RuntimeException e) {
+            onError(e);
+        }
+    }
+
+    /**
+     * Fills the buffer with the next bytes of the body.
+     * @param blocking True to read the file as well, else only what is in memory; sets blocked if it stopped at a read.
+     * @return False if the whole body has been written, or nothing could be read without blocking.
+     */
+    private boolean fill(boolean blocking) throws IOException {
+        blocked = false;
+        if (frames != null && buffer.capacity() < frames.get()) {
+            lease.close();
+            lease = BufferPool.lease(pool, frames.get());
+            buffer = lease.buffer();
+        }
+        buffer.clear();
+        if (frames != null) {
+            buffer.limit(frames.get());
+        }
+        while (buffer.hasRemaining()) {
+            if (current == null || current.isDone()) {
+                current = parts.poll();
+                if (current == null) {
+                    break;
+                }
+            }
+
+            if (current.headerOffset < current.header.length) {
+                int n = Math.min(buffer.remaining(), current.header.length - current.headerOffset);
+                buffer.put(current.header, current.headerOffset, n);
+                current.headerOffset += n;
+            } else if (!blocking && (tail != null || cache == null || !cache.isCached(version, current.position))) {
+                blocked = true;
+                break;
+            } else if (tail != null) {
+                int limit = buffer.limit();
+                buffer.limit((int) Math.min(limit, buffer.position() + (current.end - current.position)));
+                int read = tail.read(buffer, current.position);
+                buffer.limit(limit);
+                if (read < 0) {
+                    current.end = current.position; // The file ended.
+                } else if (read == 0) {
+                    break; // Nothing more written yet.
+                } else {
+                    current.position += read;
+                }
+            } else if (cache != null) {
+                ByteBuffer chunk = cache.read(version, current.position);
+                chunk.limit((int) Math.min(chunk.limit(), chunk.position() + Math.min(buffer.remaining(), current.end - current.position)));
+                current.position += chunk.remaining();
+                buffer.put(chunk);
+            } else {
+                int limit = buffer.limit();
+                buffer.limit((int) Math.min(limit, buffer.position() + (current.end - current.position)));
+                int read = channel.read(buffer, current.position);
+                buffer.limit(limit);
+                if (read < 0) {
+                    throw new EOFException("File got shorter while streaming at " + current.position);
+                }
+                current.position += read;
+            }
+        }
+        buffer.flip();
+        if (readAhead != null && current != null) {
+            readAhead.advance(current.position);
+        }
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Completes the response and releases the file, only the first call has an effect.
+     */
+    private synchronized void close() {
+        if (release()) {
+            context.complete();
+        }
+    }
+
+    /**
+     * Releases the file and buffer of a stalled client without completing the response, which would wait for the
+     * rest of the body to drain. The request is dispatched back to the container instead, where the
+     * {@link StalledConnectionValve} drops the connection.
+     */
+    private void abort() {
+        if (metered != null) {
+            metered.abort();
+        }
+        synchronized (this) {
+            if (!release()) {
+                return;
+            }
+        }
+        logger.debug("Async stream stalled ({}), aborting", watch.getStalled());
+        try {
+            context.dispatch();
+        } catch (IllegalStateException e) {
+            logger.debug("Async stream ended in the meantime", e); // Completed or timed out.
+        }
+    }
+
+    /**
+     * @return True on the first call, which released the writer's resources.
+     */
+    private boolean release() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        lease.close();
+        streaming.closed();
+        if (shaped != null) {
+            shaped.close();
+        }
+        if (metered != null) {
+            metered.close();
+        }
+        if (watch != null) {
+            watch.close();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.debug("Closing file failed", e);
+        }
+        if (tail != null) {
+            tail.close();
+        }
+        return true;
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        // Mostly clients going away in the middle of the stream.
+        logger.debug("Async stream aborted : {}", t.toString());
+        if (metered != null) {
+            metered.abort();
+        }
+        close();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        logger.debug("Async stream timed out");
+        close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private static class Part {
+        private static final byte[] NO_HEADER = new byte[0];
+
+        final byte[] header;
+        long end;
+        int headerOffset;
+        long position;
+
+        Part(byte[] header, long start, long length) {
+            this.header = header != null ? header : NO_HEADER;
+            this.position = start;
+            this.end = start + length;
+        }
+
+        boolean isDone() {
+            return headerOffset == header.length && position >= end;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package de.hoel.video.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Shared state of the non-blocking streams written by {@link AsyncRangeWriter}: the small scheduler that resumes
+ * shaped streams, the bounded pool of threads doing their blocking reads, the async timeout and the number of open
+ * streams.
+ */
+@Component
+public class AsyncStreaming {
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService readers;
+    private final long timeout;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    public AsyncStreaming(StreamingProperties properties) {
+        this.scheduler = Executors.newScheduledThreadPool(properties.getAsync().getPoolSize(),
+                new ThreadFactoryBuilder().setNameFormat("async-stream-%d").setDaemon(true).build());
+        this.readers = Executors.newFixedThreadPool(properties.getAsync().getReadThreads(),
+                new ThreadFactoryBuilder().setNameFormat("async-read-%d").setDaemon(true).build());
+        this.timeout = properties.getAsync().getTimeout();
+    }
+
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        scheduler.schedule(task, delay, unit);
+    }
+
+    /**
+     * Runs a read that may block on one of the reader threads, once one is free.
+     */
+    void read(Runnable task) {
+        readers.execute(task);
+    }
+
+    void opened() {
+        activeStreams.incrementAndGet();
+    }
+
+    void closed() {
+        activeStreams.decrementAndGet();
+    }
+
+    /**
+     * @return Async timeout of a whole stream in milliseconds, 0 or less for none.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        readers.shutdownNow();
+    }
+}
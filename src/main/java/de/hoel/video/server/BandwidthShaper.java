@@ -0,0 +1,342 @@
+package de.hoel.video.server;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Hierarchical egress shaping. Every stream draws from its own bucket, the bucket of its client, the bucket of its
+ * video and the global egress bucket, and has to wait for the slowest of them. While a global rate is set, the
+ * stream buckets are rebalanced periodically to weighted max-min fair shares of it: streams that can't use their share
+ * (slow clients) leave the rest to the others. The first bytes after a seek skip the stream's fair share and draw on
+ * a burst allowance, so playback starts quickly. The allowance belongs to the stream's client and video: their buckets
+ * are charged for the burst and lend at most burst-size ahead of their rate to all their streams together, so a client
+ * opening many short ranges doesn't get a fresh burst with each of them.
+ */
+@Component
+public class BandwidthShaper {
+
+    private static final double MIN_DEMAND = 64 * 1024;
+
+    private final StreamingProperties.Shaping limits;
+    private final TokenBucket global;
+    private final ConcurrentMap<String, Group> clients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Group> videos = new ConcurrentHashMap<>();
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final AtomicLong ids = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+
+    public BandwidthShaper(StreamingProperties properties) {
+        this.limits = properties.getShaping();
+        this.global = new TokenBucket(limits.getGlobalRate());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("bandwidth-shaper").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::rebalance, limits.getRebalanceInterval(),
+                limits.getRebalanceInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return True if any limit is set, i.e. streams have to go through the shaper instead of sendfile.
+     */
+    public boolean isLimiting() {
+        return limits.getGlobalRate() > 0 || limits.getClientRate() > 0
+                || limits.getVideoRate() > 0 || limits.getStreamRate() > 0;
+    }
+
+    /**
+     * Registers a new stream, which starts with its burst allowance.
+     * @param client Identity of the client, e.g. its address.
+     * @param video Identity of the streamed video.
+     * @return The stream, to be closed once the response is done.
+     */
+    public Stream open(String client, String video) {
+        Stream stream = new Stream(client, video, limits.getWeights().getOrDefault(video, 1.0));
+        streams.add(stream);
+        stream.allot(initialShare(stream));
+        return stream;
+    }
+
+    private synchronized double initialShare(Stream stream) {
+        if (limits.getGlobalRate() <= 0) {
+            return limits.getStreamRate();
+        }
+        double weights = streams.stream().mapToDouble(s -> s.weight).sum();
+        double share = limits.getGlobalRate() * stream.weight / weights;
+        return limits.getStreamRate() > 0 ? Math.min(share, limits.getStreamRate()) : share;
+    }
+
+    /**
+     * Applies new limits at runtime, active streams pick them up right away.
+     * @param update The new limits.
+     */
+    public synchronized void update(StreamingProperties.Shaping update) {
+        limits.setGlobalRate(update.getGlobalRate());
+        limits.setClientRate(update.getClientRate());
+        limits.setVideoRate(update.getVideoRate());
+        limits.setStreamRate(update.getStreamRate());
+        limits.setBurstDuration(update.getBurstDuration());
+        limits.setBurstSize(update.getBurstSize());
+        limits.getWeights().clear();
+        limits.getWeights().putAll(update.getWeights());
+
+        global.setRate(limits.getGlobalRate());
+        clients.values().forEach(group -> group.bucket.setRate(limits.getClientRate()));
+        videos.values().forEach(group -> group.bucket.setRate(limits.getVideoRate()));
+        streams.forEach(stream -> stream.weight = limits.getWeights().getOrDefault(stream.video, 1.0));
+        rebalance();
+    }
+
+    public StreamingProperties.Shaping getLimits() {
+        return limits;
+    }
+
+    public List<Stream> getStreams() {
+        List<Stream> result = new ArrayList<>(streams);
+        result.sort(Comparator.comparingLong(Stream::getId));
+        return result;
+    }
+
+    /**
+     * Measures the rate of every stream and hands out the global rate by weighted water-filling: streams are served
+     * in order of demand per weight, each gets at most its demand and the rest is split among the remaining ones.
+     */
+    synchronized void rebalance() {
+        long now = System.nanoTime();
+        List<Stream> active = new ArrayList<>(streams);
+        active.forEach(stream -> stream.measure(now));
+        clients.keySet().forEach(client -> prune(clients, client, now));
+        videos.keySet().forEach(video -> prune(videos, video, now));
+
+        double cap = limits.getStreamRate() > 0 ? limits.getStreamRate() : Double.POSITIVE_INFINITY;
+        if (limits.getGlobalRate() <= 0) {
+            active.forEach(stream -> stream.allot(limits.getStreamRate()));
+            return;
+        }
+
+        active.sort(Comparator.comparingDouble(stream -> stream.demand(cap) / stream.weight));
+        double remaining = limits.getGlobalRate();
+        double weights = active.stream().mapToDouble(stream -> stream.weight).sum();
+        for (Stream stream : active) {
+            double share = Math.min(remaining * stream.weight / weights, stream.demand(cap));
+            stream.allot(share);
+            remaining -= share;
+            weights -= stream.weight;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private Group join(ConcurrentMap<String, Group> groups, String key, double rate) {
+        return groups.compute(key, (k, group) -> {
+            Group joined = group != null ? group : new Group(rate);
+            joined.streams++;
+            return joined;
+        });
+    }
+
+    private void leave(ConcurrentMap<String, Group> groups, String key) {
+        groups.computeIfPresent(key, (k, group) -> {
+            group.streams--;
+            return group;
+        });
+        prune(groups, key, System.nanoTime());
+    }
+
+    /**
+     * Drops a group once it has no streams and its bucket is paid off. Until then it's kept, so the next stream of
+     * the client or video starts with the debt of the previous ones rather than a fresh bucket.
+     */
+    private void prune(ConcurrentMap<String, Group> groups, String key, long now) {
+        groups.computeIfPresent(key, (k, group) -> group.streams == 0 && group.bucket.isPaidOff(now) ? null : group);
+    }
+
+    private class Group {
+        final TokenBucket bucket;
+        int streams;
+
+        Group(double rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+
+        /**
+         * @param wait The wait of a reservation in the group's bucket.
+         * @return True if the group's streams have used less than one burst ahead of its rate, so a bursting stream
+         * may send right away.
+         */
+        boolean lends(long wait) {
+            return wait <= bucket.time(limits.getBurstSize());
+        }
+    }
+
+    /**
+     * One response body going through the shaper.
+     */
+    public class Stream implements Closeable {
+        private final long id = ids.incrementAndGet();
+        private final String client;
+        private final String video;
+        private final Group clientGroup;
+        private final Group videoGroup;
+        private final TokenBucket bucket = new TokenBucket(0);
+        private final long burstUntil;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private volatile double weight;
+        private volatile long burstLeft;
+        private volatile boolean throttled;
+        private volatile double allotted;
+        private volatile double rate;
+        private long measuredBytes;
+        private long measuredAt = System.nanoTime();
+        private volatile StallDetector.Watch watch;
+
+        Stream(String client, String video, double weight) {
+            this.client = client;
+            this.video = video;
+            this.weight = weight;
+            this.clientGroup = join(clients, client, limits.getClientRate());
+            this.videoGroup = join(videos, video, limits.getVideoRate());
+            this.burstUntil = measuredAt + TimeUnit.MILLISECONDS.toNanos(limits.getBurstDuration());
+            this.burstLeft = limits.getBurstSize();
+        }
+
+        /**
+         * Reserves the given number of bytes in all buckets of the stream.
+         * @param count Number of bytes about to be sent.
+         * @return Nanoseconds to wait before sending them.
+         */
+        public long reserve(long count) {
+            long now = System.nanoTime();
+            bytes.addAndGet(count);
+
+            long wait = global.reserve(count, now);
+            long client = clientGroup.bucket.reserve(count, now);
+            long video = videoGroup.bucket.reserve(count, now);
+            if (burstLeft > 0 && now < burstUntil && clientGroup.lends(client) && videoGroup.lends(video)) {
+                burstLeft -= count;
+                return wait;
+            }
+
+            long own = bucket.reserve(count, now);
+            throttled |= own > wait;
+            wait = Math.max(wait, own);
+            return Math.max(wait, Math.max(client, video));
+        }
+
+        /**
+         * Reserves the given number of bytes and blocks until they may be sent.
+         * @param count Number of bytes about to be sent.
+         */
+        public void acquire(long count) {
+            long wait = reserve(count);
+            if (wait > 0) {
+                StallDetector.Watch watched = watch;
+                if (watched != null) {
+                    watched.pause();
+                }
+                try {
+                    Uninterruptibles.sleepUninterruptibly(wait, TimeUnit.NANOSECONDS);
+                } finally {
+                    if (watched != null) {
+                        watched.resume();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Pauses the watch of the body while {@link #acquire} waits, so a stream shaped below the minimum drain rate
+         * isn't taken for a slow client.
+         * @param watch The watch of the body, or null.
+         */
+        public void watch(StallDetector.Watch watch) {
+            this.watch = watch;
+        }
+
+        void measure(long now) {
+            if (now <= measuredAt) {
+                return;
+            }
+            long sent = bytes.get();
+            double instant = (sent - measuredBytes) / ((now - measuredAt) / (double) TimeUnit.SECONDS.toNanos(1));
+            rate = rate == 0 ? instant : (rate + instant) / 2;
+            measuredBytes = sent;
+            measuredAt = now;
+        }
+
+        double demand(double cap) {
+            double demand = throttled ? Double.POSITIVE_INFINITY : Math.max(MIN_DEMAND, rate * 1.5);
+            return Math.min(demand, cap);
+        }
+
+        void allot(double share) {
+            allotted = share;
+            bucket.setRate(share);
+            throttled = false;
+        }
+
+        @Override
+        public void close() {
+            if (streams.remove(this)) {
+                leave(clients, client);
+                leave(videos, video);
+            }
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getClient() {
+            return client;
+        }
+
+        public String getVideo() {
+            return video;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return Measured rate in bytes per second.
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        /**
+         * @return Rate the stream may currently use in bytes per second, 0 for no limit.
+         */
+        public double getAllottedRate() {
+            return allotted;
+        }
+
+        public boolean isBursting() {
+            return burstLeft > 0 && System.nanoTime() < burstUntil;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package de.hoel.video.server;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded pool of the I/O buffers of the send path, so streaming many short ranges doesn't allocate a buffer per
+ * request. Buffers come in power of two size classes, a lease gets the smallest class that fits. Each class keeps at
+ * most a share of the pooled bytes; buffers returned to a full class, and leases larger than the largest class, are
+ * left to the garbage collector.
+ * <p>
+ * The buffers are array backed: they are written to servlet output streams, which take byte arrays, and off-heap
+ * memory would only add a copy there. With leak detection on, every lease remembers where it was taken, and leases
+ * that are garbage collected without having been closed are logged with that stack trace.
+ */
+@Component
+public class BufferPool {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final int minShift;
+    private final int maxShift;
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final boolean leakDetection;
+    private final Set<LeakReference> tracked = ConcurrentHashMap.newKeySet();
+    private final ReferenceQueue<Lease> collected = new ReferenceQueue<>();
+
+    private final AtomicLong leases = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    @Autowired
+    public BufferPool(StreamingProperties properties) {
+        this(properties.getBuffers().getMinSize(), properties.getBuffers().getMaxSize(),
+                properties.getBuffers().getPoolSize(), properties.getBuffers().isLeakDetection());
+    }
+
+    /**
+     * Construct a buffer pool.
+     * @param minSize Size of the smallest class, rounded up to a power of two.
+     * @param maxSize Size of the largest class, rounded up to a power of two.
+     * @param poolSize Upper bound of pooled bytes, split evenly among the classes.
+     * @param leakDetection True to track where leases are taken and report those never closed.
+     */
+    public BufferPool(int minSize, int maxSize, long poolSize, boolean leakDetection) {
+        this.minShift = shift(minSize);
+        this.maxShift = Math.max(minShift, shift(maxSize));
+        this.classes = queues(maxShift - minShift + 1);
+        for (int i = 0; i < classes.length; i++) {
+            long share = poolSize / classes.length;
+            classes[i] = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(Integer.MAX_VALUE, share >> (minShift + i))));
+        }
+        this.leakDetection = leakDetection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayBlockingQueue<ByteBuffer>[] queues(int count) {
+        return (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[count];
+    }
+
+    private static int shift(int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+    }
+
+    /**
+     * Leases a cleared buffer of at least the given size, to be closed once it is no longer used.
+     * @param size Smallest usable size.
+     * @return The lease.
+     */
+    public Lease lease(int size) {
+        leases.incrementAndGet();
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            reportLeaks();
+        }
+
+        int index = Math.max(0, shift(size) - minShift);
+        ByteBuffer buffer = index < classes.length ? classes[index].poll() : null;
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocate(index < classes.length ? 1 << (minShift + index) : size);
+        }
+        buffer.clear();
+        return new Lease(this, buffer);
+    }
+
+    /**
+     * Leases from the given pool, or a buffer that isn't pooled if there is none.
+     * @param pool The pool, may be null.
+     * @param size Smallest usable size.
+     * @return The lease.
+     */
+    static Lease lease(BufferPool pool, int size) {
+        return pool != null ? pool.lease(size) : new Lease(null, ByteBuffer.allocate(size));
+    }
+
+    private void release(Lease lease) {
+        outstanding.decrementAndGet();
+        if (lease.leak != null) {
+            tracked.remove(lease.leak);
+            lease.leak.clear();
+        }
+        int index = Integer.numberOfTrailingZeros(lease.buffer.capacity()) - minShift;
+        boolean pooled = Integer.bitCount(lease.buffer.capacity()) == 1 && index >= 0 && index < classes.length;
+        if (!pooled || !classes[index].offer(lease.buffer)) {
+            discarded.incrementAndGet();
+        }
+    }
+
+    private void reportLeaks() {
+        for (Reference<? extends Lease> reference = collected.poll(); reference != null; reference = collected.poll()) {
+            LeakReference leak = (LeakReference) reference;
+            if (tracked.remove(leak)) {
+                leaks.incrementAndGet();
+                outstanding.decrementAndGet();
+                logger.error("Buffer of {} bytes was garbage collected without being returned to the pool, leased at :",
+                        leak.size, leak.leasedAt);
+            }
+        }
+    }
+
+    /**
+     * @return Number of leases since startup.
+     */
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * @return Number of leases that had to allocate a buffer, because their class was empty or they were too large.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Number of buffers returned to a full class, i.e. dropped.
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return Number of buffers currently leased.
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return Number of leases that were never closed, only counted with leak detection.
+     */
+    public long getLeaks() {
+        return leaks.get();
+    }
+
+    /**
+     * @return Number of bytes held by the pool, i.e. not leased.
+     */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < classes.length; i++) {
+            bytes += (long) classes[i].size() << (minShift + i);
+        }
+        return bytes;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * A leased buffer. Closing the lease returns the buffer, which must not be used afterwards.
+     */
+    public static final class Lease implements AutoCloseable {
+
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final LeakReference leak;
+        private boolean closed;
+
+        private Lease(BufferPool pool, ByteBuffer buffer) {
+            this.pool = pool;
+            this.buffer = buffer;
+            if (pool != null && pool.leakDetection) {
+                leak = new LeakReference(this, pool.collected, buffer.capacity());
+                pool.tracked.add(leak);
+            } else {
+                leak = null;
+            }
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the buffer, only the first call has an effect.
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                if (pool != null) {
+                    pool.release(this);
+                }
+            }
+        }
+    }
+
+    private static final class LeakReference extends WeakReference<Lease> {
+        private final int size;
+        private final Throwable leasedAt = new Throwable("Buffer leased");
+
+        LeakReference(Lease lease, ReferenceQueue<Lease> queue, int size) {
+            super(lease, queue);
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Shared, size bounded cache of aligned file chunks held in direct (off-heap) buffers. Chunks are keyed by the file
+ * version (path, size and modification time) and the chunk index, so a changed file never serves stale bytes; the
+ * chunks of the previous version are dropped as soon as the change is seen.
+ * <p>
+ * Concurrent reads of a chunk that isn't cached share one read of the file: the first one loads the chunk in steps,
+ * the others are handed the loaded part of the chunk as it grows instead of reading the file themselves. In a cluster,
+ * the chunks owned by other members are fetched from them instead, see {@link PeerFill}.
+ */
+@Component
+public class ChunkCache {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /** Bytes read from the file at once while loading a chunk, reads waiting for the chunk get them as they arrive. */
+    private static final int LOAD_STEP = 64 * 1024;
+
+    private final int chunkSize;
+    private final long maxSize;
+    private long maxRange = Long.MAX_VALUE;
+    private final Cache<Key, ByteBuffer> chunks;
+    private final ConcurrentMap<String, FileVersion> versions;
+    private final ConcurrentMap<Key, Load> loads;
+    private final AtomicLong size;
+    private final AtomicLong loadCount;
+    private final AtomicLong coalesced;
+    private FileHandleCache handles;
+    private PeerFill peers;
+
+    @Autowired
+    public ChunkCache(StreamingProperties properties, FileHandleCache handles, PeerFill peers) {
+        this(properties.getCache().getMaxSize(), properties.getCache().getChunkSize());
+        this.maxRange = properties.getCache().getMaxRange();
+        this.handles = properties.getHandles().isEnabled() ? handles : null;
+        this.peers = properties.getCluster().isEnabled() ? peers : null;
+    }
+
+    /**
+     * Construct a chunk cache.
+     * @param maxSize Upper bound of cached bytes.
+     * @param chunkSize Size of one chunk, chunks start at multiples of it.
+     */
+    public ChunkCache(long maxSize, int chunkSize) {
+        AtomicLong size = new AtomicLong();
+        this.chunkSize = chunkSize;
+        this.maxSize = maxSize;
+        this.chunks = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher((Key key, ByteBuffer chunk) -> chunk.capacity())
+                .removalListener(notification -> size.addAndGet(-notification.getValue().capacity()))
+                .recordStats()
+                .build();
+        this.versions = new ConcurrentHashMap<>();
+        this.loads = new ConcurrentHashMap<>();
+        this.size = size;
+        this.loadCount = new AtomicLong();
+        this.coalesced = new AtomicLong();
+    }
+
+    private ChunkCache(ChunkCache shared) {
+        this.chunkSize = shared.chunkSize;
+        this.maxSize = shared.maxSize;
+        this.maxRange = shared.maxRange;
+        this.chunks = shared.chunks;
+        this.versions = shared.versions;
+        this.loads = shared.loads;
+        this.size = shared.size;
+        this.loadCount = shared.loadCount;
+        this.coalesced = shared.coalesced;
+        this.handles = shared.handles;
+    }
+
+    /**
+     * @return A view of this cache that never asks the other members of the cluster, to serve the chunks this node
+     * owns to them. It reads and loads the same chunks.
+     */
+    public ChunkCache local() {
+        return peers != null ? new ChunkCache(this) : this;
+    }
+
+    /**
+     * Returns the current version of the given file and drops all chunks of its previous version if it has changed.
+     * @param path The file.
+     * @param length Current size of the file.
+     * @param lastModified Current modification time of the file.
+     * @return The version to read chunks of.
+     */
+    public FileVersion version(Path path, long length, FileTime lastModified) {
+        return version(path, length, lastModified, null);
+    }
+
+    /**
+     * Returns the current version of the given file as presented in the given layout. Every layout of a file has
+     * versions of its own.
+     * @param path The file.
+     * @param length Current size of the file.
+     * @param lastModified Current modification time of the file.
+     * @param layout The layout the chunks are read in, or null for the file as it is.
+     * @return The version to read chunks of.
+     */
+    FileVersion version(Path path, long length, FileTime lastModified, FileLayout layout) {
+        FileVersion version = new FileVersion(path, length, lastModified.toMillis(), layout);
+        FileVersion previous = versions.put(layout != null ? path + "#" + layout.getName() : path.toString(), version);
+        if (previous != null && !previous.equals(version)) {
+            logger.debug("File changed, invalidating cached chunks : {}", path);
+            chunks.asMap().keySet().removeIf(key -> key.version.equals(previous));
+        }
+        return version;
+    }
+
+    /**
+     * Returns the cached bytes from the given position up to the end of its chunk, loading the chunk on a miss. While
+     * another read loads the chunk, only the part loaded so far is returned.
+     * @param version The file version to read.
+     * @param position Absolute position in the file.
+     * @return A read-only buffer positioned at the given position, with at least one byte remaining.
+     * @throws IOException If the chunk had to be loaded and reading the file failed.
+     */
+    public ByteBuffer read(FileVersion version, long position) throws IOException {
+        long index = position / chunkSize;
+        int offset = (int) (position - index * chunkSize);
+        Key key = new Key(version, index);
+
+        ByteBuffer chunk = chunks.getIfPresent(key);
+        if (chunk == null) {
+            chunk = replica(key);
+        }
+        if (chunk == null) {
+            Load load = new Load();
+            Load running = loads.putIfAbsent(key, load);
+            if (running != null) {
+                coalesced.incrementAndGet();
+                return running.await(offset);
+            }
+            chunk = load(key, load);
+        }
+
+        ByteBuffer view = chunk.asReadOnlyBuffer();
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * @return The chunk fetched from its owner in the cluster, or null if this node owns it or has to read it anyway.
+     * Chunks of virtual layouts are always read locally.
+     */
+    private ByteBuffer replica(Key key) {
+        if (peers == null || key.version.layout != null) {
+            return null;
+        }
+        long start = key.index * chunkSize;
+        return peers.read(key.version.path, key.version.length, key.version.lastModified, key.index, start,
+                (int) Math.min(chunkSize, key.version.length - start));
+    }
+
+    /**
+     * @param version The file version to read.
+     * @param position Absolute position in the file.
+     * @return True if the chunk containing the position is cached, i.e. reading it doesn't block. Doesn't count as a
+     * hit or miss.
+     */
+    public boolean isCached(FileVersion version, long position) {
+        return chunks.asMap().containsKey(new Key(version, position / chunkSize));
+    }
+
+    /**
+     * Loads the chunk containing the given position ahead of its first read, if it isn't cached yet. Doesn't count as
+     * a hit or miss.
+     * @param version The file version to read.
+     * @param position Absolute position in the file.
+     * @return True if the chunk had to be loaded.
+     * @throws IOException If reading the file failed.
+     */
+    public boolean prefetch(FileVersion version, long position) throws IOException {
+        Key key = new Key(version, position / chunkSize);
+        if (chunks.asMap().containsKey(key)) {
+            return false;
+        }
+        if (replica(key) != null) {
+            return true; // Fetched from its owner, or held already.
+        }
+        Load load = new Load();
+        if (loads.putIfAbsent(key, load) != null) {
+            return false;
+        }
+        return load(key, load) != null;
+    }
+
+    /**
+     * Loads a chunk from the file, handing every step to the reads waiting for it, then adds it to the cache.
+     * @param key The chunk.
+     * @param load The load registered for the chunk by the caller.
+     * @return The loaded chunk.
+     */
+    private ByteBuffer load(Key key, Load load) throws IOException {
+        try {
+            ByteBuffer cached = chunks.asMap().get(key);
+            if (cached != null) {
+                load.loaded(cached, cached.capacity()); // Loaded by a read that finished in the meantime.
+                return cached;
+            }
+
+            long start = key.index * chunkSize;
+            ByteBuffer chunk = ByteBuffer.allocateDirect((int) Math.min(chunkSize, key.version.length - start));
+            ByteBuffer target = chunk.duplicate();
+            try (FileChannel channel = handles != null
+                    ? handles.open(key.version.path, key.version.lastModified, key.version.layout)
+                    : LayoutChannel.open(key.version.path, key.version.layout)) {
+                while (target.position() < target.capacity()) {
+                    target.limit(Math.min(target.capacity(), target.position() + LOAD_STEP));
+                    if (channel.read(target, start + target.position()) < 0) {
+                        throw new IOException("Unexpected end of file " + key.version.path + " at " + (start + target.position()));
+                    }
+                    load.loaded(chunk, target.position());
+                }
+            }
+            size.addAndGet(chunk.capacity());
+            loadCount.incrementAndGet();
+            chunks.put(key, chunk);
+            return chunk;
+        } catch (IOException | RuntimeException e) {
+            load.failed(e);
+            throw e;
+        } finally {
+            loads.remove(key, load);
+        }
+    }
+
+    /**
+     * @param length Length of a single range.
+     * @return True if the range is to be served from the cache, false if it is too long and read from the file.
+     */
+    public boolean caches(long length) {
+        return length <= maxRange;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return Number of bytes currently held by the cache.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getChunkCount() {
+        return chunks.size();
+    }
+
+    /**
+     * @return Hit, miss and eviction counters since startup.
+     */
+    public CacheStats getStats() {
+        return chunks.stats();
+    }
+
+    /**
+     * @return Number of chunks read from the files.
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * @return Number of reads served by a load of another read instead of reading the file themselves.
+     */
+    public long getCoalescedReads() {
+        return coalesced.get();
+    }
+
+    /**
+     * Identifies one state of a file. A file that is replaced or modified gets a different version, and so does a
+     * file presented in a virtual layout.
+     */
+    public static final class FileVersion {
+        private final Path path;
+        private final long length;
+        private final long lastModified;
+        private final FileLayout layout;
+
+        FileVersion(Path path, long length, long lastModified, FileLayout layout) {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.layout = layout;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof FileVersion)) {
+                return false;
+            }
+            FileVersion other = (FileVersion) o;
+            return length == other.length && lastModified == other.lastModified && path.equals(other.path)
+                    && Objects.equals(getLayoutName(), other.getLayoutName());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, length, lastModified, getLayoutName());
+        }
+
+        private String getLayoutName() {
+            return layout != null ? layout.getName() : null;
+        }
+    }
+
+    /**
+     * A chunk being loaded. Reads of the chunk wait for the part they need, not for the whole chunk.
+     */
+    private static final class Load {
+        private ByteBuffer chunk;
+        private int loaded;
+        private Exception failure;
+
+        synchronized void loaded(ByteBuffer chunk, int loaded) {
+            this.chunk = chunk;
+            this.loaded = loaded;
+            notifyAll();
+        }
+
+        synchronized void failed(Exception failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /**
+         * Waits until the byte at the given offset of the chunk is loaded.
+         * @return A read-only buffer over the loaded part of the chunk, positioned at the offset.
+         */
+        synchronized ByteBuffer await(int offset) throws IOException {
+            try {
+                while (loaded <= offset && failure == null) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a chunk");
+            }
+            if (loaded <= offset) {
+                throw new IOException("Loading chunk failed : " + failure.getMessage(), failure);
+            }
+
+            ByteBuffer view = chunk.asReadOnlyBuffer();
+            view.limit(loaded);
+            view.position(offset);
+            return view;
+        }
+    }
+
+    private static final class Key {
+        private final FileVersion version;
+        private final long index;
+
+        Key(FileVersion version, long index) {
+            this.version = version;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return index == other.index && version.equals(other.version);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * version.hashCode() + Long.hashCode(index);
+        }
+    }
+}
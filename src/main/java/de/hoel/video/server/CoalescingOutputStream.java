@@ -0,0 +1,99 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches small writes into frames and passes a frame on, flushed, once it is full or its first byte has waited for
+ * the maximum delay. The frame size adapts to the drain rate of the client, see {@link AdaptiveFrameSize}. The first
+ * bytes of a stream are flushed right away so the time to first frame after a seek doesn't suffer.
+ */
+class CoalescingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final AdaptiveFrameSize frames;
+    private final long maxDelay;
+    private final long startupBytes;
+    private final BufferPool pool;
+
+    private BufferPool.Lease lease;
+    private byte[] buffer;
+    private int count;
+    private long bufferedSince;
+    private long written;
+
+    /**
+     * Construct a coalescing stream.
+     * @param out The stream to write frames to.
+     * @param settings Frame sizes and latency thresholds.
+     * @param pool Pool to lease the frame buffer from, or null to allocate it. Returned when the stream is closed.
+     */
+    CoalescingOutputStream(OutputStream out, StreamingProperties.Coalescing settings, BufferPool pool) {
+        this.out = out;
+        this.frames = new AdaptiveFrameSize(settings);
+        this.maxDelay = TimeUnit.MILLISECONDS.toNanos(settings.getMaxDelay());
+        this.startupBytes = settings.getStartupBytes();
+        this.pool = pool;
+        this.lease = BufferPool.lease(pool, frames.get());
+        this.buffer = lease.buffer().array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == 0) {
+                bufferedSince = System.nanoTime();
+            }
+            if (buffer.length < frames.get()) {
+                BufferPool.Lease larger = BufferPool.lease(pool, frames.get());
+                System.arraycopy(buffer, 0, larger.buffer().array(), 0, count);
+                lease.close();
+                lease = larger;
+                buffer = larger.buffer().array();
+            }
+
+            int n = Math.min(len, frames.get() - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+
+            if (count >= frames.get() || written < startupBytes || System.nanoTime() - bufferedSince >= maxDelay) {
+                flushFrame();
+            }
+        }
+    }
+
+    private void flushFrame() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(buffer, 0, count);
+        out.flush();
+        frames.record(count, System.nanoTime() - start);
+        written += count;
+        count = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushFrame();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushFrame();
+        } finally {
+            lease.close();
+            out.close();
+        }
+    }
+}
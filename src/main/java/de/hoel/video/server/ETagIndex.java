@@ -0,0 +1,246 @@
+package de.hoel.video.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Strong, content based entity tags of the videos. The hashes are computed by a small background pool and kept in an
+ * index file, so a video is only hashed again after it has changed. Large files are hashed by evenly spread samples
+ * plus their size, which keeps hashing a multi-GB library short while still telling apart files of the same name.
+ * Placeholders of a {@link TieredStorage} aren't read at all, that would fetch them from the store: their ETag is
+ * derived from the size and modification time of the stored object. Looking up an ETag never touches the file.
+ */
+@Component
+public class ETagIndex {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final long SAVE_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    private final StreamingProperties.ETag settings;
+    private final Path indexFile;
+    private final ConcurrentMap<Path, Indexed> index = new ConcurrentHashMap<>();
+    private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+    private final ExecutorService hashers;
+    private final ScheduledExecutorService indexWriter;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    public ETagIndex(StreamingProperties properties) {
+        this.settings = properties.getEtag();
+        this.indexFile = Paths.get(settings.getIndexFile()).toAbsolutePath();
+        this.hashers = Executors.newFixedThreadPool(settings.getPoolSize(),
+                new ThreadFactoryBuilder().setNameFormat("etag-hash-%d").setDaemon(true).build());
+        this.indexWriter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("etag-index").setDaemon(true).build());
+        load();
+    }
+
+    /**
+     * Looks up the content hash of the given file version and schedules hashing it if it isn't known yet.
+     * @param entry The video.
+     * @param computed Called with the ETag once it has been computed in the background, may be null.
+     * @return The quoted strong ETag, or null if the file hasn't been hashed yet.
+     */
+    public String get(VideoEntry entry, Consumer<String> computed) {
+        TieredStorage storage = TieredStorage.of(entry.getPath());
+        if (storage != null && storage.isPlaceholder(entry.getPath())) {
+            return stored(entry);
+        }
+        Indexed indexed = index.get(entry.getPath());
+        if (indexed != null && indexed.matches(entry)) {
+            return indexed.eTag;
+        }
+        if (pending.add(entry.getPath())) {
+            hashers.execute(() -> {
+                try {
+                    String eTag = hash(entry);
+                    index.put(entry.getPath(), new Indexed(entry.getSize(), entry.getLastModifiedTime().toMillis(), eTag));
+                    scheduleSave();
+                    if (computed != null) {
+                        computed.accept(eTag);
+                    }
+                } catch (NoSuchFileException e) {
+                    logger.debug("Video vanished before hashing : {}", entry.getPath());
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Hashing video failed : {}", entry.getPath(), e);
+                } finally {
+                    pending.remove(entry.getPath());
+                }
+            });
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the ETag of a deleted file.
+     * @param path The file.
+     */
+    public void remove(Path path) {
+        if (index.remove(path) != null) {
+            scheduleSave();
+        }
+    }
+
+    public int getSize() {
+        return index.size();
+    }
+
+    /**
+     * Hashes the whole file if it is small, otherwise its size and samples spread over it.
+     */
+    private String hash(VideoEntry entry) throws IOException {
+        long start = System.nanoTime();
+        long size = entry.getSize();
+        Hasher hasher = Hashing.murmur3_128().newHasher().putLong(size);
+
+        try (FileChannel channel = LayoutChannel.open(entry.getPath())) {
+            if (size <= settings.getFullHashLimit()) {
+                hash(channel, hasher, ByteBuffer.allocate(1024 * 1024), 0, size);
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(settings.getSampleSize());
+                int samples = Math.max(2, settings.getSampleCount());
+                long stride = Math.max(0, size - settings.getSampleSize()) / (samples - 1);
+                for (int i = 0; i < samples; i++) {
+                    hash(channel, hasher, buffer, i * stride, settings.getSampleSize());
+                }
+            }
+        }
+
+        String eTag = "\"" + hasher.hash() + "\"";
+        logger.debug("Hashed {} in {} ms : {}", entry.getPath(), (System.nanoTime() - start) / 1000000, eTag);
+        return eTag;
+    }
+
+    /**
+     * The ETag of a placeholder, whose size and modification time are those of the stored object. A changed object
+     * gets a new placeholder, so they change with the content.
+     */
+    private static String stored(VideoEntry entry) {
+        return "\"" + Hashing.murmur3_128().newHasher()
+                .putLong(entry.getSize())
+                .putLong(entry.getLastModifiedTime().toMillis())
+                .hash() + "\"";
+    }
+
+    private static void hash(FileChannel channel, Hasher hasher, ByteBuffer buffer, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File got shorter while hashing at " + position);
+            }
+            position += read;
+            buffer.flip();
+            hasher.putBytes(buffer);
+        }
+    }
+
+    /**
+     * Reads the index file, one tab separated line of size, modification time, ETag and path per file.
+     */
+    private void load() {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(indexFile, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4) {
+                    index.put(Paths.get(fields[3]), new Indexed(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                }
+            }
+            logger.info("ETag index : {} files in {}", index.size(), indexFile);
+        } catch (IOException | NumberFormatException e) {
+            logger.warn("Reading ETag index failed, videos will be hashed again : {}", indexFile, e);
+            index.clear();
+        }
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            try {
+                indexWriter.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                saveScheduled.set(false); // Shutting down, saved once more then.
+            }
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file first, so a crash never leaves a truncated index behind.
+     */
+    private synchronized void save() {
+        saveScheduled.set(false);
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<Path, Indexed> entry : index.entrySet()) {
+                    Indexed indexed = entry.getValue();
+                    writer.write(indexed.size + "\t" + indexed.lastModified + "\t" + indexed.eTag + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Writing ETag index failed : {}", indexFile, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hashers.shutdownNow();
+        indexWriter.shutdownNow();
+        if (saveScheduled.get()) {
+            save();
+        }
+    }
+
+    private static final class Indexed {
+        final long size;
+        final long lastModified;
+        final String eTag;
+
+        Indexed(long size, long lastModified, String eTag) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+        }
+
+        boolean matches(VideoEntry entry) {
+            return size == entry.getSize() && lastModified == entry.getLastModifiedTime().toMillis();
+        }
+    }
+}
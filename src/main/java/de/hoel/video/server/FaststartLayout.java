@@ -0,0 +1,120 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Virtual layout of an MP4 file with the movie box moved in front of the media data, so players can start without
+ * seeking to the end first. The virtual file has the same size as the real one and consists of four segments:
+ * <ol>
+ *     <li>the boxes before the media data (ftyp), read from the file as they are,</li>
+ *     <li>the movie box with its chunk offsets patched, held in memory,</li>
+ *     <li>the media data and everything else up to the original movie box, read from the file,</li>
+ *     <li>the boxes after the original movie box, read from the file as they are.</li>
+ * </ol>
+ */
+final class FaststartLayout implements FileLayout {
+
+    private final long size;
+    private final long dataStart;
+    private final long moovStart;
+    private final byte[] movie;
+
+    /**
+     * Construct a faststart layout.
+     * @param size Size of the file.
+     * @param dataStart Position of the first media data box in the file.
+     * @param moovStart Position of the movie box in the file, after dataStart.
+     * @param movie The movie box with its chunk offsets already moved by its own size.
+     */
+    FaststartLayout(long size, long dataStart, long moovStart, byte[] movie) {
+        this.size = size;
+        this.dataStart = dataStart;
+        this.moovStart = moovStart;
+        this.movie = movie;
+    }
+
+    @Override
+    public int read(FileChannel file, ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        long movieEnd = dataStart + movie.length;
+        if (position >= dataStart && position < movieEnd) {
+            int n = (int) Math.min(dst.remaining(), movieEnd - position);
+            dst.put(movie, (int) (position - dataStart), n);
+            return n;
+        }
+
+        long segmentEnd = position < dataStart ? dataStart : position < moovStart + movie.length ? moovStart + movie.length : size;
+        int limit = dst.limit();
+        dst.limit((int) Math.min(limit, dst.position() + (segmentEnd - position)));
+        try {
+            return file.read(dst, toFile(position));
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public long transferTo(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        if (position >= size) {
+            return 0;
+        }
+        long movieEnd = dataStart + movie.length;
+        if (position >= dataStart && position < movieEnd) {
+            int n = (int) Math.min(count, movieEnd - position);
+            return target.write(ByteBuffer.wrap(movie, (int) (position - dataStart), n));
+        }
+
+        long segmentEnd = position < dataStart ? dataStart : position < moovStart + movie.length ? moovStart + movie.length : size;
+        return file.transferTo(toFile(position), Math.min(count, segmentEnd - position), target);
+    }
+
+    @Override
+    public long toFile(long position, long length) {
+        long end = position + length;
+        if (end <= dataStart) {
+            return position;
+        }
+        long movieEnd = dataStart + movie.length;
+        long dataEnd = moovStart + movie.length;
+        if (position >= movieEnd && end <= dataEnd || position >= dataEnd) {
+            return toFile(position);
+        }
+        return -1;
+    }
+
+    /**
+     * @return Position in the real file of a position outside the movie box.
+     */
+    private long toFile(long position) {
+        if (position < dataStart) {
+            return position;
+        }
+        return position < moovStart + movie.length ? position - movie.length : position;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The patched movie box.
+     */
+    ByteBuffer getMovie() {
+        return ByteBuffer.wrap(movie).asReadOnlyBuffer();
+    }
+
+    @Override
+    public String getName() {
+        return "faststart";
+    }
+
+    int getMovieSize() {
+        return movie.length;
+    }
+}
@@ -0,0 +1,450 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Shared handles of the files being served. Every range request used to open the file and close it again, a popular
+ * video is now opened once and every request reads it through a lease of the same {@link FileChannel}: positional reads
+ * and transfers don't touch the channel's position, so concurrent requests don't get in each other's way.
+ * <p>
+ * Handles are counted by their leases. Unleased handles are closed after idle-timeout, and at most max-open are kept:
+ * opening one more closes the least recently used unleased handle, and if all are leased the request gets a handle of
+ * its own. A handle whose file changed on disk (modification time, size or, where the file system has one, the file key
+ * of a replaced file) is retired: new requests open the new file, the ones still reading the old one finish with it,
+ * and it is closed with the last lease. Files of a {@link TieredStorage} are opened per request, their data files come
+ * and go with its disk cache.
+ */
+@Component
+public class FileHandleCache {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final StreamingProperties.Handles settings;
+    private final LinkedHashMap<Path, Handle> handles = new LinkedHashMap<>(16, 0.75f, true); // ..least recently used first.
+    private final ScheduledExecutorService scheduler;
+
+    private int leased;
+    private long hits;
+    private long misses;
+    private long overflows;
+    private long idleClosed;
+    private long evicted;
+    private long invalidated;
+
+    public FileHandleCache(StreamingProperties properties, MeterRegistry registry) {
+        this.settings = properties.getHandles();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("file-handles").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::check, settings.getCheckInterval(), settings.getCheckInterval(),
+                TimeUnit.MILLISECONDS);
+
+        registry.gauge("video.handles.open", this, FileHandleCache::getOpen);
+        registry.gauge("video.handles.leased", this, FileHandleCache::getLeased);
+        FunctionCounter.builder("video.handles.requests", this, FileHandleCache::getHits)
+                .tags("result", "hit").register(registry);
+        FunctionCounter.builder("video.handles.requests", this, FileHandleCache::getMisses)
+                .tags("result", "miss").register(registry);
+        FunctionCounter.builder("video.handles.requests", this, FileHandleCache::getOverflows)
+                .tags("result", "overflow").register(registry);
+        FunctionCounter.builder("video.handles.closed", this, FileHandleCache::getIdleClosed)
+                .tags("reason", "idle").register(registry);
+        FunctionCounter.builder("video.handles.closed", this, FileHandleCache::getEvicted)
+                .tags("reason", "evicted").register(registry);
+        FunctionCounter.builder("video.handles.closed", this, FileHandleCache::getInvalidated)
+                .tags("reason", "changed").register(registry);
+    }
+
+    /**
+     * Opens a file for reading through its shared handle.
+     * @param path The file.
+     * @param lastModified Modification time in milliseconds of the version of the file the caller serves. If the handle
+     * is of another version, the file is checked and the handle replaced if it changed.
+     * @param layout The layout to present, or null to read the file as it is.
+     * @return A read-only channel, closing it hands the lease back.
+     * @throws IOException If the file can't be opened.
+     */
+    public FileChannel open(Path path, long lastModified, FileLayout layout) throws IOException {
+        if (TieredStorage.of(path) != null) {
+            return LayoutChannel.open(path, layout);
+        }
+        Path file = path.toAbsolutePath().normalize();
+        return LayoutChannel.wrap(new Lease(acquire(file, lastModified)), layout);
+    }
+
+    /**
+     * Leases the handle of a file, opening it if there is none of the given version.
+     */
+    private Handle acquire(Path file, long lastModified) throws IOException {
+        Handle handle;
+        synchronized (this) {
+            handle = handles.get(file);
+            if (handle != null && handle.lastModified == lastModified) {
+                hits++;
+                return lease(handle);
+            }
+        }
+        // The caller may serve metadata older than the handle's, only a change on disk replaces the handle.
+        if (handle != null && !handle.changed()) {
+            synchronized (this) {
+                if (handles.get(file) == handle) {
+                    hits++;
+                    return lease(handle);
+                }
+            }
+        }
+
+        Handle opened = Handle.open(file);
+        List<Handle> closing = new ArrayList<>();
+        try {
+            synchronized (this) {
+                Handle current = handles.get(file);
+                if (current != null && current != handle && current.sameVersion(opened)) {
+                    hits++; // Opened by another request in the meantime.
+                    closing.add(opened);
+                    return lease(current);
+                }
+                if (current != null) {
+                    invalidated++;
+                    retire(current, closing);
+                }
+                for (Iterator<Handle> lru = handles.values().iterator(); lru.hasNext() && handles.size() >= settings.getMaxOpen(); ) {
+                    Handle idle = lru.next();
+                    if (idle.refs == 0) {
+                        lru.remove();
+                        evicted++;
+                        retire(idle, closing);
+                    }
+                }
+                if (handles.size() >= settings.getMaxOpen()) {
+                    overflows++;
+                    opened.retired = true; // All handles are leased, this one is closed with its only lease.
+                } else {
+                    misses++;
+                    handles.put(file, opened);
+                }
+                return lease(opened);
+            }
+        } finally {
+            close(closing);
+        }
+    }
+
+    private Handle lease(Handle handle) {
+        handle.refs++;
+        leased++;
+        return handle;
+    }
+
+    private void release(Handle handle) {
+        synchronized (this) {
+            handle.refs--;
+            leased--;
+            handle.lastUsed = System.nanoTime();
+            if (handle.refs > 0 || !handle.retired) {
+                return;
+            }
+        }
+        close(handle);
+    }
+
+    /**
+     * Takes a handle out of use, it is closed right away or with its last lease. Called with the lock held.
+     */
+    private void retire(Handle handle, List<Handle> closing) {
+        handles.remove(handle.file, handle);
+        handle.retired = true;
+        if (handle.refs == 0) {
+            closing.add(handle);
+        }
+    }
+
+    /**
+     * Retires a handle whose channel was closed by an interrupt, so the next requests open the file again.
+     */
+    private synchronized void discard(Handle broken) {
+        if (!broken.retired) {
+            handles.remove(broken.file, broken);
+            broken.retired = true;
+        }
+    }
+
+    /**
+     * Replaces a handle that was closed while leased: an interrupted read closes the channel for all its readers.
+     * @param broken The closed handle, leased by the caller.
+     * @return A lease of an open handle of the file.
+     */
+    private Handle reopen(Handle broken) throws IOException {
+        discard(broken);
+        Handle handle = acquire(broken.file, broken.lastModified);
+        release(broken);
+        return handle;
+    }
+
+    /**
+     * Closes the handles idle for longer than idle-timeout and retires the ones whose file changed.
+     */
+    void check() {
+        long now = System.nanoTime();
+        List<Handle> closing = new ArrayList<>();
+        List<Handle> open;
+        synchronized (this) {
+            for (Iterator<Handle> all = handles.values().iterator(); all.hasNext(); ) {
+                Handle handle = all.next();
+                if (handle.refs == 0 && now - handle.lastUsed > TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeout())) {
+                    all.remove();
+                    idleClosed++;
+                    retire(handle, closing);
+                }
+            }
+            open = new ArrayList<>(handles.values());
+        }
+        close(closing);
+
+        closing.clear();
+        for (Handle handle : open) {
+            if (handle.changed()) {
+                synchronized (this) {
+                    if (handles.get(handle.file) == handle) {
+                        invalidated++;
+                        retire(handle, closing);
+                    }
+                }
+                logger.debug("File changed, retiring its handle : {}", handle.file);
+            }
+        }
+        close(closing);
+    }
+
+    private void close(List<Handle> closing) {
+        for (Handle handle : closing) {
+            close(handle);
+        }
+    }
+
+    private void close(Handle handle) {
+        try {
+            handle.channel.close();
+        } catch (IOException e) {
+            logger.debug("Closing {} failed", handle.file, e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        List<Handle> closing = new ArrayList<>();
+        synchronized (this) {
+            for (Handle handle : new ArrayList<>(handles.values())) {
+                retire(handle, closing);
+            }
+        }
+        close(closing);
+    }
+
+    public StreamingProperties.Handles getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Number of shared handles open.
+     */
+    public synchronized int getOpen() {
+        return handles.size();
+    }
+
+    /**
+     * @return Number of channels reading through a handle.
+     */
+    public synchronized int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return Opens served by a handle that was open already.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Opens that opened the file.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Opens that got a handle of their own because all max-open handles were leased.
+     */
+    public synchronized long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * @return Handles closed after idle-timeout.
+     */
+    public synchronized long getIdleClosed() {
+        return idleClosed;
+    }
+
+    /**
+     * @return Handles closed to stay below max-open.
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return Handles retired because their file changed.
+     */
+    public synchronized long getInvalidated() {
+        return invalidated;
+    }
+
+    /**
+     * One open file, shared by its leases.
+     */
+    private static final class Handle {
+        final Path file;
+        final FileChannel channel;
+        final long lastModified;
+        final long size;
+        final Object fileKey;
+
+        int refs;
+        long lastUsed = System.nanoTime();
+        boolean retired;
+
+        private Handle(Path file, FileChannel channel, BasicFileAttributes attributes) {
+            this.file = file;
+            this.channel = channel;
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            this.fileKey = attributes.fileKey();
+        }
+
+        /**
+         * Opens a file. The attributes are read first: if the file is replaced in between, the handle looks changed
+         * and is retired by the next check, instead of passing the new file off as the old one.
+         */
+        static Handle open(Path file) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new Handle(file, FileChannel.open(file, StandardOpenOption.READ), attributes);
+        }
+
+        /**
+         * @return True if the file on disk is another version than the one open, or is gone.
+         */
+        boolean changed() {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                return attributes.lastModifiedTime().toMillis() != lastModified || attributes.size() != size
+                        || !Objects.equals(attributes.fileKey(), fileKey);
+            } catch (NoSuchFileException e) {
+                return true;
+            } catch (IOException e) {
+                return false; // Can't tell, kept until the next check.
+            }
+        }
+
+        boolean sameVersion(Handle other) {
+            return lastModified == other.lastModified && size == other.size && Objects.equals(fileKey, other.fileKey);
+        }
+    }
+
+    /**
+     * A reader's view of a shared handle. It has a position of its own, and closing it hands the lease back instead of
+     * closing the file.
+     */
+    private final class Lease extends ReadOnlyFileChannel {
+        private Handle handle;
+
+        Lease(Handle handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return (int) call(channel -> channel.read(dst, position));
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return call(channel -> channel.transferTo(position, count, target));
+        }
+
+        @Override
+        public long size() throws IOException {
+            return call(FileChannel::size);
+        }
+
+        /**
+         * Runs an operation on the shared channel. If another reader's interrupt closed the channel, the operation is
+         * retried once on a reopened handle; if this reader was interrupted, the handle is retired and it fails.
+         */
+        private long call(Operation operation) throws IOException {
+            Handle current;
+            synchronized (this) {
+                if (!isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                current = handle;
+            }
+            try {
+                return operation.apply(current.channel);
+            } catch (ClosedByInterruptException e) {
+                discard(current);
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (!isOpen()) {
+                    throw e;
+                }
+                synchronized (this) {
+                    if (handle == current) {
+                        handle = reopen(current);
+                    }
+                    current = handle;
+                }
+                return operation.apply(current.channel);
+            }
+        }
+
+        @Override
+        protected synchronized void implCloseChannel() {
+            release(handle);
+        }
+    }
+
+    private interface Operation {
+        long apply(FileChannel channel) throws IOException;
+    }
+}
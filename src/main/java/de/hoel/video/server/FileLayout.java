@@ -0,0 +1,51 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A virtual file put together from regions of a real file and generated bytes, read through a {@link LayoutChannel}.
+ */
+interface FileLayout {
+
+    /**
+     * Reads bytes of the virtual file, at most up to the end of the region the position lies in.
+     * @param file The real file.
+     * @param dst Buffer to read into.
+     * @param position Position in the virtual file.
+     * @return Number of bytes read, -1 at the end of the file.
+     * @throws IOException If reading the file fails.
+     */
+    int read(FileChannel file, ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Writes bytes of the virtual file to the target, at most up to the end of the region the position lies in.
+     * @param file The real file.
+     * @param position Position in the virtual file.
+     * @param count Largest number of bytes to write.
+     * @param target The channel to write to.
+     * @return Number of bytes written.
+     * @throws IOException If reading the file or writing the target fails.
+     */
+    long transferTo(FileChannel file, long position, long count, WritableByteChannel target) throws IOException;
+
+    /**
+     * Maps a range of the virtual file onto the real file, e.g. to hand it to sendfile.
+     * @param position Start of the range in the virtual file.
+     * @param length Length of the range.
+     * @return Start of the range in the real file, or -1 if the range isn't one contiguous region of the file.
+     */
+    long toFile(long position, long length);
+
+    /**
+     * @return Size of the virtual file.
+     */
+    long getSize();
+
+    /**
+     * @return Short name of the layout, which tells its bytes apart from those of the file and of other layouts of it.
+     */
+    String getName();
+}
@@ -0,0 +1,206 @@
+package de.hoel.video.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Virtual fragmented MP4 (fMP4) file remuxed from a progressive one: an init segment with the movie box, then one
+ * movie fragment per segment. The boxes are generated and held in memory, the sample data of each fragment is read
+ * from the file as it is. The virtual file is a list of regions, each either generated bytes or a range of the file.
+ */
+final class FragmentedLayout implements FileLayout {
+
+    private final String name;
+    private final byte[] generated;
+    /** Start of each region in the virtual file, followed by the size of the file. */
+    private final long[] starts;
+    /** Position of each region in the real file, or -1 - its position in {@link #generated}. */
+    private final long[] sources;
+    /** Start of each segment in the virtual file, the first one starting after the init segment. */
+    private final long[] segments;
+
+    private FragmentedLayout(String name, byte[] generated, long[] starts, long[] sources, long[] segments) {
+        this.name = name;
+        this.generated = generated;
+        this.starts = starts;
+        this.sources = sources;
+        this.segments = segments;
+    }
+
+    @Override
+    public int read(FileChannel file, ByteBuffer dst, long position) throws IOException {
+        int region = region(position);
+        if (region < 0) {
+            return -1;
+        }
+        long offset = position - starts[region];
+        long remaining = starts[region + 1] - position;
+        if (sources[region] < 0) {
+            int n = (int) Math.min(dst.remaining(), remaining);
+            dst.put(generated, (int) (-1 - sources[region] + offset), n);
+            return n;
+        }
+
+        int limit = dst.limit();
+        dst.limit((int) Math.min(limit, dst.position() + remaining));
+        try {
+            return file.read(dst, sources[region] + offset);
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public long transferTo(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        int region = region(position);
+        if (region < 0) {
+            return 0;
+        }
+        long offset = position - starts[region];
+        long n = Math.min(count, starts[region + 1] - position);
+        if (sources[region] < 0) {
+            return target.write(ByteBuffer.wrap(generated, (int) (-1 - sources[region] + offset), (int) n));
+        }
+        return file.transferTo(sources[region] + offset, n, target);
+    }
+
+    @Override
+    public long toFile(long position, long length) {
+        int region = region(position);
+        if (region < 0 || sources[region] < 0 || position + length > starts[region + 1]) {
+            return -1;
+        }
+        return sources[region] + position - starts[region];
+    }
+
+    /**
+     * @return Index of the region containing the position, -1 if it is outside the file.
+     */
+    private int region(long position) {
+        if (position < 0 || position >= getSize()) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(starts, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    @Override
+    public long getSize() {
+        return starts[starts.length - 1];
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Size of the init segment, which starts the file.
+     */
+    long getInitSize() {
+        return segments.length > 0 ? segments[0] : getSize();
+    }
+
+    int getSegmentCount() {
+        return segments.length;
+    }
+
+    long getSegmentStart(int segment) {
+        return segments[segment];
+    }
+
+    long getSegmentSize(int segment) {
+        return (segment + 1 < segments.length ? segments[segment + 1] : getSize()) - segments[segment];
+    }
+
+    /**
+     * @return Approximate heap size of the layout.
+     */
+    int getWeight() {
+        return 64 + generated.length + starts.length * 16 + segments.length * 8;
+    }
+
+    /**
+     * Collects the regions of a layout in order.
+     */
+    static final class Builder {
+
+        private final String name;
+        private final ByteArrayOutputStream generated = new ByteArrayOutputStream();
+        private long[] starts = new long[64];
+        private long[] sources = new long[64];
+        private int regions;
+        private long size;
+        private long[] segments = new long[16];
+        private int segmentCount;
+
+        Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Appends generated bytes, merged with the previous region if that was generated too.
+         */
+        Builder bytes(byte[] bytes) {
+            if (bytes.length == 0) {
+                return this;
+            }
+            if (regions == 0 || sources[regions - 1] >= 0) {
+                add(-1 - generated.size());
+            }
+            generated.write(bytes, 0, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        /**
+         * Appends a range of the file, merged with the previous region if it continues it in the file.
+         */
+        Builder file(long offset, long length) {
+            if (length <= 0) {
+                return this;
+            }
+            if (regions == 0 || sources[regions - 1] < 0 || sources[regions - 1] + size - starts[regions - 1] != offset) {
+                add(offset);
+            }
+            size += length;
+            return this;
+        }
+
+        /**
+         * Marks the start of a segment at the current end of the file.
+         */
+        Builder segment() {
+            if (segmentCount == segments.length) {
+                segments = Arrays.copyOf(segments, segmentCount * 2);
+            }
+            segments[segmentCount++] = size;
+            return this;
+        }
+
+        long size() {
+            return size;
+        }
+
+        private void add(long source) {
+            if (regions == starts.length) {
+                starts = Arrays.copyOf(starts, regions * 2);
+                sources = Arrays.copyOf(sources, regions * 2);
+            }
+            starts[regions] = size;
+            sources[regions] = source;
+            regions++;
+        }
+
+        FragmentedLayout build() {
+            long[] regionStarts = Arrays.copyOf(starts, regions + 1);
+            regionStarts[regions] = size;
+            return new FragmentedLayout(name, generated.toByteArray(), regionStarts, Arrays.copyOf(sources, regions),
+                    Arrays.copyOf(segments, segmentCount));
+        }
+    }
+}
@@ -0,0 +1,414 @@
+package de.hoel.video.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Packaging of one version of an MP4 file as fragmented MP4 for HLS and DASH, without transcoding. The segment
+ * boundaries are computed once from the sample tables: a segment starts at the first keyframe of the first video track
+ * at least the target duration after the start of the previous one, the other tracks are cut at the same times.
+ * <p>
+ * The fragmented files ({@link FragmentedLayout}) and the manifests describing their segments as byte ranges are built
+ * on first use and kept with the file. Track 0 is the muxed file with all tracks, used by HLS, DASH uses one file per
+ * track.
+ */
+final class FragmentedMp4 {
+
+    private static final int MOOV = Mp4Box.MOOV;
+    private static final int TRAK = Mp4Box.type("trak");
+    private static final int TKHD = Mp4Box.type("tkhd");
+    private static final int MDIA = Mp4Box.type("mdia");
+    private static final int MINF = Mp4Box.type("minf");
+    private static final int STBL = Mp4Box.type("stbl");
+    private static final int STTS = Mp4Box.type("stts");
+    private static final int STSC = Mp4Box.type("stsc");
+    private static final int STSZ = Mp4Box.type("stsz");
+    private static final int STCO = Mp4Box.type("stco");
+    private static final int CO64 = Mp4Box.type("co64");
+
+    /**
+     * Per sample tables that don't apply to the empty tables of the init segment.
+     */
+    private static final Set<Integer> SAMPLE_BOXES = new HashSet<>(Arrays.asList(Mp4Box.type("stss"),
+            Mp4Box.type("ctts"), Mp4Box.type("cslg"), Mp4Box.type("stsh"), Mp4Box.type("stps"), Mp4Box.type("sdtp"),
+            Mp4Box.type("sbgp"), Mp4Box.type("subs"), Mp4Box.type("saiz"), Mp4Box.type("saio"), Mp4Box.type("padb")));
+
+    private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+    private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+
+    private final byte[] movie;
+    private final List<SampleTable> tracks;
+    private final SampleTable reference;
+    /** Per track, the first sample of each segment followed by the number of samples. */
+    private final int[][] firstSamples;
+    private final ConcurrentMap<Integer, FragmentedLayout> layouts = new ConcurrentHashMap<>();
+    private volatile String playlist;
+    private volatile String mpd;
+
+    private FragmentedMp4(byte[] movie, List<SampleTable> tracks, SampleTable reference, int[][] firstSamples) {
+        this.movie = movie;
+        this.tracks = tracks;
+        this.reference = reference;
+        this.firstSamples = firstSamples;
+    }
+
+    /**
+     * Computes the segments of a file.
+     * @param movie The movie box, including its header, with the chunk offsets of the real file.
+     * @param segmentDuration Target duration of a segment in seconds.
+     * @return The packaging, or null if the file has no audio or video track with samples.
+     */
+    static FragmentedMp4 build(ByteBuffer movie, double segmentDuration) {
+        List<SampleTable> tracks = SampleTable.parse(movie.duplicate());
+        tracks.removeIf(track -> track.size() == 0);
+        if (tracks.isEmpty()) {
+            return null;
+        }
+        SampleTable reference = tracks.stream().filter(SampleTable::isVideo).findFirst().orElse(tracks.get(0));
+
+        // Segment start times in seconds, cut at the keyframes of the reference track.
+        double[] starts = new double[16];
+        int segments = 0;
+        long target = Math.max(1, (long) (segmentDuration * reference.getTimescale()));
+        long last = Long.MIN_VALUE;
+        for (int sample = 0; sample < reference.size(); sample++) {
+            if (sample == 0 || reference.isSync(sample) && reference.getTime(sample) - last >= target) {
+                if (segments == starts.length) {
+                    starts = Arrays.copyOf(starts, segments * 2);
+                }
+                last = reference.getTime(sample);
+                starts[segments++] = sample == 0 ? 0 : last / (double) reference.getTimescale();
+            }
+        }
+
+        int[][] firstSamples = new int[tracks.size()][];
+        for (int t = 0; t < tracks.size(); t++) {
+            SampleTable track = tracks.get(t);
+            int[] first = new int[segments + 1];
+            int sample = 0;
+            for (int segment = 1; segment < segments; segment++) {
+                while (sample < track.size() && track.getTime(sample) / (double) track.getTimescale() < starts[segment]) {
+                    sample++;
+                }
+                first[segment] = sample;
+            }
+            first[segments] = track.size();
+            firstSamples[t] = first;
+        }
+
+        byte[] bytes = new byte[movie.remaining()];
+        movie.duplicate().get(bytes);
+        return new FragmentedMp4(bytes, tracks, reference, firstSamples);
+    }
+
+    /**
+     * @param trackId Track ID of the single track, or 0 for all tracks.
+     * @return The fragmented file, or null if there is no such track.
+     */
+    FragmentedLayout layout(int trackId) {
+        FragmentedLayout layout = layouts.get(trackId);
+        if (layout != null) {
+            return layout;
+        }
+        List<Integer> selected = new ArrayList<>();
+        for (int t = 0; t < tracks.size(); t++) {
+            if (trackId == 0 || tracks.get(t).getTrackId() == trackId) {
+                selected.add(t);
+            }
+        }
+        if (selected.isEmpty()) {
+            return null;
+        }
+        return layouts.computeIfAbsent(trackId, id -> build(id == 0 ? "fmp4" : "fmp4-track-" + id, selected));
+    }
+
+    private FragmentedLayout build(String name, List<Integer> selected) {
+        FragmentedLayout.Builder builder = new FragmentedLayout.Builder(name);
+        builder.bytes(fileType());
+        builder.bytes(initMovie(selected));
+
+        int segments = firstSamples[0].length - 1;
+        for (int segment = 0; segment < segments; segment++) {
+            builder.segment();
+            builder.bytes(fragment(segment, selected));
+            for (int t : selected) {
+                SampleTable track = tracks.get(t);
+                for (int sample = firstSamples[t][segment]; sample < firstSamples[t][segment + 1]; sample++) {
+                    builder.file(track.getOffset(sample), track.getSize(sample));
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static byte[] fileType() {
+        ByteBuffer ftyp = ByteBuffer.allocate(28);
+        ftyp.putInt(28).putInt(Mp4Box.type("ftyp")).putInt(Mp4Box.type("iso6")).putInt(0);
+        ftyp.putInt(Mp4Box.type("iso6")).putInt(Mp4Box.type("iso5")).putInt(Mp4Box.type("mp41"));
+        return ftyp.array();
+    }
+
+    /**
+     * Copies the movie box with only the selected tracks and empty sample tables, and adds the movie extends box.
+     */
+    private byte[] initMovie(List<Integer> selected) {
+        Set<Integer> trackIds = new HashSet<>();
+        for (int t : selected) {
+            trackIds.add(tracks.get(t).getTrackId());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(movie.length);
+        copy(ByteBuffer.wrap(movie), 0, movie.length, trackIds, out);
+        return out.toByteArray();
+    }
+
+    private void copy(ByteBuffer buffer, int start, int end, Set<Integer> trackIds, ByteArrayOutputStream out) {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = buffer.getInt(position) & 0xFFFFFFFFL;
+            int type = buffer.getInt(position + 4);
+            int header = 8;
+            if (size == 1) {
+                size = buffer.getLong(position + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < header || position + size > end) {
+                throw new IllegalArgumentException("Malformed box at " + position);
+            }
+            int boxEnd = (int) (position + size);
+            int content = position + header;
+
+            if (type == TRAK) {
+                int[] tkhd = Mp4Box.child(buffer, new int[] {content, boxEnd}, TKHD, 0);
+                int trackId = tkhd == null ? 0 : buffer.getInt(tkhd[0] + (buffer.get(tkhd[0]) == 1 ? 20 : 12));
+                if (trackIds.contains(trackId)) {
+                    container(buffer, type, content, boxEnd, trackIds, out);
+                }
+            } else if (type == MOOV || type == MDIA || type == MINF || type == STBL) {
+                container(buffer, type, content, boxEnd, trackIds, out);
+            } else if (type == STTS || type == STSC || type == STCO || type == CO64) {
+                ByteBuffer empty = ByteBuffer.allocate(16);
+                empty.putInt(16).putInt(type == CO64 ? STCO : type).putInt(0).putInt(0);
+                out.write(empty.array(), 0, 16);
+            } else if (type == STSZ) {
+                ByteBuffer empty = ByteBuffer.allocate(20);
+                empty.putInt(20).putInt(STSZ).putInt(0).putInt(0).putInt(0);
+                out.write(empty.array(), 0, 20);
+            } else if (!SAMPLE_BOXES.contains(type)) {
+                out.write(buffer.array(), position, boxEnd - position);
+            }
+            position = boxEnd;
+        }
+    }
+
+    private void container(ByteBuffer buffer, int type, int content, int end, Set<Integer> trackIds, ByteArrayOutputStream out) {
+        ByteArrayOutputStream children = new ByteArrayOutputStream(end - content);
+        copy(buffer, content, end, trackIds, children);
+        if (type == MOOV) {
+            children.write(movieExtends(trackIds), 0, 8 + trackIds.size() * 32);
+        }
+        ByteBuffer header = ByteBuffer.allocate(8).putInt(8 + children.size()).putInt(type);
+        out.write(header.array(), 0, 8);
+        out.write(children.toByteArray(), 0, children.size());
+    }
+
+    /**
+     * @return An mvex box with a trex box of default values for each track.
+     */
+    private byte[] movieExtends(Set<Integer> trackIds) {
+        ByteBuffer mvex = ByteBuffer.allocate(8 + trackIds.size() * 32);
+        mvex.putInt(mvex.capacity()).putInt(Mp4Box.type("mvex"));
+        for (SampleTable track : tracks) {
+            if (trackIds.contains(track.getTrackId())) {
+                mvex.putInt(32).putInt(Mp4Box.type("trex")).putInt(0).putInt(track.getTrackId());
+                mvex.putInt(1).putInt(0).putInt(0).putInt(0);
+            }
+        }
+        return mvex.array();
+    }
+
+    /**
+     * Builds the moof box of a segment and the header of the mdat box with the sample data of the selected tracks,
+     * which follows in the order of the tracks.
+     */
+    private byte[] fragment(int segment, List<Integer> selected) {
+        int moofSize = 8 + 16;
+        long dataSize = 0;
+        for (int t : selected) {
+            int samples = firstSamples[t][segment + 1] - firstSamples[t][segment];
+            if (samples > 0) {
+                moofSize += trafSize(tracks.get(t), samples);
+                for (int sample = firstSamples[t][segment]; sample < firstSamples[t][segment + 1]; sample++) {
+                    dataSize += tracks.get(t).getSize(sample);
+                }
+            }
+        }
+        int mdatHeader = dataSize + 8 <= 0xFFFFFFFFL ? 8 : 16;
+
+        ByteBuffer out = ByteBuffer.allocate(moofSize + mdatHeader);
+        out.putInt(moofSize).putInt(Mp4Box.type("moof"));
+        out.putInt(16).putInt(Mp4Box.type("mfhd")).putInt(0).putInt(segment + 1);
+
+        long dataOffset = moofSize + mdatHeader;
+        for (int t : selected) {
+            SampleTable track = tracks.get(t);
+            int first = firstSamples[t][segment];
+            int samples = firstSamples[t][segment + 1] - first;
+            if (samples == 0) {
+                continue;
+            }
+            boolean composition = track.hasCompositionOffsets();
+            int trunSize = 20 + samples * (composition ? 16 : 12);
+            out.putInt(trafSize(track, samples)).putInt(Mp4Box.type("traf"));
+            // Default base is moof: data offsets are relative to the start of the moof box.
+            out.putInt(16).putInt(Mp4Box.type("tfhd")).putInt(0x020000).putInt(track.getTrackId());
+            out.putInt(20).putInt(Mp4Box.type("tfdt")).putInt(0x01000000).putLong(track.getTime(first));
+            // Data offset, sample duration, size, flags and, for version 1, signed composition offsets.
+            out.putInt(trunSize).putInt(Mp4Box.type("trun"));
+            out.putInt(composition ? 0x01000F01 : 0x00000701).putInt(samples).putInt((int) dataOffset);
+            for (int sample = first; sample < first + samples; sample++) {
+                out.putInt(track.getDuration(sample)).putInt(track.getSize(sample));
+                out.putInt(track.isSync(sample) ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+                if (composition) {
+                    out.putInt(track.getCompositionOffset(sample));
+                }
+                dataOffset += track.getSize(sample);
+            }
+        }
+
+        if (mdatHeader == 8) {
+            out.putInt((int) (dataSize + 8)).putInt(Mp4Box.MDAT);
+        } else {
+            out.putInt(1).putInt(Mp4Box.MDAT).putLong(dataSize + 16);
+        }
+        return out.array();
+    }
+
+    private static int trafSize(SampleTable track, int samples) {
+        return 8 + 16 + 20 + 20 + samples * (track.hasCompositionOffsets() ? 16 : 12);
+    }
+
+    /**
+     * @return Duration of the segment in seconds, measured on the reference track.
+     */
+    private double getSegmentDuration(int segment) {
+        int[] first = firstSamples[tracks.indexOf(reference)];
+        return (reference.getTime(first[segment + 1]) - reference.getTime(first[segment])) / (double) reference.getTimescale();
+    }
+
+    /**
+     * @return Duration of the reference track in seconds.
+     */
+    double getDuration() {
+        return reference.getTime(reference.size()) / (double) reference.getTimescale();
+    }
+
+    /**
+     * @param uri URI of the muxed fragmented file, relative to the playlist.
+     * @return HLS media playlist with the segments of the muxed file as byte ranges.
+     */
+    String playlist(String uri) {
+        String playlist = this.playlist;
+        if (playlist != null) {
+            return playlist;
+        }
+        FragmentedLayout layout = layout(0);
+        double targetDuration = 1;
+        for (int segment = 0; segment < layout.getSegmentCount(); segment++) {
+            targetDuration = Math.max(targetDuration, Math.ceil(getSegmentDuration(segment)));
+        }
+
+        StringBuilder m3u8 = new StringBuilder(256 + layout.getSegmentCount() * 64);
+        m3u8.append("#EXTM3U\n#EXT-X-VERSION:7\n");
+        m3u8.append("#EXT-X-TARGETDURATION:").append((long) targetDuration).append('\n');
+        m3u8.append("#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-PLAYLIST-TYPE:VOD\n#EXT-X-INDEPENDENT-SEGMENTS\n");
+        m3u8.append("#EXT-X-MAP:URI=\"").append(uri).append("\",BYTERANGE=\"").append(layout.getInitSize()).append("@0\"\n");
+        for (int segment = 0; segment < layout.getSegmentCount(); segment++) {
+            m3u8.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", getSegmentDuration(segment)));
+            m3u8.append("#EXT-X-BYTERANGE:").append(layout.getSegmentSize(segment)).append('@')
+                    .append(layout.getSegmentStart(segment)).append('\n');
+            m3u8.append(uri).append('\n');
+        }
+        m3u8.append("#EXT-X-ENDLIST\n");
+        this.playlist = playlist = m3u8.toString();
+        return playlist;
+    }
+
+    /**
+     * @param uri URI of the fragmented files, relative to the manifest. The track ID is appended as query parameter.
+     * @return DASH manifest with an adaptation set per track, its segments as byte ranges of the track's file.
+     */
+    String mpd(String uri) {
+        String mpd = this.mpd;
+        if (mpd != null) {
+            return mpd;
+        }
+        double duration = getDuration();
+        StringBuilder xml = new StringBuilder(1024);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        xml.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:full:2011\" type=\"static\"");
+        xml.append(String.format(Locale.ROOT, " mediaPresentationDuration=\"PT%.3fS\" minBufferTime=\"PT2S\">\n", duration));
+        xml.append("  <Period start=\"PT0S\">\n");
+        for (int t = 0; t < tracks.size(); t++) {
+            SampleTable track = tracks.get(t);
+            FragmentedLayout layout = layout(track.getTrackId());
+            long bandwidth = duration > 0 ? (long) (track.getDataSize() * 8 / duration) : 0;
+
+            xml.append("    <AdaptationSet mimeType=\"").append(track.isVideo() ? "video/mp4" : "audio/mp4")
+                    .append("\" segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+            xml.append("      <Representation id=\"").append(track.getTrackId()).append("\" codecs=\"")
+                    .append(track.getCodecs()).append("\" bandwidth=\"").append(bandwidth).append('"');
+            if (track.isVideo()) {
+                xml.append(" width=\"").append(track.getWidth()).append("\" height=\"").append(track.getHeight()).append('"');
+            } else {
+                xml.append(" audioSamplingRate=\"").append(track.getTimescale()).append('"');
+            }
+            xml.append(">\n");
+            xml.append("        <BaseURL>").append(uri).append("?track=").append(track.getTrackId()).append("</BaseURL>\n");
+            xml.append("        <SegmentList timescale=\"").append(track.getTimescale()).append("\">\n");
+            xml.append("          <Initialization range=\"0-").append(layout.getInitSize() - 1).append("\"/>\n");
+            xml.append("          <SegmentTimeline>\n");
+            int[] first = firstSamples[t];
+            for (int segment = 0; segment < layout.getSegmentCount(); segment++) {
+                long start = track.getTime(first[segment]);
+                xml.append("            <S t=\"").append(start).append("\" d=\"")
+                        .append(track.getTime(first[segment + 1]) - start).append("\"/>\n");
+            }
+            xml.append("          </SegmentTimeline>\n");
+            for (int segment = 0; segment < layout.getSegmentCount(); segment++) {
+                long start = layout.getSegmentStart(segment);
+                xml.append("          <SegmentURL mediaRange=\"").append(start).append('-')
+                        .append(start + layout.getSegmentSize(segment) - 1).append("\"/>\n");
+            }
+            xml.append("        </SegmentList>\n      </Representation>\n    </AdaptationSet>\n");
+        }
+        xml.append("  </Period>\n</MPD>\n");
+        this.mpd = mpd = xml.toString();
+        return mpd;
+    }
+
+    int getSegmentCount() {
+        return firstSamples[0].length - 1;
+    }
+
+    /**
+     * @return Approximate heap size of the packaging, including the fragmented files built from it: the muxed one and
+     * one per track, with about 12 to 16 bytes per sample each.
+     */
+    int getWeight() {
+        long weight = 64 + movie.length * 3L;
+        for (SampleTable track : tracks) {
+            weight += track.getWeight() + track.size() * 32L;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+}
@@ -0,0 +1,458 @@
+package de.hoel.video.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Files that are still being written, e.g. recordings of live events, served while they grow. A file counts as growing
+ * if it was modified within the last end-timeout and has no end marker next to it. Its viewers share one tail of the
+ * file: the tail learns about appended bytes from the {@link WatchService} of the file's directory, reads them once and
+ * keeps the newest window of them in memory, so viewers at the live edge never touch the file. Viewers further behind
+ * read the older bytes from the tail's file channel.
+ * <p>
+ * The stream of a file ends once it didn't grow for end-timeout, its end marker (the file name plus end-marker, e.g.
+ * {@code event.mp4.done}) appears, or it gets shorter.
+ */
+@Component
+public class GrowingFiles {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final StreamingProperties.Live settings;
+    private final Map<Path, Tail> tails = new HashMap<>();
+    private final Map<Path, WatchKey> directories = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    public GrowingFiles(StreamingProperties properties, MeterRegistry registry) {
+        this.settings = properties.getLive();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("growing-files").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::check, settings.getCheckInterval(), settings.getCheckInterval(),
+                TimeUnit.MILLISECONDS);
+        registry.gauge("video.live.files", this, GrowingFiles::getFiles);
+        registry.gauge("video.live.viewers", this, GrowingFiles::getViewers);
+    }
+
+    /**
+     * Joins the tail of a file if it is growing.
+     * @param path The file.
+     * @return The tail, to be closed once the viewer is done, or null if the file isn't growing.
+     * @throws IOException If the file can't be read.
+     */
+    public Tail open(Path path) throws IOException {
+        Path file = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            Tail tail = tails.get(file);
+            if (tail != null && !tail.isEnded()) {
+                tail.viewers++;
+                return tail;
+            }
+        }
+        if (!growing(file)) {
+            return null;
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        Tail opened;
+        try {
+            opened = new Tail(file, channel);
+            synchronized (this) {
+                Tail tail = tails.get(file);
+                if (tail != null && !tail.isEnded()) {
+                    tail.viewers++; // Joined by another viewer in the meantime.
+                    opened.release();
+                    return tail;
+                }
+                watch(file.getParent());
+                tails.put(file, opened);
+                opened.viewers++;
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close(); // Neither sized nor watched, so no viewer will ever close it.
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+        opened.update(); // Bytes written before the directory was watched.
+        logger.debug("Tailing growing file : {}", file);
+        return opened;
+    }
+
+    private boolean growing(Path file) throws IOException {
+        long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+        return age < settings.getEndTimeout() && !ended(file);
+    }
+
+    private boolean ended(Path file) {
+        String marker = settings.getEndMarker();
+        return marker != null && !marker.isEmpty() && Files.exists(file.resolveSibling(file.getFileName() + marker));
+    }
+
+    /**
+     * Watches the directory of a tail, starting the watcher with the first one. Called with the lock held.
+     */
+    private void watch(Path directory) throws IOException {
+        if (directories.containsKey(directory)) {
+            return;
+        }
+        if (watchService == null) {
+            watchService = FileSystems.getDefault().newWatchService();
+            watcher = new Thread(this::run, "growing-files-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        directories.put(directory, directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY));
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                List<Tail> changed = new ArrayList<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    synchronized (this) {
+                        if (event.kind() == OVERFLOW) {
+                            changed.addAll(tails.values());
+                            continue;
+                        }
+                        Path file = directory.resolve((Path) event.context());
+                        String marker = settings.getEndMarker();
+                        if (marker != null && !marker.isEmpty() && file.getFileName().toString().endsWith(marker)) {
+                            String name = file.getFileName().toString();
+                            file = file.resolveSibling(name.substring(0, name.length() - marker.length()));
+                        }
+                        Tail tail = tails.get(file);
+                        if (tail != null && !changed.contains(tail)) {
+                            changed.add(tail);
+                        }
+                    }
+                }
+                key.reset();
+                for (Tail tail : changed) {
+                    tail.update();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Shut down.
+        }
+    }
+
+    /**
+     * Ends the streams of files that stopped growing; the file system only tells about changes, not their absence.
+     */
+    void check() {
+        List<Tail> all;
+        synchronized (this) {
+            all = new ArrayList<>(tails.values());
+        }
+        for (Tail tail : all) {
+            tail.update();
+        }
+    }
+
+    private synchronized void leave(Tail tail) {
+        if (--tail.viewers > 0) {
+            return;
+        }
+        tails.remove(tail.file, tail);
+        tail.release();
+        Path directory = tail.file.getParent();
+        if (tails.keySet().stream().noneMatch(file -> file.getParent().equals(directory))) {
+            WatchKey key = directories.remove(directory);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        scheduler.shutdownNow();
+        List<Tail> all;
+        synchronized (this) {
+            all = new ArrayList<>(tails.values());
+            if (watchService != null) {
+                watchService.close();
+            }
+        }
+        for (Tail tail : all) {
+            tail.end();
+        }
+    }
+
+    /**
+     * @param range The Range header of a request, or null.
+     * @return Where the body of a growing file starts: 0 without a range, n for a single open-ended range
+     * {@code bytes=n-}, or -1 for other ranges, which are served from the file as it is now.
+     */
+    static long start(String range) {
+        if (range == null) {
+            return 0;
+        }
+        long[] bounds = new long[2];
+        int count = MultipartFileSender.HttpUtils.parseRanges(range, Long.MAX_VALUE, bounds, true);
+        return count == 1 && bounds[1] < 0 && bounds[0] < Long.MAX_VALUE ? bounds[0] : -1;
+    }
+
+    public StreamingProperties.Live getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Number of growing files being tailed.
+     */
+    public synchronized int getFiles() {
+        return tails.size();
+    }
+
+    /**
+     * @return Number of viewers of growing files.
+     */
+    public synchronized int getViewers() {
+        return tails.values().stream().mapToInt(tail -> tail.viewers).sum();
+    }
+
+    /**
+     * The shared tail of one growing file.
+     */
+    public final class Tail implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final Deque<ByteBuffer> window = new ArrayDeque<>(); // ..the newest bytes, ending at size.
+        private final Map<Runnable, Long> waiters = new LinkedHashMap<>(); // ..callback to the position it waits for.
+
+        private int viewers; // Guarded by the outer instance.
+        private long size;
+        private long windowSize;
+        private long grownAt = System.nanoTime();
+        private boolean ended;
+
+        private Tail(Path file, FileChannel channel) throws IOException {
+            this.file = file;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Reads the bytes appended since the last update into the window, or ends the stream, and wakes the waiting
+         * viewers.
+         */
+        private void update() {
+            List<Runnable> woken;
+            try {
+                long now = System.nanoTime();
+                long current = channel.size();
+                synchronized (this) {
+                    if (ended) {
+                        return;
+                    }
+                    if (current > size) {
+                        append(current);
+                        grownAt = now;
+                    } else if (current < size || ended(file)
+                            || now - grownAt > TimeUnit.MILLISECONDS.toNanos(settings.getEndTimeout())) {
+                        ended = true;
+                        logger.debug("Growing file ended at {} bytes : {}", size, file);
+                    } else {
+                        return;
+                    }
+                    woken = new ArrayList<>();
+                    for (Iterator<Map.Entry<Runnable, Long>> i = waiters.entrySet().iterator(); i.hasNext(); ) {
+                        Map.Entry<Runnable, Long> waiter = i.next();
+                        if (ended || waiter.getValue() < size) {
+                            woken.add(waiter.getKey());
+                            i.remove();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("Reading growing file failed : {}", file, e);
+                woken = endNow();
+            }
+            wake(woken);
+        }
+
+        /**
+         * Reads the bytes up to the given size into the window. Called with the lock held.
+         */
+        private void append(long current) throws IOException {
+            long from = Math.max(size, current - settings.getWindow());
+            ByteBuffer block = ByteBuffer.allocate((int) (current - from));
+            while (block.hasRemaining()) {
+                if (channel.read(block, from + block.position()) < 0) {
+                    throw new IOException("File got shorter while reading at " + (from + block.position()));
+                }
+            }
+            block.flip();
+            if (from > size) {
+                window.clear(); // Grew by more than the window at once.
+                windowSize = 0;
+            }
+            window.add(block);
+            windowSize += block.capacity();
+            size = current;
+            while (windowSize - window.peekFirst().capacity() >= settings.getWindow()) {
+                windowSize -= window.pollFirst().capacity();
+            }
+        }
+
+        private void end() {
+            wake(endNow());
+        }
+
+        private void wake(List<Runnable> woken) {
+            for (Runnable waiter : woken) {
+                try {
+                    waiter.run();
+                } catch (RuntimeException e) {
+                    logger.debug("Waking a viewer of {} failed", file, e); // E.g. one that went away meanwhile.
+                }
+            }
+        }
+
+        private synchronized List<Runnable> endNow() {
+            ended = true;
+            List<Runnable> woken = new ArrayList<>(waiters.keySet());
+            waiters.clear();
+            return woken;
+        }
+
+        /**
+         * Reads bytes of the file, from the window if they are in it.
+         * @param dst The buffer to fill.
+         * @param position Position in the file.
+         * @return Number of bytes read, 0 if there are none yet at the position, -1 if the stream ended before it.
+         * @throws IOException If reading the file failed.
+         */
+        public int read(ByteBuffer dst, long position) throws IOException {
+            synchronized (this) {
+                if (position >= size) {
+                    return ended ? -1 : 0;
+                }
+                long windowStart = size - windowSize;
+                if (position >= windowStart) {
+                    int total = 0;
+                    long blockStart = windowStart;
+                    for (ByteBuffer block : window) {
+                        long blockEnd = blockStart + block.capacity();
+                        if (position < blockEnd && dst.hasRemaining()) {
+                            ByteBuffer part = block.duplicate();
+                            part.position((int) (position - blockStart));
+                            part.limit(Math.min(part.limit(), part.position() + dst.remaining()));
+                            position += part.remaining();
+                            total += part.remaining();
+                            dst.put(part);
+                        }
+                        blockStart = blockEnd;
+                    }
+                    return total;
+                }
+            }
+            // Behind the window: the viewer catches up from the file.
+            return channel.read(dst, position);
+        }
+
+        /**
+         * Runs the given callback once the file grew past the given position or the stream ended, right away if it
+         * did already. Runs on the watcher's thread otherwise.
+         */
+        public void await(long position, Runnable callback) {
+            synchronized (this) {
+                if (position >= size && !ended) {
+                    waiters.put(callback, position);
+                    return;
+                }
+            }
+            callback.run();
+        }
+
+        /**
+         * Waits until the file grew past the given position or the stream ended, for blocking writers.
+         * @param timeout Milliseconds to wait at most.
+         * @throws InterruptedIOException If the thread was interrupted while waiting.
+         */
+        public void await(long position, long timeout) throws InterruptedIOException {
+            CountDownLatch grown = new CountDownLatch(1);
+            await(position, grown::countDown);
+            try {
+                grown.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the file to grow");
+            }
+        }
+
+        /**
+         * @return Current size of the file.
+         */
+        public synchronized long getSize() {
+            return size;
+        }
+
+        /**
+         * @return True once the file stopped growing.
+         */
+        public synchronized boolean isEnded() {
+            return ended;
+        }
+
+        private void release() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Closing growing file failed : {}", file, e);
+            }
+        }
+
+        /**
+         * Leaves the tail, once per {@link GrowingFiles#open(Path)}. The last viewer closes the file.
+         */
+        @Override
+        public void close() {
+            leave(this);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * Videos in a bucket of an S3 style object store: objects are listed with {@code GET ?list-type=2} (ListObjectsV2,
+ * following continuation tokens) and read with ranged {@code GET} requests. Only anonymous access is supported, put
+ * the bucket behind a proxy that signs requests for private buckets.
+ */
+public class HttpStorage implements VideoStorage {
+
+    private static final int CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    private static final int READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final String bucket;
+
+    /**
+     * Construct an object store client.
+     * @param bucket URL of the bucket, e.g. {@code http://localhost:9000/videos}.
+     */
+    public HttpStorage(String bucket) {
+        this.bucket = bucket.endsWith("/") ? bucket.substring(0, bucket.length() - 1) : bucket;
+    }
+
+    @Override
+    public List<StoredObject> list() throws IOException {
+        List<StoredObject> objects = new ArrayList<>();
+        String token = null;
+        do {
+            String url = bucket + "/?list-type=2" + (token != null ? "&continuation-token=" + encode(token) : "");
+            HttpURLConnection connection = open(url);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Listing " + bucket + " failed with status " + connection.getResponseCode());
+            }
+            Document listing;
+            try (InputStream input = connection.getInputStream()) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true); // No external entities.
+                listing = factory.newDocumentBuilder().parse(input);
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IOException("Listing " + bucket + " isn't readable", e);
+            }
+
+            NodeList contents = listing.getElementsByTagName("Contents");
+            for (int i = 0; i < contents.getLength(); i++) {
+                Element content = (Element) contents.item(i);
+                String key = text(content, "Key");
+                if (key != null && VideoEntry.contentType(Paths.get(key)) != null) {
+                    objects.add(new StoredObject(key, Long.parseLong(text(content, "Size")), lastModified(text(content, "LastModified"))));
+                }
+            }
+            token = "true".equals(text(listing.getDocumentElement(), "IsTruncated"))
+                    ? text(listing.getDocumentElement(), "NextContinuationToken") : null;
+        } while (token != null);
+        return objects;
+    }
+
+    @Override
+    public int read(String key, long position, ByteBuffer dst) throws IOException {
+        HttpURLConnection connection = open(url(key));
+        connection.setRequestProperty("Range", "bytes=" + position + "-" + (position + dst.remaining() - 1));
+        int status = connection.getResponseCode();
+        if (status == 416) {
+            return 0; // Nothing left at that position.
+        }
+        if (status != HttpURLConnection.HTTP_PARTIAL && (status != HttpURLConnection.HTTP_OK || position != 0)) {
+            connection.disconnect();
+            throw new IOException("Reading " + key + " at " + position + " failed with status " + status);
+        }
+
+        int total = 0;
+        byte[] buffer = new byte[Math.min(65536, dst.remaining())];
+        try (InputStream input = connection.getInputStream()) {
+            while (dst.hasRemaining()) {
+                int read = input.read(buffer, 0, Math.min(buffer.length, dst.remaining()));
+                if (read < 0) {
+                    break;
+                }
+                dst.put(buffer, 0, read);
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return connection;
+    }
+
+    private String url(String key) throws UnsupportedEncodingException {
+        StringBuilder url = new StringBuilder(bucket);
+        for (String segment : key.split("/")) {
+            url.append('/').append(encode(segment));
+        }
+        return url.toString();
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+    }
+
+    private static String text(Element parent, String tag) {
+        NodeList nodes = parent.getElementsByTagName(tag);
+        return nodes.getLength() > 0 ? nodes.item(0).getTextContent().trim() : null;
+    }
+
+    private static long lastModified(String value) {
+        try {
+            return value != null ? Instant.parse(value).toEpochMilli() : 0;
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return bucket;
+    }
+}
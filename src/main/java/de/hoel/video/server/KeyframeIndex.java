@@ -0,0 +1,209 @@
+package de.hoel.video.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decode times and byte offsets of the sync samples (keyframes) of the first video track of an MP4 file, built from
+ * the sample tables of its movie box: stts for the times, stss for the sync samples, stsc, stsz and stco/co64 for the
+ * offsets. Edit lists and composition offsets are not applied, times are decode times from the start of the track.
+ */
+final class KeyframeIndex {
+
+    static final KeyframeIndex EMPTY = new KeyframeIndex(1, new long[0], new long[0]);
+
+    private static final int TRAK = Mp4Box.type("trak");
+    private static final int MDIA = Mp4Box.type("mdia");
+    private static final int MDHD = Mp4Box.type("mdhd");
+    private static final int HDLR = Mp4Box.type("hdlr");
+    private static final int MINF = Mp4Box.type("minf");
+    private static final int STBL = Mp4Box.type("stbl");
+    private static final int STTS = Mp4Box.type("stts");
+    private static final int STSS = Mp4Box.type("stss");
+    private static final int STSC = Mp4Box.type("stsc");
+    private static final int STSZ = Mp4Box.type("stsz");
+    private static final int STCO = Mp4Box.type("stco");
+    private static final int CO64 = Mp4Box.type("co64");
+    private static final int VIDE = Mp4Box.type("vide");
+
+    private final long timescale;
+    private final long[] times;
+    private final long[] offsets;
+
+    private KeyframeIndex(long timescale, long[] times, long[] offsets) {
+        this.timescale = timescale;
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Builds the index of the first video track.
+     * @param movie The movie box, including its header. Chunk offsets must be those of the file as it is served.
+     * @return The index, {@link #EMPTY} if there is no video track or its sample tables are malformed.
+     */
+    static KeyframeIndex parse(ByteBuffer movie) {
+        try {
+            int[] moov = {8, movie.limit()};
+            for (int[] trak = Mp4Box.child(movie, moov, TRAK, 0); trak != null; trak = Mp4Box.child(movie, moov, TRAK, trak[1])) {
+                int[] mdia = Mp4Box.child(movie, trak, MDIA, 0);
+                int[] hdlr = mdia != null ? Mp4Box.child(movie, mdia, HDLR, 0) : null;
+                if (hdlr != null && movie.getInt(hdlr[0] + 8) == VIDE) {
+                    return parse(movie, mdia);
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Malformed boxes, fall through.
+        }
+        return EMPTY;
+    }
+
+    private static KeyframeIndex parse(ByteBuffer movie, int[] mdia) {
+        int[] mdhd = Mp4Box.child(movie, mdia, MDHD, 0);
+        int[] stbl = Mp4Box.child(movie, Mp4Box.child(movie, mdia, MINF, 0), STBL, 0);
+        int[] stts = Mp4Box.child(movie, stbl, STTS, 0);
+        int[] stss = Mp4Box.child(movie, stbl, STSS, 0);
+        int[] stsc = Mp4Box.child(movie, stbl, STSC, 0);
+        int[] stsz = Mp4Box.child(movie, stbl, STSZ, 0);
+        int[] stco = Mp4Box.child(movie, stbl, STCO, 0);
+        boolean co64 = stco == null;
+        if (co64) {
+            stco = Mp4Box.child(movie, stbl, CO64, 0);
+        }
+        if (mdhd == null || stts == null || stsc == null || stsz == null || stco == null) {
+            return EMPTY;
+        }
+
+        long timescale = movie.get(mdhd[0]) == 1 ? uint(movie, mdhd[0] + 20) : uint(movie, mdhd[0] + 12);
+        int sampleSize = movie.getInt(stsz[0] + 4);
+        int sampleCount = movie.getInt(stsz[0] + 8);
+        int syncCount = stss != null ? movie.getInt(stss[0] + 4) : sampleCount;
+        int chunkCount = movie.getInt(stco[0] + 4);
+        int sttsCount = movie.getInt(stts[0] + 4);
+        int stscCount = movie.getInt(stsc[0] + 4);
+        if (timescale <= 0 || sampleCount < 0 || syncCount < 0 || chunkCount < 0 || sttsCount <= 0 || stscCount <= 0) {
+            return EMPTY;
+        }
+
+        // Grown as needed, the counts aren't trusted before the tables have been read.
+        long[] times = new long[Math.min(syncCount, 1024)];
+        long[] offsets = new long[times.length];
+        int keyframes = 0;
+
+        int sample = 0; // 0 based.
+        long time = 0;
+        int sttsEntry = 0;
+        long sttsLeft = uint(movie, stts[0] + 8);
+        int stscEntry = 0;
+        int stssEntry = 0;
+
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            while (stscEntry + 1 < stscCount && uint(movie, stsc[0] + 8 + (stscEntry + 1) * 12) <= chunk) {
+                stscEntry++;
+            }
+            long samplesPerChunk = uint(movie, stsc[0] + 8 + stscEntry * 12 + 4);
+            long offset = co64 ? movie.getLong(stco[0] + 8 + (chunk - 1) * 8) : uint(movie, stco[0] + 8 + (chunk - 1) * 4);
+
+            for (long i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                boolean sync = stss == null;
+                if (!sync && stssEntry < syncCount && uint(movie, stss[0] + 8 + stssEntry * 4) == sample + 1) {
+                    sync = true;
+                    stssEntry++;
+                }
+                if (sync) {
+                    if (keyframes == times.length) {
+                        times = Arrays.copyOf(times, Math.max(16, times.length * 2));
+                        offsets = Arrays.copyOf(offsets, times.length);
+                    }
+                    times[keyframes] = time;
+                    offsets[keyframes] = offset;
+                    keyframes++;
+                }
+
+                offset += sampleSize != 0 ? sampleSize : uint(movie, stsz[0] + 12 + sample * 4);
+                while (sttsLeft == 0 && sttsEntry + 1 < sttsCount) {
+                    sttsEntry++;
+                    sttsLeft = uint(movie, stts[0] + 8 + sttsEntry * 8);
+                }
+                time += uint(movie, stts[0] + 8 + sttsEntry * 8 + 4);
+                sttsLeft--;
+            }
+        }
+        return new KeyframeIndex(timescale, Arrays.copyOf(times, keyframes), Arrays.copyOf(offsets, keyframes));
+    }
+
+    private static long uint(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @param seconds Time from the start of the video.
+     * @return Index of the last keyframe at or before the time, -1 if there are no keyframes.
+     */
+    int find(double seconds) {
+        if (times.length == 0) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(times, (long) (seconds * timescale));
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * @return Time of the given keyframe in seconds.
+     */
+    double getTime(int keyframe) {
+        return times[keyframe] / (double) timescale;
+    }
+
+    /**
+     * @return Byte offset of the given keyframe in the file as it is served.
+     */
+    long getOffset(int keyframe) {
+        return offsets[keyframe];
+    }
+
+    int size() {
+        return times.length;
+    }
+
+    /**
+     * @param keyframe Index of a keyframe.
+     * @return The keyframe as a seek target.
+     */
+    Keyframe get(int keyframe) {
+        return new Keyframe(getTime(keyframe), getOffset(keyframe));
+    }
+
+    /**
+     * A keyframe to seek to.
+     */
+    static final class Keyframe {
+        private final double time;
+        private final long offset;
+
+        Keyframe(double time, long offset) {
+            this.time = time;
+            this.offset = offset;
+        }
+
+        /**
+         * @return Time of the keyframe in seconds.
+         */
+        double getTime() {
+            return time;
+        }
+
+        /**
+         * @return Byte offset of the keyframe in the file as it is served.
+         */
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return The Range header value from the keyframe to the end of the file.
+         */
+        String getRange() {
+            return "bytes=" + offset + "-";
+        }
+    }
+}
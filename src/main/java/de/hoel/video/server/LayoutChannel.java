@@ -0,0 +1,87 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only channel over the virtual file of a {@link FileLayout}. Everything that reads ranges of a file through a
+ * {@link FileChannel} works on the virtual file unchanged.
+ */
+final class LayoutChannel extends ReadOnlyFileChannel {
+
+    private final FileChannel file;
+    private final FileLayout layout;
+
+    private LayoutChannel(FileChannel file, FileLayout layout) {
+        this.file = file;
+        this.layout = layout;
+    }
+
+    /**
+     * Opens a file for reading as it is. Files of a {@link TieredStorage} are read through its disk cache.
+     * @param path The file.
+     * @return The channel.
+     * @throws IOException If the file can't be opened.
+     */
+    static FileChannel open(Path path) throws IOException {
+        return open(path, (FileLayout) null);
+    }
+
+    /**
+     * Opens a file for reading. Files of a {@link TieredStorage} are read through its disk cache.
+     * @param path The file.
+     * @param layout The layout to present, or null to read the file as it is.
+     * @return The channel.
+     * @throws IOException If the file can't be opened.
+     */
+    static FileChannel open(Path path, FileLayout layout) throws IOException {
+        TieredStorage storage = TieredStorage.of(path);
+        FileChannel file = storage != null ? storage.open(path) : FileChannel.open(path, StandardOpenOption.READ);
+        return wrap(file, layout);
+    }
+
+    /**
+     * Presents an open file in a layout.
+     * @param file The channel of the file, closed with the returned one.
+     * @param layout The layout to present, or null to read the file as it is.
+     * @return The channel.
+     */
+    static FileChannel wrap(FileChannel file, FileLayout layout) {
+        return layout != null ? new LayoutChannel(file, layout) : file;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        return layout.read(file, dst, position);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = layout.transferTo(file, position + transferred, count - transferred, target);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    @Override
+    public long size() {
+        return layout.getSize();
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,77 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Videos in a directory of the local file system, or of a network share mounted into it.
+ */
+public class LocalStorage implements VideoStorage {
+
+    private final Path root;
+
+    public LocalStorage(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    public List<StoredObject> list() throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(path -> VideoEntry.contentType(path) != null).map(path -> {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    return attributes.isRegularFile() ? new StoredObject(toKey(path), attributes.size(),
+                            attributes.lastModifiedTime().toMillis()) : null;
+                } catch (IOException e) {
+                    return null; // Vanished while listing.
+                }
+            }).filter(Objects::nonNull).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public int read(String key, long position, ByteBuffer dst) throws IOException {
+        int total = 0;
+        try (FileChannel channel = FileChannel.open(resolve(key), StandardOpenOption.READ)) {
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position + total);
+                if (read < 0) {
+                    break;
+                }
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param key Key of an object.
+     * @return Its file, which never lies outside of the root directory.
+     * @throws IOException If the key points outside of the root directory.
+     */
+    protected Path resolve(String key) throws IOException {
+        Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root)) {
+            throw new IOException("Key outside of the storage : " + key);
+        }
+        return path;
+    }
+
+    private String toKey(Path path) {
+        return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+}
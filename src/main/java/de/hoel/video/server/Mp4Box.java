@@ -0,0 +1,106 @@
+package de.hoel.video.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Position of one box (atom) of an MP4 file.
+ */
+final class Mp4Box {
+
+    static final int MOOV = type("moov");
+    static final int MDAT = type("mdat");
+
+    private final int type;
+    private final long offset;
+    private final long size;
+    private final int headerSize;
+
+    Mp4Box(int type, long offset, long size, int headerSize) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.headerSize = headerSize;
+    }
+
+    /**
+     * @param name Four character box type, e.g. "moov".
+     * @return The type as it is stored in the box header.
+     */
+    static int type(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.ISO_8859_1);
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    /**
+     * Finds the next child box of the given type.
+     * @param buffer Boxes, e.g. a movie box.
+     * @param parent Content start and end of the parent box, may be null.
+     * @param type Box type.
+     * @param from Position to start searching at, 0 for the start of the parent.
+     * @return Content start and end of the child box, or null if there is none.
+     */
+    static int[] child(ByteBuffer buffer, int[] parent, int type, int from) {
+        if (parent == null) {
+            return null;
+        }
+        int position = Math.max(parent[0], from);
+        while (position + 8 <= parent[1]) {
+            long size = buffer.getInt(position) & 0xFFFFFFFFL;
+            int header = 8;
+            if (size == 1) {
+                size = buffer.getLong(position + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = parent[1] - position;
+            }
+            if (size < header || position + size > parent[1]) {
+                return null;
+            }
+            if (buffer.getInt(position + 4) == type) {
+                return new int[] {position + header, (int) (position + size)};
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    String getTypeName() {
+        return new String(new byte[] {(byte) (type >>> 24), (byte) (type >>> 16), (byte) (type >>> 8), (byte) type},
+                StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return Position of the box header in the file.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return Size of the box including its header.
+     */
+    long getSize() {
+        return size;
+    }
+
+    long getEnd() {
+        return offset + size;
+    }
+
+    /**
+     * @return Size of the header, 16 if the box uses a 64 bit size.
+     */
+    int getHeaderSize() {
+        return headerSize;
+    }
+
+    @Override
+    public String toString() {
+        return getTypeName() + "@" + offset + "+" + size;
+    }
+}
@@ -0,0 +1,245 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the top-level boxes of one version of an MP4 file, and its faststart layout if the movie box comes after the
+ * media data.
+ */
+final class Mp4File {
+
+    /**
+     * Movie boxes are kept in memory for the faststart layout, larger ones are served as they are.
+     */
+    static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private static final int TRAK = Mp4Box.type("trak");
+    private static final int MDIA = Mp4Box.type("mdia");
+    private static final int MINF = Mp4Box.type("minf");
+    private static final int STBL = Mp4Box.type("stbl");
+    private static final int STCO = Mp4Box.type("stco");
+    private static final int CO64 = Mp4Box.type("co64");
+
+    private final long size;
+    private final long lastModified;
+    private final List<Mp4Box> boxes;
+    private final FaststartLayout faststart;
+    private volatile KeyframeIndex keyframes;
+    private volatile FragmentedMp4 fragments;
+
+    private Mp4File(long size, long lastModified, List<Mp4Box> boxes, FaststartLayout faststart) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.boxes = boxes;
+        this.faststart = faststart;
+    }
+
+    /**
+     * Reads the box headers of the file and, if the movie box is at the end, the movie box itself.
+     * @param channel The file.
+     * @param size Size of the file.
+     * @param lastModified Modification time of the file in milliseconds.
+     * @return The index. Files that aren't valid MP4 files get an index without boxes.
+     * @throws IOException If reading the file fails.
+     */
+    static Mp4File parse(FileChannel channel, long size, long lastModified) throws IOException {
+        List<Mp4Box> boxes = readBoxes(channel, size);
+        if (boxes == null) {
+            return new Mp4File(size, lastModified, Collections.emptyList(), null);
+        }
+
+        Mp4Box moov = null;
+        Mp4Box mdat = null;
+        for (Mp4Box box : boxes) {
+            if (box.getType() == Mp4Box.MOOV && moov == null) {
+                moov = box;
+            } else if (box.getType() == Mp4Box.MDAT && mdat == null) {
+                mdat = box;
+            }
+        }
+
+        FaststartLayout faststart = null;
+        if (moov != null && mdat != null && mdat.getOffset() < moov.getOffset() && moov.getSize() <= MAX_MOOV_SIZE) {
+            ByteBuffer movie = ByteBuffer.allocate((int) moov.getSize());
+            while (movie.hasRemaining()) {
+                if (channel.read(movie, moov.getOffset() + movie.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + (moov.getOffset() + movie.position()));
+                }
+            }
+
+            // Everything from the first media data up to the movie box moves back by the size of the movie box.
+            if (patchChunkOffsets(movie, moov.getHeaderSize(), movie.capacity(), mdat.getOffset(), moov.getOffset(), moov.getSize())) {
+                faststart = new FaststartLayout(size, mdat.getOffset(), moov.getOffset(), movie.array());
+            }
+        }
+        return new Mp4File(size, lastModified, Collections.unmodifiableList(boxes), faststart);
+    }
+
+    /**
+     * @return The top-level boxes, or null if the file isn't a valid box structure.
+     */
+    private static List<Mp4Box> readBoxes(FileChannel channel, long size) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long position = 0;
+
+        while (position + 8 <= size) {
+            header.clear();
+            header.limit((int) Math.min(16, size - position));
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    return null;
+                }
+            }
+
+            long boxSize = header.getInt(0) & 0xFFFFFFFFL;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (boxSize == 1) {
+                if (header.limit() < 16) {
+                    return null;
+                }
+                boxSize = header.getLong(8);
+                headerSize = 16;
+            } else if (boxSize == 0) {
+                boxSize = size - position; // Last box, up to the end of the file.
+            }
+            if (boxSize < headerSize || position + boxSize > size) {
+                return null;
+            }
+
+            boxes.add(new Mp4Box(type, position, boxSize, headerSize));
+            position += boxSize;
+        }
+        return boxes.isEmpty() ? null : boxes;
+    }
+
+    /**
+     * Adds the shift to all chunk offsets in the given range of the stco and co64 boxes below the given box content.
+     * @return False if the boxes are malformed or an offset would no longer fit into a 32 bit stco entry.
+     */
+    private static boolean patchChunkOffsets(ByteBuffer movie, int start, int end, long from, long to, long shift) {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = movie.getInt(position) & 0xFFFFFFFFL;
+            int type = movie.getInt(position + 4);
+            int header = 8;
+            if (size == 1) {
+                if (position + 16 > end) {
+                    return false;
+                }
+                size = movie.getLong(position + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < header || position + size > end) {
+                return false;
+            }
+            int boxEnd = (int) (position + size);
+            int content = position + header;
+
+            if (type == TRAK || type == MDIA || type == MINF || type == STBL) {
+                if (!patchChunkOffsets(movie, content, boxEnd, from, to, shift)) {
+                    return false;
+                }
+            } else if (type == STCO || type == CO64) {
+                int entrySize = type == STCO ? 4 : 8;
+                if (content + 8 > boxEnd) {
+                    return false;
+                }
+                long count = movie.getInt(content + 4) & 0xFFFFFFFFL;
+                if (content + 8 + count * entrySize > boxEnd) {
+                    return false;
+                }
+                for (int i = 0; i < count; i++) {
+                    int at = content + 8 + i * entrySize;
+                    long offset = type == STCO ? movie.getInt(at) & 0xFFFFFFFFL : movie.getLong(at);
+                    if (offset < from || offset >= to) {
+                        continue;
+                    }
+                    offset += shift;
+                    if (type == CO64) {
+                        movie.putLong(at, offset);
+                    } else if (offset <= 0xFFFFFFFFL) {
+                        movie.putInt(at, (int) offset);
+                    } else {
+                        return false;
+                    }
+                }
+            }
+            position = boxEnd;
+        }
+        return true;
+    }
+
+    /**
+     * @param size Current size of the file.
+     * @param lastModified Current modification time of the file in milliseconds.
+     * @return True if this index describes that version of the file.
+     */
+    boolean isVersion(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+
+    List<Mp4Box> getBoxes() {
+        return boxes;
+    }
+
+    /**
+     * @param type A box type.
+     * @return The first top-level box of the type, or null if there is none.
+     */
+    Mp4Box getBox(int type) {
+        for (Mp4Box box : boxes) {
+            if (box.getType() == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The keyframe index if it has been built already, else null.
+     */
+    KeyframeIndex getKeyframes() {
+        return keyframes;
+    }
+
+    void setKeyframes(KeyframeIndex keyframes) {
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * @return The fragmented MP4 packaging if it has been built already, else null.
+     */
+    FragmentedMp4 getFragments() {
+        return fragments;
+    }
+
+    void setFragments(FragmentedMp4 fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * @return The faststart layout, or null if the file is already laid out for streaming or can't be rearranged.
+     */
+    FaststartLayout getFaststart() {
+        return faststart;
+    }
+
+    /**
+     * @return Approximate heap size of the index.
+     */
+    int getWeight() {
+        FragmentedMp4 fragments = this.fragments;
+        long weight = 64 + boxes.size() * 32 + (faststart != null ? faststart.getMovieSize() : 0)
+                + (fragments != null ? fragments.getWeight() : 0);
+        return (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+}
@@ -0,0 +1,190 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Size bounded cache of the box indexes of the MP4 videos, parsed on first access of each file version.
+ */
+@Component
+public class Mp4Index {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Cache<Path, Mp4File> files;
+    private final boolean faststart;
+    private final boolean packaging;
+    private final double segmentDuration;
+
+    public Mp4Index(StreamingProperties properties) {
+        this.faststart = properties.getFaststart().isEnabled();
+        this.packaging = properties.getPackaging().isEnabled();
+        this.segmentDuration = properties.getPackaging().getSegmentDuration();
+        this.files = CacheBuilder.newBuilder()
+                .maximumWeight(properties.getFaststart().getCacheSize())
+                .weigher((Path path, Mp4File file) -> file.getWeight())
+                .build();
+    }
+
+    /**
+     * @param video An MP4 video.
+     * @return The box index of the current version of the video, or null if it can't be read.
+     */
+    Mp4File get(VideoEntry video) {
+        Mp4File file = files.getIfPresent(video.getPath());
+        if (file != null && file.isVersion(video.getSize(), video.getLastModifiedTime().toMillis())) {
+            return file;
+        }
+        files.invalidate(video.getPath());
+
+        try {
+            return files.get(video.getPath(), () -> parse(video));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            logger.warn("Indexing MP4 boxes failed, serving the file as it is : {}", video.getPath(), e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * @param video A video.
+     * @return The faststart layout to serve the video in, or null to serve the file as it is or if faststart is
+     * disabled.
+     */
+    FaststartLayout faststart(VideoEntry video) {
+        if (!faststart || !isMp4(video)) {
+            return null;
+        }
+        Mp4File file = get(video);
+        return file != null ? file.getFaststart() : null;
+    }
+
+    /**
+     * Returns the keyframes of the video, building the index from the sample tables on first use. The offsets are
+     * those of the file as it is served, i.e. in the faststart layout if there is one.
+     * @param video A video.
+     * @return The keyframe index, or null if the video isn't an MP4 file or can't be read.
+     */
+    KeyframeIndex keyframes(VideoEntry video) {
+        if (!isMp4(video)) {
+            return null;
+        }
+        Mp4File file = get(video);
+        if (file == null) {
+            return null;
+        }
+        KeyframeIndex keyframes = file.getKeyframes();
+        if (keyframes != null) {
+            return keyframes;
+        }
+
+        long start = System.nanoTime();
+        try {
+            keyframes = KeyframeIndex.parse(movie(video, file, true));
+        } catch (IOException e) {
+            logger.warn("Reading MP4 sample tables failed : {}", video.getPath(), e);
+            return null;
+        }
+        file.setKeyframes(keyframes);
+        logger.debug("Indexed {} keyframes of {} in {} ms", keyframes.size(), video.getPath(),
+                (System.nanoTime() - start) / 1000000);
+        return keyframes;
+    }
+
+    /**
+     * Seeks to the given time.
+     * @param video A video.
+     * @param seconds Time from the start of the video.
+     * @return The last keyframe at or before the time, or null if the video has no keyframe index.
+     */
+    KeyframeIndex.Keyframe seek(VideoEntry video, double seconds) {
+        KeyframeIndex keyframes = keyframes(video);
+        int keyframe = keyframes != null ? keyframes.find(seconds) : -1;
+        return keyframe >= 0 ? keyframes.get(keyframe) : null;
+    }
+
+    /**
+     * Returns the fragmented MP4 packaging of the video, computing its segments from the sample tables on first use.
+     * @param video A video.
+     * @return The packaging, or null if packaging is disabled, the video isn't an MP4 file or has no audio or video.
+     */
+    FragmentedMp4 fragments(VideoEntry video) {
+        if (!packaging || !isMp4(video)) {
+            return null;
+        }
+        Mp4File file = get(video);
+        if (file == null) {
+            return null;
+        }
+        FragmentedMp4 fragments = file.getFragments();
+        if (fragments != null) {
+            return fragments;
+        }
+
+        long start = System.nanoTime();
+        try {
+            fragments = FragmentedMp4.build(movie(video, file, false), segmentDuration);
+        } catch (IOException e) {
+            logger.warn("Reading MP4 sample tables failed : {}", video.getPath(), e);
+            return null;
+        }
+        if (fragments == null) {
+            return null;
+        }
+        file.setFragments(fragments);
+        // Put it again so the cache weighs the file with its packaging.
+        files.asMap().replace(video.getPath(), file, file);
+        logger.debug("Packaged {} in {} segments in {} ms", video.getPath(), fragments.getSegmentCount(),
+                (System.nanoTime() - start) / 1000000);
+        return fragments;
+    }
+
+    /**
+     * @param served True for the movie box as it is served, false for the one of the real file.
+     */
+    private ByteBuffer movie(VideoEntry video, Mp4File file, boolean served) throws IOException {
+        FaststartLayout layout = faststart && served ? file.getFaststart() : null;
+        if (layout != null) {
+            return layout.getMovie();
+        }
+        Mp4Box moov = file.getBox(Mp4Box.MOOV);
+        if (moov == null || moov.getSize() > Mp4File.MAX_MOOV_SIZE) {
+            return ByteBuffer.allocate(0);
+        }
+
+        ByteBuffer movie = ByteBuffer.allocate((int) moov.getSize());
+        try (FileChannel channel = LayoutChannel.open(video.getPath())) {
+            while (movie.hasRemaining()) {
+                if (channel.read(movie, moov.getOffset() + movie.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + (moov.getOffset() + movie.position()));
+                }
+            }
+        }
+        movie.flip();
+        return movie;
+    }
+
+    static boolean isMp4(VideoEntry video) {
+        return "video/mp4".equals(video.getContentType()) || "video/quicktime".equals(video.getContentType());
+    }
+
+    private Mp4File parse(VideoEntry video) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = LayoutChannel.open(video.getPath())) {
+            Mp4File file = Mp4File.parse(channel, video.getSize(), video.getLastModifiedTime().toMillis());
+            logger.debug("Indexed MP4 boxes of {} in {} ms : {}, faststart {}", video.getPath(),
+                    (System.nanoTime() - start) / 1000000, file.getBoxes(), file.getFaststart() != null);
+            return file;
+        }
+    }
+}
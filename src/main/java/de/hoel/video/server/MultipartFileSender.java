@@ -1,362 +1,1329 @@
-package de.hoel.video.server;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.google.common.util.concurrent.RateLimiter;
-
-import javax.servlet.ServletOutputStream;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.attribute.FileTime;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.ZoneOffset;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-
-/**
- * Created by kevin on 10/02/15.
- * See full code here : https://github.com/davinkevin/Podcast-Server/blob/d927d9b8cb9ea1268af74316cd20b7192ca92da7/src/main/java/lan/dk/podcastserver/utils/multipart/MultipartFileSender.java
- */
-public class MultipartFileSender {
-
-    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
-
-    private static final int DEFAULT_BUFFER_SIZE = 20480; // ..bytes = 20KB.
-    private static final long DEFAULT_EXPIRE_TIME = 604800000L; // ..ms = 1 week.
-    private static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
-
-    Path filepath;
-    HttpServletRequest request;
-    HttpServletResponse response;
-
-    public MultipartFileSender() {
-    }
-
-    public static MultipartFileSender fromPath(Path path) {
-        return new MultipartFileSender().setFilepath(path);
-    }
-
-    public static MultipartFileSender fromFile(File file) {
-        return new MultipartFileSender().setFilepath(file.toPath());
-    }
-
-    public static MultipartFileSender fromURIString(String uri) {
-        return new MultipartFileSender().setFilepath(Paths.get(uri));
-    }
-
-    //** internal setter **//
-    private MultipartFileSender setFilepath(Path filepath) {
-        this.filepath = filepath;
-        return this;
-    }
-
-    public MultipartFileSender with(HttpServletRequest httpRequest) {
-        request = httpRequest;
-        return this;
-    }
-
-    public MultipartFileSender with(HttpServletResponse httpResponse) {
-        response = httpResponse;
-        return this;
-    }
-
-    public void serveResource() throws Exception {
-        if (response == null || request == null) {
-            return;
-        }
-
-        if (!Files.exists(filepath)) {
-            logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
-            response.sendError(HttpServletResponse.SC_NOT_FOUND);
-            return;
-        }
-
-        Long length = Files.size(filepath);
-        String fileName = filepath.getFileName().toString();
-        FileTime lastModifiedObj = Files.getLastModifiedTime(filepath);
-
-        if (fileName == null || fileName.isEmpty() || lastModifiedObj == null) {
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            return;
-        }
-        long lastModified = LocalDateTime.ofInstant(lastModifiedObj.toInstant(), ZoneId.of(ZoneOffset.systemDefault().getId())).toEpochSecond(ZoneOffset.UTC);
-        String contentType = "video/mp4";
-
-        // Validate request headers for caching ---------------------------------------------------
-
-        // If-None-Match header should contain "*" or ETag. If so, then return 304.
-        String ifNoneMatch = request.getHeader("If-None-Match");
-        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, fileName)) {
-            response.setHeader("ETag", fileName); // Required in 304.
-            response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-            return;
-        }
-
-        // If-Modified-Since header should be greater than LastModified. If so, then return 304.
-        // This header is ignored if any If-None-Match header is specified.
-        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
-        if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
-            response.setHeader("ETag", fileName); // Required in 304.
-            response.sendError(HttpServletResponse.SC_NOT_MODIFIED);
-            return;
-        }
-
-        // Validate request headers for resume ----------------------------------------------------
-
-        // If-Match header should contain "*" or ETag. If not, then return 412.
-        String ifMatch = request.getHeader("If-Match");
-        if (ifMatch != null && !HttpUtils.matches(ifMatch, fileName)) {
-            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
-            return;
-        }
-
-        // If-Unmodified-Since header should be greater than LastModified. If not, then return 412.
-        long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
-        if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
-            response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
-            return;
-        }
-
-        // Validate and process range -------------------------------------------------------------
-
-        // Prepare some variables. The full Range represents the complete file.
-        Range full = new Range(0, length - 1, length);
-        List<Range> ranges = new ArrayList<>();
-
-        // Validate and process Range and If-Range headers.
-        String range = request.getHeader("Range");
-        if (range != null) {
-
-            // Range header should match format "bytes=n-n,n-n,n-n...". If not, then return 416.
-            if (!range.matches("^bytes=\\d*-\\d*(,\\d*-\\d*)*$")) {
-                response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
-                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
-                return;
-            }
-
-            String ifRange = request.getHeader("If-Range");
-            if (ifRange != null && !ifRange.equals(fileName)) {
-                try {
-                    long ifRangeTime = request.getDateHeader("If-Range"); // Throws IAE if invalid.
-                    if (ifRangeTime != -1) {
-                        ranges.add(full);
-                    }
-                } catch (IllegalArgumentException ignore) {
-                    ranges.add(full);
-                }
-            }
-
-            // If any valid If-Range header, then process each part of byte range.
-            if (ranges.isEmpty()) {
-                for (String part : range.substring(6).split(",")) {
-                    // Assuming a file with length of 100, the following examples returns bytes at:
-                    // 50-80 (50 to 80), 40- (40 to length=100), -20 (length-20=80 to length=100).
-                    long start = Range.sublong(part, 0, part.indexOf("-"));
-                    long end = Range.sublong(part, part.indexOf("-") + 1, part.length());
-
-                    if (start == -1) {
-                        start = length - end;
-                        end = length - 1;
-                    } else if (end == -1 || end > length - 1) {
-                        end = length - 1;
-                    }
-
-                    // Check if Range is syntactically valid. If not, then return 416.
-                    if (start > end) {
-                        response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
-                        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
-                        return;
-                    }
-
-                    // Add range.                    
-                    ranges.add(new Range(start, end, length));
-                }
-            }
-        }
-
-        // Prepare and initialize response --------------------------------------------------------
-
-        // Get content type by file name and set content disposition.
-        String disposition = "inline";
-
-        // If content type is unknown, then set the default value.
-        // For all content types, see: http://www.w3schools.com/media/media_mimeref.asp
-        // To add new content types, add new mime-mapping entry in web.xml.
-        if (contentType == null) {
-            contentType = "application/octet-stream";
-        } else if (!contentType.startsWith("image")) {
-            // Else, expect for images, determine content disposition. If content type is supported by
-            // the browser, then set to inline, else attachment which will pop a 'save as' dialogue.
-            String accept = request.getHeader("Accept");
-            disposition = accept != null && HttpUtils.accepts(accept, contentType) ? "inline" : "attachment";
-        }
-        logger.debug("Content-Type : {}", contentType);
-        // Initialize response.
-        response.reset();
-        response.setBufferSize(DEFAULT_BUFFER_SIZE);
-        response.setHeader("Content-Type", contentType);
-        response.setHeader("Content-Disposition", disposition + ";filename=\"" + fileName + "\"");
-        logger.debug("Content-Disposition : {}", disposition);
-        response.setHeader("Accept-Ranges", "bytes");
-        response.setHeader("ETag", fileName);
-        response.setDateHeader("Last-Modified", lastModified);
-        response.setDateHeader("Expires", System.currentTimeMillis() + DEFAULT_EXPIRE_TIME);
-
-        // Send requested file (part(s)) to client ------------------------------------------------
-
-        // Prepare streams.
-        try (InputStream input = new BufferedInputStream(Files.newInputStream(filepath));
-             OutputStream output = response.getOutputStream()) {
-
-            if (ranges.isEmpty() || ranges.get(0) == full) {
-
-                // Return full file.
-                logger.info("Return full file");
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + full.start + "-" + full.end + "/" + full.total);
-                response.setHeader("Content-Length", String.valueOf(full.length));
-                Range.copy(input, output, length, full.start, full.length);
-
-            } else if (ranges.size() == 1) {
-
-                // Return single part of file.
-                Range r = ranges.get(0);
-                logger.info("Return 1 part of file : from ({}) to ({})", r.start, r.end);
-                response.setContentType(contentType);
-                response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
-                response.setHeader("Content-Length", String.valueOf(r.length));
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-
-                // Copy single part range.
-                Range.copy(input, output, length, r.start, r.length);
-
-            } else {
-
-                // Return multiple parts of file.
-                response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
-                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
-
-                // Cast back to ServletOutputStream to get the easy println methods.
-                ServletOutputStream sos = (ServletOutputStream) output;
-
-                // Copy multi part range.
-                for (Range r : ranges) {
-                    logger.info("Return multi part of file : from ({}) to ({})", r.start, r.end);
-                    // Add multipart boundary and header fields for every range.
-                    sos.println();
-                    sos.println("--" + MULTIPART_BOUNDARY);
-                    sos.println("Content-Type: " + contentType);
-                    sos.println("Content-Range: bytes " + r.start + "-" + r.end + "/" + r.total);
-
-                    // Copy single part range of multi part range.
-                    Range.copy(input, output, length, r.start, r.length);
-                }
-
-                // End with multipart boundary.
-                sos.println();
-                sos.println("--" + MULTIPART_BOUNDARY + "--");
-            }
-        }
-
-    }
-
-    private static class Range {
-        long start;
-        long end;
-        long length;
-        long total;
-
-        /**
-         * Construct a byte range.
-         * @param start Start of the byte range.
-         * @param end End of the byte range.
-         * @param total Total length of the byte source.
-         */
-        public Range(long start, long end, long total) {
-            this.start = start;
-            this.end = end;
-            this.length = end - start + 1;
-            this.total = total;
-        }
-
-        public static long sublong(String value, int beginIndex, int endIndex) {
-            String substring = value.substring(beginIndex, endIndex);
-            return (substring.length() > 0) ? Long.parseLong(substring) : -1;
-        }
-
-        private static void copy(InputStream input, OutputStream output, long inputSize, long start, long length) throws IOException {
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int read;
-            
-            final RateLimiter rateLimiter = RateLimiter.create(5 * 1000 * 1000.0); //5 mbps
-
-            if (inputSize == length) {
-                // Write full range.
-                while ((read = input.read(buffer)) > 0) {
-                	
-                	rateLimiter.acquire(read); //TODO rate limiter mark
-                	
-                    output.write(buffer, 0, read);
-                    output.flush();
-                }
-            } else {
-                input.skip(start);
-                long toRead = length;
-
-                while ((read = input.read(buffer)) > 0) {
-                    if ((toRead -= read) > 0) {
-                    	
-                    	rateLimiter.acquire(read); //TODO rate limiter mark
-                    	
-                        output.write(buffer, 0, read);
-                        output.flush();
-                    } else {
-                    	
-                    	rateLimiter.acquire((int) toRead + read); //TODO rate limiter mark
-                    	
-                        output.write(buffer, 0, (int) toRead + read);
-                        output.flush();
-                        break;
-                    }
-                }
-            }
-        }
-    }
-    private static class HttpUtils {
-
-        /**
-         * Returns true if the given accept header accepts the given value.
-         * @param acceptHeader The accept header.
-         * @param toAccept The value to be accepted.
-         * @return True if the given accept header accepts the given value.
-         */
-        public static boolean accepts(String acceptHeader, String toAccept) {
-            String[] acceptValues = acceptHeader.split("\\s*(,|;)\\s*");
-            Arrays.sort(acceptValues);
-
-            return Arrays.binarySearch(acceptValues, toAccept) > -1
-                    || Arrays.binarySearch(acceptValues, toAccept.replaceAll("/.*$", "/*")) > -1
-                    || Arrays.binarySearch(acceptValues, "*/*") > -1;
-        }
-
-        /**
-         * Returns true if the given match header matches the given value.
-         * @param matchHeader The match header.
-         * @param toMatch The value to be matched.
-         * @return True if the given match header matches the given value.
-         */
-        public static boolean matches(String matchHeader, String toMatch) {
-            String[] matchValues = matchHeader.split("\\s*,\\s*");
-            Arrays.sort(matchValues);
-            return Arrays.binarySearch(matchValues, toMatch) > -1
-                    || Arrays.binarySearch(matchValues, "*") > -1;
-        }
-    }
+package de.hoel.video.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Created by kevin on 10/02/15.
+ * See full code here : https://github.com/davinkevin/Podcast-Server/blob/d927d9b8cb9ea1268af74316cd20b7192ca92da7/src/main/java/lan/dk/podcastserver/utils/multipart/MultipartFileSender.java
+ */
+public class MultipartFileSender {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    static final int DEFAULT_BUFFER_SIZE = 20480; // ..bytes = 20KB.
+    static final long DEFAULT_EXPIRE_TIME = 604800000L; // ..ms = 1 week.
+    static final int DEFAULT_MAX_RANGES = 16;
+    static final String MULTIPART_BOUNDARY = "MULTIPART_BYTERANGES";
+    static final byte[] MULTIPART_END = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    // Request attributes of Tomcat's sendfile support, see org.apache.catalina.Globals.
+    private static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+    /** Request attribute of a request dispatched again after waiting for a growing file. */
+    private static final String GROWN_ATTR = "de.hoel.video.server.grown";
+
+    Path filepath;
+    VideoEntry entry;
+    ETagIndex etags;
+    Mp4Index mp4Index;
+    FileLayout layout;
+    long modified;
+    FileHandleCache handles;
+    GrowingFiles growing;
+    GrowingFiles.Tail tail;
+    int fragments = -1;
+    int maxRanges = DEFAULT_MAX_RANGES;
+    String range;
+    Map<String, String> headers = new LinkedHashMap<>();
+    HttpServletRequest request;
+    HttpServletResponse response;
+    boolean zeroCopy;
+    ChunkCache cache;
+    ChunkCache.FileVersion version;
+    AsyncStreaming async;
+    BandwidthShaper shaper;
+    StreamingProperties.Coalescing coalescing;
+    ReadAhead readAhead;
+    BufferPool buffers;
+    StreamMetrics metrics;
+    StreamMetrics.Stream metered;
+    AdmissionControl admission;
+    AdmissionControl.Permit permit;
+    StallDetector stalls;
+    StallDetector.Watch watched;
+    long received;
+    boolean sampled;
+
+    public MultipartFileSender() {
+    }
+
+    public static MultipartFileSender fromPath(Path path) {
+        return new MultipartFileSender().setFilepath(path);
+    }
+
+    public static MultipartFileSender fromFile(File file) {
+        return new MultipartFileSender().setFilepath(file.toPath());
+    }
+
+    public static MultipartFileSender fromURIString(String uri) {
+        return new MultipartFileSender().setFilepath(Paths.get(uri));
+    }
+
+    /**
+     * Serve a video of the catalog. Its cached metadata is used as is, the file is only opened to read the bytes.
+     * @param video The catalog entry of the video.
+     * @return A new sender.
+     */
+    public static MultipartFileSender fromEntry(VideoEntry video) {
+        MultipartFileSender sender = new MultipartFileSender().setFilepath(video.getPath());
+        sender.entry = video;
+        return sender;
+    }
+
+    //** internal setter **//
+    private MultipartFileSender setFilepath(Path filepath) {
+        this.filepath = filepath;
+        return this;
+    }
+
+    public MultipartFileSender with(HttpServletRequest httpRequest) {
+        request = httpRequest;
+        return this;
+    }
+
+    public MultipartFileSender with(HttpServletResponse httpResponse) {
+        response = httpResponse;
+        return this;
+    }
+
+    /**
+     * Send ranges from a {@link FileChannel} instead of copying them through a byte buffer. Single ranges are handed
+     * to the connector's sendfile if it supports it, everything else is transferred from the channel directly.
+     * @param enabled True to enable zero-copy delivery.
+     * @return This sender.
+     */
+    public MultipartFileSender withZeroCopy(boolean enabled) {
+        zeroCopy = enabled;
+        return this;
+    }
+
+    /**
+     * Record metrics of the response and send a Server-Timing header, see {@link StreamMetrics}. Detailed debug logs
+     * are only written for a sample of the requests then.
+     * @param streamMetrics The metrics to record, or null to record none and log every request at debug level.
+     * @return This sender.
+     */
+    public MultipartFileSender with(StreamMetrics streamMetrics) {
+        metrics = streamMetrics;
+        return this;
+    }
+
+    /**
+     * Write the response body only once the given admission control lets it in, and answer 503 if it doesn't in time.
+     * Admitted bodies aren't handed to sendfile, which would end the servlet and release the permit before the first
+     * byte is out.
+     * @param admissionControl The admission control, or null to admit every request.
+     * @return This sender.
+     */
+    public MultipartFileSender with(AdmissionControl admissionControl) {
+        admission = admissionControl;
+        return this;
+    }
+
+    /**
+     * Abort bodies whose client stops reading, see {@link StallDetector}.
+     * @param stallDetector The detector to watch the bodies, or null to wait for the connector's timeouts.
+     * @return This sender.
+     */
+    public MultipartFileSender with(StallDetector stallDetector) {
+        stalls = stallDetector;
+        return this;
+    }
+
+    /**
+     * Read the file through a shared handle instead of opening it for every request, see {@link FileHandleCache}.
+     * @param handleCache The shared handles, or null to open the file per request.
+     * @return This sender.
+     */
+    public MultipartFileSender with(FileHandleCache handleCache) {
+        handles = handleCache;
+        return this;
+    }
+
+    /**
+     * Follow files that are still being written as they grow, see {@link GrowingFiles}. Requests without a range or
+     * with a single open-ended one get a body without length, written as the file grows until it ends.
+     * @param growingFiles The tails of the growing files, or null to serve every file as it is.
+     * @return This sender.
+     */
+    public MultipartFileSender with(GrowingFiles growingFiles) {
+        growing = growingFiles;
+        return this;
+    }
+
+    /**
+     * Serve range requests from the given chunk cache. Requests for the full file bypass it, so bulk downloads don't
+     * push the hot ranges out.
+     * @param chunkCache The cache to use, or null to always read the file.
+     * @return This sender.
+     */
+    public MultipartFileSender with(ChunkCache chunkCache) {
+        cache = chunkCache;
+        return this;
+    }
+
+    /**
+     * Prefetch the bytes after the read position of clients that stream a file sequentially.
+     * @param prefetcher The read-ahead sessions, or null to read only what is requested.
+     * @return This sender.
+     */
+    public MultipartFileSender with(ReadAhead prefetcher) {
+        readAhead = prefetcher;
+        return this;
+    }
+
+    /**
+     * Lease the I/O buffers of the response from the given pool instead of allocating them per request.
+     * @param pool The buffer pool, or null to allocate.
+     * @return This sender.
+     */
+    public MultipartFileSender with(BufferPool pool) {
+        buffers = pool;
+        return this;
+    }
+
+    /**
+     * Write the response body with non-blocking servlet I/O instead of blocking the calling thread until the client
+     * has received it.
+     * @param asyncStreaming The shared async stream state, or null to write blocking.
+     * @return This sender.
+     */
+    public MultipartFileSender with(AsyncStreaming asyncStreaming) {
+        async = asyncStreaming;
+        return this;
+    }
+
+    /**
+     * Shape the response body with the given bandwidth shaper. Ranges are not handed to sendfile while it limits.
+     * @param bandwidthShaper The shaper, or null to send as fast as the client reads.
+     * @return This sender.
+     */
+    public MultipartFileSender with(BandwidthShaper bandwidthShaper) {
+        shaper = bandwidthShaper;
+        return this;
+    }
+
+    /**
+     * Batch the writes of the response body into frames sized to the client's drain rate.
+     * @param settings Frame sizes and latency thresholds, or null to leave flushing to the response buffer.
+     * @return This sender.
+     */
+    public MultipartFileSender with(StreamingProperties.Coalescing settings) {
+        coalescing = settings;
+        return this;
+    }
+
+    /**
+     * Send the content hash of files that aren't served from the catalog as ETag once it is known.
+     * @param etagIndex The index to look the hashes up in, or null to derive the ETag from size and modification time.
+     * @return This sender.
+     */
+    public MultipartFileSender with(ETagIndex etagIndex) {
+        etags = etagIndex;
+        return this;
+    }
+
+    /**
+     * Present MP4 files that have the movie box at the end in a virtual faststart layout, with the movie box in front.
+     * @param index The box index cache, or null to send files as they are.
+     * @return This sender.
+     */
+    public MultipartFileSender with(Mp4Index index) {
+        mp4Index = index;
+        return this;
+    }
+
+    /**
+     * Send the video remuxed to fragmented MP4 instead of the file, see {@link FragmentedMp4}. Requires an
+     * {@link Mp4Index}, videos that can't be packaged are answered with 404.
+     * @param trackId Track ID of the single track to send, or 0 for all tracks.
+     * @return This sender.
+     */
+    public MultipartFileSender withFragments(int trackId) {
+        fragments = trackId;
+        return this;
+    }
+
+    /**
+     * Reject Range headers with more ranges than the given number, which a client streaming a video never needs.
+     * @param max Largest number of ranges per request.
+     * @return This sender.
+     */
+    public MultipartFileSender withMaxRanges(int max) {
+        maxRanges = max;
+        return this;
+    }
+
+    /**
+     * Send the given range instead of the one requested by the client, e.g. one found by a time seek.
+     * @param rangeHeader The range in the syntax of the Range header, or null to use the request's.
+     * @return This sender.
+     */
+    public MultipartFileSender withRange(String rangeHeader) {
+        range = rangeHeader;
+        return this;
+    }
+
+    /**
+     * Add a header to the response. The response is reset before it is initialized, so headers have to be set here.
+     * @param name Name of the header.
+     * @param value Value of the header.
+     * @return This sender.
+     */
+    public MultipartFileSender withHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public void serveResource() throws Exception {
+        if (response == null || request == null) {
+            return;
+        }
+        received = System.nanoTime();
+        sampled = logger.isDebugEnabled() && (metrics == null || metrics.isSampled());
+
+        // Without a catalog entry, read the metadata of the file now.
+        VideoEntry video = entry != null ? entry : VideoEntry.of(filepath.getFileName().toString(), filepath);
+        if (video == null) {
+            logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
+            sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        // Follow a file that is still being written. Ranges that can't follow it are served from the file as it is
+        // now, with fresh metadata and without a faststart layout, which would change as the file grows.
+        boolean live = false;
+        if (growing != null && fragments < 0) {
+            tail = growing.open(filepath);
+            if (tail != null) {
+                try {
+                    if (serveGrowing(video)) {
+                        return;
+                    }
+                } finally {
+                    if (tail != null) {
+                        tail.close();
+                        tail = null;
+                    }
+                }
+                live = true;
+                video = VideoEntry.of(video.getId(), filepath);
+                if (video == null) {
+                    sendError(HttpServletResponse.SC_NOT_FOUND);
+                    return;
+                }
+            }
+        }
+        if (entry == null && etags != null && !live) {
+            String strongETag = etags.get(video, null);
+            video = strongETag != null ? video.withETag(strongETag) : video;
+        }
+
+        if (fragments >= 0) {
+            FragmentedMp4 packaging = mp4Index != null ? mp4Index.fragments(video) : null;
+            layout = packaging != null ? packaging.layout(fragments) : null;
+            if (layout == null) {
+                logger.debug("Can't package {} as fragmented MP4, track {}", filepath, fragments);
+                sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } else {
+            layout = mp4Index != null && !live ? mp4Index.faststart(video) : null;
+        }
+        // A faststart layout has the size of the file, a fragmented one doesn't.
+        long length = layout != null ? layout.getSize() : video.getSize();
+        version = cache != null ? cache.version(filepath, length, video.getLastModifiedTime(), layout) : null;
+        modified = video.getLastModifiedTime().toMillis();
+        long lastModified = video.getLastModified();
+        String contentType = fragments >= 0 ? "video/mp4" : video.getContentType();
+        String eTag = video.getETag();
+        if (fragments >= 0) {
+            eTag = eTag.substring(0, eTag.length() - 1) + "-" + layout.getName() + "\"";
+        }
+
+        // Validate request headers for caching ---------------------------------------------------
+
+        // If-None-Match header should contain "*" or ETag. If so, then return 304.
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, eTag, true)) {
+            response.setHeader("ETag", eTag); // Required in 304.
+            sendError(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // If-Modified-Since header should be greater than LastModified. If so, then return 304.
+        // This header is ignored if any If-None-Match header is specified.
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
+            response.setHeader("ETag", eTag); // Required in 304.
+            sendError(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // Validate request headers for resume ----------------------------------------------------
+
+        // If-Match header should contain "*" or ETag. If not, then return 412.
+        String ifMatch = request.getHeader("If-Match");
+        if (ifMatch != null && !HttpUtils.matches(ifMatch, eTag, false)) {
+            sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+
+        // If-Unmodified-Since header should be greater than LastModified. If not, then return 412.
+        long ifUnmodifiedSince = request.getDateHeader("If-Unmodified-Since");
+        if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
+            sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+            return;
+        }
+
+        // Validate and process range -------------------------------------------------------------
+
+        // Prepare some variables. The full Range represents the complete file.
+        Range full = new Range(0, length - 1, length);
+        List<Range> ranges = new ArrayList<>();
+
+        // Validate and process Range and If-Range headers.
+        String range = this.range != null ? this.range : request.getHeader("Range");
+        if (range != null) {
+
+            // If-Range must match the ETag or the exact modification time, else the full file is sent. It only
+            // applies to ranges requested by the client.
+            String ifRange = this.range == null ? request.getHeader("If-Range") : null;
+            boolean unchanged = ifRange == null;
+            if (ifRange != null && HttpUtils.isEntityTag(ifRange)) {
+                unchanged = ifRange.equals(eTag); // Strong comparison, a weak tag never matches.
+            } else if (ifRange != null) {
+                try {
+                    unchanged = request.getDateHeader("If-Range") == lastModified; // Throws IAE if invalid.
+                } catch (IllegalArgumentException ignore) {
+                    unchanged = false;
+                }
+            }
+
+            if (!unchanged) {
+                ranges.add(full);
+            } else {
+                // Range header should match format "bytes=n-n,n-n,n-n..." with at most maxRanges satisfiable
+                // ranges. If not, then return 416.
+                long[] bounds = new long[2 * maxRanges];
+                int count = HttpUtils.parseRanges(range, length, bounds);
+                if (count < 0) {
+                    response.setHeader("Content-Range", "bytes */" + length); // Required in 416.
+                    sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                for (int i = 0; i < count; i++) {
+                    ranges.add(new Range(bounds[2 * i], bounds[2 * i + 1], length));
+                }
+
+                // Merge ranges that overlap or lie closer together than a part header would cost (RFC 7233 4.1).
+                if (ranges.size() > 1) {
+                    ranges = Range.coalesce(ranges, Range.partHeader(Range.partHeaderPrefix(contentType), full).length);
+                }
+            }
+        }
+
+        // Wait for capacity to send the body, small ranges are let in first. If there is none, then return 503.
+        if (admission != null) {
+            boolean partial = !ranges.isEmpty() && ranges.get(0) != full;
+            long bytes = partial ? ranges.stream().mapToLong(r -> r.length).sum() : length;
+            permit = admission.await(admission.classify(partial, bytes));
+            if (!permit.isAdmitted()) {
+                response.setHeader("Retry-After", String.valueOf(admission.getRetryAfter()));
+                sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+
+        // Prepare and initialize response --------------------------------------------------------
+
+        // Content type is known by the catalog entry, determine content disposition. If content type is supported
+        // by the browser, then set to inline, else attachment which will pop a 'save as' dialogue.
+        String accept = request.getHeader("Accept");
+        boolean inline = accept != null && HttpUtils.accepts(accept, contentType);
+        // Initialize response.
+        response.reset();
+        response.setBufferSize(DEFAULT_BUFFER_SIZE);
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Disposition", video.getContentDisposition(inline));
+        if (sampled) {
+            logger.debug("Content-Type : {}, Content-Disposition : {}", contentType, inline ? "inline" : "attachment");
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        response.setDateHeader("Expires", System.currentTimeMillis() + DEFAULT_EXPIRE_TIME);
+        headers.forEach(response::setHeader);
+        serverTiming();
+
+        // Send requested file (part(s)) to client ------------------------------------------------
+
+        // The body is measured until it has been written, async writers take it over.
+        metered = metrics != null ? metrics.open(video.getId(), received) : null;
+        try {
+            if (ranges.isEmpty() || ranges.get(0) == full) {
+
+                // Return full file.
+                if (sampled) {
+                    logger.debug("Return full file");
+                }
+                count(HttpServletResponse.SC_OK);
+                response.setContentType(contentType);
+                response.setHeader("Content-Range", fragments < 0 ? video.getFullContentRange() : "bytes 0-" + (length - 1) + "/" + length);
+                response.setHeader("Content-Length", fragments < 0 ? video.getContentLength() : String.valueOf(length));
+                send(full, false);
+
+            } else if (ranges.size() == 1) {
+
+                // Return single part of file.
+                Range r = ranges.get(0);
+                if (sampled) {
+                    logger.debug("Return 1 part of file : from ({}) to ({})", r.start, r.end);
+                }
+                count(HttpServletResponse.SC_PARTIAL_CONTENT);
+                record(r);
+                response.setContentType(contentType);
+                response.setHeader("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
+                response.setHeader("Content-Length", String.valueOf(r.length));
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+
+                // Copy single part range. Long ranges bypass the cache, so they can go out with sendfile.
+                send(r, cache != null && cache.caches(r.length));
+
+            } else {
+
+                // Return multiple parts of file.
+                response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+                count(HttpServletResponse.SC_PARTIAL_CONTENT);
+
+                // Encode all part headers up front, that way the length of the whole body is known as well.
+                byte[] partHeaderPrefix = Range.partHeaderPrefix(contentType);
+                byte[][] partHeaders = new byte[ranges.size()][];
+                long contentLength = MULTIPART_END.length;
+                for (int i = 0; i < ranges.size(); i++) {
+                    partHeaders[i] = Range.partHeader(partHeaderPrefix, ranges.get(i));
+                    record(ranges.get(i));
+                    contentLength += partHeaders[i].length + ranges.get(i).length;
+                }
+                response.setHeader("Content-Length", String.valueOf(contentLength));
+
+                if (async != null) {
+                    stream(ranges, partHeaders, cache != null, null);
+                    return;
+                }
+
+                // Prepare streams. The file itself is only needed if the parts aren't served from the cache.
+                try (BufferPool.Lease lease = BufferPool.lease(buffers, DEFAULT_BUFFER_SIZE);
+                     BandwidthShaper.Stream shaped = shape();
+                     FileChannel channel = cache == null ? open() : null;
+                     OutputStream output = output(shaped)) {
+
+                    ByteBuffer buffer = lease.buffer();
+
+                    // Copy multi part range. Every part is read by its absolute position in the file.
+                    for (int i = 0; i < ranges.size(); i++) {
+                        Range r = ranges.get(i);
+                        if (sampled) {
+                            logger.debug("Return multi part of file : from ({}) to ({})", r.start, r.end);
+                        }
+
+                        if (cache != null) {
+                            output.write(partHeaders[i]);
+                            Range.copy(cache, version, output, buffer, shaped, null, r.start, r.length);
+                        } else if (zeroCopy) {
+                            output.write(partHeaders[i]);
+                            Range.transfer(channel, Channels.newChannel(output), shaped, null, r.start, r.length, DEFAULT_BUFFER_SIZE);
+                        } else {
+                            Range.copy(channel, output, buffer, shaped, null, partHeaders[i], r.start, r.length);
+                        }
+                    }
+
+                    // End with multipart boundary.
+                    output.write(MULTIPART_END);
+                }
+            }
+        } catch (IOException e) {
+            // Mostly clients going away in the middle of the stream.
+            if (metered != null) {
+                metered.abort();
+            }
+            throw e;
+        } finally {
+            if (metered != null) {
+                metered.close();
+            }
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Follows the growing file of the tail. Without a range, the body has no length and the connector sends it in
+     * chunks as the file grows until the tail ends. An open-ended range gets the bytes written so far, with an unknown
+     * complete length, and the player asks for the next ones once it played them. The tail is closed once the body is
+     * done.
+     * @param video The video, its metadata is as of before the file grew further.
+     * @return False if the request has a range that can't follow the file, which is served as it is then.
+     * @throws IOException If reading the file or writing the response fails.
+     */
+    private boolean serveGrowing(VideoEntry video) throws IOException {
+        String range = this.range != null ? this.range : request.getHeader("Range");
+        long start = GrowingFiles.start(range);
+        if (start < 0) {
+            return false;
+        }
+        // A range starting past the end may be written soon.
+        if (start >= tail.getSize()) {
+            if (async != null && request.getAttribute(GROWN_ATTR) == null) {
+                // Wait off the container thread and run the request again once the file grew or ended.
+                AsyncContext context = request.startAsync(request, response);
+                context.setTimeout(async.getTimeout());
+                request.setAttribute(GROWN_ATTR, Boolean.TRUE);
+                GrowingFiles.Tail waiting = tail;
+                tail = null; // Stays joined while waiting, or the tail wouldn't wake it.
+                waiting.await(start, () -> {
+                    waiting.close();
+                    context.dispatch();
+                });
+                return true;
+            }
+            if (async == null) {
+                tail.await(start, growing.getSettings().getEndTimeout());
+            }
+            if (start >= tail.getSize()) {
+                response.setHeader("Content-Range", "bytes */" + tail.getSize()); // Required in 416.
+                sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return true;
+            }
+        }
+
+        if (admission != null) {
+            permit = admission.await(AdmissionControl.Priority.PLAYBACK);
+            if (!permit.isAdmitted()) {
+                response.setHeader("Retry-After", String.valueOf(admission.getRetryAfter()));
+                sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return true;
+            }
+        }
+
+        // No ETag, Last-Modified or length: the representation changes until the file ends.
+        String contentType = video.getContentType();
+        String accept = request.getHeader("Accept");
+        boolean inline = accept != null && HttpUtils.accepts(accept, contentType);
+        response.reset();
+        response.setBufferSize(DEFAULT_BUFFER_SIZE);
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Content-Disposition", video.getContentDisposition(inline));
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Cache-Control", "no-cache");
+        headers.forEach(response::setHeader);
+        serverTiming();
+
+        metered = metrics != null ? metrics.open(video.getId(), received) : null;
+        try {
+            // A 206 body has to be exactly its range, so only a body without one follows the file.
+            long end = Long.MAX_VALUE - 1;
+            if (range == null) {
+                count(HttpServletResponse.SC_OK);
+            } else {
+                end = tail.getSize() - 1;
+                count(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/*");
+                response.setHeader("Content-Length", String.valueOf(end - start + 1));
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT); // 206.
+            }
+            if (sampled) {
+                logger.debug("Follow growing file : from ({}), {} bytes so far", start, tail.getSize());
+            }
+            response.setContentType(contentType);
+
+            if (async != null) {
+                stream(Collections.singletonList(new Range(start, end, Long.MAX_VALUE)), null, false, null);
+                return true;
+            }
+            follow(start, end);
+            return true;
+        } catch (IOException e) {
+            if (metered != null) {
+                metered.abort();
+            }
+            throw e;
+        } finally {
+            if (metered != null) {
+                metered.close();
+            }
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the growing file of the tail from the given position until the tail ends or the end is written, blocking
+     * while waiting for more bytes.
+     * @param end Last position to write.
+     */
+    private void follow(long start, long end) throws IOException {
+        long timeout = growing.getSettings().getEndTimeout();
+        try (BufferPool.Lease lease = BufferPool.lease(buffers, DEFAULT_BUFFER_SIZE);
+             BandwidthShaper.Stream shaped = shape();
+             OutputStream output = output(shaped)) {
+            ByteBuffer buffer = lease.buffer();
+            long position = start;
+            while (position <= end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position + 1));
+                int read = tail.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                if (read == 0) {
+                    // At the end so far: send what is written and wait until the file grew or ended.
+                    output.flush();
+                    if (watched != null) {
+                        watched.pause();
+                    }
+                    try {
+                        tail.await(position, timeout);
+                    } finally {
+                        if (watched != null) {
+                            watched.resume();
+                        }
+                    }
+                    continue;
+                }
+                Range.acquire(shaped, read);
+                output.write(buffer.array(), buffer.arrayOffset(), read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * Answers without a body, counting the status.
+     * @param status The status code.
+     * @throws IOException If the response is already committed.
+     */
+    private void sendError(int status) throws IOException {
+        count(status);
+        serverTiming();
+        response.sendError(status);
+    }
+
+    private void count(int status) {
+        if (metrics != null) {
+            metrics.response(status);
+        }
+    }
+
+    private void record(Range r) {
+        if (metrics != null) {
+            metrics.range(r.start, r.length, r.total);
+        }
+    }
+
+    private void serverTiming() {
+        String timing = metrics != null ? metrics.serverTiming(received) : null;
+        if (timing != null) {
+            response.setHeader("Server-Timing", timing);
+        }
+    }
+
+    /**
+     * Writes a single range as the whole response body. Cached ranges come out of the chunk cache. Otherwise, in
+     * zero-copy mode the range is handed to the connector's sendfile if possible or transferred from the file channel;
+     * falls back to the stream copy else. A body holding an admission permit is never handed to sendfile, so the
+     * permit stays taken until the range is written.
+     * @param r The range to send.
+     * @param cached True to read the range from the chunk cache.
+     * @throws IOException If reading the file or writing the response fails.
+     */
+    private void send(Range r, boolean cached) throws IOException {
+        if (!cached && zeroCopy && permit == null && (shaper == null || !shaper.isLimiting()) && sendfile(r)) {
+            if (sampled) {
+                logger.debug("Sendfile : from ({}) to ({})", r.start, r.end);
+            }
+            if (metered != null) {
+                metered.handedOver(r.length);
+            }
+            return;
+        }
+
+        ReadAhead.Session session = readAhead != null
+                ? readAhead.open(request.getRemoteAddr(), filepath, layout, cached ? cache : null, version, r.start, r.total)
+                : null;
+
+        if (async != null) {
+            stream(Collections.singletonList(r), null, cached, session);
+            return;
+        }
+
+        if (cached) {
+            try (BufferPool.Lease lease = BufferPool.lease(buffers, DEFAULT_BUFFER_SIZE);
+                 BandwidthShaper.Stream shaped = shape();
+                 OutputStream output = output(shaped)) {
+                Range.copy(cache, version, output, lease.buffer(), shaped, session, r.start, r.length);
+            }
+            return;
+        }
+
+        try (BufferPool.Lease lease = BufferPool.lease(buffers, DEFAULT_BUFFER_SIZE);
+             BandwidthShaper.Stream shaped = shape();
+             FileChannel channel = open();
+             OutputStream output = output(shaped)) {
+            if (zeroCopy) {
+                Range.transfer(channel, Channels.newChannel(output), shaped, session, r.start, r.length, DEFAULT_BUFFER_SIZE);
+            } else {
+                Range.copy(channel, output, lease.buffer(), shaped, session, Range.NO_HEADER, r.start, r.length);
+            }
+        }
+    }
+
+    /**
+     * @return A channel of the file as served, through its shared handle if enabled.
+     * @throws IOException If the file can't be opened.
+     */
+    private FileChannel open() throws IOException {
+        return handles != null ? handles.open(filepath, modified, layout) : LayoutChannel.open(filepath, layout);
+    }
+
+    /**
+     * @param shaped The shaped stream of the body, whose waits pause the watch, or null.
+     * @return The response output stream, wrapped to watch, measure and coalesce writes if enabled.
+     * @throws IOException If the output stream can't be obtained.
+     */
+    private OutputStream output(BandwidthShaper.Stream shaped) throws IOException {
+        OutputStream output = response.getOutputStream();
+        if (stalls != null) {
+            watched = watch();
+            if (shaped != null) {
+                shaped.watch(watched);
+            }
+            output = watched.wrap(output);
+        }
+        output = metered != null ? metered.wrap(output) : output;
+        return coalescing != null ? new CoalescingOutputStream(output, coalescing, buffers) : output;
+    }
+
+    /**
+     * Starts watching the progress of the response body, per client class. Once it stalls, the connection is marked
+     * to be dropped.
+     * @return The watch, or null if there is no stall detector.
+     */
+    private StallDetector.Watch watch() {
+        if (stalls == null) {
+            return null;
+        }
+        StallDetector.Watch watch = stalls.open(request.getHeader("User-Agent"));
+        watch.onStall(() -> request.setAttribute(StallDetector.STALLED_ATTR, watch.getStalled()));
+        return watch;
+    }
+
+    /**
+     * Registers the response body with the bandwidth shaper, per client address and video.
+     * @return The shaped stream, or null if there is no shaper.
+     */
+    private BandwidthShaper.Stream shape() {
+        return shaper != null ? shaper.open(request.getRemoteAddr(), filepath.getFileName().toString()) : null;
+    }
+
+    /**
+     * Hands the given ranges to an {@link AsyncRangeWriter} and returns; the body is written whenever the client can
+     * take more bytes. Of a growing file, the writer takes over the tail and reads from it instead.
+     * @param ranges The ranges to send.
+     * @param partHeaders The multipart header of every range, or null for a single range body.
+     * @param cached True to read the ranges from the chunk cache.
+     * @param session The read-ahead session of a single range, may be null.
+     * @throws IOException If the file can't be opened.
+     */
+    private void stream(List<Range> ranges, byte[][] partHeaders, boolean cached, ReadAhead.Session session) throws IOException {
+        FileChannel channel = cached || tail != null ? null : open();
+        AsyncContext context = request.startAsync(request, response);
+        StallDetector.Watch watch = watch();
+        AsyncRangeWriter writer = new AsyncRangeWriter(context, async, cached ? cache : null, version, channel, tail,
+                shape(), session, metered, watch, coalescing, buffers, DEFAULT_BUFFER_SIZE);
+        metered = null; // Closed by the writer.
+        tail = null;
+        if (permit != null) {
+            context.addListener(new Release(permit));
+            if (watch != null) {
+                watch.onStall(permit::close); // The dropped connection ends the request without listeners.
+            }
+            permit = null; // Closed when the async request ends.
+        }
+
+        for (int i = 0; i < ranges.size(); i++) {
+            Range r = ranges.get(i);
+            writer.add(partHeaders != null ? partHeaders[i] : null, r.start, r.length);
+        }
+        if (partHeaders != null) {
+            writer.add(MULTIPART_END, 0, 0);
+        }
+        writer.start();
+    }
+
+    /**
+     * Asks the connector to write the given range with sendfile once the servlet returns. The response body must not
+     * be written by the servlet itself when this succeeds.
+     * In a faststart layout only ranges that lie within one contiguous part of the file can be handed over, and of a
+     * video in tiered storage only ranges that are cached completely.
+     * @param r The range to send.
+     * @return True if the connector supports sendfile and took over the range.
+     * @throws IOException If the real path of the file can't be resolved.
+     */
+    private boolean sendfile(Range r) throws IOException {
+        long start = layout != null ? layout.toFile(r.start, r.length) : r.start;
+        if (start < 0 || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+            return false;
+        }
+        // A placeholder is only kept cached while a channel is open on it, sendfile wouldn't hold one.
+        TieredStorage storage = TieredStorage.of(filepath);
+        if (storage != null && storage.isPlaceholder(filepath)) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTR, filepath.toRealPath().toString());
+        request.setAttribute(SENDFILE_START_ATTR, start);
+        request.setAttribute(SENDFILE_END_ATTR, start + r.length); // Exclusive.
+        return true;
+    }
+
+    /**
+     * Closes the admission permit of an async request once it ends, however it ends.
+     */
+    private static class Release implements AsyncListener {
+        private final AdmissionControl.Permit permit;
+
+        Release(AdmissionControl.Permit permit) {
+            this.permit = permit;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            permit.close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    static class Range {
+        static final byte[] NO_HEADER = new byte[0];
+
+        long start;
+        long end;
+        long length;
+        long total;
+
+        /**
+         * Construct a byte range.
+         * @param start Start of the byte range.
+         * @param end End of the byte range.
+         * @param total Total length of the byte source.
+         */
+        public Range(long start, long end, long total) {
+            this.start = start;
+            this.end = end;
+            this.length = end - start + 1;
+            this.total = total;
+        }
+
+        /**
+         * Sorts the given ranges and merges those that overlap, touch or are separated by less than the given gap.
+         * The merged ranges keep the order in which their first range appeared in the request.
+         * @param ranges The requested ranges, in request order.
+         * @param gap Largest gap between two ranges that is cheaper to send than an extra part.
+         * @return The coalesced ranges.
+         */
+        static List<Range> coalesce(List<Range> ranges, long gap) {
+            List<Range> sorted = new ArrayList<>(ranges);
+            sorted.sort(Comparator.comparingLong(r -> r.start));
+
+            List<Range> merged = new ArrayList<>();
+            List<Integer> order = new ArrayList<>();
+            Range current = sorted.get(0);
+            int first = ranges.indexOf(current);
+
+            for (Range next : sorted.subList(1, sorted.size())) {
+                if (next.start <= current.end + 1 + gap) {
+                    current = new Range(current.start, Math.max(current.end, next.end), current.total);
+                    first = Math.min(first, ranges.indexOf(next));
+                } else {
+                    merged.add(current);
+                    order.add(first);
+                    current = next;
+                    first = ranges.indexOf(next);
+                }
+            }
+            merged.add(current);
+            order.add(first);
+
+            List<Range> result = new ArrayList<>(merged);
+            result.sort(Comparator.comparingInt(r -> order.get(merged.indexOf(r))));
+            return result;
+        }
+
+        /**
+         * Encodes the boundary and the header fields up to the range values, which are the same for all parts.
+         * @param contentType Content type of the file.
+         * @return The encoded start of every part header.
+         */
+        static byte[] partHeaderPrefix(String contentType) {
+            return ("\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Range: bytes ").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Encodes the boundary and header fields that precede the given range in a multipart/byteranges body, writing
+         * the digits of the range values straight into the result.
+         * @param prefix The start of the part header, see {@link #partHeaderPrefix(String)}.
+         * @param r The range of the part.
+         * @return The encoded part header, including the empty line that ends it.
+         */
+        static byte[] partHeader(byte[] prefix, Range r) {
+            byte[] header = new byte[prefix.length + digits(r.start) + digits(r.end) + digits(r.total) + 6];
+            System.arraycopy(prefix, 0, header, 0, prefix.length);
+            int position = putDigits(header, prefix.length, r.start);
+            header[position++] = '-';
+            position = putDigits(header, position, r.end);
+            header[position++] = '/';
+            position = putDigits(header, position, r.total);
+            header[position++] = '\r';
+            header[position++] = '\n';
+            header[position++] = '\r';
+            header[position] = '\n';
+            return header;
+        }
+
+        private static int digits(long value) {
+            int digits = 1;
+            while (value >= 10) {
+                value /= 10;
+                digits++;
+            }
+            return digits;
+        }
+
+        /**
+         * Writes the decimal digits of a non-negative value at the given position.
+         * @return Position after the last digit.
+         */
+        private static int putDigits(byte[] bytes, int position, long value) {
+            int end = position + digits(value);
+            for (int i = end - 1; i >= position; i--) {
+                bytes[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            return end;
+        }
+
+        /**
+         * Copies a range with positional reads, so the channel position and earlier parts don't matter. The header is
+         * written together with the first bytes of the range in a single write.
+         */
+        static void copy(FileChannel input, OutputStream output, ByteBuffer buffer, BandwidthShaper.Stream shaped, ReadAhead.Session readAhead, byte[] header, long start, long length) throws IOException {
+            long position = start;
+            long end = start + length;
+
+            buffer.clear();
+            if (header.length > buffer.capacity()) {
+                output.write(header);
+            } else {
+                buffer.put(header);
+            }
+
+            while (position < end || buffer.position() > 0) {
+                if (position < end) {
+                    buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + (end - position)));
+                    int read = input.read(buffer, position);
+                    if (read < 0) {
+                        end = position; // File got shorter in the meantime.
+                    } else {
+                        position += read;
+                    }
+                }
+                buffer.flip();
+
+                if (buffer.hasRemaining()) {
+                    acquire(shaped, buffer.remaining());
+                    output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    advance(readAhead, position);
+                }
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Copies a range out of the aligned chunks of the chunk cache, loading missing chunks from the file.
+         */
+        private static void copy(ChunkCache cache, ChunkCache.FileVersion version, OutputStream output, ByteBuffer buffer, BandwidthShaper.Stream shaped, ReadAhead.Session readAhead, long start, long length) throws IOException {
+            long position = start;
+            long end = start + length;
+
+            while (position < end) {
+                ByteBuffer chunk = cache.read(version, position);
+                int n = (int) Math.min(chunk.remaining(), Math.min(buffer.capacity(), end - position));
+                chunk.get(buffer.array(), buffer.arrayOffset(), n);
+
+                acquire(shaped, n);
+                position += n;
+                output.write(buffer.array(), buffer.arrayOffset(), n);
+                advance(readAhead, position);
+            }
+        }
+
+        /**
+         * Transfers a range from the channel in steps of the given size, so the shaper and read-ahead see its progress.
+         */
+        static void transfer(FileChannel input, WritableByteChannel output, BandwidthShaper.Stream shaped, ReadAhead.Session readAhead, long start, long length, int step) throws IOException {
+            long position = start;
+            long end = start + length;
+
+            while (position < end) {
+                long count = Math.min(step, end - position);
+
+                acquire(shaped, count);
+                long transferred = input.transferTo(position, count, output);
+                if (transferred <= 0) {
+                    break; // File got shorter in the meantime.
+                }
+                position += transferred;
+                advance(readAhead, position);
+            }
+        }
+
+        private static void acquire(BandwidthShaper.Stream shaped, long count) {
+            if (shaped != null) {
+                shaped.acquire(count);
+            }
+        }
+
+        private static void advance(ReadAhead.Session readAhead, long position) {
+            if (readAhead != null) {
+                readAhead.advance(position);
+            }
+        }
+    }
+    /**
+     * Single pass header parsing that works on the header strings in place, without regular expressions, splitting or
+     * substrings.
+     */
+    static class HttpUtils {
+
+        /**
+         * Parses a Range header of the form "bytes=n-n,n-,-n,...".
+         * @param rangeHeader The range header.
+         * @param length Length of the file.
+         * @param bounds Receives the inclusive start and end of every range in turn; its size limits the number of
+         *               ranges.
+         * @return The number of ranges, or -1 if the header is malformed, any range is unsatisfiable or there are more
+         * ranges than fit into bounds.
+         */
+        public static int parseRanges(String rangeHeader, long length, long[] bounds) {
+            return parseRanges(rangeHeader, length, bounds, false);
+        }
+
+        /**
+         * Parses a Range header like {@link #parseRanges(String, long, long[])}.
+         * @param openEnd True to receive -1 as the end of an open-ended range "n-" instead of the end of the file, for
+         *                files that still grow.
+         */
+        public static int parseRanges(String rangeHeader, long length, long[] bounds, boolean openEnd) {
+            if (!rangeHeader.startsWith("bytes=")) {
+                return -1;
+            }
+            int count = 0;
+            int i = 6;
+            int n = rangeHeader.length();
+
+            while (true) {
+                // Assuming a file with length of 100, the following examples returns bytes at:
+                // 50-80 (50 to 80), 40- (40 to length=100), -20 (length-20=80 to length=100).
+                int begin = i;
+                long first = 0;
+                for (char c; i < n && (c = rangeHeader.charAt(i)) >= '0' && c <= '9'; i++) {
+                    first = digit(first, c);
+                }
+                boolean hasFirst = i > begin;
+                if (i == n || rangeHeader.charAt(i) != '-') {
+                    return -1;
+                }
+                begin = ++i;
+                long last = 0;
+                for (char c; i < n && (c = rangeHeader.charAt(i)) >= '0' && c <= '9'; i++) {
+                    last = digit(last, c);
+                }
+                boolean hasLast = i > begin;
+
+                long start;
+                long end;
+                if (!hasFirst) {
+                    if (!hasLast) {
+                        return -1;
+                    }
+                    start = Math.max(0, length - last);
+                    end = length - 1;
+                } else if (!hasLast && openEnd) {
+                    start = first;
+                    end = -1;
+                } else {
+                    start = first;
+                    end = hasLast && last < length - 1 ? last : length - 1;
+                }
+
+                if ((start > end && end >= 0) || 2 * count == bounds.length) {
+                    return -1;
+                }
+                bounds[2 * count] = start;
+                bounds[2 * count + 1] = end;
+                count++;
+
+                if (i == n) {
+                    return count;
+                }
+                if (rangeHeader.charAt(i++) != ',') {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * Appends a decimal digit, saturating instead of overflowing.
+         */
+        private static long digit(long value, char c) {
+            return value > (Long.MAX_VALUE - 9) / 10 ? Long.MAX_VALUE : value * 10 + (c - '0');
+        }
+
+        /**
+         * @param value A header value.
+         * @return True if the value is an entity tag instead of a date.
+         */
+        public static boolean isEntityTag(String value) {
+            return value.startsWith("\"") || value.startsWith("W/");
+        }
+
+        /**
+         * Returns true if the given accept header accepts the given value.
+         * @param acceptHeader The accept header.
+         * @param toAccept The value to be accepted.
+         * @return True if the given accept header accepts the given value.
+         */
+        public static boolean accepts(String acceptHeader, String toAccept) {
+            int slash = toAccept.indexOf('/');
+            int n = acceptHeader.length();
+            int i = 0;
+            while (i < n) {
+                // One media range, up to its parameters or the next one.
+                int end = i;
+                while (end < n && acceptHeader.charAt(end) != ',' && acceptHeader.charAt(end) != ';') {
+                    end++;
+                }
+                int start = skipSpace(acceptHeader, i, end);
+                int length = trimmedLength(acceptHeader, start, end);
+
+                if (length == 3 && acceptHeader.startsWith("*/*", start)
+                        || length == toAccept.length() && acceptHeader.regionMatches(true, start, toAccept, 0, length)
+                        || length == slash + 2 && acceptHeader.regionMatches(true, start, toAccept, 0, slash + 1)
+                                && acceptHeader.charAt(start + slash + 1) == '*') {
+                    return true;
+                }
+
+                // Skip the parameters.
+                i = end;
+                while (i < n && acceptHeader.charAt(i) != ',') {
+                    i++;
+                }
+                i++;
+            }
+            return false;
+        }
+
+        /**
+         * Returns true if the given match header matches the given value.
+         * @param matchHeader The match header.
+         * @param toMatch The value to be matched.
+         * @param weak True to compare weakly (If-None-Match), i.e. ignore a "W/" prefix of the listed tags.
+         * @return True if the given match header matches the given value.
+         */
+        public static boolean matches(String matchHeader, String toMatch, boolean weak) {
+            int n = matchHeader.length();
+            int i = 0;
+            while (i < n) {
+                int end = matchHeader.indexOf(',', i);
+                end = end < 0 ? n : end;
+                int start = skipSpace(matchHeader, i, end);
+                int length = trimmedLength(matchHeader, start, end);
+
+                if (weak && matchHeader.startsWith("W/", start)) {
+                    start += 2;
+                    length -= 2;
+                }
+                if (length == 1 && matchHeader.charAt(start) == '*'
+                        || length == toMatch.length() && matchHeader.startsWith(toMatch, start)) {
+                    return true;
+                }
+                i = end + 1;
+            }
+            return false;
+        }
+
+        private static int skipSpace(String value, int start, int end) {
+            while (start < end && value.charAt(start) == ' ') {
+                start++;
+            }
+            return start;
+        }
+
+        private static int trimmedLength(String value, int start, int end) {
+            while (end > start && value.charAt(end - 1) == ' ') {
+                end--;
+            }
+            return end - start;
+        }
+    }
 }
\ No newline at end of file
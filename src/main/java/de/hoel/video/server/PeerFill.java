@@ -0,0 +1,453 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Spreads the chunk cache over a cluster of nodes. Every chunk of a catalog video has an owner, found by consistent
+ * hashing of the video id and chunk index onto a ring of the members: only the owner keeps the chunk in its
+ * {@link ChunkCache}, the other nodes fetch it from the owner and keep it for replica-ttl only. The cache capacity of
+ * the cluster grows with its nodes instead of every node caching the same hot set, and adding or removing a member
+ * only moves the chunks of its share of the ring.
+ * <p>
+ * A chunk is fetched with a plain range request for the video, {@code GET /videos/{id}} with {@code Range} and
+ * {@code If-Match}; the {@link #PEER_HEADER} makes the owner serve the file as it is stored, from its own cache only.
+ * The owner has to answer with the ETag of this node's version of the file, so nodes that see a change at different
+ * times read the file themselves until they agree again. Fetches are signed with the secret shared by the members,
+ * see {@link #SIGNATURE_HEADER}, and only signed ones are sent at full speed: the member URLs aren't secret, so the
+ * header alone would let any client bypass the bandwidth limits.
+ * <p>
+ * Fetches run on a pool of their own. A read waits for one at most timeout, then reads the chunk from the file, and
+ * the fetch still fills the replica for the next reads. A peer that fails is skipped for down-time, its chunks go to
+ * the next member on the ring or are read locally.
+ */
+@Component
+public class PeerFill {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Request header of a fetch by another member, holding its base URL.
+     */
+    static final String PEER_HEADER = "X-Peer-Fill";
+
+    /**
+     * Request header of a fetch by another member, holding the HMAC of the fetch with the secret of the cluster.
+     */
+    static final String SIGNATURE_HEADER = "X-Peer-Signature";
+
+    private final StreamingProperties.Cluster settings;
+    private final VideoCatalog catalog;
+    private final String self;
+    private final Cache<String, ByteBuffer> replicas;
+    private final ConcurrentMap<String, CompletableFuture<ByteBuffer>> fetches = new ConcurrentHashMap<>();
+    private final ExecutorService fetcher;
+    private final ConcurrentMap<String, Long> down = new ConcurrentHashMap<>();
+    private final AtomicLong replicaSize = new AtomicLong();
+    private final AtomicLong owned = new AtomicLong();
+    private final AtomicLong replicaHits = new AtomicLong();
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong servedBytes = new AtomicLong();
+
+    private volatile List<String> members = Collections.emptyList();
+    private volatile NavigableMap<Long, String> ring = Collections.emptyNavigableMap();
+
+    public PeerFill(StreamingProperties properties, VideoCatalog catalog, ServerProperties server, MeterRegistry registry) {
+        this.settings = properties.getCluster();
+        this.catalog = catalog;
+        String configured = settings.getSelf();
+        this.self = normalize(configured != null && !configured.isEmpty() ? configured
+                : "http://localhost:" + (server.getPort() != null ? server.getPort() : 8080));
+        this.replicas = CacheBuilder.newBuilder()
+                .maximumWeight(settings.getReplicaSize())
+                .weigher((String key, ByteBuffer chunk) -> chunk.capacity())
+                .expireAfterWrite(settings.getReplicaTtl(), TimeUnit.MILLISECONDS)
+                .removalListener(notification -> replicaSize.addAndGet(-notification.getValue().capacity()))
+                .build();
+        this.fetcher = Executors.newFixedThreadPool(settings.getFetchThreads(),
+                new ThreadFactoryBuilder().setNameFormat("peer-fill-%d").setDaemon(true).build());
+        setMembers(settings.getPeers());
+
+        registry.gauge("video.cluster.members", this, fill -> fill.getMembers().size());
+        registry.gauge("video.cluster.replicas", replicaSize);
+        FunctionCounter.builder("video.cluster.chunks", owned, AtomicLong::get)
+                .tags("result", "owned").register(registry);
+        FunctionCounter.builder("video.cluster.chunks", replicaHits, AtomicLong::get)
+                .tags("result", "replica").register(registry);
+        FunctionCounter.builder("video.cluster.chunks", fetched, AtomicLong::get)
+                .tags("result", "fetched").register(registry);
+        FunctionCounter.builder("video.cluster.chunks", failed, AtomicLong::get)
+                .tags("result", "failed").register(registry);
+        FunctionCounter.builder("video.cluster.served", servedBytes, AtomicLong::get)
+                .baseUnit("bytes").register(registry);
+    }
+
+    /**
+     * Sets the members of the cluster. They are only taken from the configuration: every node needs the same list to
+     * agree on the owners, and the members are the only hosts this node sends requests to.
+     * @param peers Base URLs of the nodes, this node included; without it, this node owns no chunks.
+     */
+    private void setMembers(List<String> peers) {
+        List<String> normalized = new ArrayList<>();
+        NavigableMap<Long, String> points = new TreeMap<>();
+        for (String peer : peers) {
+            String member = normalize(peer);
+            if (member.isEmpty() || normalized.contains(member)) {
+                continue;
+            }
+            normalized.add(member);
+            for (int i = 0; i < settings.getVirtualNodes(); i++) {
+                points.put(hash(member + "#" + i), member);
+            }
+        }
+        members = Collections.unmodifiableList(normalized);
+        ring = points;
+        down.keySet().retainAll(normalized);
+        logger.info("Cluster members : {}, this node is {}", normalized, self);
+    }
+
+    /**
+     * @param id Id of a catalog video.
+     * @param index Index of a chunk of it.
+     * @return Base URL of the member owning the chunk, skipping the members that are down, or this node's own if there
+     * are no others.
+     */
+    public String owner(String id, long index) {
+        NavigableMap<Long, String> points = ring;
+        if (points.isEmpty()) {
+            return self;
+        }
+        long now = System.nanoTime();
+        long hash = hash(id + "/" + index);
+        for (Map<Long, String> part : Arrays.asList(points.tailMap(hash, true), points.headMap(hash, false))) {
+            for (String member : part.values()) {
+                Long until = down.get(member);
+                if (until == null || now - until >= 0 || member.equals(self)) {
+                    return member;
+                }
+            }
+        }
+        return self;
+    }
+
+    /**
+     * Returns a chunk of a file owned by another member, fetched from it or from the replicas fetched before.
+     * Concurrent reads of a chunk share one fetch.
+     * @param path The file.
+     * @param size Size of the version of the file to read.
+     * @param lastModified Modification time in milliseconds of that version.
+     * @param index Index of the chunk.
+     * @param start Position of the chunk in the file.
+     * @param length Length of the chunk.
+     * @return The whole chunk, or null if this node owns it, the file isn't a catalog video of that version, or the
+     * owner failed or didn't answer within timeout; the chunk is then read from the file.
+     */
+    ByteBuffer read(Path path, long size, long lastModified, long index, long start, int length) {
+        VideoEntry video = catalog.get(path.toAbsolutePath().normalize());
+        if (video == null || video.getSize() != size || video.getLastModifiedTime().toMillis() != lastModified) {
+            return null;
+        }
+        String owner = owner(video.getId(), index);
+        if (owner.equals(self)) {
+            owned.incrementAndGet();
+            return null;
+        }
+
+        String key = video.getId() + "/" + size + "/" + lastModified + "/" + index;
+        ByteBuffer replica = replicas.getIfPresent(key);
+        if (replica != null) {
+            replicaHits.incrementAndGet();
+            return replica;
+        }
+        boolean[] started = new boolean[1];
+        CompletableFuture<ByteBuffer> fetch = fetches.computeIfAbsent(key, k -> {
+            started[0] = true;
+            return fetch(k, owner, video, index, start, length);
+        });
+        if (started[0]) {
+            fetch.whenComplete((chunk, failure) -> fetches.remove(key, fetch));
+        } else {
+            replicaHits.incrementAndGet();
+        }
+
+        try {
+            return fetch.get(settings.getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            logger.debug("Peer {} didn't send chunk {} of {} within {} ms, reading it locally", owner, index,
+                    video.getId(), settings.getTimeout());
+            return null;
+        } catch (ExecutionException e) {
+            return null; // Counted and logged by the fetch.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Fetches a chunk from its owner on the fetch pool and keeps it as a replica.
+     * @return Completes with the chunk, or fails if the owner didn't serve it.
+     */
+    private CompletableFuture<ByteBuffer> fetch(String key, String owner, VideoEntry video, long index, long start,
+                                                int length) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        try {
+            fetcher.execute(() -> {
+                try {
+                    ByteBuffer chunk = request(owner, video, start, length);
+                    replicas.put(key, chunk);
+                    result.complete(chunk);
+                } catch (NotServed e) {
+                    failed.incrementAndGet();
+                    logger.debug("Peer {} didn't serve chunk {} of {} : {}", owner, index, video.getId(), e.getMessage());
+                    result.completeExceptionally(e);
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    down.put(owner, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getDownTime()));
+                    logger.warn("Peer {} failed, reading its chunks locally for {} ms : {}", owner,
+                            settings.getDownTime(), e.toString());
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e); // Shutting down.
+        }
+        return result;
+    }
+
+    /**
+     * Requests a chunk from its owner as a range of the video, as stored and of the given version.
+     * @throws NotServed If the owner doesn't have that version or doesn't serve the range.
+     * @throws IOException If the owner failed.
+     */
+    private ByteBuffer request(String owner, VideoEntry video, long start, int length) throws IOException {
+        long end = start + length - 1;
+        HttpURLConnection connection = (HttpURLConnection) new URL(owner + "/videos/" + encode(video.getId())).openConnection();
+        connection.setConnectTimeout((int) settings.getTimeout());
+        connection.setReadTimeout((int) settings.getTimeout());
+        String range = "bytes=" + start + "-" + end;
+        connection.setRequestProperty(PEER_HEADER, self);
+        connection.setRequestProperty("Range", range);
+        connection.setRequestProperty("If-Match", video.getETag());
+        if (!settings.getSecret().isEmpty()) {
+            connection.setRequestProperty(SIGNATURE_HEADER, sign(self, video.getId(), range, video.getETag()));
+        }
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_PARTIAL) {
+            connection.disconnect();
+            if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_UNAVAILABLE
+                    || (status >= 400 && status < 500)) {
+                throw new NotServed("Status " + status);
+            }
+            throw new IOException("Fetching " + video.getId() + " at " + start + " from " + owner + " failed with status " + status);
+        }
+        String eTag = connection.getHeaderField("ETag");
+        String contentRange = connection.getHeaderField("Content-Range");
+        if (!video.getETag().equals(eTag) || !("bytes " + start + "-" + end + "/" + video.getSize()).equals(contentRange)) {
+            connection.disconnect();
+            throw new NotServed("Other version " + eTag + ", " + contentRange);
+        }
+
+        ByteBuffer chunk = ByteBuffer.allocateDirect(length);
+        byte[] buffer = new byte[Math.min(65536, length)];
+        try (InputStream input = connection.getInputStream()) {
+            int read;
+            while (chunk.hasRemaining() && (read = input.read(buffer, 0, Math.min(buffer.length, chunk.remaining()))) >= 0) {
+                chunk.put(buffer, 0, read);
+            }
+        }
+        if (chunk.hasRemaining()) {
+            throw new IOException("Range of " + video.getId() + " at " + start + " from " + owner + " ended after "
+                    + chunk.position() + " bytes");
+        }
+        chunk.flip();
+        fetched.incrementAndGet();
+        fetchedBytes.addAndGet(length);
+        replicaSize.addAndGet(length);
+        return chunk;
+    }
+
+    /**
+     * Checks that a fetch comes from a member, by its signature with the secret of the cluster.
+     * @param member Base URL of the member, from the {@link #PEER_HEADER}.
+     * @param signature The {@link #SIGNATURE_HEADER}.
+     * @param id Id of the video requested.
+     * @param range Range header of the request.
+     * @param ifMatch If-Match header of the request.
+     * @return True if the member is one of this cluster and signed the request; false without a secret.
+     */
+    boolean verify(String member, String signature, String id, String range, String ifMatch) {
+        if (settings.getSecret().isEmpty() || member == null || signature == null || !members.contains(member)) {
+            return false;
+        }
+        return MessageDigest.isEqual(sign(member, id, range, ifMatch).getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String sign(String member, String id, String range, String ifMatch) {
+        return Hashing.hmacSha256(settings.getSecret().getBytes(StandardCharsets.UTF_8))
+                .hashString(member + "\n" + id + "\n" + range + "\n" + ifMatch, StandardCharsets.UTF_8)
+                .toString();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fetcher.shutdownNow();
+    }
+
+    /**
+     * Counts a chunk sent to a peer.
+     * @param bytes Length of the chunk.
+     */
+    void served(long bytes) {
+        served.incrementAndGet();
+        servedBytes.addAndGet(bytes);
+    }
+
+    private static long hash(String value) {
+        return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+
+    private static String normalize(String url) {
+        String trimmed = url.trim();
+        return trimmed.endsWith("/") ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20"); // A path segment.
+    }
+
+    public StreamingProperties.Cluster getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Base URL of this node as listed among the members.
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * @return The members skipped after a failure.
+     */
+    public List<String> getDown() {
+        long now = System.nanoTime();
+        List<String> result = new ArrayList<>();
+        down.forEach((member, until) -> {
+            if (now - until < 0) {
+                result.add(member);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return Reads of chunks this node owns that weren't in its cache yet.
+     */
+    public long getOwned() {
+        return owned.get();
+    }
+
+    /**
+     * @return Reads of chunks of other members served by a replica fetched before.
+     */
+    public long getReplicaHits() {
+        return replicaHits.get();
+    }
+
+    /**
+     * @return Chunks fetched from other members.
+     */
+    public long getFetched() {
+        return fetched.get();
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    /**
+     * @return Chunks the owner didn't serve, read from the file instead.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return Chunks sent to other members.
+     */
+    public long getServed() {
+        return served.get();
+    }
+
+    public long getServedBytes() {
+        return servedBytes.get();
+    }
+
+    /**
+     * @return Bytes held by the replicas of other members' chunks.
+     */
+    public long getReplicaSize() {
+        return replicaSize.get();
+    }
+
+    /**
+     * The owner doesn't have the chunk: it doesn't know the video or has another version of it. Not a failure of the
+     * owner.
+     */
+    private static final class NotServed extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotServed(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,751 @@
+package de.hoel.video.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.AbstractServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+
+import de.hoel.video.server.MultipartFileSender.HttpUtils;
+import de.hoel.video.server.MultipartFileSender.Range;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.SynchronousSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.ipc.netty.NettyOutbound;
+
+/**
+ * Reactive counterpart of {@link MultipartFileSender} for the WebFlux stack on Netty. Validates the same caching and
+ * resume headers and parses ranges with the same rules, so both stacks answer a request alike.
+ * <p>
+ * In zero-copy mode, a full file or single range that maps onto the file is written as a Netty
+ * {@code DefaultFileRegion}, i.e. with sendfile. The write completes once the channel has taken the region, so a slow
+ * client holds no thread while it drains. Everything else, multipart bodies and bytes generated by a layout, is read
+ * in buffers on demand: the next buffer is read when the connection asks for it, off the event loop. A growing file
+ * is followed the same way, demand at its end waits for the file to grow without holding a thread. Validation reads
+ * file metadata and MP4 indexes, which may parse the movie box on first use, so it runs off the event loop as well.
+ */
+public class ReactiveFileSender {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536; // ..bytes = 64KB.
+
+    Path filepath;
+    VideoEntry entry;
+    ETagIndex etags;
+    Mp4Index mp4Index;
+    FileLayout layout;
+    long modified;
+    FileHandleCache handles;
+    GrowingFiles growing;
+    int fragments = -1;
+    int maxRanges = MultipartFileSender.DEFAULT_MAX_RANGES;
+    String range;
+    Map<String, String> headers = new LinkedHashMap<>();
+    ServerHttpRequest request;
+    ServerHttpResponse response;
+    boolean zeroCopy;
+    StreamMetrics metrics;
+    StreamMetrics.Stream metered;
+    AdmissionControl admission;
+    StallDetector stalls;
+    long received;
+    boolean sampled;
+
+    public static ReactiveFileSender fromPath(Path path) {
+        ReactiveFileSender sender = new ReactiveFileSender();
+        sender.filepath = path;
+        return sender;
+    }
+
+    /**
+     * Serve a video of the catalog. Its cached metadata is used as is, the file is only opened to read the bytes.
+     * @param video The catalog entry of the video.
+     * @return A new sender.
+     */
+    public static ReactiveFileSender fromEntry(VideoEntry video) {
+        ReactiveFileSender sender = fromPath(video.getPath());
+        sender.entry = video;
+        return sender;
+    }
+
+    public ReactiveFileSender with(ServerHttpRequest httpRequest) {
+        request = httpRequest;
+        return this;
+    }
+
+    public ReactiveFileSender with(ServerHttpResponse httpResponse) {
+        response = httpResponse;
+        return this;
+    }
+
+    /**
+     * Write full files and single ranges with sendfile where the server supports it.
+     * @param enabled True to enable zero-copy delivery.
+     * @return This sender.
+     */
+    public ReactiveFileSender withZeroCopy(boolean enabled) {
+        zeroCopy = enabled;
+        return this;
+    }
+
+    /**
+     * Record metrics of the response and send a Server-Timing header, see {@link StreamMetrics}.
+     * @param streamMetrics The metrics to record, or null to record none and log every request at debug level.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(StreamMetrics streamMetrics) {
+        metrics = streamMetrics;
+        return this;
+    }
+
+    /**
+     * Write the response body only once the given admission control lets it in, and answer 503 if it doesn't in time.
+     * Waiting holds no thread.
+     * @param admissionControl The admission control, or null to admit every request.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(AdmissionControl admissionControl) {
+        admission = admissionControl;
+        return this;
+    }
+
+    /**
+     * Abort bodies whose client stops reading, see {@link StallDetector}. Bodies written with sendfile aren't watched.
+     * @param stallDetector The detector to watch the bodies, or null to wait for the connection to time out.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(StallDetector stallDetector) {
+        stalls = stallDetector;
+        return this;
+    }
+
+    /**
+     * Read the file through a shared handle instead of opening it for every request, see {@link FileHandleCache}.
+     * @param handleCache The shared handles, or null to open the file per request.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(FileHandleCache handleCache) {
+        handles = handleCache;
+        return this;
+    }
+
+    /**
+     * Follow files that are still being written as they grow, see {@link GrowingFiles}. Requests without a range or
+     * with a single open-ended one get a body without length, written as the file grows until it ends.
+     * @param growingFiles The tails of the growing files, or null to serve every file as it is.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(GrowingFiles growingFiles) {
+        growing = growingFiles;
+        return this;
+    }
+
+    /**
+     * Compute strong ETags from the file contents for videos that aren't in the catalog.
+     * @param etagIndex The index to use, or null to use the weak metadata tag.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(ETagIndex etagIndex) {
+        etags = etagIndex;
+        return this;
+    }
+
+    /**
+     * Serve MP4 files in faststart layout, or fragmented with {@link #withFragments(int)}.
+     * @param index The index of the MP4 files, or null to serve files as they are.
+     * @return This sender.
+     */
+    public ReactiveFileSender with(Mp4Index index) {
+        mp4Index = index;
+        return this;
+    }
+
+    /**
+     * Send the video remuxed to fragmented MP4 instead of the file, see {@link FragmentedMp4}. Requires an
+     * {@link Mp4Index}, videos that can't be packaged are answered with 404.
+     * @param trackId Track ID of the single track to send, or 0 for all tracks.
+     * @return This sender.
+     */
+    public ReactiveFileSender withFragments(int trackId) {
+        fragments = trackId;
+        return this;
+    }
+
+    /**
+     * Reject Range headers with more ranges than the given number.
+     * @param max Largest number of ranges per request.
+     * @return This sender.
+     */
+    public ReactiveFileSender withMaxRanges(int max) {
+        maxRanges = max;
+        return this;
+    }
+
+    /**
+     * Send the given range instead of the one requested by the client, e.g. one found by a time seek.
+     * @param rangeHeader The range in the syntax of the Range header, or null to use the request's.
+     * @return This sender.
+     */
+    public ReactiveFileSender withRange(String rangeHeader) {
+        range = rangeHeader;
+        return this;
+    }
+
+    public ReactiveFileSender withHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    /**
+     * Validates the request and writes the response.
+     * @return Completes when the response has been written.
+     */
+    public Mono<Void> serveResource() {
+        if (response == null || request == null) {
+            return Mono.empty();
+        }
+        received = System.nanoTime();
+        sampled = logger.isDebugEnabled() && (metrics == null || metrics.isSampled());
+        return Mono.fromCallable(this::serve).subscribeOn(Schedulers.elastic()).flatMap(body -> body);
+    }
+
+    /**
+     * Validates the request, blocking on the file system where the metadata or indexes aren't cached yet.
+     * @return Writes the response.
+     */
+    private Mono<Void> serve() throws IOException {
+        // Without a catalog entry, read the metadata of the file now.
+        VideoEntry video = entry != null ? entry : VideoEntry.of(filepath.getFileName().toString(), filepath);
+        if (video == null) {
+            logger.error("File doesn't exist at URI : {}", filepath.toAbsolutePath().toString());
+            return sendError(HttpStatus.NOT_FOUND);
+        }
+
+        // Follow a file that is still being written. Ranges that can't follow it are served from the file as it is
+        // now, with fresh metadata and without a faststart layout, which would change as the file grows.
+        boolean live = false;
+        if (growing != null && fragments < 0) {
+            GrowingFiles.Tail tail = growing.open(filepath);
+            if (tail != null) {
+                String range = this.range != null ? this.range : request.getHeaders().getFirst("Range");
+                long start = GrowingFiles.start(range);
+                if (start >= 0) {
+                    return serveGrowing(video, tail, start, range != null);
+                }
+                tail.close();
+                live = true;
+                video = VideoEntry.of(video.getId(), filepath);
+                if (video == null) {
+                    return sendError(HttpStatus.NOT_FOUND);
+                }
+            }
+        }
+        if (entry == null && etags != null && !live) {
+            String strongETag = etags.get(video, null);
+            video = strongETag != null ? video.withETag(strongETag) : video;
+        }
+
+        if (fragments >= 0) {
+            FragmentedMp4 packaging = mp4Index != null ? mp4Index.fragments(video) : null;
+            layout = packaging != null ? packaging.layout(fragments) : null;
+            if (layout == null) {
+                logger.debug("Can't package {} as fragmented MP4, track {}", filepath, fragments);
+                return sendError(HttpStatus.NOT_FOUND);
+            }
+        } else {
+            layout = mp4Index != null && !live ? mp4Index.faststart(video) : null;
+        }
+        long length = layout != null ? layout.getSize() : video.getSize();
+        modified = video.getLastModifiedTime().toMillis();
+        long lastModified = video.getLastModified();
+        String contentType = fragments >= 0 ? "video/mp4" : video.getContentType();
+        String eTag = video.getETag();
+        if (fragments >= 0) {
+            eTag = eTag.substring(0, eTag.length() - 1) + "-" + layout.getName() + "\"";
+        }
+        HttpHeaders requestHeaders = request.getHeaders();
+
+        // Validate request headers for caching ---------------------------------------------------
+
+        // If-None-Match header should contain "*" or ETag. If so, then return 304.
+        String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+        if (ifNoneMatch != null && HttpUtils.matches(ifNoneMatch, eTag, true)) {
+            response.getHeaders().set("ETag", eTag); // Required in 304.
+            return sendError(HttpStatus.NOT_MODIFIED);
+        }
+
+        // If-Modified-Since header should be greater than LastModified. If so, then return 304.
+        // This header is ignored if any If-None-Match header is specified.
+        long ifModifiedSince = requestHeaders.getIfModifiedSince();
+        if (ifNoneMatch == null && ifModifiedSince != -1 && ifModifiedSince + 1000 > lastModified) {
+            response.getHeaders().set("ETag", eTag); // Required in 304.
+            return sendError(HttpStatus.NOT_MODIFIED);
+        }
+
+        // Validate request headers for resume ----------------------------------------------------
+
+        // If-Match header should contain "*" or ETag. If not, then return 412.
+        String ifMatch = requestHeaders.getFirst("If-Match");
+        if (ifMatch != null && !HttpUtils.matches(ifMatch, eTag, false)) {
+            return sendError(HttpStatus.PRECONDITION_FAILED);
+        }
+
+        // If-Unmodified-Since header should be greater than LastModified. If not, then return 412.
+        long ifUnmodifiedSince = requestHeaders.getIfUnmodifiedSince();
+        if (ifUnmodifiedSince != -1 && ifUnmodifiedSince + 1000 <= lastModified) {
+            return sendError(HttpStatus.PRECONDITION_FAILED);
+        }
+
+        // Validate and process range -------------------------------------------------------------
+
+        Range full = new Range(0, length - 1, length);
+        List<Range> ranges = new ArrayList<>();
+
+        String range = this.range != null ? this.range : requestHeaders.getFirst("Range");
+        if (range != null) {
+
+            // If-Range must match the ETag or the exact modification time, else the full file is sent. It only
+            // applies to ranges requested by the client.
+            String ifRange = this.range == null ? requestHeaders.getFirst("If-Range") : null;
+            boolean unchanged = ifRange == null;
+            if (ifRange != null && HttpUtils.isEntityTag(ifRange)) {
+                unchanged = ifRange.equals(eTag); // Strong comparison, a weak tag never matches.
+            } else if (ifRange != null) {
+                try {
+                    unchanged = requestHeaders.getFirstDate("If-Range") == lastModified; // Throws IAE if invalid.
+                } catch (IllegalArgumentException ignore) {
+                    unchanged = false;
+                }
+            }
+
+            if (!unchanged) {
+                ranges.add(full);
+            } else {
+                long[] bounds = new long[2 * maxRanges];
+                int count = HttpUtils.parseRanges(range, length, bounds);
+                if (count < 0) {
+                    response.getHeaders().set("Content-Range", "bytes */" + length); // Required in 416.
+                    return sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                }
+                for (int i = 0; i < count; i++) {
+                    ranges.add(new Range(bounds[2 * i], bounds[2 * i + 1], length));
+                }
+                if (ranges.size() > 1) {
+                    ranges = Range.coalesce(ranges, Range.partHeader(Range.partHeaderPrefix(contentType), full).length);
+                }
+            }
+        }
+
+        // Wait for capacity to send the body, small ranges are let in first. If there is none, then return 503.
+        if (admission == null) {
+            return respond(video, ranges, full, contentType, eTag);
+        }
+        boolean partial = !ranges.isEmpty() && ranges.get(0) != full;
+        long bytes = partial ? ranges.stream().mapToLong(r -> r.length).sum() : length;
+        VideoEntry admittedVideo = video;
+        List<Range> admittedRanges = ranges;
+        String admittedETag = eTag;
+        return admit(admission.classify(partial, bytes),
+                () -> respond(admittedVideo, admittedRanges, full, contentType, admittedETag));
+    }
+
+    /**
+     * Writes the response once the admission control lets it in, answers 503 if it doesn't in time.
+     * @param priority The priority of the body.
+     * @param respond Writes the response, the permit is held until it completes.
+     * @return Completes when the response has been written.
+     */
+    private Mono<Void> admit(AdmissionControl.Priority priority, Supplier<Mono<Void>> respond) {
+        CompletableFuture<AdmissionControl.Permit> admitted = admission.admit(priority);
+        return Mono.fromFuture(admitted)
+                .doOnCancel(() -> {
+                    if (!admitted.cancel(false)) {
+                        admitted.join().close(); // Admitted in the meantime.
+                    }
+                })
+                .flatMap(permit -> {
+                    if (!permit.isAdmitted()) {
+                        response.getHeaders().set("Retry-After", String.valueOf(admission.getRetryAfter()));
+                        return sendError(HttpStatus.SERVICE_UNAVAILABLE);
+                    }
+                    return respond.get().doFinally(signal -> permit.close());
+                });
+    }
+
+    /**
+     * Follows the growing file of the tail from the given position. The body has no length, Netty sends it in chunks
+     * as the file grows until the tail ends. The tail is closed once the response is done.
+     * @param video The video, its metadata is as of before the file grew further.
+     * @param tail The tail of the file.
+     * @param start Position to start at.
+     * @param ranged True to answer with the partial content of a range, else with the whole file.
+     * @return Completes when the response has been written.
+     */
+    private Mono<Void> serveGrowing(VideoEntry video, GrowingFiles.Tail tail, long start, boolean ranged) {
+        // A range starting past the end may be written soon.
+        Mono<Void> grown = start < tail.getSize() ? Mono.empty()
+                : Mono.<Void>create(sink -> tail.await(start, sink::success))
+                        .timeout(Duration.ofMillis(growing.getSettings().getEndTimeout()), Mono.empty());
+        return grown.then(Mono.defer(() -> {
+            if (start >= tail.getSize()) {
+                response.getHeaders().set("Content-Range", "bytes */" + tail.getSize()); // Required in 416.
+                return sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            }
+            return admission != null
+                    ? admit(AdmissionControl.Priority.PLAYBACK, () -> follow(video, tail, start, ranged))
+                    : follow(video, tail, start, ranged);
+        })).doFinally(signal -> tail.close());
+    }
+
+    /**
+     * Sets the headers of an admitted request for a growing file and writes its body.
+     */
+    private Mono<Void> follow(VideoEntry video, GrowingFiles.Tail tail, long start, boolean ranged) {
+        // No ETag, Last-Modified or length: the representation changes until the file ends.
+        String contentType = video.getContentType();
+        String accept = request.getHeaders().getFirst("Accept");
+        boolean inline = accept != null && HttpUtils.accepts(accept, contentType);
+        HttpHeaders responseHeaders = response.getHeaders();
+        responseHeaders.set("Content-Type", contentType);
+        responseHeaders.set("Content-Disposition", video.getContentDisposition(inline));
+        responseHeaders.set("Accept-Ranges", "bytes");
+        responseHeaders.set("Cache-Control", "no-cache");
+        headers.forEach(responseHeaders::set);
+        serverTiming();
+
+        metered = metrics != null ? metrics.open(video.getId(), received) : null;
+        if (ranged) {
+            // The end is the one known now, the body goes on past it while the file grows.
+            count(HttpStatus.PARTIAL_CONTENT);
+            responseHeaders.set("Content-Range", "bytes " + start + "-" + (tail.getSize() - 1) + "/*");
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+        } else {
+            count(HttpStatus.OK);
+            response.setStatusCode(HttpStatus.OK);
+        }
+        if (sampled) {
+            logger.debug("Follow growing file : from ({}), {} bytes so far", start, tail.getSize());
+        }
+
+        DataBufferFactory factory = response.bufferFactory();
+        return measure(write(Flux.create(sink -> new Follower(tail, start, sink, factory))));
+    }
+
+    /**
+     * Sets the headers of a validated request and writes its body.
+     * @param video The catalog entry of the video.
+     * @param ranges The ranges to send, empty or only the full range for the whole file.
+     * @param full The range of the whole file as served.
+     * @param contentType Content type of the video.
+     * @param eTag Entity tag of the video as served.
+     * @return Completes when the response has been written.
+     */
+    private Mono<Void> respond(VideoEntry video, List<Range> ranges, Range full, String contentType, String eTag) {
+        long length = full.total;
+        long lastModified = video.getLastModified();
+
+        // Prepare and initialize response --------------------------------------------------------
+
+        String accept = request.getHeaders().getFirst("Accept");
+        boolean inline = accept != null && HttpUtils.accepts(accept, contentType);
+        HttpHeaders responseHeaders = response.getHeaders();
+        responseHeaders.set("Content-Type", contentType);
+        responseHeaders.set("Content-Disposition", video.getContentDisposition(inline));
+        responseHeaders.set("Accept-Ranges", "bytes");
+        responseHeaders.set("ETag", eTag);
+        responseHeaders.setDate("Last-Modified", lastModified);
+        responseHeaders.setDate("Expires", System.currentTimeMillis() + MultipartFileSender.DEFAULT_EXPIRE_TIME);
+        headers.forEach(responseHeaders::set);
+        serverTiming();
+
+        // Send requested file (part(s)) to client ------------------------------------------------
+
+        metered = metrics != null ? metrics.open(video.getId(), received) : null;
+
+        if (ranges.isEmpty() || ranges.get(0) == full) {
+
+            // Return full file.
+            if (sampled) {
+                logger.debug("Return full file");
+            }
+            count(HttpStatus.OK);
+            responseHeaders.set("Content-Range", fragments < 0 ? video.getFullContentRange() : "bytes 0-" + (length - 1) + "/" + length);
+            responseHeaders.set("Content-Length", fragments < 0 ? video.getContentLength() : String.valueOf(length));
+            response.setStatusCode(HttpStatus.OK);
+            return measure(send(full));
+
+        } else if (ranges.size() == 1) {
+
+            // Return single part of file.
+            Range r = ranges.get(0);
+            if (sampled) {
+                logger.debug("Return 1 part of file : from ({}) to ({})", r.start, r.end);
+            }
+            count(HttpStatus.PARTIAL_CONTENT);
+            record(r);
+            responseHeaders.set("Content-Range", "bytes " + r.start + "-" + r.end + "/" + r.total);
+            responseHeaders.set("Content-Length", String.valueOf(r.length));
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+            return measure(send(r));
+
+        } else {
+
+            // Return multiple parts of file.
+            responseHeaders.set("Content-Type", "multipart/byteranges; boundary=" + MultipartFileSender.MULTIPART_BOUNDARY);
+            response.setStatusCode(HttpStatus.PARTIAL_CONTENT);
+            count(HttpStatus.PARTIAL_CONTENT);
+
+            byte[] partHeaderPrefix = Range.partHeaderPrefix(contentType);
+            List<Publisher<DataBuffer>> parts = new ArrayList<>();
+            long contentLength = MultipartFileSender.MULTIPART_END.length;
+            for (Range r : ranges) {
+                if (sampled) {
+                    logger.debug("Return multi part of file : from ({}) to ({})", r.start, r.end);
+                }
+                record(r);
+                byte[] partHeader = Range.partHeader(partHeaderPrefix, r);
+                parts.add(Mono.fromSupplier(() -> response.bufferFactory().wrap(partHeader)));
+                parts.add(read(r.start, r.length));
+                contentLength += partHeader.length + r.length;
+            }
+            parts.add(Mono.fromSupplier(() -> response.bufferFactory().wrap(MultipartFileSender.MULTIPART_END)));
+            responseHeaders.set("Content-Length", String.valueOf(contentLength));
+            return measure(write(Flux.concat(parts)));
+        }
+    }
+
+    private Mono<Void> sendError(HttpStatus status) {
+        count(status);
+        serverTiming();
+        response.setStatusCode(status);
+        return response.setComplete();
+    }
+
+    private void count(HttpStatus status) {
+        if (metrics != null) {
+            metrics.response(status.value());
+        }
+    }
+
+    private void record(Range r) {
+        if (metrics != null) {
+            metrics.range(r.start, r.length, r.total);
+        }
+    }
+
+    private void serverTiming() {
+        String timing = metrics != null ? metrics.serverTiming(received) : null;
+        if (timing != null) {
+            response.getHeaders().set("Server-Timing", timing);
+        }
+    }
+
+    /**
+     * Writes a single range as the whole response body, with sendfile if possible.
+     */
+    private Mono<Void> send(Range r) {
+        if (zeroCopy && response instanceof ZeroCopyHttpOutputMessage) {
+            long position = layout != null ? layout.toFile(r.start, r.length) : r.start;
+            // A placeholder is only kept cached while a channel is open on it, sendfile wouldn't hold one.
+            TieredStorage storage = position >= 0 ? TieredStorage.of(filepath) : null;
+            if (position >= 0 && (storage == null || !storage.isPlaceholder(filepath))) {
+                if (sampled) {
+                    logger.debug("Sendfile : from ({}) to ({})", r.start, r.end);
+                }
+                StreamMetrics.Stream stream = metered;
+                Mono<Void> body = ((ZeroCopyHttpOutputMessage) response).writeWith(filepath.toFile(), position, r.length);
+                return stream != null ? body.doOnSubscribe(subscription -> stream.handedOver(r.length)) : body;
+            }
+        }
+        return write(read(r.start, r.length));
+    }
+
+    /**
+     * Writes buffers as the response body, counting them as sent when they are handed to the connection. Fails with
+     * the stall if the client stops taking them.
+     */
+    private Mono<Void> write(Flux<DataBuffer> body) {
+        StreamMetrics.Stream stream = metered;
+        Flux<DataBuffer> counted = stream != null ? body.doOnNext(buffer -> stream.sent(buffer.readableByteCount())) : body;
+        if (stalls == null) {
+            return response.writeWith(counted);
+        }
+        return Mono.defer(() -> {
+            StallDetector.Watch watch = stalls.open(request.getHeaders().getFirst(HttpHeaders.USER_AGENT));
+            MonoProcessor<Void> stalled = MonoProcessor.create();
+            watch.onStall(() -> {
+                stalled.onComplete();
+                disconnect();
+            });
+            Mono<Void> written = response.writeWith(counted.doOnNext(buffer -> watch.progress(buffer.readableByteCount())));
+            return Mono.first(written, stalled.then(Mono.defer(() -> Mono.error(watch.failure()))))
+                    .doFinally(signal -> watch.close());
+        });
+    }
+
+    /**
+     * Closes the connection of a body that can't be finished. Netty would keep it open for the next request otherwise,
+     * and the client would wait for the rest of the body until it times out.
+     */
+    private void disconnect() {
+        Object connection = response instanceof AbstractServerHttpResponse
+                ? ((AbstractServerHttpResponse) response).getNativeResponse() : null;
+        if (connection instanceof NettyOutbound) {
+            ((NettyOutbound) connection).context().dispose();
+        }
+    }
+
+    /**
+     * Closes the measurements of the body once it has been written, failed or the client went away.
+     */
+    private Mono<Void> measure(Mono<Void> body) {
+        StreamMetrics.Stream stream = metered;
+        if (stream == null) {
+            return body;
+        }
+        return body.doOnError(e -> stream.abort())
+                .doOnCancel(stream::abort)
+                .doFinally(signal -> stream.close());
+    }
+
+    /**
+     * Reads a range of the file as served, one buffer per demand of the connection. The reads block, so they run on
+     * a worker instead of the event loop.
+     */
+    private Flux<DataBuffer> read(long start, long length) {
+        if (length <= 0) {
+            return Flux.empty();
+        }
+        DataBufferFactory factory = response.bufferFactory();
+        long end = start + length;
+
+        Flux<DataBuffer> buffers = Flux.using(this::open,
+                channel -> Flux.generate(() -> start, (Long position, SynchronousSink<DataBuffer> sink) -> {
+                    int size = (int) Math.min(DEFAULT_BUFFER_SIZE, end - position);
+                    DataBuffer buffer = factory.allocateBuffer(size);
+                    try {
+                        fill(channel, buffer.asByteBuffer(0, size), position);
+                        buffer.writePosition(size);
+                    } catch (IOException e) {
+                        DataBufferUtils.release(buffer);
+                        sink.error(e);
+                        return position;
+                    }
+                    sink.next(buffer);
+                    if (position + size == end) {
+                        sink.complete();
+                    }
+                    return position + size;
+                }),
+                ReactiveFileSender::close);
+        return buffers.subscribeOn(Schedulers.elastic());
+    }
+
+    /**
+     * @return A channel of the file as served, through its shared handle if enabled.
+     * @throws IOException If the file can't be opened.
+     */
+    private FileChannel open() throws IOException {
+        return handles != null ? handles.open(filepath, modified, layout) : LayoutChannel.open(filepath, layout);
+    }
+
+    private void fill(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        long start = position;
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                throw new EOFException("File " + filepath + " ended at " + position + ", expected " + (start + dst.limit()));
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Reads a growing file from its tail, one buffer per demand of the connection. Demand at the end of the file so
+     * far waits for the tail to grow. The reads run on a worker, one at a time.
+     */
+    private static final class Follower implements Runnable {
+        private final GrowingFiles.Tail tail;
+        private final FluxSink<DataBuffer> sink;
+        private final DataBufferFactory factory;
+        private final Scheduler.Worker worker = Schedulers.elastic().createWorker();
+
+        private long position; // Only used by the worker.
+        private volatile boolean waiting;
+
+        Follower(GrowingFiles.Tail tail, long position, FluxSink<DataBuffer> sink, DataBufferFactory factory) {
+            this.tail = tail;
+            this.position = position;
+            this.sink = sink;
+            this.factory = factory;
+            sink.onRequest(n -> worker.schedule(this));
+            sink.onDispose(worker::dispose);
+        }
+
+        @Override
+        public void run() {
+            while (sink.requestedFromDownstream() > 0 && !sink.isCancelled() && !waiting) {
+                DataBuffer buffer = factory.allocateBuffer(DEFAULT_BUFFER_SIZE);
+                int read;
+                try {
+                    read = tail.read(buffer.asByteBuffer(0, DEFAULT_BUFFER_SIZE), position);
+                } catch (IOException e) {
+                    DataBufferUtils.release(buffer);
+                    sink.error(e);
+                    return;
+                }
+                if (read <= 0) {
+                    DataBufferUtils.release(buffer);
+                    if (read < 0) {
+                        sink.complete();
+                    } else {
+                        waiting = true;
+                        tail.await(position, this::grown);
+                    }
+                    return;
+                }
+                buffer.writePosition(read);
+                position += read;
+                sink.next(buffer);
+            }
+        }
+
+        private void grown() {
+            waiting = false;
+            worker.schedule(this);
+        }
+    }
+
+    private static void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+            // Only read from.
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package de.hoel.video.server;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * The video API of {@link VideoController} on the reactive stack, started with
+ * {@code spring.main.web-application-type=reactive}. Serves the same paths with a {@link ReactiveFileSender}.
+ * Async writes, coalescing, shaping, the chunk cache and read-ahead are features of the servlet stack and don't apply.
+ * Lookups in the MP4 indexes may parse a movie box on first use, so they run off the event loop.
+ */
+@RestController
+@RequestMapping("/videos")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveVideoController {
+
+    private final StreamingProperties properties;
+    private final VideoCatalog catalog;
+    private final ETagIndex etagIndex;
+    private final Mp4Index mp4Index;
+    private final StreamMetrics streamMetrics;
+    private final AdmissionControl admissionControl;
+    private final StallDetector stallDetector;
+    private final FileHandleCache fileHandleCache;
+    private final GrowingFiles growingFiles;
+
+    public ReactiveVideoController(StreamingProperties properties, VideoCatalog catalog, ETagIndex etagIndex,
+                                   Mp4Index mp4Index, StreamMetrics streamMetrics, AdmissionControl admissionControl,
+                                   StallDetector stallDetector, FileHandleCache fileHandleCache,
+                                   GrowingFiles growingFiles) {
+        this.properties = properties;
+        this.catalog = catalog;
+        this.etagIndex = etagIndex;
+        this.mp4Index = mp4Index;
+        this.streamMetrics = streamMetrics;
+        this.admissionControl = admissionControl;
+        this.stallDetector = stallDetector;
+        this.fileHandleCache = fileHandleCache;
+        this.growingFiles = growingFiles;
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    public Collection<VideoEntry> getVideos() {
+        return catalog.getAll();
+    }
+
+    @RequestMapping(value="/test", method = RequestMethod.GET)
+    public Mono<Void> getTestVideo(ServerHttpRequest request, ServerHttpResponse response) {
+        Path path = Paths.get(properties.getCatalog().getTestVideo());
+        VideoEntry video = catalog.get(path.toAbsolutePath().normalize());
+        return configure(video != null ? ReactiveFileSender.fromEntry(video) : ReactiveFileSender.fromPath(path), request, response)
+                .serveResource();
+    }
+
+    /**
+     * Serves a video of the catalog, optionally from the keyframe at or before a time, see
+     * {@link VideoController#getVideo}.
+     */
+    @RequestMapping(value="/{id}", method = RequestMethod.GET)
+    public Mono<Void> getVideo(@PathVariable String id, @RequestParam(value = "t", required = false) String t,
+                               ServerHttpRequest request, ServerHttpResponse response) {
+        VideoEntry video = catalog.get(id);
+        if (video == null) {
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        ReactiveFileSender sender = configure(ReactiveFileSender.fromEntry(video), request, response);
+        if (t == null) {
+            return sender.serveResource();
+        }
+
+        double seconds = VideoController.parseTime(t);
+        if (seconds < 0) {
+            return sendError(response, HttpStatus.BAD_REQUEST);
+        }
+        return blocking(() -> mp4Index.seek(video, seconds))
+                .map(keyframe -> sender.withRange(keyframe.getRange())
+                        .withHeader("X-Seek-Time", String.valueOf(keyframe.getTime()))
+                        .serveResource())
+                .defaultIfEmpty(Mono.defer(() -> sendError(response, HttpStatus.BAD_REQUEST)))
+                .flatMap(body -> body);
+    }
+
+    @RequestMapping(value="/{id}/seek", method = RequestMethod.GET)
+    public Mono<ResponseEntity<Map<String, Object>>> seek(@PathVariable String id, @RequestParam("t") String t) {
+        VideoEntry video = catalog.get(id);
+        double seconds = VideoController.parseTime(t);
+        if (video == null || seconds < 0) {
+            return Mono.just(ResponseEntity.status(video == null ? HttpStatus.NOT_FOUND : HttpStatus.BAD_REQUEST).build());
+        }
+
+        return blocking(() -> mp4Index.seek(video, seconds))
+                .map(keyframe -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("time", keyframe.getTime());
+                    result.put("offset", keyframe.getOffset());
+                    result.put("range", keyframe.getRange());
+                    return ResponseEntity.ok(result);
+                })
+                .defaultIfEmpty(ResponseEntity.status(HttpStatus.BAD_REQUEST).build());
+    }
+
+    @RequestMapping(value="/{id}/index.m3u8", method = RequestMethod.GET)
+    public Mono<Void> getPlaylist(@PathVariable String id, ServerHttpResponse response) {
+        return sendManifest(id, response, "application/vnd.apple.mpegurl", packaging -> packaging.playlist("fmp4"));
+    }
+
+    @RequestMapping(value="/{id}/manifest.mpd", method = RequestMethod.GET)
+    public Mono<Void> getManifest(@PathVariable String id, ServerHttpResponse response) {
+        return sendManifest(id, response, "application/dash+xml", packaging -> packaging.mpd("fmp4"));
+    }
+
+    @RequestMapping(value="/{id}/fmp4", method = RequestMethod.GET)
+    public Mono<Void> getFragments(@PathVariable String id, @RequestParam(value = "track", defaultValue = "0") int track,
+                                   ServerHttpRequest request, ServerHttpResponse response) {
+        VideoEntry video = catalog.get(id);
+        if (video == null) {
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        return configure(ReactiveFileSender.fromEntry(video), request, response)
+                .with(mp4Index)
+                .withFragments(track)
+                .serveResource();
+    }
+
+    /**
+     * Writes a manifest of the fragmented MP4 packaging of a video, 404 if the video can't be packaged.
+     */
+    private Mono<Void> sendManifest(String id, ServerHttpResponse response, String contentType,
+                                    Function<FragmentedMp4, String> manifest) {
+        VideoEntry video = catalog.get(id);
+        if (video == null) {
+            return sendError(response, HttpStatus.NOT_FOUND);
+        }
+        return blocking(() -> mp4Index.fragments(video))
+                .map(packaging -> sendManifest(response, contentType, manifest.apply(packaging)))
+                .defaultIfEmpty(Mono.defer(() -> sendError(response, HttpStatus.NOT_FOUND)))
+                .flatMap(body -> body);
+    }
+
+    /**
+     * Runs a lookup that may block on the file system off the event loop.
+     * @param lookup Returns the result, or null for none.
+     * @return Emits the result, or completes empty for none.
+     */
+    private static <T> Mono<T> blocking(Callable<T> lookup) {
+        return Mono.fromCallable(lookup).subscribeOn(Schedulers.elastic());
+    }
+
+    private static Mono<Void> sendManifest(ServerHttpResponse response, String contentType, String manifest) {
+        byte[] body = manifest.getBytes(StandardCharsets.UTF_8);
+        response.getHeaders().setContentType(new MediaType(MediaType.valueOf(contentType), StandardCharsets.UTF_8));
+        response.getHeaders().setContentLength(body.length);
+        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(body)));
+    }
+
+    private static Mono<Void> sendError(ServerHttpResponse response, HttpStatus status) {
+        response.setStatusCode(status);
+        return response.setComplete();
+    }
+
+    private ReactiveFileSender configure(ReactiveFileSender sender, ServerHttpRequest request, ServerHttpResponse response) {
+        return sender
+                .with(request)
+                .with(response)
+                .withZeroCopy(properties.isZeroCopy())
+                .withMaxRanges(properties.getMaxRanges())
+                .with(properties.getFaststart().isEnabled() ? mp4Index : null)
+                .with(properties.getEtag().isEnabled() ? etagIndex : null)
+                .with(properties.getMetrics().isEnabled() ? streamMetrics : null)
+                .with(properties.getAdmission().isEnabled() ? admissionControl : null)
+                .with(properties.getStalls().isEnabled() ? stallDetector : null)
+                .with(properties.getHandles().isEnabled() ? fileHandleCache : null)
+                .with(properties.getLive().isEnabled() ? growingFiles : null);
+    }
+}
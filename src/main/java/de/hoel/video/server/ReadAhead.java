@@ -0,0 +1,289 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Playback aware read-ahead. Every client and file version has a session that follows the position the client is read
+ * at, across consecutive range requests and while a response is written. Once a session has read sequentially for a
+ * while, the window after its position is loaded in the background: into the chunk cache if the range is served from
+ * it, else into the page cache by reading it into a pooled buffer whose content is dropped. A request that doesn't continue where the
+ * previous one stopped is a seek, which drops the window that is still pending.
+ * <p>
+ * Prefetched bytes the session reads later count as used, those it seeks away from or leaves unread until it expires
+ * count as wasted. Ranges handed to sendfile are read by the kernel, which does its own read-ahead.
+ */
+@Component
+public class ReadAhead {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final int LOAD_BUFFER_SIZE = 256 * 1024;
+
+    private final StreamingProperties.ReadAhead settings;
+    private final BufferPool buffers;
+    private final Cache<String, Session> sessions;
+    private final ThreadPoolExecutor loaders;
+
+    private final AtomicLong seeks = new AtomicLong();
+    private final AtomicLong prefetchedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong wastedBytes = new AtomicLong();
+    private final AtomicLong droppedLoads = new AtomicLong();
+
+    public ReadAhead(StreamingProperties properties, BufferPool bufferPool) {
+        this.settings = properties.getReadAhead();
+        this.buffers = properties.getBuffers().isEnabled() ? bufferPool : null;
+        this.sessions = CacheBuilder.newBuilder()
+                .maximumSize(settings.getMaxSessions())
+                .expireAfterAccess(settings.getSessionTimeout(), TimeUnit.MILLISECONDS)
+                .removalListener((RemovalNotification<String, Session> notification) -> notification.getValue().stop())
+                .build();
+        // Prefetching is best effort: loads that don't fit into the queue are dropped rather than delaying playback.
+        this.loaders = new ThreadPoolExecutor(settings.getPoolSize(), settings.getPoolSize(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(settings.getQueueSize()),
+                new ThreadFactoryBuilder().setNameFormat("read-ahead-%d").setDaemon(true).build(),
+                (task, executor) -> droppedLoads.incrementAndGet());
+    }
+
+    /**
+     * Starts reading a range for a client and returns its session, which has to be advanced while the range is read.
+     * @param client Identity of the client, e.g. its address.
+     * @param path The file.
+     * @param layout The layout the file is read in, or null for the file as it is.
+     * @param cache The chunk cache the range is read from, or null if it is read from the file.
+     * @param version The file version, which identifies the session together with the client.
+     * @param start Start of the range.
+     * @param length Size of the file as it is served.
+     * @return The session.
+     */
+    public Session open(String client, Path path, FileLayout layout, ChunkCache cache, ChunkCache.FileVersion version,
+                        long start, long length) {
+        String key = client + "|" + path + (layout != null ? "#" + layout.getName() : "");
+        Session session = sessions.getIfPresent(key);
+        if (session == null) {
+            Session created = new Session(key, path, layout);
+            session = sessions.asMap().putIfAbsent(key, created);
+            session = session != null ? session : created;
+        }
+        session.start(cache, version, start, length);
+        return session;
+    }
+
+    public long getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getSeeks() {
+        return seeks.get();
+    }
+
+    public long getPrefetchedBytes() {
+        return prefetchedBytes.get();
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getWastedBytes() {
+        return wastedBytes.get();
+    }
+
+    /**
+     * @return Number of window loads dropped because the loaders were busy.
+     */
+    public long getDroppedLoads() {
+        return droppedLoads.get();
+    }
+
+    /**
+     * @return Share of the prefetched bytes that have been read so far, of those that have been read or wasted.
+     */
+    public double getAccuracy() {
+        long used = usedBytes.get();
+        long settled = used + wastedBytes.get();
+        return settled > 0 ? used / (double) settled : 0;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loaders.shutdownNow();
+    }
+
+    /**
+     * Read position and prefetch window of one client in one file version.
+     */
+    public final class Session {
+
+        private final String key;
+        private final Path path;
+        private final FileLayout layout;
+
+        private ChunkCache cache;
+        private ChunkCache.FileVersion version;
+        private long length;
+        /** Position after the last byte read. */
+        private long next = -1;
+        /** Bytes read without a seek. */
+        private long sequential;
+        /** Window prefetched since the last seek, from its start up to its end. */
+        private long windowStart;
+        private long windowEnd;
+        /** Changes on every seek, loads of an older generation are dropped. */
+        private int generation;
+
+        private Session(String key, Path path, FileLayout layout) {
+            this.key = key;
+            this.path = path;
+            this.layout = layout;
+        }
+
+        private synchronized void start(ChunkCache cache, ChunkCache.FileVersion version, long start, long length) {
+            this.cache = cache;
+            this.version = version;
+            this.length = length;
+            if (next >= 0 && Math.abs(start - next) <= settings.getTolerance()) {
+                advance(start);
+                return;
+            }
+            if (next >= 0) {
+                seeks.incrementAndGet();
+            }
+            settle();
+            next = start;
+            windowStart = start;
+            windowEnd = start;
+            sequential = 0;
+        }
+
+        /**
+         * Records that the bytes up to the given position have been read and loads the next window if the session
+         * reads sequentially and is getting close to the end of the current one.
+         * @param position Position after the last byte read.
+         */
+        public synchronized void advance(long position) {
+            if (position > next) {
+                long used = Math.min(position, windowEnd) - Math.max(next, windowStart);
+                if (used > 0) {
+                    usedBytes.addAndGet(used);
+                }
+                sequential += position - next;
+                next = position;
+            }
+            if (sequential < settings.getTrigger() || windowEnd - next > settings.getWindow() / 2 || windowEnd >= length) {
+                return;
+            }
+
+            long from = Math.max(windowEnd, next);
+            long to = Math.min(length, next + settings.getWindow());
+            if (from >= to) {
+                return;
+            }
+            if (windowEnd < next) {
+                windowStart = next;
+            }
+            windowEnd = to;
+            int scheduled = generation;
+            ChunkCache cache = this.cache;
+            ChunkCache.FileVersion version = this.version;
+            loaders.execute(() -> load(scheduled, cache, version, from, to));
+        }
+
+        private void load(int scheduled, ChunkCache cache, ChunkCache.FileVersion version, long from, long to) {
+            if (!isCurrent(scheduled)) {
+                return; // Sought away while the load was queued.
+            }
+            try {
+                if (cache != null) {
+                    for (long position = from; position < to && isCurrent(scheduled); ) {
+                        long chunkEnd = Math.min(to, (position / cache.getChunkSize() + 1) * cache.getChunkSize());
+                        if (cache.prefetch(version, position)) {
+                            prefetchedBytes.addAndGet(chunkEnd - position);
+                        }
+                        position = chunkEnd;
+                    }
+                } else {
+                    long start = layout != null ? layout.toFile(from, to - from) : from;
+                    if (start < 0) {
+                        return; // Not one region of the file, left to the layout's reads.
+                    }
+                    TieredStorage storage = TieredStorage.of(path);
+                    if (storage != null) {
+                        storage.prefetch(path, start, to - from); // Fetched into the disk cache of the storage.
+                        prefetchedBytes.addAndGet(to - from);
+                    } else {
+                        prefetchedBytes.addAndGet(read(scheduled, start, to - from));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Read-ahead failed : {} from {} to {}", path, from, to, e);
+            }
+        }
+
+        /**
+         * Reads a region of the file into a pooled buffer, only for the page cache to keep it.
+         * @return The number of bytes read, less than the length if the file is shorter or the session sought away.
+         */
+        private long read(int scheduled, long start, long length) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                 BufferPool.Lease lease = BufferPool.lease(buffers, LOAD_BUFFER_SIZE)) {
+                ByteBuffer buffer = lease.buffer();
+                long read = 0;
+                while (read < length && isCurrent(scheduled)) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - read));
+                    int count = channel.read(buffer, start + read);
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+                return read;
+            }
+        }
+
+        private synchronized boolean isCurrent(int scheduled) {
+            return scheduled == generation;
+        }
+
+        /**
+         * Counts the unread rest of the window as wasted and drops its pending loads.
+         */
+        private void settle() {
+            long wasted = windowEnd - Math.max(next, windowStart);
+            if (wasted > 0) {
+                wastedBytes.addAndGet(wasted);
+            }
+            windowEnd = windowStart;
+            generation++;
+        }
+
+        private synchronized void stop() {
+            settle();
+        }
+
+        @Override
+        public String toString() {
+            return key + "@" + next;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package de.hoel.video.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All samples of one audio or video track of an MP4 file with their position in the file, decode time, composition
+ * offset and sync flag, read from the sample tables of the track.
+ */
+final class SampleTable {
+
+    static final int VIDE = Mp4Box.type("vide");
+    static final int SOUN = Mp4Box.type("soun");
+
+    private static final int TRAK = Mp4Box.type("trak");
+    private static final int TKHD = Mp4Box.type("tkhd");
+    private static final int MDIA = Mp4Box.type("mdia");
+    private static final int MDHD = Mp4Box.type("mdhd");
+    private static final int HDLR = Mp4Box.type("hdlr");
+    private static final int MINF = Mp4Box.type("minf");
+    private static final int STBL = Mp4Box.type("stbl");
+    private static final int STSD = Mp4Box.type("stsd");
+    private static final int STTS = Mp4Box.type("stts");
+    private static final int CTTS = Mp4Box.type("ctts");
+    private static final int STSS = Mp4Box.type("stss");
+    private static final int STSC = Mp4Box.type("stsc");
+    private static final int STSZ = Mp4Box.type("stsz");
+    private static final int STCO = Mp4Box.type("stco");
+    private static final int CO64 = Mp4Box.type("co64");
+    private static final int AVCC = Mp4Box.type("avcC");
+    private static final int ESDS = Mp4Box.type("esds");
+    private static final int MP4A = Mp4Box.type("mp4a");
+
+    private final int trackId;
+    private final int handler;
+    private final long timescale;
+    private final String codecs;
+    private final int width;
+    private final int height;
+    private final long[] offsets;
+    private final int[] sizes;
+    private final long[] times;
+    private final int[] compositionOffsets;
+    private final boolean[] sync;
+
+    private SampleTable(int trackId, int handler, long timescale, String codecs, int width, int height, long[] offsets,
+                        int[] sizes, long[] times, int[] compositionOffsets, boolean[] sync) {
+        this.trackId = trackId;
+        this.handler = handler;
+        this.timescale = timescale;
+        this.codecs = codecs;
+        this.width = width;
+        this.height = height;
+        this.offsets = offsets;
+        this.sizes = sizes;
+        this.times = times;
+        this.compositionOffsets = compositionOffsets;
+        this.sync = sync;
+    }
+
+    /**
+     * Reads the sample tables of all audio and video tracks.
+     * @param movie The movie box, including its header, with the chunk offsets of the real file.
+     * @return The tracks in the order of the movie box, empty if there are none or their tables are malformed.
+     */
+    static List<SampleTable> parse(ByteBuffer movie) {
+        List<SampleTable> tracks = new ArrayList<>();
+        try {
+            int[] moov = {8, movie.limit()};
+            for (int[] trak = Mp4Box.child(movie, moov, TRAK, 0); trak != null; trak = Mp4Box.child(movie, moov, TRAK, trak[1])) {
+                SampleTable track = parse(movie, trak);
+                if (track != null) {
+                    tracks.add(track);
+                }
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            tracks.clear();
+        }
+        return tracks;
+    }
+
+    private static SampleTable parse(ByteBuffer movie, int[] trak) {
+        int[] tkhd = Mp4Box.child(movie, trak, TKHD, 0);
+        int[] mdia = Mp4Box.child(movie, trak, MDIA, 0);
+        int[] mdhd = Mp4Box.child(movie, mdia, MDHD, 0);
+        int[] hdlr = Mp4Box.child(movie, mdia, HDLR, 0);
+        int[] stbl = Mp4Box.child(movie, Mp4Box.child(movie, mdia, MINF, 0), STBL, 0);
+        if (tkhd == null || mdhd == null || hdlr == null || stbl == null) {
+            return null;
+        }
+        int handler = movie.getInt(hdlr[0] + 8);
+        if (handler != VIDE && handler != SOUN) {
+            return null;
+        }
+
+        int[] stsd = Mp4Box.child(movie, stbl, STSD, 0);
+        int[] stts = Mp4Box.child(movie, stbl, STTS, 0);
+        int[] ctts = Mp4Box.child(movie, stbl, CTTS, 0);
+        int[] stss = Mp4Box.child(movie, stbl, STSS, 0);
+        int[] stsc = Mp4Box.child(movie, stbl, STSC, 0);
+        int[] stsz = Mp4Box.child(movie, stbl, STSZ, 0);
+        int[] stco = Mp4Box.child(movie, stbl, STCO, 0);
+        boolean co64 = stco == null;
+        if (co64) {
+            stco = Mp4Box.child(movie, stbl, CO64, 0);
+        }
+        if (stsd == null || stts == null || stsc == null || stsz == null || stco == null) {
+            return null;
+        }
+
+        boolean tkhdV1 = movie.get(tkhd[0]) == 1;
+        int trackId = movie.getInt(tkhd[0] + (tkhdV1 ? 20 : 12));
+        int width = movie.getInt(tkhd[0] + (tkhdV1 ? 88 : 76)) >>> 16;
+        int height = movie.getInt(tkhd[0] + (tkhdV1 ? 92 : 80)) >>> 16;
+        long timescale = movie.get(mdhd[0]) == 1 ? uint(movie, mdhd[0] + 20) : uint(movie, mdhd[0] + 12);
+
+        int sampleSize = movie.getInt(stsz[0] + 4);
+        int sampleCount = movie.getInt(stsz[0] + 8);
+        int chunkCount = movie.getInt(stco[0] + 4);
+        int stscCount = movie.getInt(stsc[0] + 4);
+        int sttsCount = movie.getInt(stts[0] + 4);
+        // Every table entry takes at least 4 bytes, which bounds the arrays by the size of the movie box.
+        if (timescale <= 0 || sampleCount < 0 || sampleCount > movie.limit() / 4 && sampleSize == 0
+                || chunkCount < 0 || stscCount <= 0 || sttsCount <= 0 || sampleCount > 64 * 1024 * 1024) {
+            return null;
+        }
+
+        long[] offsets = new long[sampleCount];
+        int[] sizes = new int[sampleCount];
+        int sample = 0;
+        int stscEntry = 0;
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            while (stscEntry + 1 < stscCount && uint(movie, stsc[0] + 8 + (stscEntry + 1) * 12) <= chunk) {
+                stscEntry++;
+            }
+            long samplesPerChunk = uint(movie, stsc[0] + 8 + stscEntry * 12 + 4);
+            long offset = co64 ? movie.getLong(stco[0] + 8 + (chunk - 1) * 8) : uint(movie, stco[0] + 8 + (chunk - 1) * 4);
+            for (long i = 0; i < samplesPerChunk && sample < sampleCount; i++, sample++) {
+                offsets[sample] = offset;
+                sizes[sample] = sampleSize != 0 ? sampleSize : movie.getInt(stsz[0] + 12 + sample * 4);
+                offset += sizes[sample];
+            }
+        }
+        if (sample < sampleCount) {
+            return null;
+        }
+
+        long[] times = new long[sampleCount + 1];
+        sample = 0;
+        for (int entry = 0; entry < sttsCount && sample < sampleCount; entry++) {
+            long count = uint(movie, stts[0] + 8 + entry * 8);
+            long delta = uint(movie, stts[0] + 8 + entry * 8 + 4);
+            for (long i = 0; i < count && sample < sampleCount; i++, sample++) {
+                times[sample + 1] = times[sample] + delta;
+            }
+        }
+
+        int[] compositionOffsets = null;
+        if (ctts != null) {
+            compositionOffsets = new int[sampleCount];
+            int cttsCount = movie.getInt(ctts[0] + 4);
+            sample = 0;
+            for (int entry = 0; entry < cttsCount && sample < sampleCount; entry++) {
+                long count = uint(movie, ctts[0] + 8 + entry * 8);
+                int offset = movie.getInt(ctts[0] + 8 + entry * 8 + 4);
+                for (long i = 0; i < count && sample < sampleCount; i++, sample++) {
+                    compositionOffsets[sample] = offset;
+                }
+            }
+        }
+
+        boolean[] sync = null;
+        if (stss != null) {
+            sync = new boolean[sampleCount];
+            int syncCount = movie.getInt(stss[0] + 4);
+            for (int entry = 0; entry < syncCount; entry++) {
+                long number = uint(movie, stss[0] + 8 + entry * 4);
+                if (number >= 1 && number <= sampleCount) {
+                    sync[(int) number - 1] = true;
+                }
+            }
+        }
+
+        return new SampleTable(trackId, handler, timescale, codecs(movie, stsd), width, height, offsets, sizes, times,
+                compositionOffsets, sync);
+    }
+
+    /**
+     * Derives the RFC 6381 codecs parameter from the first sample entry, e.g. "avc1.64002a" or "mp4a.40.2". Other
+     * formats are described by their sample entry type only.
+     */
+    private static String codecs(ByteBuffer movie, int[] stsd) {
+        int entry = stsd[0] + 8;
+        int[] content = {entry + 8, entry + movie.getInt(entry)};
+        int type = movie.getInt(entry + 4);
+        String name = new Mp4Box(type, 0, 0, 8).getTypeName();
+
+        // Children of the entry follow the fields of the visual or audio sample entry.
+        int[] avcC = Mp4Box.child(movie, content, AVCC, content[0] + 78);
+        if (avcC != null) {
+            return String.format("%s.%02x%02x%02x", name, movie.get(avcC[0] + 1), movie.get(avcC[0] + 2), movie.get(avcC[0] + 3));
+        }
+        if (type == MP4A) {
+            int version = movie.getShort(content[0] + 8);
+            int[] esds = Mp4Box.child(movie, content, ESDS, content[0] + (version == 1 ? 44 : version == 2 ? 64 : 28));
+            return esds != null ? audioCodecs(movie, esds[0] + 4, esds[1]) : "mp4a.40.2";
+        }
+        return name;
+    }
+
+    /**
+     * Reads object type and audio object type from the ES descriptor of an esds box.
+     */
+    private static String audioCodecs(ByteBuffer movie, int position, int end) {
+        int objectType = -1;
+        while (position + 2 <= end) {
+            int tag = movie.get(position++) & 0xFF;
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = movie.get(position++) & 0xFF;
+                length = length << 7 | b & 0x7F;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (tag == 0x03) {
+                int flags = movie.get(position + 2) & 0xFF;
+                position += 3 + ((flags & 0x80) != 0 ? 2 : 0) + ((flags & 0x20) != 0 ? 2 : 0);
+                if ((flags & 0x40) != 0) {
+                    position += 1 + (movie.get(position) & 0xFF);
+                }
+            } else if (tag == 0x04) {
+                objectType = movie.get(position) & 0xFF;
+                position += 13;
+            } else if (tag == 0x05 && objectType >= 0) {
+                int audioObjectType = (movie.get(position) & 0xFF) >>> 3;
+                if (audioObjectType == 31) {
+                    audioObjectType = 32 + (((movie.get(position) & 0x07) << 3) | ((movie.get(position + 1) & 0xFF) >>> 5));
+                }
+                return String.format("mp4a.%02x.%d", objectType, audioObjectType);
+            } else {
+                position += length;
+            }
+        }
+        return objectType >= 0 ? String.format("mp4a.%02x", objectType) : "mp4a.40.2";
+    }
+
+    private static long uint(ByteBuffer buffer, int position) {
+        return buffer.getInt(position) & 0xFFFFFFFFL;
+    }
+
+    int getTrackId() {
+        return trackId;
+    }
+
+    boolean isVideo() {
+        return handler == VIDE;
+    }
+
+    long getTimescale() {
+        return timescale;
+    }
+
+    String getCodecs() {
+        return codecs;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    int size() {
+        return sizes.length;
+    }
+
+    long getOffset(int sample) {
+        return offsets[sample];
+    }
+
+    int getSize(int sample) {
+        return sizes[sample];
+    }
+
+    /**
+     * @param sample A sample, or the number of samples for the end of the track.
+     * @return Decode time of the sample in units of the timescale.
+     */
+    long getTime(int sample) {
+        return times[sample];
+    }
+
+    int getDuration(int sample) {
+        return (int) (times[sample + 1] - times[sample]);
+    }
+
+    boolean hasCompositionOffsets() {
+        return compositionOffsets != null;
+    }
+
+    int getCompositionOffset(int sample) {
+        return compositionOffsets != null ? compositionOffsets[sample] : 0;
+    }
+
+    boolean isSync(int sample) {
+        return sync == null || sync[sample];
+    }
+
+    /**
+     * @return Total size of the sample data in bytes.
+     */
+    long getDataSize() {
+        long total = 0;
+        for (int size : sizes) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * @return Approximate heap size of the table.
+     */
+    int getWeight() {
+        return 64 + sizes.length * (8 + 4 + 8 + (compositionOffsets != null ? 4 : 0) + (sync != null ? 1 : 0));
+    }
+}
@@ -0,0 +1,47 @@
+package de.hoel.video.server;
+
+import org.apache.coyote.AbstractProtocol;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Tomcat settings of the servlet stack.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ServletServerConfiguration {
+
+    /**
+     * Closes the connections of stalled bodies, see {@link StalledConnectionValve}.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> stalledConnectionCustomizer() {
+        return factory -> factory.addEngineValves(new StalledConnectionValve());
+    }
+
+    /**
+     * Lets a blocking write to a client that takes nothing fail after the idle-timeout of the {@link StallDetector},
+     * unless server.connection-timeout is set. The connector's timeout is the write timeout of blocking bodies, the
+     * only one that ends a write already blocked.
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> stalledWriteCustomizer(StreamingProperties properties,
+                                                                                              ServerProperties server) {
+        return factory -> {
+            StreamingProperties.Stalls stalls = properties.getStalls();
+            if (!stalls.isEnabled() || stalls.getIdleTimeout() <= 0 || server.getConnectionTimeout() != null) {
+                return;
+            }
+            int timeout = (int) Math.min(stalls.getIdleTimeout(), Integer.MAX_VALUE);
+            factory.addConnectorCustomizers(connector -> {
+                if (connector.getProtocolHandler() instanceof AbstractProtocol) {
+                    ((AbstractProtocol<?>) connector.getProtocolHandler()).setConnectionTimeout(timeout);
+                }
+            });
+        };
+    }
+}
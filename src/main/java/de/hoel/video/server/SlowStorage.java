@@ -0,0 +1,57 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local directory that answers like slow network storage: every request waits for the given latency first, and
+ * reads share the given bandwidth. Used to try out the disk cache of {@link TieredStorage} without a real remote
+ * store.
+ */
+public class SlowStorage extends LocalStorage {
+
+    private final long latency;
+    private final TokenBucket bandwidth;
+
+    /**
+     * Construct a slow storage.
+     * @param root The directory.
+     * @param latency Milliseconds every request waits before it starts.
+     * @param bandwidth Bytes per second shared by all reads, 0 for no limit.
+     */
+    public SlowStorage(Path root, long latency, long bandwidth) {
+        super(root);
+        this.latency = latency;
+        this.bandwidth = new TokenBucket(bandwidth);
+    }
+
+    @Override
+    public List<StoredObject> list() throws IOException {
+        sleep(TimeUnit.MILLISECONDS.toNanos(latency));
+        return super.list();
+    }
+
+    @Override
+    public int read(String key, long position, ByteBuffer dst) throws IOException {
+        sleep(TimeUnit.MILLISECONDS.toNanos(latency) + bandwidth.reserve(dst.remaining(), System.nanoTime()));
+        return super.read(key, position, dst);
+    }
+
+    private static void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the storage");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " (" + latency + " ms latency)";
+    }
+}
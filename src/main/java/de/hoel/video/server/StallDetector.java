@@ -0,0 +1,401 @@
+package de.hoel.video.server;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Watches the progress of streamed response bodies and aborts the ones whose client stopped reading: a body that
+ * goes idle-timeout without bytes taken by the client, or drains slower than min-drain-rate over a drain window, is
+ * stalled. Paused or backgrounded players and dead networks otherwise keep their file, buffers and admission permit
+ * until the connector's own timeouts strike.
+ * <p>
+ * How a stalled body is aborted depends on how it is written: non-blocking writers release everything right away and
+ * drop the connection, a blocking write fails at its next call; a write blocked on a client that takes nothing fails
+ * at the connector's timeout, which follows idle-timeout. Bodies handed over to sendfile aren't watched, their
+ * progress isn't visible. Every stream records its longest gap and lowest drain rate per client class, the product of
+ * its User-Agent, so the timeouts can be tuned against what the players really do.
+ */
+@Component
+public class StallDetector {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Request attribute of a servlet request whose body stalled, see {@link StalledConnectionValve}.
+     */
+    static final String STALLED_ATTR = "de.hoel.video.server.stalled";
+
+    static final String IDLE = "idle";
+    static final String SLOW = "slow";
+    static final String OTHER = "other";
+    static final String UNKNOWN = "unknown";
+
+    private final StreamingProperties.Stalls settings;
+    private final MeterRegistry registry;
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, ClientClass> classes = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    public StallDetector(StreamingProperties properties, MeterRegistry registry) {
+        this.settings = properties.getStalls();
+        this.registry = registry;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("stall-detector").setDaemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(this::check, settings.getCheckInterval(), settings.getCheckInterval(),
+                TimeUnit.MILLISECONDS);
+        registry.gaugeCollectionSize("video.stalls.watched", Collections.emptyList(), watches);
+    }
+
+    /**
+     * Starts watching a response body.
+     * @param userAgent The User-Agent header of the request, may be null.
+     * @return The watch, to be closed once the body is done.
+     */
+    public Watch open(String userAgent) {
+        Watch watch = new Watch(classify(userAgent));
+        watches.add(watch);
+        return watch;
+    }
+
+    /**
+     * @param userAgent The User-Agent header, may be null.
+     * @return The client class: the first product of the header, e.g. "vlc" or "mozilla", with at most
+     * max-client-classes distinct ones.
+     */
+    ClientClass classify(String userAgent) {
+        String name = product(userAgent);
+        ClientClass known = classes.get(name);
+        if (known != null) {
+            return known;
+        }
+        if (classes.size() >= settings.getMaxClientClasses()) {
+            name = OTHER;
+        }
+        return classes.computeIfAbsent(name, ClientClass::new);
+    }
+
+    static String product(String userAgent) {
+        if (userAgent == null) {
+            return UNKNOWN;
+        }
+        StringBuilder product = new StringBuilder();
+        for (int i = 0; i < userAgent.length() && product.length() < 32; i++) {
+            char c = Character.toLowerCase(userAgent.charAt(i));
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_') {
+                product.append(c);
+            } else if (product.length() > 0 || c == '/') {
+                break;
+            }
+        }
+        return product.length() > 0 ? product.toString() : UNKNOWN;
+    }
+
+    /**
+     * Checks every watched body and aborts the stalled ones.
+     */
+    void check() {
+        long now = System.nanoTime();
+        for (Watch watch : watches) {
+            String reason = watch.check(now);
+            if (reason != null) {
+                watch.clientClass.count(reason);
+                registry.counter("video.stalls", "client", watch.clientClass.name, "reason", reason).increment();
+                logger.debug("Aborting {} stream of a {} client", reason, watch.clientClass.name);
+                watch.abort();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public StreamingProperties.Stalls getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Number of bodies being watched.
+     */
+    public int getWatched() {
+        return watches.size();
+    }
+
+    /**
+     * @return The client classes seen so far by name.
+     */
+    public Map<String, ClientClass> getClientClasses() {
+        return new TreeMap<>(classes);
+    }
+
+    /**
+     * Stall counters of the streams of one kind of client.
+     */
+    public static final class ClientClass {
+        private final String name;
+        private final AtomicLong streams = new AtomicLong();
+        private final AtomicLong idle = new AtomicLong();
+        private final AtomicLong slow = new AtomicLong();
+        private final AtomicLong longestGap = new AtomicLong();
+
+        ClientClass(String name) {
+            this.name = name;
+        }
+
+        private void count(String reason) {
+            (IDLE.equals(reason) ? idle : slow).incrementAndGet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Number of bodies watched.
+         */
+        public long getStreams() {
+            return streams.get();
+        }
+
+        /**
+         * @return Number of bodies aborted after idle-timeout without progress.
+         */
+        public long getIdle() {
+            return idle.get();
+        }
+
+        /**
+         * @return Number of bodies aborted for draining slower than min-drain-rate.
+         */
+        public long getSlow() {
+            return slow.get();
+        }
+
+        /**
+         * @return Longest time in milliseconds a body went without progress and still finished.
+         */
+        public long getLongestGap() {
+            return longestGap.get();
+        }
+    }
+
+    /**
+     * The progress of one response body.
+     */
+    public final class Watch implements Closeable {
+        private final ClientClass clientClass;
+        private final long opened = System.nanoTime();
+        private final List<Runnable> actions = new ArrayList<>(1);
+
+        private long bytes;
+        private long progressAt = opened;
+        private long windowStart = opened;
+        private long windowBytes;
+        private long longestGap;
+        private double lowestRate = Double.NaN;
+        private String stalled;
+        private boolean closed;
+        private int pauses;
+        private long pausedAt;
+
+        private Watch(ClientClass clientClass) {
+            this.clientClass = clientClass;
+            clientClass.streams.incrementAndGet();
+        }
+
+        /**
+         * Records bytes taken by the client, or at least by the connector.
+         * @param count Number of bytes.
+         */
+        public synchronized void progress(long count) {
+            long now = System.nanoTime();
+            longestGap = Math.max(longestGap, now - progressAt);
+            bytes += count;
+            progressAt = now;
+        }
+
+        /**
+         * Stops the clock while the server holds the body back, e.g. for the bandwidth shaper or at the end of a
+         * growing file: the wait counts neither as idle time nor against the drain rate. Pauses nest, every one needs
+         * a {@link #resume()}.
+         */
+        public synchronized void pause() {
+            if (pauses++ == 0) {
+                pausedAt = System.nanoTime();
+            }
+        }
+
+        /**
+         * Ends a {@link #pause()}, the clock goes on once the last one ended.
+         */
+        public synchronized void resume() {
+            if (pauses == 0 || --pauses > 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            // Progress made during the pause counts as made now.
+            progressAt += now - Math.max(progressAt, pausedAt);
+            windowStart += now - pausedAt;
+        }
+
+        /**
+         * Registers what aborts the body once it stalls. Runs on the detector's thread, or right away if the body has
+         * stalled already.
+         * @param action Releases the body's resources and drops the connection.
+         */
+        public void onStall(Runnable action) {
+            synchronized (this) {
+                if (stalled == null) {
+                    actions.add(action);
+                    return;
+                }
+            }
+            action.run();
+        }
+
+        /**
+         * @return The reason the body stalled, or null if it makes progress.
+         */
+        public synchronized String getStalled() {
+            return stalled;
+        }
+
+        /**
+         * @return The stall as an exception, to fail the body with.
+         */
+        public IOException failure() {
+            return new IOException("Client stalled (" + getStalled() + "), stream aborted");
+        }
+
+        /**
+         * @param now The current time.
+         * @return The reason if the body stalled just now, else null.
+         */
+        private synchronized String check(long now) {
+            if (stalled != null || closed || pauses > 0) {
+                return null;
+            }
+            if (now - progressAt > TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeout())) {
+                stalled = IDLE;
+            } else if (now - windowStart >= TimeUnit.MILLISECONDS.toNanos(settings.getDrainWindow())) {
+                double rate = (bytes - windowBytes) * 1e9 / (now - windowStart);
+                lowestRate = Double.isNaN(lowestRate) ? rate : Math.min(lowestRate, rate);
+                windowStart = now;
+                windowBytes = bytes;
+                if (rate < settings.getMinDrainRate()) {
+                    stalled = SLOW;
+                }
+            }
+            return stalled;
+        }
+
+        private void abort() {
+            List<Runnable> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(actions);
+                actions.clear();
+            }
+            for (Runnable action : pending) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    logger.debug("Aborting a stalled stream failed", e);
+                }
+            }
+        }
+
+        /**
+         * @param output The stream the body is written to, blocking.
+         * @return A stream that records the progress of the writes and fails the next write once the body stalled.
+         * Closing it ends the watch.
+         */
+        public OutputStream wrap(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (getStalled() != null) {
+                        throw failure();
+                    }
+                    out.write(b, off, len);
+                    progress(len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Watch.this.close();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Ends the watch and records the stream, only the first call has an effect.
+         */
+        @Override
+        public void close() {
+            long gap;
+            double rate;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                actions.clear();
+                gap = stalled == null ? Math.max(longestGap, System.nanoTime() - progressAt) : -1;
+                rate = lowestRate;
+            }
+            watches.remove(this);
+            if (gap >= 0) {
+                clientClass.longestGap.accumulateAndGet(TimeUnit.NANOSECONDS.toMillis(gap), Math::max);
+                Timer.builder("video.stream.gap")
+                        .description("Longest time a finished body went without progress")
+                        .tag("client", clientClass.name)
+                        .register(registry)
+                        .record(gap, TimeUnit.NANOSECONDS);
+            }
+            if (!Double.isNaN(rate)) {
+                DistributionSummary.builder("video.stream.drain")
+                        .description("Lowest drain rate of a body over a drain window")
+                        .baseUnit("bytes")
+                        .tag("client", clientClass.name)
+                        .register(registry)
+                        .record(rate);
+            }
+        }
+    }
+}
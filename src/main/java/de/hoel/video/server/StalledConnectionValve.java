@@ -0,0 +1,38 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+import org.apache.coyote.ActionCode;
+
+/**
+ * Drops the connection of a request whose body was aborted by the {@link StallDetector}. The body ends short of its
+ * Content-Length, and Tomcat would keep the connection open for the next request otherwise; the client would wait
+ * for the missing bytes until it times out. A blocking body fails while the servlet runs, at its next write or, if it
+ * is blocked in one, at the connector's timeout, see {@link ServletServerConfiguration}. A non-blocking body is
+ * dispatched back to the container once it is aborted, and the dispatch ends here without running the servlet again.
+ */
+class StalledConnectionValve extends ValveBase {
+
+    StalledConnectionValve() {
+        super(true);
+    }
+
+    @Override
+    public void invoke(Request request, Response response) throws IOException, ServletException {
+        if (!isStalled(request)) {
+            getNext().invoke(request, response);
+        }
+        if (isStalled(request)) {
+            response.getCoyoteResponse().action(ActionCode.CLOSE_NOW, null);
+        }
+    }
+
+    private static boolean isStalled(Request request) {
+        return request.getAttribute(StallDetector.STALLED_ATTR) != null;
+    }
+}
@@ -0,0 +1,215 @@
+package de.hoel.video.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Micrometer instrumentation of the senders, published through the actuator at {@code /actuator/metrics}:
+ * <ul>
+ * <li>{@code video.responses}: responses by status, e.g. 206, 304 or 416.</li>
+ * <li>{@code video.range.size} and {@code video.range.offset}: size of the requested ranges and where they start, in
+ * percent of the file.</li>
+ * <li>{@code video.streams.active}: response bodies being written.</li>
+ * <li>{@code video.stream.ttfb}: time from the request to the first byte of the body handed to the connector.</li>
+ * <li>{@code video.stream.throughput}: bytes per second of every body, from its first byte to its end.</li>
+ * <li>{@code video.bytes.sent}: bytes of the bodies by video, to find hot videos.</li>
+ * <li>{@code video.streams.aborted}: bodies that failed before their end, mostly clients going away.</li>
+ * <li>{@code video.cache.loads} and {@code video.cache.coalesced}: chunks the chunk cache read from the files, and reads
+ * that were served by a load in flight instead of reading the file again.</li>
+ * </ul>
+ * Bodies handed to sendfile count as sent at once, the connector doesn't report when it is done.
+ */
+@Component
+public class StreamMetrics {
+
+    private final MeterRegistry registry;
+    private final StreamingProperties.Metrics settings;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final DistributionSummary rangeSizes;
+    private final DistributionSummary rangeOffsets;
+    private final Timer firstBytes;
+    private final DistributionSummary throughputs;
+    private final Counter aborts;
+
+    public StreamMetrics(MeterRegistry registry, StreamingProperties properties, ChunkCache cache) {
+        this.registry = registry;
+        this.settings = properties.getMetrics();
+        this.rangeSizes = DistributionSummary.builder("video.range.size").baseUnit("bytes")
+                .description("Size of the requested byte ranges").register(registry);
+        this.rangeOffsets = DistributionSummary.builder("video.range.offset").baseUnit("percent")
+                .description("Start of the requested byte ranges in percent of the file").register(registry);
+        this.firstBytes = Timer.builder("video.stream.ttfb")
+                .description("Time from the request to the first byte of the body").register(registry);
+        this.throughputs = DistributionSummary.builder("video.stream.throughput").baseUnit("bytes per second")
+                .description("Throughput of every response body").register(registry);
+        this.aborts = Counter.builder("video.streams.aborted")
+                .description("Response bodies that failed before their end").register(registry);
+        registry.gauge("video.streams.active", active);
+        FunctionCounter.builder("video.cache.loads", cache, ChunkCache::getLoadCount)
+                .description("Chunks read from the files by the chunk cache").register(registry);
+        FunctionCounter.builder("video.cache.coalesced", cache, ChunkCache::getCoalescedReads)
+                .description("Chunk reads served by a load in flight").register(registry);
+    }
+
+    /**
+     * Counts a response.
+     * @param status Its status code.
+     */
+    public void response(int status) {
+        registry.counter("video.responses", "status", String.valueOf(status)).increment();
+    }
+
+    /**
+     * Records a range of a partial response.
+     * @param start Start of the range.
+     * @param length Length of the range.
+     * @param total Size of the file.
+     */
+    public void range(long start, long length, long total) {
+        rangeSizes.record(length);
+        rangeOffsets.record(total > 0 ? 100.0 * start / total : 0);
+    }
+
+    /**
+     * @return True if the current request should be logged in detail, see
+     * {@link StreamingProperties.Metrics#getLogSampleRate()}.
+     */
+    public boolean isSampled() {
+        double rate = settings.getLogSampleRate();
+        return rate >= 1 || rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    /**
+     * Formats the Server-Timing header of a response.
+     * @param received When the request was received, in {@link System#nanoTime()}.
+     * @return The header value, or null if the header is disabled.
+     */
+    public String serverTiming(long received) {
+        if (!settings.isServerTiming()) {
+            return null;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - received);
+        return "prep;desc=\"Validate and prepare\";dur=" + micros / 1000.0;
+    }
+
+    /**
+     * @return Bytes of all response bodies handed to the connector since startup.
+     */
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    /**
+     * Starts measuring a response body, which has to be closed once it has been written.
+     * @param video ID of the video.
+     * @param received When the request was received, in {@link System#nanoTime()}.
+     * @return The stream.
+     */
+    public Stream open(String video, long received) {
+        active.incrementAndGet();
+        return new Stream(settings.isPerVideo() ? video : "all", received);
+    }
+
+    /**
+     * Measurements of one response body.
+     */
+    public final class Stream {
+
+        private final String video;
+        private final long received;
+        private long firstByte;
+        private long bytes;
+        private boolean handedOver;
+        private boolean aborted;
+        private boolean closed;
+
+        private Stream(String video, long received) {
+            this.video = video;
+            this.received = received;
+        }
+
+        /**
+         * Records bytes handed to the connector.
+         * @param count Number of bytes.
+         */
+        public synchronized void sent(long count) {
+            if (bytes == 0 && count > 0) {
+                firstByte = System.nanoTime();
+                firstBytes.record(firstByte - received, TimeUnit.NANOSECONDS);
+            }
+            bytes += count;
+            sentBytes.addAndGet(count);
+        }
+
+        /**
+         * Records a body handed over as a whole, e.g. to sendfile, whose throughput isn't known.
+         * @param count Number of bytes.
+         */
+        public synchronized void handedOver(long count) {
+            sent(count);
+            handedOver = true;
+        }
+
+        /**
+         * Marks the body as failed before its end.
+         */
+        public synchronized void abort() {
+            aborted = true;
+        }
+
+        /**
+         * Ends the body, only the first call has an effect.
+         */
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.decrementAndGet();
+            if (aborted) {
+                aborts.increment();
+            }
+            if (bytes > 0) {
+                registry.counter("video.bytes.sent", "video", video).increment(bytes);
+                long nanos = System.nanoTime() - firstByte;
+                if (!handedOver && nanos > 0) {
+                    throughputs.record(bytes * 1e9 / nanos);
+                }
+            }
+        }
+
+        /**
+         * @param output The stream the body is written to.
+         * @return A stream that records the bytes written through it.
+         */
+        public OutputStream wrap(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    sent(1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    sent(len);
+                }
+            };
+        }
+    }
+}
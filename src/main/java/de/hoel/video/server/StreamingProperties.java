@@ -0,0 +1,1474 @@
+package de.hoel.video.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deployment switches for the video streaming server, bound from the {@code video.streaming.*} properties.
+ */
+@Component
+@ConfigurationProperties(prefix = "video.streaming")
+public class StreamingProperties {
+
+    /**
+     * Deliver ranges straight from a {@link java.nio.channels.FileChannel} (Tomcat sendfile where the connector
+     * supports it) instead of copying them through a user-space buffer.
+     */
+    private boolean zeroCopy = true;
+
+    /**
+     * Largest number of ranges accepted in one Range header, requests with more are answered with 416.
+     */
+    private int maxRanges = 16;
+
+    private final Cache cache = new Cache();
+
+    private final Async async = new Async();
+
+    private final Shaping shaping = new Shaping();
+
+    private final Coalescing coalescing = new Coalescing();
+
+    private final Catalog catalog = new Catalog();
+
+    private final ETag etag = new ETag();
+
+    private final Faststart faststart = new Faststart();
+
+    private final Packaging packaging = new Packaging();
+
+    private final ReadAhead readAhead = new ReadAhead();
+
+    private final Buffers buffers = new Buffers();
+
+    private final Metrics metrics = new Metrics();
+
+    private final Storage storage = new Storage();
+
+    private final Admission admission = new Admission();
+
+    private final Stalls stalls = new Stalls();
+
+    private final Handles handles = new Handles();
+
+    private final Cluster cluster = new Cluster();
+
+    private final Live live = new Live();
+
+    public boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    public int getMaxRanges() {
+        return maxRanges;
+    }
+
+    public void setMaxRanges(int maxRanges) {
+        this.maxRanges = maxRanges;
+    }
+
+    public Cache getCache() {
+        return cache;
+    }
+
+    public Async getAsync() {
+        return async;
+    }
+
+    public Shaping getShaping() {
+        return shaping;
+    }
+
+    public Coalescing getCoalescing() {
+        return coalescing;
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    public ETag getEtag() {
+        return etag;
+    }
+
+    public Faststart getFaststart() {
+        return faststart;
+    }
+
+    public Packaging getPackaging() {
+        return packaging;
+    }
+
+    public ReadAhead getReadAhead() {
+        return readAhead;
+    }
+
+    public Buffers getBuffers() {
+        return buffers;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public Stalls getStalls() {
+        return stalls;
+    }
+
+    public Handles getHandles() {
+        return handles;
+    }
+
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    public Live getLive() {
+        return live;
+    }
+
+    /**
+     * Off-heap cache of hot file chunks, see {@link ChunkCache}.
+     */
+    public static class Cache {
+
+        /**
+         * Serve range requests from the chunk cache.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Upper bound of cached bytes.
+         */
+        private long maxSize = 256L * 1024 * 1024;
+
+        /**
+         * Size of one cached chunk in bytes; chunks are aligned to multiples of it.
+         */
+        private int chunkSize = 1024 * 1024;
+
+        /**
+         * Single ranges longer than this many bytes are read from the file, with sendfile in zero-copy mode, instead
+         * of pushing the hot chunks out of the cache. Playback usually asks for everything from its position on, probes
+         * of the container and seeks ask for less.
+         */
+        private long maxRange = 2L * 1024 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public long getMaxRange() {
+            return maxRange;
+        }
+
+        public void setMaxRange(long maxRange) {
+            this.maxRange = maxRange;
+        }
+    }
+
+    /**
+     * Non-blocking streaming with servlet async I/O, see {@link AsyncRangeWriter}.
+     */
+    public static class Async {
+
+        /**
+         * Write response bodies from write listeners instead of blocking a worker thread per stream.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Threads resuming streams that wait for the bandwidth shaper.
+         */
+        private int poolSize = 2;
+
+        /**
+         * Threads reading the file, and chunks missing in the cache, for the async streams. Writers never read on the
+         * container's threads, a stream waits for a free reader instead.
+         */
+        private int readThreads = 8;
+
+        /**
+         * Timeout of a whole stream in milliseconds, 0 for none. Clients that stop reading are already dropped by
+         * the connector's write timeout.
+         */
+        private long timeout = 0;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getReadThreads() {
+            return readThreads;
+        }
+
+        public void setReadThreads(int readThreads) {
+            this.readThreads = readThreads;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Egress limits of the {@link BandwidthShaper}. Rates are in bytes per second, 0 means no limit. They can be
+     * changed at runtime through {@code PUT /admin/shaping}.
+     */
+    public static class Shaping {
+
+        /**
+         * Shape response bodies at all.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Egress budget of the whole server, shared fairly by weight between the active streams.
+         */
+        private double globalRate = 0;
+
+        /**
+         * Limit of all streams of one client address together.
+         */
+        private double clientRate = 0;
+
+        /**
+         * Limit of all streams of one video together.
+         */
+        private double videoRate = 0;
+
+        /**
+         * Limit of a single stream.
+         */
+        private double streamRate = 0;
+
+        /**
+         * Milliseconds after the start of a stream (i.e. a seek) in which it may burst past its fair share.
+         */
+        private long burstDuration = 2000;
+
+        /**
+         * Bytes a stream may send within its burst duration before the other limits apply. The streams of a client,
+         * and of a video, share one burst of this size ahead of the client and video rates.
+         */
+        private long burstSize = 4L * 1024 * 1024;
+
+        /**
+         * Milliseconds between two fair share calculations.
+         */
+        private long rebalanceInterval = 500;
+
+        /**
+         * Fair share weight per video file name, 1 for videos that aren't listed.
+         */
+        private Map<String, Double> weights = new HashMap<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getGlobalRate() {
+            return globalRate;
+        }
+
+        public void setGlobalRate(double globalRate) {
+            this.globalRate = globalRate;
+        }
+
+        public double getClientRate() {
+            return clientRate;
+        }
+
+        public void setClientRate(double clientRate) {
+            this.clientRate = clientRate;
+        }
+
+        public double getVideoRate() {
+            return videoRate;
+        }
+
+        public void setVideoRate(double videoRate) {
+            this.videoRate = videoRate;
+        }
+
+        public double getStreamRate() {
+            return streamRate;
+        }
+
+        public void setStreamRate(double streamRate) {
+            this.streamRate = streamRate;
+        }
+
+        public long getBurstDuration() {
+            return burstDuration;
+        }
+
+        public void setBurstDuration(long burstDuration) {
+            this.burstDuration = burstDuration;
+        }
+
+        public long getBurstSize() {
+            return burstSize;
+        }
+
+        public void setBurstSize(long burstSize) {
+            this.burstSize = burstSize;
+        }
+
+        public long getRebalanceInterval() {
+            return rebalanceInterval;
+        }
+
+        public void setRebalanceInterval(long rebalanceInterval) {
+            this.rebalanceInterval = rebalanceInterval;
+        }
+
+        public Map<String, Double> getWeights() {
+            return weights;
+        }
+
+        public void setWeights(Map<String, Double> weights) {
+            this.weights = weights;
+        }
+    }
+
+    /**
+     * Batching of response writes into frames, see {@link CoalescingOutputStream}.
+     */
+    public static class Coalescing {
+
+        /**
+         * Batch writes into frames instead of leaving flushing to the response buffer.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Smallest frame in bytes, also the size of the first frames of a stream.
+         */
+        private int minFrame = 16 * 1024;
+
+        /**
+         * Largest frame in bytes.
+         */
+        private int maxFrame = 128 * 1024;
+
+        /**
+         * Milliseconds a client should take to drain one frame, frames are sized to the measured drain rate by it.
+         */
+        private long targetLatency = 50;
+
+        /**
+         * Milliseconds a buffered byte may wait for its frame to fill up before it is flushed anyway.
+         */
+        private long maxDelay = 20;
+
+        /**
+         * Bytes at the start of a stream that are flushed right away, to keep the time to first frame after a seek.
+         */
+        private long startupBytes = 64 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMinFrame() {
+            return minFrame;
+        }
+
+        public void setMinFrame(int minFrame) {
+            this.minFrame = minFrame;
+        }
+
+        public int getMaxFrame() {
+            return maxFrame;
+        }
+
+        public void setMaxFrame(int maxFrame) {
+            this.maxFrame = maxFrame;
+        }
+
+        public long getTargetLatency() {
+            return targetLatency;
+        }
+
+        public void setTargetLatency(long targetLatency) {
+            this.targetLatency = targetLatency;
+        }
+
+        public long getMaxDelay() {
+            return maxDelay;
+        }
+
+        public void setMaxDelay(long maxDelay) {
+            this.maxDelay = maxDelay;
+        }
+
+        public long getStartupBytes() {
+            return startupBytes;
+        }
+
+        public void setStartupBytes(long startupBytes) {
+            this.startupBytes = startupBytes;
+        }
+    }
+
+    /**
+     * Library directories indexed by the {@link VideoCatalog}.
+     */
+    public static class Catalog {
+
+        /**
+         * Directories scanned for videos, including their subdirectories.
+         */
+        private List<String> libraries = new ArrayList<>();
+
+        /**
+         * The video served at /videos/test.
+         */
+        private String testVideo = "C:\\Users\\lukas\\Videos\\bbb_sunflower_1080p_60fps_stereo_abl.mp4";
+
+        public List<String> getLibraries() {
+            return libraries;
+        }
+
+        public void setLibraries(List<String> libraries) {
+            this.libraries = libraries;
+        }
+
+        public String getTestVideo() {
+            return testVideo;
+        }
+
+        public void setTestVideo(String testVideo) {
+            this.testVideo = testVideo;
+        }
+    }
+
+    /**
+     * Content based entity tags, see {@link ETagIndex}.
+     */
+    public static class ETag {
+
+        /**
+         * Hash the videos in the background and send the hashes as ETags instead of size and modification time.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Threads hashing videos.
+         */
+        private int poolSize = 1;
+
+        /**
+         * File the computed ETags are kept in across restarts.
+         */
+        private String indexFile = ".etag-index";
+
+        /**
+         * Files up to this size in bytes are hashed completely, larger ones by samples.
+         */
+        private long fullHashLimit = 64 * 1024 * 1024;
+
+        /**
+         * Number of evenly spread samples hashed of a large file, the first and the last bytes are always included.
+         */
+        private int sampleCount = 64;
+
+        /**
+         * Size of one sample in bytes.
+         */
+        private int sampleSize = 64 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public String getIndexFile() {
+            return indexFile;
+        }
+
+        public void setIndexFile(String indexFile) {
+            this.indexFile = indexFile;
+        }
+
+        public long getFullHashLimit() {
+            return fullHashLimit;
+        }
+
+        public void setFullHashLimit(long fullHashLimit) {
+            this.fullHashLimit = fullHashLimit;
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public void setSampleCount(int sampleCount) {
+            this.sampleCount = sampleCount;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        public void setSampleSize(int sampleSize) {
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    /**
+     * Virtual faststart layout of MP4 files with the movie box at the end, see {@link FaststartLayout}.
+     */
+    public static class Faststart {
+
+        /**
+         * Serve MP4 files with the movie box in front of the media data.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Upper bound in bytes of the cached box indexes, including the patched movie boxes.
+         */
+        private long cacheSize = 64 * 1024 * 1024;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getCacheSize() {
+            return cacheSize;
+        }
+
+        public void setCacheSize(long cacheSize) {
+            this.cacheSize = cacheSize;
+        }
+    }
+
+    /**
+     * HLS and DASH manifests over fragmented MP4 remuxed from the MP4 files, see {@link FragmentedMp4}.
+     */
+    public static class Packaging {
+
+        /**
+         * Serve manifests and fragmented MP4 for MP4 videos.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Target duration of a segment in seconds. Segments start at keyframes, so they can be longer.
+         */
+        private double segmentDuration = 6;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public double getSegmentDuration() {
+            return segmentDuration;
+        }
+
+        public void setSegmentDuration(double segmentDuration) {
+            this.segmentDuration = segmentDuration;
+        }
+    }
+
+    /**
+     * Per client read-ahead of sequentially streamed files, see {@link de.hoel.video.server.ReadAhead}.
+     */
+    public static class ReadAhead {
+
+        /**
+         * Prefetch the bytes after the read position of clients that stream sequentially.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Bytes loaded ahead of the read position.
+         */
+        private long window = 8L * 1024 * 1024;
+
+        /**
+         * Bytes a client has to read sequentially before its read-ahead starts.
+         */
+        private long trigger = 2L * 1024 * 1024;
+
+        /**
+         * Largest distance in bytes from the end of the previous request at which a request still continues it.
+         */
+        private long tolerance = 256 * 1024;
+
+        /**
+         * Number of threads loading windows.
+         */
+        private int poolSize = 2;
+
+        /**
+         * Number of windows waiting to be loaded, more are dropped.
+         */
+        private int queueSize = 64;
+
+        /**
+         * Largest number of tracked sessions (client and file).
+         */
+        private long maxSessions = 4096;
+
+        /**
+         * Milliseconds after which an idle session is dropped.
+         */
+        private long sessionTimeout = 60000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getWindow() {
+            return window;
+        }
+
+        public void setWindow(long window) {
+            this.window = window;
+        }
+
+        public long getTrigger() {
+            return trigger;
+        }
+
+        public void setTrigger(long trigger) {
+            this.trigger = trigger;
+        }
+
+        public long getTolerance() {
+            return tolerance;
+        }
+
+        public void setTolerance(long tolerance) {
+            this.tolerance = tolerance;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        public void setQueueSize(int queueSize) {
+            this.queueSize = queueSize;
+        }
+
+        public long getMaxSessions() {
+            return maxSessions;
+        }
+
+        public void setMaxSessions(long maxSessions) {
+            this.maxSessions = maxSessions;
+        }
+
+        public long getSessionTimeout() {
+            return sessionTimeout;
+        }
+
+        public void setSessionTimeout(long sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+        }
+    }
+
+    /**
+     * Pool of the I/O buffers of the send path, see {@link BufferPool}.
+     */
+    public static class Buffers {
+
+        /**
+         * Lease response buffers from the pool instead of allocating them per request.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Size in bytes of the smallest buffer class.
+         */
+        private int minSize = 4 * 1024;
+
+        /**
+         * Size in bytes of the largest buffer class, larger buffers aren't pooled.
+         */
+        private int maxSize = 256 * 1024;
+
+        /**
+         * Upper bound in bytes of the buffers kept for reuse.
+         */
+        private long poolSize = 32L * 1024 * 1024;
+
+        /**
+         * Log buffers that are never returned to the pool, with the stack trace of their lease. Costs a stack trace
+         * per lease, meant for debugging.
+         */
+        private boolean leakDetection = false;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMinSize() {
+            return minSize;
+        }
+
+        public void setMinSize(int minSize) {
+            this.minSize = minSize;
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        public long getPoolSize() {
+            return poolSize;
+        }
+
+        public void setPoolSize(long poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public boolean isLeakDetection() {
+            return leakDetection;
+        }
+
+        public void setLeakDetection(boolean leakDetection) {
+            this.leakDetection = leakDetection;
+        }
+    }
+
+    /**
+     * Instrumentation of the senders, see {@link StreamMetrics}.
+     */
+    public static class Metrics {
+
+        /**
+         * Record metrics of every response.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Tag the sent bytes with the video, one time series per video. Disable for very large libraries.
+         */
+        private boolean perVideo = true;
+
+        /**
+         * Send a Server-Timing header with the time spent before the body.
+         */
+        private boolean serverTiming = true;
+
+        /**
+         * Share of the requests logged at debug level, between 0 and 1.
+         */
+        private double logSampleRate = 0.01;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public boolean isPerVideo() {
+            return perVideo;
+        }
+
+        public void setPerVideo(boolean perVideo) {
+            this.perVideo = perVideo;
+        }
+
+        public boolean isServerTiming() {
+            return serverTiming;
+        }
+
+        public void setServerTiming(boolean serverTiming) {
+            this.serverTiming = serverTiming;
+        }
+
+        public double getLogSampleRate() {
+            return logSampleRate;
+        }
+
+        public void setLogSampleRate(double logSampleRate) {
+            this.logSampleRate = logSampleRate;
+        }
+    }
+
+    /**
+     * Library on a slow backing store, cached chunk by chunk on local disk, see {@link TieredStorage}.
+     */
+    public static class Storage {
+
+        /**
+         * Backing store: none, local (a directory), slow (a directory with simulated latency and bandwidth) or http
+         * (an S3 style bucket). A {@link VideoStorage} bean takes precedence.
+         */
+        private String type = "none";
+
+        /**
+         * Directory of a local or slow store, URL of the bucket of an http store.
+         */
+        private String location;
+
+        /**
+         * Milliseconds every request to a slow store waits.
+         */
+        private long latency = 50;
+
+        /**
+         * Bytes per second shared by all reads from a slow store, 0 for no limit.
+         */
+        private long bandwidth;
+
+        /**
+         * Directory on local disk for the cached chunks, their index and the placeholders the catalog lists.
+         */
+        private String cacheDirectory = "storage-cache";
+
+        /**
+         * Upper bound of cached bytes on disk.
+         */
+        private long cacheMaxSize = 10L * 1024 * 1024 * 1024;
+
+        /**
+         * Size of one chunk in bytes; chunks are fetched from the backing store at multiples of it.
+         */
+        private int chunkSize = 1024 * 1024;
+
+        /**
+         * Number of chunks fetched from the backing store in parallel.
+         */
+        private int fetchThreads = 8;
+
+        /**
+         * Number of chunks after a read that are fetched ahead of time.
+         */
+        private int fetchAhead = 4;
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getLocation() {
+            return location;
+        }
+
+        public void setLocation(String location) {
+            this.location = location;
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        public void setLatency(long latency) {
+            this.latency = latency;
+        }
+
+        public long getBandwidth() {
+            return bandwidth;
+        }
+
+        public void setBandwidth(long bandwidth) {
+            this.bandwidth = bandwidth;
+        }
+
+        public String getCacheDirectory() {
+            return cacheDirectory;
+        }
+
+        public void setCacheDirectory(String cacheDirectory) {
+            this.cacheDirectory = cacheDirectory;
+        }
+
+        public long getCacheMaxSize() {
+            return cacheMaxSize;
+        }
+
+        public void setCacheMaxSize(long cacheMaxSize) {
+            this.cacheMaxSize = cacheMaxSize;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public void setChunkSize(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        public int getFetchThreads() {
+            return fetchThreads;
+        }
+
+        public void setFetchThreads(int fetchThreads) {
+            this.fetchThreads = fetchThreads;
+        }
+
+        public int getFetchAhead() {
+            return fetchAhead;
+        }
+
+        public void setFetchAhead(int fetchAhead) {
+            this.fetchAhead = fetchAhead;
+        }
+    }
+
+    /**
+     * Admission control of the response bodies, see {@link AdmissionControl}.
+     */
+    public static class Admission {
+
+        /**
+         * Queue or reject response bodies beyond the capacity of the node.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Largest number of response bodies written at once.
+         */
+        private int maxStreams = 1000;
+
+        /**
+         * Egress in bytes per second above which only small ranges are admitted, 0 for no limit. Measured by the
+         * stream metrics, so it needs video.streaming.metrics.enabled.
+         */
+        private long maxEgress = 0;
+
+        /**
+         * Downloads of whole files are only admitted while the node runs below this share of max-streams and
+         * max-egress, between 0 and 1. The rest is kept for players.
+         */
+        private double bulkShare = 0.5;
+
+        /**
+         * Ranges of at most this many bytes, e.g. probes of the container or segments after a seek, go first.
+         */
+        private long smallRange = 1024 * 1024;
+
+        /**
+         * Milliseconds a request waits for capacity before it is answered with 503.
+         */
+        private long queueTimeout = 2000;
+
+        /**
+         * Seconds sent in the Retry-After header of a 503.
+         */
+        private int retryAfter = 5;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxStreams() {
+            return maxStreams;
+        }
+
+        public void setMaxStreams(int maxStreams) {
+            this.maxStreams = maxStreams;
+        }
+
+        public long getMaxEgress() {
+            return maxEgress;
+        }
+
+        public void setMaxEgress(long maxEgress) {
+            this.maxEgress = maxEgress;
+        }
+
+        public double getBulkShare() {
+            return bulkShare;
+        }
+
+        public void setBulkShare(double bulkShare) {
+            this.bulkShare = bulkShare;
+        }
+
+        public long getSmallRange() {
+            return smallRange;
+        }
+
+        public void setSmallRange(long smallRange) {
+            this.smallRange = smallRange;
+        }
+
+        public long getQueueTimeout() {
+            return queueTimeout;
+        }
+
+        public void setQueueTimeout(long queueTimeout) {
+            this.queueTimeout = queueTimeout;
+        }
+
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+
+        public void setRetryAfter(int retryAfter) {
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Detection of clients that stop reading, see {@link StallDetector}.
+     */
+    public static class Stalls {
+
+        /**
+         * Watch the progress of streamed response bodies and abort the ones that stall.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Milliseconds a body may go without any bytes taken by the client before it is aborted.
+         */
+        private long idleTimeout = 30000;
+
+        /**
+         * Bytes per second the client has to take on average over every drain-window, 0 for no minimum. Keep it
+         * below the shaping rates.
+         */
+        private long minDrainRate = 8192;
+
+        /**
+         * Milliseconds over which the drain rate is measured.
+         */
+        private long drainWindow = 30000;
+
+        /**
+         * Milliseconds between two checks of the watched bodies.
+         */
+        private long checkInterval = 1000;
+
+        /**
+         * Largest number of client classes, i.e. User-Agent products, counted apart. Further ones are counted as
+         * other.
+         */
+        private int maxClientClasses = 32;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public long getMinDrainRate() {
+            return minDrainRate;
+        }
+
+        public void setMinDrainRate(long minDrainRate) {
+            this.minDrainRate = minDrainRate;
+        }
+
+        public long getDrainWindow() {
+            return drainWindow;
+        }
+
+        public void setDrainWindow(long drainWindow) {
+            this.drainWindow = drainWindow;
+        }
+
+        public long getCheckInterval() {
+            return checkInterval;
+        }
+
+        public void setCheckInterval(long checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+
+        public int getMaxClientClasses() {
+            return maxClientClasses;
+        }
+
+        public void setMaxClientClasses(int maxClientClasses) {
+            this.maxClientClasses = maxClientClasses;
+        }
+    }
+
+    /**
+     * Shared open files, see {@link FileHandleCache}.
+     */
+    public static class Handles {
+
+        /**
+         * Read the files being served through shared handles instead of opening them per request.
+         */
+        private boolean enabled = true;
+
+        /**
+         * Largest number of files kept open. Stay well below the process's limit of open files, every connection
+         * needs one too.
+         */
+        private int maxOpen = 256;
+
+        /**
+         * Milliseconds a file stays open without readers.
+         */
+        private long idleTimeout = 60000;
+
+        /**
+         * Milliseconds between two checks of the open files for idle ones and changes on disk.
+         */
+        private long checkInterval = 5000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxOpen() {
+            return maxOpen;
+        }
+
+        public void setMaxOpen(int maxOpen) {
+            this.maxOpen = maxOpen;
+        }
+
+        public long getIdleTimeout() {
+            return idleTimeout;
+        }
+
+        public void setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public long getCheckInterval() {
+            return checkInterval;
+        }
+
+        public void setCheckInterval(long checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+    }
+
+    /**
+     * Cluster of nodes sharing their chunk caches, see {@link PeerFill}.
+     */
+    public static class Cluster {
+
+        /**
+         * Fetch the chunks owned by other members from them instead of caching every chunk on every node.
+         */
+        private boolean enabled;
+
+        /**
+         * Base URL of this node as listed in peers, e.g. http://localhost:8081. Defaults to http://localhost and the
+         * server port.
+         */
+        private String self;
+
+        /**
+         * Base URLs of all members, this node included. Every node needs the same list.
+         */
+        private List<String> peers = new ArrayList<>();
+
+        /**
+         * Points per member on the hash ring; more points spread the chunks more evenly.
+         */
+        private int virtualNodes = 128;
+
+        /**
+         * Upper bound of bytes held by the replicas of chunks fetched from other members.
+         */
+        private long replicaSize = 64L * 1024 * 1024;
+
+        /**
+         * Milliseconds a replica of another member's chunk is kept.
+         */
+        private long replicaTtl = 10000;
+
+        /**
+         * Milliseconds to connect to a member and to wait for its data. A read waits as long for a chunk being fetched
+         * before it reads the chunk from the file.
+         */
+        private long timeout = 2000;
+
+        /**
+         * Threads fetching chunks from other members.
+         */
+        private int fetchThreads = 8;
+
+        /**
+         * Secret shared by all members to sign their fetches. Only signed fetches bypass the bandwidth limits; without
+         * a secret, members are shaped like any client.
+         */
+        private String secret = "";
+
+        /**
+         * Milliseconds a member is skipped after it failed.
+         */
+        private long downTime = 10000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public String getSelf() {
+            return self;
+        }
+
+        public void setSelf(String self) {
+            this.self = self;
+        }
+
+        public List<String> getPeers() {
+            return peers;
+        }
+
+        public void setPeers(List<String> peers) {
+            this.peers = peers;
+        }
+
+        public int getVirtualNodes() {
+            return virtualNodes;
+        }
+
+        public void setVirtualNodes(int virtualNodes) {
+            this.virtualNodes = virtualNodes;
+        }
+
+        public long getReplicaSize() {
+            return replicaSize;
+        }
+
+        public void setReplicaSize(long replicaSize) {
+            this.replicaSize = replicaSize;
+        }
+
+        public long getReplicaTtl() {
+            return replicaTtl;
+        }
+
+        public void setReplicaTtl(long replicaTtl) {
+            this.replicaTtl = replicaTtl;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        public int getFetchThreads() {
+            return fetchThreads;
+        }
+
+        public void setFetchThreads(int fetchThreads) {
+            this.fetchThreads = fetchThreads;
+        }
+
+        public String getSecret() {
+            return secret;
+        }
+
+        public void setSecret(String secret) {
+            this.secret = secret;
+        }
+
+        public long getDownTime() {
+            return downTime;
+        }
+
+        public void setDownTime(long downTime) {
+            this.downTime = downTime;
+        }
+    }
+
+    /**
+     * Growing files, e.g. recordings of live events, see {@link GrowingFiles}.
+     */
+    public static class Live {
+
+        /**
+         * Stream files that are still being written as they grow, instead of only the part written so far.
+         */
+        private boolean enabled;
+
+        /**
+         * Milliseconds without growth after which a file is complete. Files modified longer ago are served as they
+         * are.
+         */
+        private long endTimeout = 10000;
+
+        /**
+         * Suffix of the file whose presence marks the end of a recording, e.g. event.mp4.done; empty for none.
+         */
+        private String endMarker = ".done";
+
+        /**
+         * Bytes of the newest part of a growing file kept in memory for the viewers at the live edge.
+         */
+        private long window = 8L * 1024 * 1024;
+
+        /**
+         * Milliseconds between two checks of the growing files for their end.
+         */
+        private long checkInterval = 1000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getEndTimeout() {
+            return endTimeout;
+        }
+
+        public void setEndTimeout(long endTimeout) {
+            this.endTimeout = endTimeout;
+        }
+
+        public String getEndMarker() {
+            return endMarker;
+        }
+
+        public void setEndMarker(String endMarker) {
+            this.endMarker = endMarker;
+        }
+
+        public long getWindow() {
+            return window;
+        }
+
+        public void setWindow(long window) {
+            this.window = window;
+        }
+
+        public long getCheckInterval() {
+            return checkInterval;
+        }
+
+        public void setCheckInterval(long checkInterval) {
+            this.checkInterval = checkInterval;
+        }
+    }
+}
@@ -0,0 +1,699 @@
+package de.hoel.video.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Disk cache on local storage in front of a slow {@link VideoStorage}. Every video of the store gets a placeholder in
+ * the library directory of the cache, a sparse file with the size and modification time of the video, which the
+ * {@link VideoCatalog} lists like any other video. Channels opened on a placeholder by {@link LayoutChannel} read a
+ * data file instead, after fetching the aligned chunks they cover from the store if they are missing; while a channel
+ * is read sequentially, the next chunks are fetched in parallel ahead of time.
+ * <p>
+ * Which chunks are on disk is kept in an index file, so the cache survives restarts. Once the cache grows beyond its
+ * size the videos read least recently are dropped as a whole, which hands their disk space back at once. Videos that
+ * are open or have been read within the last minute are kept. Placeholders are never handed to sendfile: the
+ * connector would send from the data file without holding the video open, and a long range could be dropped while it
+ * is sent. They are always streamed through a channel.
+ */
+@Component
+public class TieredStorage {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final long MIN_IDLE = TimeUnit.MINUTES.toMillis(1);
+    private static final long SAVE_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    /** Library directories of the started storages, to find the storage of a placeholder. */
+    private static final Map<Path, TieredStorage> MOUNTS = new ConcurrentHashMap<>();
+
+    private final StreamingProperties.Storage settings;
+    private final VideoStorage store;
+    private final Path library;
+    private final Path data;
+    private final Path indexFile;
+    private final int chunkSize;
+    private final ConcurrentMap<Path, CachedVideo> videos = new ConcurrentHashMap<>();
+    private final ExecutorService fetchers;
+    private final ScheduledExecutorService indexWriter;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fetchedBytes = new AtomicLong();
+    private final AtomicLong failedFetches = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Autowired
+    public TieredStorage(StreamingProperties properties, ObjectProvider<VideoStorage> customStore) {
+        this(properties.getStorage(), customStore.getIfAvailable(() -> create(properties.getStorage())));
+    }
+
+    /**
+     * Construct a tiered storage.
+     * @param settings Cache directory, size and chunk size.
+     * @param store The backing store, or null for none.
+     */
+    public TieredStorage(StreamingProperties.Storage settings, VideoStorage store) {
+        this.settings = settings;
+        this.store = store;
+        Path cache = Paths.get(settings.getCacheDirectory()).toAbsolutePath().normalize();
+        this.library = cache.resolve("library");
+        this.data = cache.resolve("data");
+        this.indexFile = cache.resolve("index");
+        this.chunkSize = settings.getChunkSize();
+        this.fetchers = Executors.newFixedThreadPool(settings.getFetchThreads(),
+                new ThreadFactoryBuilder().setNameFormat("storage-fetch-%d").setDaemon(true).build());
+        this.indexWriter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("storage-index").setDaemon(true).build());
+    }
+
+    private static VideoStorage create(StreamingProperties.Storage settings) {
+        switch (settings.getType().toLowerCase(Locale.ROOT)) {
+            case "none":
+                return null;
+            case "local":
+                return new LocalStorage(Paths.get(location(settings)));
+            case "slow":
+                return new SlowStorage(Paths.get(location(settings)), settings.getLatency(), settings.getBandwidth());
+            case "http":
+                return new HttpStorage(location(settings));
+            default:
+                throw new IllegalArgumentException("Unknown storage type : " + settings.getType());
+        }
+    }
+
+    private static String location(StreamingProperties.Storage settings) {
+        if (settings.getLocation() == null || settings.getLocation().isEmpty()) {
+            throw new IllegalArgumentException("Storage type " + settings.getType() + " needs a location");
+        }
+        return settings.getLocation();
+    }
+
+    /**
+     * @param path A file.
+     * @return The started storage the file is a placeholder of, or null if it is an ordinary file.
+     */
+    static TieredStorage of(Path path) {
+        if (MOUNTS.isEmpty()) {
+            return null;
+        }
+        Path absolute = path.toAbsolutePath();
+        for (Map.Entry<Path, TieredStorage> mount : MOUNTS.entrySet()) {
+            if (absolute.startsWith(mount.getKey())) {
+                return mount.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the backing store and brings the placeholders and the cached chunks in line with it: videos that changed
+     * in the meantime start over with an empty cache, videos that are gone are deleted.
+     * @throws IOException If the store can't be listed or the cache directory can't be written.
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (store == null) {
+            return;
+        }
+        Files.createDirectories(library);
+        Files.createDirectories(data);
+        Map<String, Indexed> index = load();
+
+        Set<Path> files = new HashSet<>();
+        for (VideoStorage.StoredObject object : store.list()) {
+            Path placeholder = library.resolve(object.getKey()).normalize();
+            if (!placeholder.startsWith(library) || VideoEntry.contentType(placeholder) == null) {
+                logger.warn("Skipping object of the storage : {}", object.getKey());
+                continue;
+            }
+            Path file = data.resolve(Hashing.murmur3_128().hashString(object.getKey(), StandardCharsets.UTF_8) + ".data");
+            CachedVideo video = new CachedVideo(object, file);
+
+            Indexed indexed = index.get(object.getKey());
+            if (indexed != null && indexed.matches(object) && Files.isRegularFile(file) && Files.size(file) == object.getSize()) {
+                video.restore(indexed);
+                size.addAndGet(video.getCachedBytes());
+            } else {
+                resize(file, object.getSize());
+            }
+            placeholder(placeholder, object);
+
+            videos.put(placeholder, video);
+            files.add(placeholder);
+            files.add(file);
+        }
+        deleteAllBut(library, files);
+        deleteAllBut(data, files);
+
+        MOUNTS.put(library, this);
+        save();
+        evict();
+        logger.info("Tiered storage : {} videos of {}, {} MB cached in {}", videos.size(), store,
+                size.get() / (1024 * 1024), data);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        MOUNTS.remove(library, this);
+        fetchers.shutdownNow();
+        indexWriter.shutdownNow();
+        if (store != null) {
+            save();
+        }
+    }
+
+    /**
+     * Opens a placeholder for reading.
+     * @param path The placeholder.
+     * @return A channel that fetches missing chunks as they are read.
+     * @throws IOException If the data file can't be opened.
+     */
+    FileChannel open(Path path) throws IOException {
+        CachedVideo video = videos.get(path.toAbsolutePath().normalize());
+        if (video == null) {
+            return FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return new Channel(video, FileChannel.open(video.file, StandardOpenOption.READ));
+    }
+
+    /**
+     * @param path A file in the library directory.
+     * @return True if it is the placeholder of a stored video, which has to be read through {@link #open}.
+     */
+    boolean isPlaceholder(Path path) {
+        return videos.containsKey(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Starts fetching the missing chunks of a range without waiting for them.
+     * @param path A placeholder.
+     * @param position Start of the range.
+     * @param length Length of the range.
+     */
+    void prefetch(Path path, long position, long length) {
+        CachedVideo video = videos.get(path.toAbsolutePath().normalize());
+        if (video != null) {
+            fetch(video, position, length);
+        }
+    }
+
+    /**
+     * @return True if there is a backing store.
+     */
+    public boolean isEnabled() {
+        return store != null;
+    }
+
+    /**
+     * @return Directory of the placeholders, to be listed by the catalog.
+     */
+    public Path getLibrary() {
+        return library;
+    }
+
+    public int getVideoCount() {
+        return videos.size();
+    }
+
+    /**
+     * @return Bytes of the cached chunks.
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getMaxSize() {
+        return settings.getCacheMaxSize();
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return Chunks that were on disk when they were read.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Chunks that had to be fetched from the store when they were read.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getFetchedBytes() {
+        return fetchedBytes.get();
+    }
+
+    public long getFailedFetches() {
+        return failedFetches.get();
+    }
+
+    /**
+     * @return Number of videos dropped from the cache to stay within its size.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Fetches the missing chunks of a range that are read now and waits for them. The chunks are fetched in parallel.
+     */
+    private void ensure(CachedVideo video, long position, long length) throws IOException {
+        List<CompletableFuture<Void>> pending = fetch(video, position, length);
+        hits.addAndGet(chunks(position, length) - pending.size());
+        misses.addAndGet(pending.size());
+
+        try {
+            for (CompletableFuture<Void> fetch : pending) {
+                fetch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + video.key);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Fetching " + video.key + " failed", e.getCause());
+        }
+    }
+
+    private long chunks(long position, long length) {
+        return length > 0 ? (position + length - 1) / chunkSize - position / chunkSize + 1 : 0;
+    }
+
+    /**
+     * Starts fetching the missing chunks of a range.
+     * @return The fetches the range waits for.
+     */
+    private List<CompletableFuture<Void>> fetch(CachedVideo video, long position, long length) {
+        long end = Math.min(position + length, video.size);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (long index = position / chunkSize; index * chunkSize < end; index++) {
+            CompletableFuture<Void> fetch = video.fetch((int) index);
+            if (fetch != null) {
+                pending.add(fetch);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Reads one chunk from the store and writes it to the data file.
+     */
+    private void load(CachedVideo video, int index) throws IOException {
+        int generation = video.getGeneration();
+        long start = (long) index * chunkSize;
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, video.size - start));
+        int read = store.read(video.key, start, chunk);
+        if (read < chunk.capacity()) {
+            throw new IOException("Unexpected end of " + video.key + " at " + (start + read));
+        }
+
+        chunk.flip();
+        try (FileChannel file = FileChannel.open(video.file, StandardOpenOption.WRITE)) {
+            while (chunk.hasRemaining()) {
+                file.write(chunk, start + chunk.position());
+            }
+        }
+        fetchedBytes.addAndGet(read);
+        if (video.cached(index, generation)) {
+            size.addAndGet(read);
+            scheduleSave();
+            evict();
+        }
+    }
+
+    /**
+     * Drops the videos read least recently until the cache fits into its size again.
+     */
+    private void evict() {
+        if (size.get() <= settings.getCacheMaxSize()) {
+            return;
+        }
+        synchronized (videos) {
+            long idleSince = System.currentTimeMillis() - MIN_IDLE;
+            List<CachedVideo> candidates = videos.values().stream()
+                    .filter(video -> video.lastAccess < idleSince)
+                    .sorted(Comparator.comparingLong(video -> video.lastAccess))
+                    .collect(Collectors.toList());
+            for (CachedVideo video : candidates) {
+                if (size.get() <= settings.getCacheMaxSize()) {
+                    return;
+                }
+                try {
+                    long dropped = video.drop();
+                    if (dropped > 0) {
+                        size.addAndGet(-dropped);
+                        evictions.incrementAndGet();
+                        scheduleSave();
+                        logger.debug("Dropped {} MB of {} from the storage cache", dropped / (1024 * 1024), video.key);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Dropping {} from the storage cache failed", video.key, e);
+                }
+            }
+            logger.debug("Storage cache stays above its size, all videos are in use : {} MB", size.get() / (1024 * 1024));
+        }
+    }
+
+    /**
+     * Creates the placeholder of a video unless it is there already.
+     */
+    private static void placeholder(Path path, VideoStorage.StoredObject object) throws IOException {
+        if (Files.isRegularFile(path) && Files.size(path) == object.getSize()
+                && Files.getLastModifiedTime(path).toMillis() == object.getLastModified()) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        resize(path, object.getSize());
+        Files.setLastModifiedTime(path, FileTime.fromMillis(object.getLastModified()));
+    }
+
+    /**
+     * Empties a file and gives it the given size without allocating disk space for it.
+     */
+    private static void resize(Path path, long size) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(0);
+            file.setLength(size);
+        }
+    }
+
+    private void deleteAllBut(Path directory, Set<Path> keep) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(Files::isRegularFile).filter(file -> !keep.contains(file)).collect(Collectors.toList())) {
+                logger.debug("Deleting file no longer in the storage : {}", file);
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Reads the index file, one tab separated line of size, modification time, last access, cached chunks and key
+     * per video.
+     */
+    private Map<String, Indexed> load() {
+        Map<String, Indexed> index = new HashMap<>();
+        if (!Files.exists(indexFile)) {
+            return index;
+        }
+        try {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 5);
+                if (fields.length == 5) {
+                    index.put(fields[4], new Indexed(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), BitSet.valueOf(Base64.getDecoder().decode(fields[3]))));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Reading storage index failed, videos will be fetched again : {}", indexFile, e);
+            index.clear();
+        }
+        return index;
+    }
+
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            try {
+                indexWriter.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                saveScheduled.set(false); // Shutting down, saved once more then.
+            }
+        }
+    }
+
+    /**
+     * Forces the cached chunks to disk, then writes the index to a temporary file first, so a crash never leaves an
+     * index behind that lists chunks which aren't on disk.
+     */
+    private synchronized void save() {
+        saveScheduled.set(false);
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (CachedVideo video : videos.values()) {
+                    BitSet chunks = video.getChunks();
+                    if (!chunks.isEmpty()) {
+                        try (FileChannel file = FileChannel.open(video.file, StandardOpenOption.WRITE)) {
+                            file.force(false);
+                        }
+                    }
+                    writer.write(video.size + "\t" + video.lastModified + "\t" + video.lastAccess + "\t"
+                            + Base64.getEncoder().encodeToString(chunks.toByteArray()) + "\t" + video.key);
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Writing storage index failed : {}", indexFile, e);
+        }
+    }
+
+    /**
+     * One video of the store and its chunks on disk.
+     */
+    private final class CachedVideo {
+        private final String key;
+        private final long size;
+        private final long lastModified;
+        private final Path file;
+        private final BitSet chunks = new BitSet();
+        private final ConcurrentMap<Integer, CompletableFuture<Void>> fetching = new ConcurrentHashMap<>();
+        private final AtomicInteger open = new AtomicInteger();
+        /** Counts the drops, so fetches that were running during a drop don't mark their chunk as cached. */
+        private int generation;
+        private volatile long lastAccess;
+
+        CachedVideo(VideoStorage.StoredObject object, Path file) {
+            this.key = object.getKey();
+            this.size = object.getSize();
+            this.lastModified = object.getLastModified();
+            this.file = file;
+        }
+
+        synchronized void restore(Indexed indexed) {
+            chunks.or(indexed.chunks);
+            lastAccess = indexed.lastAccess;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+
+        synchronized boolean isCached(int index) {
+            return chunks.get(index);
+        }
+
+        synchronized BitSet getChunks() {
+            return (BitSet) chunks.clone();
+        }
+
+        synchronized int getGeneration() {
+            return generation;
+        }
+
+        synchronized long getCachedBytes() {
+            long bytes = (long) chunks.cardinality() * chunkSize;
+            int last = (int) ((size - 1) / chunkSize);
+            return chunks.get(last) ? bytes - ((long) (last + 1) * chunkSize - size) : bytes;
+        }
+
+        /**
+         * Marks a fetched chunk as cached, unless the video has been dropped since the fetch started.
+         * @return True if the chunk counts as cached.
+         */
+        synchronized boolean cached(int index, int fetchedGeneration) {
+            if (fetchedGeneration != generation) {
+                return false;
+            }
+            chunks.set(index);
+            return true;
+        }
+
+        /**
+         * Starts fetching a chunk unless it is cached or being fetched already.
+         * @return The fetch, or null if the chunk is cached.
+         */
+        CompletableFuture<Void> fetch(int index) {
+            if (isCached(index)) {
+                return null;
+            }
+            CompletableFuture<Void> created = new CompletableFuture<>();
+            CompletableFuture<Void> running = fetching.putIfAbsent(index, created);
+            if (running != null) {
+                return running;
+            }
+            if (isCached(index)) {
+                fetching.remove(index, created); // Fetched in the meantime.
+                return null;
+            }
+            try {
+                fetchers.execute(() -> {
+                    try {
+                        load(this, index);
+                        created.complete(null);
+                    } catch (IOException | RuntimeException e) {
+                        failedFetches.incrementAndGet();
+                        logger.debug("Fetching chunk {} of {} failed", index, key, e);
+                        created.completeExceptionally(e);
+                    } finally {
+                        fetching.remove(index, created);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fetching.remove(index, created);
+                created.completeExceptionally(new IOException("Storage is shut down", e));
+            }
+            return created;
+        }
+
+        /**
+         * Drops all chunks of the video unless it is in use.
+         * @return The number of bytes dropped.
+         */
+        synchronized long drop() throws IOException {
+            if (open.get() > 0 || !fetching.isEmpty() || chunks.isEmpty()) {
+                return 0;
+            }
+            long dropped = getCachedBytes();
+            chunks.clear();
+            generation++;
+            resize(file, size);
+            return dropped;
+        }
+    }
+
+    /**
+     * Read-only channel over the data file of a video, which fetches the chunks it reads if they are missing.
+     */
+    private final class Channel extends ReadOnlyFileChannel {
+        private final CachedVideo video;
+        private final FileChannel file;
+        /** End of the last read, a read that starts there continues a sequential stream. */
+        private long next = -1;
+
+        Channel(CachedVideo video, FileChannel file) {
+            this.video = video;
+            this.file = file;
+            video.open.incrementAndGet();
+            video.touch();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= video.size) {
+                return -1;
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            long length = Math.min(dst.remaining(), video.size - position);
+            ensure(position, length);
+            return file.read(dst, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (position >= video.size) {
+                return 0;
+            }
+            long length = Math.min(count, video.size - position);
+            ensure(position, length);
+            return file.transferTo(position, length, target);
+        }
+
+        private void ensure(long position, long length) throws IOException {
+            if (position == next && settings.getFetchAhead() > 0) {
+                fetch(video, position + length, (long) settings.getFetchAhead() * chunkSize);
+            }
+            next = position + length;
+            TieredStorage.this.ensure(video, position, length);
+        }
+
+        @Override
+        public long size() {
+            return video.size;
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            video.touch();
+            video.open.decrementAndGet();
+            file.close();
+        }
+    }
+
+    private static final class Indexed {
+        final long size;
+        final long lastModified;
+        final long lastAccess;
+        final BitSet chunks;
+
+        Indexed(long size, long lastModified, long lastAccess, BitSet chunks) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastAccess = lastAccess;
+            this.chunks = chunks;
+        }
+
+        boolean matches(VideoStorage.StoredObject object) {
+            return size == object.getSize() && lastModified == object.getLastModified();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package de.hoel.video.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte rate limit in the form of a generic cell rate algorithm: instead of counting tokens the bucket keeps the time
+ * at which the bytes sent so far are paid off. Reservations always succeed and return how long the caller has to wait
+ * before sending, so the same bucket serves blocking and non-blocking writers.
+ */
+class TokenBucket {
+
+    private static final long MIN_BURST = 64 * 1024;
+    private static final double BURST_SECONDS = 0.25;
+
+    private double rate;
+    private long paidOff;
+
+    /**
+     * Construct a token bucket.
+     * @param rate Bytes per second, 0 or less for no limit.
+     */
+    TokenBucket(double rate) {
+        this.rate = rate;
+        this.paidOff = System.nanoTime();
+    }
+
+    /**
+     * Reserves the given number of bytes.
+     * @param bytes Number of bytes about to be sent.
+     * @param now Current {@link System#nanoTime()}.
+     * @return Nanoseconds to wait before sending them, 0 to send right away.
+     */
+    synchronized long reserve(long bytes, long now) {
+        if (rate <= 0) {
+            return 0;
+        }
+        long tolerance = (long) (Math.max(MIN_BURST, rate * BURST_SECONDS) / rate * TimeUnit.SECONDS.toNanos(1));
+        paidOff = Math.max(paidOff, now);
+        long wait = Math.max(0, paidOff - tolerance - now);
+        paidOff += (long) (bytes / rate * TimeUnit.SECONDS.toNanos(1));
+        return wait;
+    }
+
+    /**
+     * @param bytes A number of bytes.
+     * @return Nanoseconds it takes to send them at the bucket's rate, 0 for no limit.
+     */
+    synchronized long time(long bytes) {
+        return rate > 0 ? (long) (bytes / rate * TimeUnit.SECONDS.toNanos(1)) : 0;
+    }
+
+    /**
+     * @param now Current {@link System#nanoTime()}.
+     * @return True if all bytes reserved so far are paid off.
+     */
+    synchronized boolean isPaidOff(long now) {
+        return rate <= 0 || paidOff <= now;
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    synchronized void setRate(double rate) {
+        this.rate = rate;
+    }
+}
@@ -0,0 +1,226 @@
+package de.hoel.video.server;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * In-memory index of the videos in the configured library directories. The directories are scanned once at startup
+ * and then kept up to date by a {@link WatchService}, so looking up a video never touches the file system.
+ */
+@Component
+public class VideoCatalog {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final List<Path> libraries;
+    private final ETagIndex etags;
+    private final ConcurrentMap<String, VideoEntry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Path, String> ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<WatchKey, Path> watched = new ConcurrentHashMap<>();
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    public VideoCatalog(StreamingProperties properties, ETagIndex etagIndex, TieredStorage storage) {
+        this.etags = properties.getEtag().isEnabled() ? etagIndex : null;
+        this.libraries = properties.getCatalog().getLibraries().stream()
+                .map(library -> Paths.get(library).toAbsolutePath().normalize())
+                .collect(Collectors.toCollection(ArrayList::new));
+        if (storage != null && storage.isEnabled()) {
+            libraries.add(storage.getLibrary()); // Placeholders of the videos in the backing store.
+        }
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path library : libraries) {
+            if (Files.isDirectory(library)) {
+                scan(library);
+            } else {
+                logger.warn("Video library is not a directory : {}", library);
+            }
+        }
+        logger.info("Video catalog : {} videos in {}", entries.size(), libraries);
+
+        watcher = new Thread(this::watch, "video-catalog-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public void stop() throws IOException {
+        watchService.close();
+    }
+
+    /**
+     * @param id Identifier of a video.
+     * @return The video, or null if there is none with that id.
+     */
+    public VideoEntry get(String id) {
+        return entries.get(id);
+    }
+
+    /**
+     * @param path A file in one of the libraries.
+     * @return The video of that file, or null if it isn't in the catalog.
+     */
+    public VideoEntry get(Path path) {
+        String id = ids.get(path);
+        return id != null ? entries.get(id) : null;
+    }
+
+    public Collection<VideoEntry> getAll() {
+        List<VideoEntry> result = new ArrayList<>(entries.values());
+        result.sort(Comparator.comparing(VideoEntry::getId));
+        return result;
+    }
+
+    /**
+     * Registers the directory and all its subdirectories with the watch service and indexes the videos in them.
+     */
+    private void scan(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.forEach(path -> {
+                if (Files.isDirectory(path)) {
+                    register(path);
+                } else {
+                    update(path);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Scanning video library failed : {}", directory, e);
+        }
+    }
+
+    private void register(Path directory) {
+        try {
+            watched.put(directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), directory);
+        } catch (IOException e) {
+            logger.error("Watching video library failed : {}", directory, e);
+        }
+    }
+
+    /**
+     * Re-reads the metadata of one file; adds, replaces or removes its entry.
+     */
+    private void update(Path path) {
+        if (VideoEntry.contentType(path) == null) {
+            return;
+        }
+        try {
+            String id = ids.computeIfAbsent(path, this::newId);
+            VideoEntry entry = VideoEntry.of(id, path);
+            if (entry != null) {
+                entries.put(id, withETag(entry));
+                logger.debug("Indexed video {} : {}", id, path);
+            } else {
+                remove(path);
+            }
+        } catch (IOException e) {
+            logger.warn("Reading video metadata failed : {}", path, e);
+        }
+    }
+
+    /**
+     * Uses the content hash of the file as ETag if it is known, otherwise swaps it in once it has been computed.
+     */
+    private VideoEntry withETag(VideoEntry entry) {
+        if (etags == null) {
+            return entry;
+        }
+        String eTag = etags.get(entry, computed -> entries.computeIfPresent(entry.getId(),
+                (id, current) -> current.isSameVersion(entry) ? current.withETag(computed) : current));
+        return eTag != null ? entry.withETag(eTag) : entry;
+    }
+
+    private void remove(Path path) {
+        String id = ids.remove(path);
+        if (id != null) {
+            entries.remove(id);
+            if (etags != null) {
+                etags.remove(path);
+            }
+            logger.debug("Removed video {} : {}", id, path);
+        }
+    }
+
+    /**
+     * Ids are the file name without extension, made unique with a hash of the path if another file has the same name.
+     */
+    private String newId(Path path) {
+        String name = path.getFileName().toString();
+        String id = name.substring(0, name.lastIndexOf('.'));
+        if (ids.containsValue(id)) {
+            id += "-" + Hashing.murmur3_32().hashString(path.toString(), StandardCharsets.UTF_8);
+        }
+        return id;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = watched.get(key);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        logger.warn("Video library events overflowed, rescanning");
+                        libraries.stream().filter(Files::isDirectory).forEach(this::scan);
+                        continue;
+                    }
+                    if (directory == null) {
+                        continue;
+                    }
+
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == ENTRY_DELETE) {
+                        remove(path);
+                        // A deleted directory takes its videos with it.
+                        ids.keySet().stream().filter(p -> p.startsWith(path)).collect(Collectors.toList()).forEach(this::remove);
+                    } else if (Files.isDirectory(path)) {
+                        scan(path);
+                    } else {
+                        update(path);
+                    }
+                }
+
+                if (!key.reset()) {
+                    watched.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Video catalog watcher stopped");
+        }
+    }
+}
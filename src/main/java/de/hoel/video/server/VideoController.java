@@ -1,29 +1,277 @@
-package de.hoel.video.server;
-
-import java.nio.file.Paths;
-
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.RestController;
-
-@RestController
-@RequestMapping("/videos")
-public class VideoController {
-
-    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
-
-    @RequestMapping(value="/test", method = RequestMethod.GET)
-    public void getTestVideo(HttpServletRequest request, HttpServletResponse response) throws Exception {
-    	
-            MultipartFileSender.fromPath(Paths.get("C:\\Users\\lukas\\Videos\\bbb_sunflower_1080p_60fps_stereo_abl.mp4"))
-                    .with(request)
-                    .with(response)
-                .serveResource();
-
-    }
-}
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * The video API on the servlet stack, see {@link ReactiveVideoController} for the reactive one.
+ */
+@RestController
+@RequestMapping("/videos")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class VideoController {
+
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final StreamingProperties properties;
+    private final VideoCatalog catalog;
+    private final ETagIndex etagIndex;
+    private final Mp4Index mp4Index;
+    private final ChunkCache chunkCache;
+    private final AsyncStreaming asyncStreaming;
+    private final BandwidthShaper bandwidthShaper;
+    private final ReadAhead readAhead;
+    private final BufferPool bufferPool;
+    private final StreamMetrics streamMetrics;
+    private final AdmissionControl admissionControl;
+    private final StallDetector stallDetector;
+    private final FileHandleCache fileHandleCache;
+    private final GrowingFiles growingFiles;
+    private final PeerFill peerFill;
+
+    public VideoController(StreamingProperties properties, VideoCatalog catalog, ETagIndex etagIndex, Mp4Index mp4Index,
+                           ChunkCache chunkCache, AsyncStreaming asyncStreaming, BandwidthShaper bandwidthShaper,
+                           ReadAhead readAhead, BufferPool bufferPool, StreamMetrics streamMetrics,
+                           AdmissionControl admissionControl, StallDetector stallDetector, FileHandleCache fileHandleCache,
+                           GrowingFiles growingFiles, PeerFill peerFill) {
+        this.properties = properties;
+        this.catalog = catalog;
+        this.etagIndex = etagIndex;
+        this.mp4Index = mp4Index;
+        this.chunkCache = chunkCache;
+        this.asyncStreaming = asyncStreaming;
+        this.bandwidthShaper = bandwidthShaper;
+        this.readAhead = readAhead;
+        this.bufferPool = bufferPool;
+        this.streamMetrics = streamMetrics;
+        this.admissionControl = admissionControl;
+        this.stallDetector = stallDetector;
+        this.fileHandleCache = fileHandleCache;
+        this.growingFiles = growingFiles;
+        this.peerFill = peerFill;
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    public Collection<VideoEntry> getVideos() {
+        return catalog.getAll();
+    }
+
+    @RequestMapping(value="/test", method = RequestMethod.GET)
+    public void getTestVideo(HttpServletRequest request, HttpServletResponse response) throws Exception {
+    	
+            Path path = Paths.get(properties.getCatalog().getTestVideo());
+            VideoEntry video = catalog.get(path.toAbsolutePath().normalize());
+            configure(video != null ? MultipartFileSender.fromEntry(video) : MultipartFileSender.fromPath(path), request, response)
+                .serveResource();
+
+    }
+
+    /**
+     * Serves a video of the catalog. With a time, e.g. {@code ?t=12:30}, the response is the range starting at the
+     * last keyframe at or before it; the time of that keyframe is sent in the X-Seek-Time header.
+     * <p>
+     * Other members of the cluster fetch chunks here with range requests, see {@link PeerFill}. They get the file as
+     * it is stored and only from this node's own cache, so two nodes that disagree on an owner can't send a request in
+     * circles. Fetches signed with the secret of the cluster are sent at full speed, all others are shaped like any
+     * client's.
+     */
+    @RequestMapping(value="/{id}", method = RequestMethod.GET)
+    public void getVideo(@PathVariable String id, @RequestParam(value = "t", required = false) String t,
+                         HttpServletRequest request, HttpServletResponse response) throws Exception {
+        VideoEntry video = catalog.get(id);
+        if (video == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (isPeer(request)) {
+            boolean signed = peerFill.verify(request.getHeader(PeerFill.PEER_HEADER),
+                    request.getHeader(PeerFill.SIGNATURE_HEADER), id, request.getHeader("Range"),
+                    request.getHeader("If-Match"));
+            MultipartFileSender sender = configure(MultipartFileSender.fromEntry(video), request,
+                    signed ? new PeerResponse(response) : response)
+                    .with((Mp4Index) null)
+                    .with((ReadAhead) null)
+                    .with((GrowingFiles) null)
+                    .with(properties.getCache().isEnabled() ? chunkCache.local() : null);
+            if (signed) {
+                sender.with((BandwidthShaper) null);
+            }
+            sender.serveResource();
+            return;
+        }
+        MultipartFileSender sender = configure(MultipartFileSender.fromEntry(video), request, response);
+
+        if (t != null) {
+            double seconds = parseTime(t);
+            KeyframeIndex.Keyframe keyframe = seconds >= 0 ? mp4Index.seek(video, seconds) : null;
+            if (keyframe == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            sender.withRange(keyframe.getRange()).withHeader("X-Seek-Time", String.valueOf(keyframe.getTime()));
+        }
+        sender.serveResource();
+    }
+
+    /**
+     * Translates a time into the byte range to request, for clients that send their own Range headers.
+     */
+    @RequestMapping(value="/{id}/seek", method = RequestMethod.GET)
+    public Map<String, Object> seek(@PathVariable String id, @RequestParam("t") String t, HttpServletResponse response) throws IOException {
+        VideoEntry video = catalog.get(id);
+        double seconds = parseTime(t);
+        KeyframeIndex.Keyframe keyframe = video != null && seconds >= 0 ? mp4Index.seek(video, seconds) : null;
+        if (keyframe == null) {
+            response.sendError(video == null ? HttpServletResponse.SC_NOT_FOUND : HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("time", keyframe.getTime());
+        result.put("offset", keyframe.getOffset());
+        result.put("range", keyframe.getRange());
+        return result;
+    }
+
+    /**
+     * HLS media playlist of a video, its segments are byte ranges of the fragmented MP4 at {@code fmp4}.
+     */
+    @RequestMapping(value="/{id}/index.m3u8", method = RequestMethod.GET)
+    public void getPlaylist(@PathVariable String id, HttpServletResponse response) throws IOException {
+        VideoEntry video = catalog.get(id);
+        FragmentedMp4 packaging = video != null ? mp4Index.fragments(video) : null;
+        if (packaging == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        sendManifest(response, "application/vnd.apple.mpegurl", packaging.playlist("fmp4"));
+    }
+
+    /**
+     * DASH manifest of a video, with one fragmented MP4 per track at {@code fmp4?track=<track ID>}.
+     */
+    @RequestMapping(value="/{id}/manifest.mpd", method = RequestMethod.GET)
+    public void getManifest(@PathVariable String id, HttpServletResponse response) throws IOException {
+        VideoEntry video = catalog.get(id);
+        FragmentedMp4 packaging = video != null ? mp4Index.fragments(video) : null;
+        if (packaging == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        sendManifest(response, "application/dash+xml", packaging.mpd("fmp4"));
+    }
+
+    /**
+     * Serves a video remuxed to fragmented MP4, with all tracks or the given one. Segments are requested as ranges.
+     */
+    @RequestMapping(value="/{id}/fmp4", method = RequestMethod.GET)
+    public void getFragments(@PathVariable String id, @RequestParam(value = "track", defaultValue = "0") int track,
+                             HttpServletRequest request, HttpServletResponse response) throws Exception {
+        VideoEntry video = catalog.get(id);
+        if (video == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        configure(MultipartFileSender.fromEntry(video), request, response)
+                .with(mp4Index)
+                .withFragments(track)
+                .serveResource();
+    }
+
+    private static void sendManifest(HttpServletResponse response, String contentType, String manifest) throws IOException {
+        byte[] body = manifest.getBytes(StandardCharsets.UTF_8);
+        response.setContentType(contentType);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+    }
+
+    /**
+     * Parses a time in seconds or in the form [hh:]mm:ss[.fff].
+     * @return The time in seconds, -1 if it is invalid.
+     */
+    static double parseTime(String time) {
+        double seconds = 0;
+        try {
+            for (String part : time.split(":", 3)) {
+                seconds = seconds * 60 + Double.parseDouble(part);
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return Double.isFinite(seconds) && seconds >= 0 ? seconds : -1;
+    }
+
+    private boolean isPeer(HttpServletRequest request) {
+        return properties.getCluster().isEnabled()
+                && peerFill.getMembers().contains(request.getHeader(PeerFill.PEER_HEADER));
+    }
+
+    private MultipartFileSender configure(MultipartFileSender sender, HttpServletRequest request, HttpServletResponse response) {
+        return sender
+                .with(request)
+                .with(response)
+                .withZeroCopy(properties.isZeroCopy())
+                .withMaxRanges(properties.getMaxRanges())
+                .with(properties.getFaststart().isEnabled() ? mp4Index : null)
+                .with(properties.getEtag().isEnabled() ? etagIndex : null)
+                .with(properties.getCache().isEnabled() ? chunkCache : null)
+                .with(properties.getReadAhead().isEnabled() ? readAhead : null)
+                .with(properties.getBuffers().isEnabled() ? bufferPool : null)
+                .with(properties.getMetrics().isEnabled() ? streamMetrics : null)
+                .with(properties.getAdmission().isEnabled() ? admissionControl : null)
+                .with(properties.getStalls().isEnabled() ? stallDetector : null)
+                .with(properties.getHandles().isEnabled() ? fileHandleCache : null)
+                .with(properties.getLive().isEnabled() ? growingFiles : null)
+                .with(properties.getAsync().isEnabled() ? asyncStreaming : null)
+                .with(properties.getShaping().isEnabled() ? bandwidthShaper : null)
+                .with(properties.getCoalescing().isEnabled() ? properties.getCoalescing() : null);
+    }
+
+    /**
+     * Counts the ranges sent to another member. The body may still be written after the request returns, so they're
+     * counted as the status is set, after the headers of the range. Tomcat doesn't return the Content-Length it was
+     * given as a header, so it's kept here.
+     */
+    private final class PeerResponse extends HttpServletResponseWrapper {
+        private String length;
+
+        PeerResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            super.setHeader(name, value);
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                length = value;
+            }
+        }
+
+        @Override
+        public void setStatus(int sc) {
+            super.setStatus(sc);
+            if (sc == HttpServletResponse.SC_PARTIAL_CONTENT && length != null) {
+                peerFill.served(Long.parseLong(length));
+            }
+        }
+    }
+}
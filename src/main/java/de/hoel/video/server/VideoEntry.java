@@ -0,0 +1,187 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Immutable snapshot of the metadata of one video file together with the header values derived from it, so serving
+ * a request needs no file system calls besides reading the bytes.
+ */
+public final class VideoEntry {
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("m4v", "video/mp4");
+        CONTENT_TYPES.put("mov", "video/quicktime");
+        CONTENT_TYPES.put("webm", "video/webm");
+        CONTENT_TYPES.put("mkv", "video/x-matroska");
+        CONTENT_TYPES.put("ogv", "video/ogg");
+        CONTENT_TYPES.put("ts", "video/mp2t");
+    }
+
+    private final String id;
+    private final Path path;
+    private final String fileName;
+    private final long size;
+    private final FileTime lastModifiedTime;
+    private final long lastModified;
+    private final String contentType;
+    private final String eTag;
+    private final String contentLength;
+    private final String fullContentRange;
+    private final String inlineDisposition;
+    private final String attachmentDisposition;
+
+    private VideoEntry(String id, Path path, BasicFileAttributes attributes, String contentType) {
+        this.id = id;
+        this.path = path;
+        this.fileName = path.getFileName().toString();
+        this.size = attributes.size();
+        this.lastModifiedTime = attributes.lastModifiedTime();
+        // HTTP dates have a precision of seconds.
+        this.lastModified = TimeUnit.SECONDS.toMillis(lastModifiedTime.to(TimeUnit.SECONDS));
+        this.contentType = contentType;
+        // Until the content is hashed, the validator is made of modification time and size like most servers do.
+        this.eTag = "\"" + Long.toHexString(lastModifiedTime.toMillis()) + "-" + Long.toHexString(size) + "\"";
+        this.contentLength = String.valueOf(size);
+        this.fullContentRange = "bytes 0-" + (size - 1) + "/" + size;
+        this.inlineDisposition = "inline;filename=\"" + fileName + "\"";
+        this.attachmentDisposition = "attachment;filename=\"" + fileName + "\"";
+    }
+
+    private VideoEntry(VideoEntry entry, String eTag) {
+        this.id = entry.id;
+        this.path = entry.path;
+        this.fileName = entry.fileName;
+        this.size = entry.size;
+        this.lastModifiedTime = entry.lastModifiedTime;
+        this.lastModified = entry.lastModified;
+        this.contentType = entry.contentType;
+        this.eTag = eTag;
+        this.contentLength = entry.contentLength;
+        this.fullContentRange = entry.fullContentRange;
+        this.inlineDisposition = entry.inlineDisposition;
+        this.attachmentDisposition = entry.attachmentDisposition;
+    }
+
+    /**
+     * Reads the metadata of the given file.
+     * @param id Identifier of the video.
+     * @param path The video file.
+     * @return The entry, or null if the file doesn't exist or isn't a regular file.
+     * @throws IOException If the attributes can't be read.
+     */
+    public static VideoEntry of(String id, Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        String type = contentType(path);
+        return new VideoEntry(id, path, attributes, type != null ? type : "application/octet-stream");
+    }
+
+    /**
+     * @param path A file.
+     * @return The video content type of the file by its extension, or null if it isn't a known video format.
+     */
+    public static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @JsonIgnore
+    public Path getPath() {
+        return path;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    @JsonIgnore
+    public FileTime getLastModifiedTime() {
+        return lastModifiedTime;
+    }
+
+    /**
+     * @return Modification time in epoch milliseconds, truncated to seconds as sent in Last-Modified.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @param strongETag The quoted content hash of the file.
+     * @return A copy of this entry with the given ETag.
+     */
+    public VideoEntry withETag(String strongETag) {
+        return new VideoEntry(this, strongETag);
+    }
+
+    /**
+     * @param other Another entry.
+     * @return True if both entries describe the same state of the same file.
+     */
+    public boolean isSameVersion(VideoEntry other) {
+        return other != null && path.equals(other.path) && size == other.size
+                && lastModifiedTime.equals(other.lastModifiedTime);
+    }
+
+    /**
+     * @return Content-Length of the full file.
+     */
+    @JsonIgnore
+    public String getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * @return Content-Range of the full file.
+     */
+    @JsonIgnore
+    public String getFullContentRange() {
+        return fullContentRange;
+    }
+
+    /**
+     * @param inline True if the client can display the video itself.
+     * @return Content-Disposition of the file.
+     */
+    public String getContentDisposition(boolean inline) {
+        return inline ? inlineDisposition : attachmentDisposition;
+    }
+}
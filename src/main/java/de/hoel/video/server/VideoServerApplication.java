@@ -1,12 +1,26 @@
-package de.hoel.video.server;
-
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-
-@SpringBootApplication
-public class VideoServerApplication {
-
-	public static void main(String[] args) {
-		SpringApplication.run(VideoServerApplication.class, args);
-	}
-}
+package de.hoel.video.server;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+
+@SpringBootApplication
+public class VideoServerApplication {
+
+	private static final String WEB_APPLICATION_TYPE = "spring.main.web-application-type";
+
+	public static void main(String[] args) {
+		SpringApplication application = new SpringApplication(VideoServerApplication.class);
+
+		// Spring Boot 2.0 creates the environment for the deduced servlet stack before it binds
+		// spring.main.web-application-type, so the reactive stack has to be chosen up front.
+		SimpleCommandLinePropertySource commandLine = new SimpleCommandLinePropertySource(args);
+		String type = commandLine.containsProperty(WEB_APPLICATION_TYPE)
+				? commandLine.getProperty(WEB_APPLICATION_TYPE) : System.getProperty(WEB_APPLICATION_TYPE);
+		if (type != null) {
+			application.setWebApplicationType(WebApplicationType.valueOf(type.trim().toUpperCase()));
+		}
+		application.run(args);
+	}
+}
@@ -0,0 +1,64 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Backing store of a video library, e.g. slow network storage or an object store. The server never reads it
+ * directly: {@link TieredStorage} caches its videos chunk by chunk on local disk and only reads missing chunks from
+ * it. Declare a bean of this type to plug in a store of your own, or choose one of the built-in stores with
+ * {@code video.streaming.storage.type}.
+ */
+public interface VideoStorage {
+
+    /**
+     * Lists the videos of the store.
+     * @return Every object with its size and modification time.
+     * @throws IOException If the store can't be listed.
+     */
+    List<StoredObject> list() throws IOException;
+
+    /**
+     * Reads bytes of an object from the given position until the buffer is full or the object ends.
+     * @param key Key of the object.
+     * @param position Absolute position in the object.
+     * @param dst The buffer to fill.
+     * @return The number of bytes read.
+     * @throws IOException If the object can't be read.
+     */
+    int read(String key, long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Metadata of one object in the store.
+     */
+    final class StoredObject {
+        private final String key;
+        private final long size;
+        private final long lastModified;
+
+        /**
+         * Construct the metadata of an object.
+         * @param key Key of the object, a relative path with '/' separators.
+         * @param size Size in bytes.
+         * @param lastModified Modification time in epoch milliseconds.
+         */
+        public StoredObject(String key, long size, long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package de.hoel.video.server;
+
+import static de.hoel.video.server.Mp4Boxes.box;
+import static de.hoel.video.server.Mp4Boxes.concat;
+import static de.hoel.video.server.Mp4Boxes.filled;
+import static de.hoel.video.server.Mp4Boxes.ints;
+import static de.hoel.video.server.Mp4Boxes.longs;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Segments, fragmented files and manifests of {@link FragmentedMp4}, built from a file with a video and an audio track.
+ */
+public class FragmentedMp4Test {
+
+    private static final int VIDEO_SAMPLES = 10;
+    private static final int AUDIO_SAMPLES = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Every sample is filled with its own byte value, by track ID. */
+    private final Map<Integer, List<byte[]>> samples = new HashMap<>();
+    private Path path;
+    private FragmentedMp4 fragments;
+
+    /**
+     * Writes ten video samples of 500 ms with keyframes at 0, 2 and 4 s, in chunks of two, and 40 audio samples of
+     * 125 ms, one per chunk after each video chunk.
+     */
+    @Before
+    public void setUp() throws Exception {
+        byte[] ftyp = box("ftyp", ints(0x69736f6d, 0x200, 0x69736f6d, 0x69736f32));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        List<Integer> videoChunks = new ArrayList<>();
+        List<Long> audioChunks = new ArrayList<>();
+        List<byte[]> video = new ArrayList<>();
+        List<byte[]> audio = new ArrayList<>();
+        int dataStart = ftyp.length + 8;
+        for (int v = 0, a = 0; v < VIDEO_SAMPLES; ) {
+            videoChunks.add(dataStart + data.size());
+            for (int i = 0; i < 2; i++, v++) {
+                video.add(filled(300 + v, v + 1));
+                data.write(video.get(v), 0, video.get(v).length);
+            }
+            for (int i = 0; i < AUDIO_SAMPLES / (VIDEO_SAMPLES / 2); i++, a++) {
+                audioChunks.add((long) dataStart + data.size());
+                audio.add(filled(50 + a, 100 + a));
+                data.write(audio.get(a), 0, audio.get(a).length);
+            }
+        }
+        samples.put(1, video);
+        samples.put(2, audio);
+
+        int[] videoSizes = new int[3 + VIDEO_SAMPLES];
+        videoSizes[2] = VIDEO_SAMPLES;
+        for (int i = 0; i < VIDEO_SAMPLES; i++) {
+            videoSizes[3 + i] = video.get(i).length;
+        }
+        int[] videoOffsets = new int[2 + videoChunks.size()];
+        videoOffsets[1] = videoChunks.size();
+        for (int i = 0; i < videoChunks.size(); i++) {
+            videoOffsets[2 + i] = videoChunks.get(i);
+        }
+        byte[] avc1 = box("avc1", new byte[78], box("avcC", new byte[] {1, 0x64, 0, 0x2a, (byte) 0xff, (byte) 0xe0, 0}));
+        byte[] videoTrack = box("trak", trackHeader(1, 1920, 1080), box("mdia",
+                box("mdhd", ints(0, 0, 0, 1000, 5000, 0)), box("hdlr", ints(0, 0, 0x76696465, 0, 0, 0)),
+                box("minf", box("stbl", box("stsd", ints(0, 1), avc1), box("stts", ints(0, 1, VIDEO_SAMPLES, 500)),
+                        box("stss", ints(0, 3, 1, 5, 9)), box("stsc", ints(0, 1, 1, 2, 1)), box("stsz", ints(videoSizes)),
+                        box("stco", ints(videoOffsets))))));
+
+        int[] audioSizes = new int[3 + AUDIO_SAMPLES];
+        audioSizes[2] = AUDIO_SAMPLES;
+        for (int i = 0; i < AUDIO_SAMPLES; i++) {
+            audioSizes[3 + i] = audio.get(i).length;
+        }
+        long[] audioOffsets = audioChunks.stream().mapToLong(Long::longValue).toArray();
+        byte[] audioTrack = box("trak", trackHeader(2, 0, 0), box("mdia",
+                box("mdhd", ints(0, 0, 0, 8000, 40000, 0)), box("hdlr", ints(0, 0, 0x736f756e, 0, 0, 0)),
+                box("minf", box("stbl", box("stsd", ints(0, 1), box("mp4a", new byte[28])),
+                        box("stts", ints(0, 1, AUDIO_SAMPLES, 1000)), box("stsc", ints(0, 1, 1, 1, 1)),
+                        box("stsz", ints(audioSizes)), box("co64", ints(0, audioOffsets.length), longs(audioOffsets))))));
+
+        byte[] moov = box("moov", box("mvhd", new byte[100]), videoTrack, audioTrack);
+        path = folder.newFile("movie.mp4").toPath();
+        Files.write(path, concat(ftyp, box("mdat", data.toByteArray()), moov));
+        fragments = FragmentedMp4.build(ByteBuffer.wrap(moov), 1.5);
+    }
+
+    @Test
+    public void cutsSegmentsAtKeyframes() {
+        assertThat(fragments.getSegmentCount()).isEqualTo(3);
+        assertThat(fragments.getDuration()).isEqualTo(5.0);
+
+        String playlist = fragments.playlist("fmp4");
+        assertThat(playlist).contains("#EXT-X-TARGETDURATION:2\n");
+        assertThat(playlist.split("#EXTINF:")).hasSize(4);
+        assertThat(playlist).contains("#EXTINF:2.000,\n").contains("#EXTINF:1.000,\n");
+    }
+
+    @Test
+    public void muxesEverySampleOnce() throws Exception {
+        FragmentedLayout layout = fragments.layout(0);
+        Map<Integer, Integer> read = verify(layout, Mp4Boxes.read(path, layout));
+
+        assertThat(read).containsEntry(1, VIDEO_SAMPLES).containsEntry(2, AUDIO_SAMPLES);
+    }
+
+    @Test
+    public void splitsTracks() throws Exception {
+        FragmentedLayout video = fragments.layout(1);
+        FragmentedLayout audio = fragments.layout(2);
+
+        assertThat(verify(video, Mp4Boxes.read(path, video))).containsOnlyKeys(1).containsEntry(1, VIDEO_SAMPLES);
+        assertThat(verify(audio, Mp4Boxes.read(path, audio))).containsOnlyKeys(2).containsEntry(2, AUDIO_SAMPLES);
+        assertThat(fragments.layout(7)).isNull();
+    }
+
+    @Test
+    public void describesTracksInManifest() {
+        String mpd = fragments.mpd("fmp4");
+
+        assertThat(mpd).contains("codecs=\"avc1.64002a\"").contains("width=\"1920\" height=\"1080\"");
+        assertThat(mpd).contains("codecs=\"mp4a.40.2\"").contains("audioSamplingRate=\"8000\"");
+        assertThat(mpd).contains("mediaPresentationDuration=\"PT5.000S\"");
+    }
+
+    /**
+     * Walks the fragmented file: an init segment of ftyp and moov, then a moof and mdat per segment at the positions
+     * of the layout, whose trun entries point at the bytes of the original samples in order.
+     * @return The number of samples per track ID.
+     */
+    private Map<Integer, Integer> verify(FragmentedLayout layout, byte[] file) {
+        ByteBuffer buffer = ByteBuffer.wrap(file);
+        assertThat(buffer.getInt(4)).isEqualTo(Mp4Box.type("ftyp"));
+        int moov = buffer.getInt(0);
+        assertThat(buffer.getInt(moov + 4)).isEqualTo(Mp4Box.MOOV);
+        assertThat((long) moov + buffer.getInt(moov)).isEqualTo(layout.getInitSize());
+
+        Map<Integer, Integer> read = new HashMap<>();
+        for (int segment = 0; segment < layout.getSegmentCount(); segment++) {
+            int moof = (int) layout.getSegmentStart(segment);
+            assertThat(buffer.getInt(moof + 4)).isEqualTo(Mp4Box.type("moof"));
+            int mdat = moof + buffer.getInt(moof);
+            assertThat(buffer.getInt(mdat + 4)).isEqualTo(Mp4Box.MDAT);
+            assertThat((long) mdat + buffer.getInt(mdat) - moof).isEqualTo(layout.getSegmentSize(segment));
+
+            int[] content = {moof + 8, mdat};
+            for (int[] traf = Mp4Box.child(buffer, content, Mp4Box.type("traf"), 0); traf != null;
+                 traf = Mp4Box.child(buffer, content, Mp4Box.type("traf"), traf[1])) {
+                int trackId = buffer.getInt(Mp4Box.child(buffer, traf, Mp4Box.type("tfhd"), 0)[0] + 4);
+                int[] trun = Mp4Box.child(buffer, traf, Mp4Box.type("trun"), 0);
+                int count = buffer.getInt(trun[0] + 4);
+                int position = moof + buffer.getInt(trun[0] + 8);
+                for (int i = 0; i < count; i++) {
+                    int sample = read.merge(trackId, 1, Integer::sum) - 1;
+                    int size = buffer.getInt(trun[0] + 12 + i * 12 + 4);
+                    byte[] expected = samples.get(trackId).get(sample);
+                    assertThat(Arrays.copyOfRange(file, position, position + size)).isEqualTo(expected);
+                    position += size;
+                }
+            }
+        }
+        return read;
+    }
+
+    private static byte[] trackHeader(int trackId, int width, int height) {
+        int[] fields = new int[21];
+        fields[3] = trackId;
+        fields[19] = width << 16;
+        fields[20] = height << 16;
+        return box("tkhd", ints(fields));
+    }
+}
@@ -0,0 +1,101 @@
+package de.hoel.video.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import de.hoel.video.server.MultipartFileSender.HttpUtils;
+
+/**
+ * The Range header parser and the entity tag matching of {@link MultipartFileSender.HttpUtils}.
+ */
+public class HttpUtilsTest {
+
+    private final long[] bounds = new long[8];
+
+    @Test
+    public void parsesClosedOpenAndSuffixRanges() {
+        assertThat(HttpUtils.parseRanges("bytes=10-19,40-,-20", 100, bounds)).isEqualTo(3);
+        assertThat(bounds).startsWith(10, 19, 40, 99, 80, 99);
+    }
+
+    @Test
+    public void clampsEndToFile() {
+        assertThat(HttpUtils.parseRanges("bytes=90-200", 100, bounds)).isEqualTo(1);
+        assertThat(bounds).startsWith(90, 99);
+    }
+
+    @Test
+    public void clampsSuffixLongerThanFile() {
+        assertThat(HttpUtils.parseRanges("bytes=-500", 100, bounds)).isEqualTo(1);
+        assertThat(bounds).startsWith(0, 99);
+    }
+
+    @Test
+    public void rejectsStartPastEnd() {
+        assertThat(HttpUtils.parseRanges("bytes=100-", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=20-10", 100, bounds)).isEqualTo(-1);
+    }
+
+    @Test
+    public void limitsRangesToBounds() {
+        assertThat(HttpUtils.parseRanges("bytes=0-1,2-3", 100, new long[4])).isEqualTo(2);
+        assertThat(HttpUtils.parseRanges("bytes=0-1,2-3,4-5", 100, new long[4])).isEqualTo(-1);
+    }
+
+    @Test
+    public void saturatesOverflowingDigits() {
+        assertThat(HttpUtils.parseRanges("bytes=0-99999999999999999999999", 100, bounds)).isEqualTo(1);
+        assertThat(bounds).startsWith(0, 99);
+        assertThat(HttpUtils.parseRanges("bytes=99999999999999999999999-", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=-99999999999999999999999", 100, bounds)).isEqualTo(1);
+        assertThat(bounds).startsWith(0, 99);
+    }
+
+    @Test
+    public void rejectsMalformedHeaders() {
+        assertThat(HttpUtils.parseRanges("bytes=10", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=10,20-30", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=-", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=1-2 ", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("items=1-2", 100, bounds)).isEqualTo(-1);
+    }
+
+    @Test
+    public void rejectsTrailingComma() {
+        assertThat(HttpUtils.parseRanges("bytes=0-10,", 100, bounds)).isEqualTo(-1);
+        assertThat(HttpUtils.parseRanges("bytes=0-10,,20-30", 100, bounds)).isEqualTo(-1);
+    }
+
+    @Test
+    public void keepsOpenEndOfGrowingFile() {
+        assertThat(HttpUtils.parseRanges("bytes=40-", Long.MAX_VALUE, bounds, true)).isEqualTo(1);
+        assertThat(bounds).startsWith(40, -1);
+        assertThat(HttpUtils.parseRanges("bytes=40-49", Long.MAX_VALUE, bounds, true)).isEqualTo(1);
+        assertThat(bounds).startsWith(40, 49);
+    }
+
+    @Test
+    public void matchesStrongly() {
+        assertThat(HttpUtils.matches("\"a\"", "\"a\"", false)).isTrue();
+        assertThat(HttpUtils.matches("\"b\", \"a\" ", "\"a\"", false)).isTrue();
+        assertThat(HttpUtils.matches("*", "\"a\"", false)).isTrue();
+        assertThat(HttpUtils.matches("\"b\"", "\"a\"", false)).isFalse();
+        assertThat(HttpUtils.matches("W/\"a\"", "\"a\"", false)).isFalse();
+    }
+
+    @Test
+    public void matchesWeakly() {
+        assertThat(HttpUtils.matches("W/\"a\"", "\"a\"", true)).isTrue();
+        assertThat(HttpUtils.matches("\"b\",W/\"a\"", "\"a\"", true)).isTrue();
+        assertThat(HttpUtils.matches("W/\"b\"", "\"a\"", true)).isFalse();
+    }
+
+    @Test
+    public void acceptsMediaRanges() {
+        assertThat(HttpUtils.accepts("text/html, video/*;q=0.8", "video/mp4")).isTrue();
+        assertThat(HttpUtils.accepts("*/*", "video/mp4")).isTrue();
+        assertThat(HttpUtils.accepts("text/html, audio/*", "video/mp4")).isFalse();
+    }
+}
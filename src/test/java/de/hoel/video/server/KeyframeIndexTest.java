@@ -0,0 +1,105 @@
+package de.hoel.video.server;
+
+import static de.hoel.video.server.Mp4Boxes.box;
+import static de.hoel.video.server.Mp4Boxes.ints;
+import static de.hoel.video.server.Mp4Boxes.longs;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Times and offsets of the keyframes read from the sample tables by {@link KeyframeIndex#parse(ByteBuffer)}.
+ */
+public class KeyframeIndexTest {
+
+    private static final int VIDE = 0x76696465;
+    private static final int SOUN = 0x736f756e;
+
+    /**
+     * Ten video samples of 100 to 109 bytes, 500 ms each, in chunks of three, three, three and one sample. Samples 1,
+     * 5 and 9 are keyframes.
+     */
+    private static final byte[] SAMPLES = box("stsz", ints(0, 0, 10, 100, 101, 102, 103, 104, 105, 106, 107, 108, 109));
+    private static final byte[] TIMES = box("stts", ints(0, 1, 10, 500));
+    private static final byte[] CHUNKS = box("stsc", ints(0, 2, 1, 3, 1, 4, 1, 1));
+    private static final byte[] SYNC = box("stss", ints(0, 3, 1, 5, 9));
+
+    @Test
+    public void findsKeyframesOfVideoTrack() {
+        KeyframeIndex keyframes = parse(audio(), video(SYNC, box("stco", ints(0, 4, 1000, 2000, 3000, 4000))));
+
+        assertThat(keyframes.size()).isEqualTo(3);
+        assertThat(keyframes.getTime(0)).isEqualTo(0.0);
+        assertThat(keyframes.getOffset(0)).isEqualTo(1000);
+        // Sample 5 is the second one of chunk 2, after sample 4 of 103 bytes.
+        assertThat(keyframes.getTime(1)).isEqualTo(2.0);
+        assertThat(keyframes.getOffset(1)).isEqualTo(2103);
+        // Sample 9 is the third one of chunk 3, after samples 7 and 8.
+        assertThat(keyframes.getTime(2)).isEqualTo(4.0);
+        assertThat(keyframes.getOffset(2)).isEqualTo(3000 + 106 + 107);
+    }
+
+    @Test
+    public void findsLastKeyframeBeforeTime() {
+        KeyframeIndex keyframes = parse(video(SYNC, box("stco", ints(0, 4, 1000, 2000, 3000, 4000))));
+
+        assertThat(keyframes.find(0)).isEqualTo(0);
+        assertThat(keyframes.find(1.9)).isEqualTo(0);
+        assertThat(keyframes.find(2.0)).isEqualTo(1);
+        assertThat(keyframes.find(3.5)).isEqualTo(1);
+        assertThat(keyframes.find(100)).isEqualTo(2);
+        assertThat(keyframes.get(1).getRange()).isEqualTo("bytes=2103-");
+    }
+
+    @Test
+    public void readsLargeChunkOffsets() {
+        long base = 5L << 32;
+        KeyframeIndex keyframes = parse(video(SYNC, box("co64", ints(0, 4), longs(base, base + 1000, base + 2000, base + 3000))));
+
+        assertThat(keyframes.getOffset(1)).isEqualTo(base + 1000 + 103);
+    }
+
+    @Test
+    public void takesEverySampleWithoutSyncTable() {
+        KeyframeIndex keyframes = parse(video(new byte[0], box("stco", ints(0, 4, 1000, 2000, 3000, 4000))));
+
+        assertThat(keyframes.size()).isEqualTo(10);
+        assertThat(keyframes.getTime(9)).isEqualTo(4.5);
+        assertThat(keyframes.getOffset(9)).isEqualTo(4000);
+    }
+
+    @Test
+    public void isEmptyWithoutVideoTrack() {
+        assertThat(parse(audio()).size()).isEqualTo(0);
+        assertThat(KeyframeIndex.parse(ByteBuffer.wrap(box("moov"))).find(1)).isEqualTo(-1);
+    }
+
+    @Test
+    public void isEmptyForTruncatedTables() {
+        byte[] truncated = box("trak", box("mdia", box("mdhd", ints(0, 0, 0, 1000, 5000, 0)), handler(VIDE),
+                box("minf", box("stbl", TIMES, CHUNKS, SAMPLES, box("stco", ints(0, 1000))))));
+
+        assertThat(parse(truncated).size()).isEqualTo(0);
+    }
+
+    private static KeyframeIndex parse(byte[]... tracks) {
+        return KeyframeIndex.parse(ByteBuffer.wrap(box("moov", box("mvhd", new byte[100]), Mp4Boxes.concat(tracks))));
+    }
+
+    private static byte[] video(byte[] sync, byte[] chunkOffsets) {
+        return box("trak", box("mdia", box("mdhd", ints(0, 0, 0, 1000, 5000, 0)), handler(VIDE),
+                box("minf", box("stbl", TIMES, sync, CHUNKS, SAMPLES, chunkOffsets))));
+    }
+
+    private static byte[] audio() {
+        return box("trak", box("mdia", box("mdhd", ints(0, 0, 0, 44100, 0, 0)), handler(SOUN),
+                box("minf", box("stbl", box("stts", ints(0, 1, 1, 1024)), box("stsc", ints(0, 1, 1, 1, 1)),
+                        box("stsz", ints(0, 10, 1)), box("stco", ints(0, 1, 500))))));
+    }
+
+    private static byte[] handler(int type) {
+        return box("hdlr", ints(0, 0, type, 0, 0, 0));
+    }
+}
@@ -0,0 +1,84 @@
+package de.hoel.video.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Builds and reads the MP4 boxes of the tests of the MP4 index, the faststart layout and the fragmented packaging.
+ */
+final class Mp4Boxes {
+
+    private Mp4Boxes() {
+    }
+
+    /**
+     * @param type Four character box type.
+     * @param content Content of the box, concatenated.
+     * @return The box with its 8 byte header.
+     */
+    static byte[] box(String type, byte[]... content) {
+        byte[] bytes = concat(content);
+        return ByteBuffer.allocate(8 + bytes.length).putInt(8 + bytes.length).putInt(Mp4Box.type(type)).put(bytes).array();
+    }
+
+    static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    static byte[] longs(long... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        for (long value : values) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buffer.put(part);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param length Number of bytes.
+     * @param value Value of every byte.
+     * @return A sample whose bytes tell it apart from the others.
+     */
+    static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    /**
+     * Reads a file as it is served in the given layout.
+     * @param path The file.
+     * @param layout The layout.
+     * @return The whole virtual file.
+     * @throws IOException If reading the file fails.
+     */
+    static byte[] read(Path path, FileLayout layout) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate((int) layout.getSize());
+        try (FileChannel channel = LayoutChannel.open(path, layout)) {
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, bytes.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + bytes.position());
+                }
+            }
+        }
+        return bytes.array();
+    }
+}
@@ -0,0 +1,175 @@
+package de.hoel.video.server;
+
+import static de.hoel.video.server.Mp4Boxes.box;
+import static de.hoel.video.server.Mp4Boxes.concat;
+import static de.hoel.video.server.Mp4Boxes.ints;
+import static de.hoel.video.server.Mp4Boxes.longs;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The box index of {@link Mp4File} and the {@link FaststartLayout} of a file with the movie box after the media data.
+ */
+public class Mp4FileTest {
+
+    private static final int MOOV = Mp4Box.type("moov");
+    private static final int MDAT = Mp4Box.type("mdat");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] ftyp;
+    private byte[] mdat;
+    private byte[] moov;
+    private byte[] free;
+    private byte[] file;
+    private Path path;
+
+    /**
+     * Writes ftyp, mdat, moov and a trailing free box. The stco track points into ftyp, mdat and the free box, the
+     * co64 track into mdat, so some offsets move with the media data and some don't.
+     */
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        byte[] media = new byte[10000];
+        random.nextBytes(media);
+        byte[] trailer = new byte[64];
+        random.nextBytes(trailer);
+
+        ftyp = box("ftyp", ints(0x69736f6d, 0x200, 0x69736f6d, 0x69736f32));
+        mdat = box("mdat", media);
+        free = box("free", trailer);
+        long data = ftyp.length + 8;
+        long moovStart = ftyp.length + mdat.length;
+        long freeStart = moovStart + movie(new long[4], new long[2]).length;
+        moov = movie(new long[] {8, data, data + 3000, freeStart + 8}, new long[] {data + 1000, data + 9000});
+        file = concat(ftyp, mdat, moov, free);
+        path = folder.newFile("movie.mp4").toPath();
+        Files.write(path, file);
+    }
+
+    @Test
+    public void indexesTopLevelBoxes() throws Exception {
+        Mp4File mp4 = parse();
+
+        assertThat(mp4.getBoxes()).extracting(Mp4Box::getTypeName).containsExactly("ftyp", "mdat", "moov", "free");
+        assertThat(mp4.getBox(MOOV).getOffset()).isEqualTo(ftyp.length + mdat.length);
+        assertThat(mp4.getBox(MOOV).getSize()).isEqualTo(moov.length);
+    }
+
+    @Test
+    public void movesMovieToDataStart() throws Exception {
+        FaststartLayout faststart = parse().getFaststart();
+        assertThat(faststart).isNotNull();
+        assertThat(faststart.getSize()).isEqualTo(file.length);
+
+        ByteBuffer served = ByteBuffer.wrap(Mp4Boxes.read(path, faststart));
+        int dataStart = ftyp.length;
+        assertThat(Arrays.copyOf(served.array(), dataStart)).isEqualTo(ftyp);
+        assertThat(served.getInt(dataStart)).isEqualTo(moov.length);
+        assertThat(served.getInt(dataStart + 4)).isEqualTo(MOOV);
+        assertThat(served.getInt(dataStart + moov.length + 4)).isEqualTo(MDAT);
+        assertThat(Arrays.copyOfRange(served.array(), dataStart + moov.length, dataStart + moov.length + mdat.length))
+                .isEqualTo(mdat);
+        assertThat(Arrays.copyOfRange(served.array(), file.length - free.length, file.length)).isEqualTo(free);
+    }
+
+    @Test
+    public void patchesChunkOffsetsToTheSameBytes() throws Exception {
+        byte[] served = Mp4Boxes.read(path, parse().getFaststart());
+        ByteBuffer patched = ByteBuffer.wrap(Arrays.copyOfRange(served, ftyp.length, ftyp.length + moov.length));
+
+        long[] before = chunkOffsets(ByteBuffer.wrap(moov));
+        long[] after = chunkOffsets(patched);
+        assertThat(after).hasSameSizeAs(before);
+        for (int i = 0; i < before.length; i++) {
+            boolean moved = before[i] >= ftyp.length && before[i] < ftyp.length + mdat.length;
+            assertThat(after[i]).isEqualTo(moved ? before[i] + moov.length : before[i]);
+            assertThat(Arrays.copyOfRange(served, (int) after[i], (int) after[i] + 16))
+                    .isEqualTo(Arrays.copyOfRange(file, (int) before[i], (int) before[i] + 16));
+        }
+    }
+
+    @Test
+    public void mapsContiguousRangesToTheFile() throws Exception {
+        FaststartLayout faststart = parse().getFaststart();
+        long data = ftyp.length + moov.length;
+
+        assertThat(faststart.toFile(0, ftyp.length)).isEqualTo(0);
+        assertThat(faststart.toFile(data, mdat.length)).isEqualTo(ftyp.length);
+        assertThat(faststart.toFile(ftyp.length, 16)).isEqualTo(-1); // The movie box is only in memory.
+        assertThat(faststart.toFile(data - 4, 8)).isEqualTo(-1);
+    }
+
+    @Test
+    public void keepsFileWithMovieFirst() throws Exception {
+        Files.write(path, concat(ftyp, moov, mdat));
+
+        assertThat(parse().getFaststart()).isNull();
+    }
+
+    @Test
+    public void indexesNoBoxesOfOtherFiles() throws Exception {
+        Files.write(path, new byte[] {0, 0, 0, 100, 'f', 't', 'y', 'p', 0, 0});
+
+        assertThat(parse().getBoxes()).isEmpty();
+        assertThat(parse().getFaststart()).isNull();
+    }
+
+    private Mp4File parse() throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            return Mp4File.parse(channel, channel.size(), 0);
+        }
+    }
+
+    /**
+     * @return A movie box with a track of 32 bit and one of 64 bit chunk offsets.
+     */
+    private static byte[] movie(long[] stco, long[] co64) {
+        int[] offsets = new int[2 + stco.length];
+        offsets[1] = stco.length;
+        for (int i = 0; i < stco.length; i++) {
+            offsets[2 + i] = (int) stco[i];
+        }
+        byte[] first = box("trak", box("tkhd", new byte[84]), box("mdia", box("minf", box("stbl",
+                box("stsd", ints(0, 0)), box("stco", ints(offsets))))));
+        byte[] second = box("trak", box("mdia", box("minf", box("stbl",
+                box("co64", ints(0, co64.length), longs(co64))))));
+        return box("moov", box("mvhd", new byte[100]), first, second);
+    }
+
+    /**
+     * @return The chunk offsets of all tracks of the movie box, in the order of the tracks.
+     */
+    private static long[] chunkOffsets(ByteBuffer movie) {
+        List<Long> offsets = new ArrayList<>();
+        int[] root = {8, movie.limit()};
+        for (int[] trak = Mp4Box.child(movie, root, Mp4Box.type("trak"), 0); trak != null;
+             trak = Mp4Box.child(movie, root, Mp4Box.type("trak"), trak[1])) {
+            int[] stbl = Mp4Box.child(movie, Mp4Box.child(movie, Mp4Box.child(movie, trak, Mp4Box.type("mdia"), 0),
+                    Mp4Box.type("minf"), 0), Mp4Box.type("stbl"), 0);
+            int[] stco = Mp4Box.child(movie, stbl, Mp4Box.type("stco"), 0);
+            int[] co64 = Mp4Box.child(movie, stbl, Mp4Box.type("co64"), 0);
+            int[] table = stco != null ? stco : co64;
+            for (int i = 0; i < movie.getInt(table[0] + 4); i++) {
+                offsets.add(stco != null ? movie.getInt(table[0] + 8 + i * 4) & 0xFFFFFFFFL : movie.getLong(table[0] + 8 + i * 8));
+            }
+        }
+        return offsets.stream().mapToLong(Long::longValue).toArray();
+    }
+}
@@ -0,0 +1,159 @@
+package de.hoel.video.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The status codes and headers of {@link MultipartFileSender}, see {@link ReactiveFileSenderTest} for the same cases
+ * on the reactive stack.
+ */
+public class MultipartFileSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private VideoEntry video;
+    private AdmissionControl admission;
+    private MockMvc mvc;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        Path file = folder.newFile("movie.mp4").toPath();
+        Files.write(file, data);
+        video = VideoEntry.of("movie", file);
+        mvc = MockMvcBuilders.standaloneSetup(new FileController()).build();
+    }
+
+    @After
+    public void tearDown() {
+        if (admission != null) {
+            admission.shutdown();
+        }
+    }
+
+    @Test
+    public void servesWholeFile() throws Exception {
+        mvc.perform(get("/video"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Accept-Ranges", "bytes"))
+                .andExpect(header().string("ETag", video.getETag()))
+                .andExpect(header().longValue("Content-Length", data.length))
+                .andExpect(content().bytes(data));
+    }
+
+    @Test
+    public void servesRange() throws Exception {
+        mvc.perform(get("/video").header("Range", "bytes=10-19"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string("Content-Range", "bytes 10-19/" + data.length))
+                .andExpect(header().longValue("Content-Length", 10))
+                .andExpect(content().bytes(Arrays.copyOfRange(data, 10, 20)));
+    }
+
+    @Test
+    public void servesMultipleRangesAsMultipart() throws Exception {
+        MvcResult result = mvc.perform(get("/video").header("Range", "bytes=0-9,30000-30009"))
+                .andExpect(status().isPartialContent())
+                .andReturn();
+
+        assertThat(result.getResponse().getContentType()).startsWith("multipart/byteranges; boundary=");
+        String body = new String(result.getResponse().getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertThat(body)
+                .contains("Content-Range: bytes 0-9/" + data.length + "\r\n\r\n" + text(0, 10))
+                .contains("Content-Range: bytes 30000-30009/" + data.length + "\r\n\r\n" + text(30000, 30010));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange() throws Exception {
+        mvc.perform(get("/video").header("Range", "bytes=" + data.length + "-"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string("Content-Range", "bytes */" + data.length));
+    }
+
+    @Test
+    public void answersNotModifiedForMatchingETag() throws Exception {
+        mvc.perform(get("/video").header("If-None-Match", video.getETag()))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string("ETag", video.getETag()));
+    }
+
+    @Test
+    public void failsPreconditionForOtherETag() throws Exception {
+        mvc.perform(get("/video").header("If-Match", "\"other\""))
+                .andExpect(status().isPreconditionFailed());
+    }
+
+    @Test
+    public void servesRangeIfUnchanged() throws Exception {
+        mvc.perform(get("/video").header("Range", "bytes=10-19").header("If-Range", video.getETag()))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes(Arrays.copyOfRange(data, 10, 20)));
+    }
+
+    @Test
+    public void servesWholeFileIfChanged() throws Exception {
+        mvc.perform(get("/video").header("Range", "bytes=10-19").header("If-Range", "\"other\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(data));
+    }
+
+    @Test
+    public void answersServiceUnavailableWithoutCapacity() throws Exception {
+        StreamingProperties properties = new StreamingProperties();
+        properties.getAdmission().setMaxStreams(1);
+        properties.getAdmission().setQueueTimeout(0);
+        admission = new AdmissionControl(properties, null, new SimpleMeterRegistry());
+        try (AdmissionControl.Permit taken = admission.await(AdmissionControl.Priority.PLAYBACK)) {
+            assertThat(taken.isAdmitted()).isTrue();
+            mvc.perform(get("/video").header("Range", "bytes=0-9"))
+                    .andExpect(status().isServiceUnavailable())
+                    .andExpect(header().string("Retry-After", String.valueOf(admission.getRetryAfter())));
+        }
+    }
+
+    private String text(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    @RestController
+    class FileController {
+
+        @RequestMapping(value = "/video", method = RequestMethod.GET)
+        public void getVideo(HttpServletRequest request, HttpServletResponse response) throws Exception {
+            MultipartFileSender.fromEntry(video)
+                    .with(request)
+                    .with(response)
+                    .with(admission)
+                    .serveResource();
+        }
+    }
+}
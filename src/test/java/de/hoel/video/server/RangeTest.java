@@ -0,0 +1,56 @@
+package de.hoel.video.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import de.hoel.video.server.MultipartFileSender.Range;
+
+/**
+ * Coalescing the ranges of a multipart request, see {@link MultipartFileSender.Range#coalesce(List, long)}.
+ */
+public class RangeTest {
+
+    @Test
+    public void mergesOverlappingAndTouchingRanges() {
+        List<Range> coalesced = Range.coalesce(ranges(0, 9, 5, 14, 15, 19, 30, 39), 0);
+
+        assertThat(bounds(coalesced)).containsExactly("0-19", "30-39");
+        assertThat(coalesced.get(0).length).isEqualTo(20);
+    }
+
+    @Test
+    public void mergesContainedRange() {
+        assertThat(bounds(Range.coalesce(ranges(0, 99, 10, 20), 0))).containsExactly("0-99");
+    }
+
+    @Test
+    public void mergesAcrossSmallGaps() {
+        assertThat(bounds(Range.coalesce(ranges(0, 9, 13, 19), 2))).containsExactly("0-9", "13-19");
+        assertThat(bounds(Range.coalesce(ranges(0, 9, 13, 19), 3))).containsExactly("0-19");
+    }
+
+    @Test
+    public void keepsRequestOrder() {
+        List<Range> coalesced = Range.coalesce(ranges(50, 59, 12, 20, 0, 9, 80, 89), 2);
+
+        // 0-9 and 12-20 merge, and go where 12-20 was asked for.
+        assertThat(bounds(coalesced)).containsExactly("50-59", "0-20", "80-89");
+    }
+
+    private static List<Range> ranges(long... bounds) {
+        Range[] ranges = new Range[bounds.length / 2];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = new Range(bounds[2 * i], bounds[2 * i + 1], 100);
+        }
+        return Arrays.asList(ranges);
+    }
+
+    private static List<String> bounds(List<Range> ranges) {
+        return ranges.stream().map(r -> r.start + "-" + r.end).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,141 @@
+package de.hoel.video.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.web.reactive.server.EntityExchangeResult;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The status codes and headers of {@link ReactiveFileSender}, the same cases as {@link MultipartFileSenderTest}.
+ */
+public class ReactiveFileSenderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] data;
+    private VideoEntry video;
+    private AdmissionControl admission;
+    private WebTestClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[64 * 1024];
+        new Random(1).nextBytes(data);
+        Path file = folder.newFile("movie.mp4").toPath();
+        Files.write(file, data);
+        video = VideoEntry.of("movie", file);
+        client = WebTestClient.bindToWebHandler(exchange -> ReactiveFileSender.fromEntry(video)
+                .with(exchange.getRequest())
+                .with(exchange.getResponse())
+                .with(admission)
+                .serveResource())
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        if (admission != null) {
+            admission.shutdown();
+        }
+    }
+
+    @Test
+    public void servesWholeFile() {
+        client.get().uri("/video").exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("Accept-Ranges", "bytes")
+                .expectHeader().valueEquals("ETag", video.getETag())
+                .expectHeader().valueEquals("Content-Length", String.valueOf(data.length))
+                .expectBody(byte[].class).isEqualTo(data);
+    }
+
+    @Test
+    public void servesRange() {
+        client.get().uri("/video").header("Range", "bytes=10-19").exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectHeader().valueEquals("Content-Range", "bytes 10-19/" + data.length)
+                .expectHeader().valueEquals("Content-Length", "10")
+                .expectBody(byte[].class).isEqualTo(Arrays.copyOfRange(data, 10, 20));
+    }
+
+    @Test
+    public void servesMultipleRangesAsMultipart() {
+        EntityExchangeResult<byte[]> result = client.get().uri("/video").header("Range", "bytes=0-9,30000-30009")
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(byte[].class).returnResult();
+
+        assertThat(result.getResponseHeaders().getFirst("Content-Type")).startsWith("multipart/byteranges; boundary=");
+        String body = new String(result.getResponseBody(), StandardCharsets.ISO_8859_1);
+        assertThat(body)
+                .contains("Content-Range: bytes 0-9/" + data.length + "\r\n\r\n" + text(0, 10))
+                .contains("Content-Range: bytes 30000-30009/" + data.length + "\r\n\r\n" + text(30000, 30010));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange() {
+        client.get().uri("/video").header("Range", "bytes=" + data.length + "-").exchange()
+                .expectStatus().isEqualTo(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .expectHeader().valueEquals("Content-Range", "bytes */" + data.length);
+    }
+
+    @Test
+    public void answersNotModifiedForMatchingETag() {
+        client.get().uri("/video").header("If-None-Match", video.getETag()).exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", video.getETag());
+    }
+
+    @Test
+    public void failsPreconditionForOtherETag() {
+        client.get().uri("/video").header("If-Match", "\"other\"").exchange()
+                .expectStatus().isEqualTo(HttpStatus.PRECONDITION_FAILED);
+    }
+
+    @Test
+    public void servesRangeIfUnchanged() {
+        client.get().uri("/video").header("Range", "bytes=10-19").header("If-Range", video.getETag()).exchange()
+                .expectStatus().isEqualTo(HttpStatus.PARTIAL_CONTENT)
+                .expectBody(byte[].class).isEqualTo(Arrays.copyOfRange(data, 10, 20));
+    }
+
+    @Test
+    public void servesWholeFileIfChanged() {
+        client.get().uri("/video").header("Range", "bytes=10-19").header("If-Range", "\"other\"").exchange()
+                .expectStatus().isOk()
+                .expectBody(byte[].class).isEqualTo(data);
+    }
+
+    @Test
+    public void answersServiceUnavailableWithoutCapacity() {
+        StreamingProperties properties = new StreamingProperties();
+        properties.getAdmission().setMaxStreams(1);
+        properties.getAdmission().setQueueTimeout(0);
+        admission = new AdmissionControl(properties, null, new SimpleMeterRegistry());
+        try (AdmissionControl.Permit taken = admission.admit(AdmissionControl.Priority.PLAYBACK).join()) {
+            assertThat(taken.isAdmitted()).isTrue();
+            client.get().uri("/video").header("Range", "bytes=0-9").exchange()
+                    .expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+                    .expectHeader().valueEquals("Retry-After", String.valueOf(admission.getRetryAfter()));
+        }
+    }
+
+    private String text(int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+}
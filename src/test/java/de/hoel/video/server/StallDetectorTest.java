@@ -0,0 +1,107 @@
+package de.hoel.video.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The stall checks of {@link StallDetector}, and that waits of the server don't count against the client.
+ */
+public class StallDetectorTest {
+
+    private StreamingProperties properties;
+    private StallDetector detector;
+    private BandwidthShaper shaper;
+
+    @Before
+    public void setUp() {
+        properties = new StreamingProperties();
+        properties.getStalls().setIdleTimeout(100);
+        properties.getStalls().setMinDrainRate(8192);
+        properties.getStalls().setDrainWindow(200);
+        properties.getStalls().setCheckInterval(60000); // Checked by the tests.
+        detector = new StallDetector(properties, new SimpleMeterRegistry());
+    }
+
+    @After
+    public void tearDown() {
+        detector.shutdown();
+        if (shaper != null) {
+            shaper.shutdown();
+        }
+    }
+
+    @Test
+    public void abortsIdleBody() throws Exception {
+        StallDetector.Watch watch = detector.open("VLC/3.0.4 LibVLC/3.0.4");
+        boolean[] aborted = new boolean[1];
+        watch.onStall(() -> aborted[0] = true);
+
+        TimeUnit.MILLISECONDS.sleep(150);
+        detector.check();
+
+        assertThat(watch.getStalled()).isEqualTo(StallDetector.IDLE);
+        assertThat(aborted[0]).isTrue();
+    }
+
+    @Test
+    public void ignoresPausedTime() throws Exception {
+        StallDetector.Watch watch = detector.open(null);
+
+        watch.pause();
+        TimeUnit.MILLISECONDS.sleep(300);
+        detector.check();
+        assertThat(watch.getStalled()).isNull();
+
+        watch.resume();
+        detector.check();
+        assertThat(watch.getStalled()).isNull();
+
+        TimeUnit.MILLISECONDS.sleep(150);
+        detector.check();
+        assertThat(watch.getStalled()).isEqualTo(StallDetector.IDLE);
+    }
+
+    @Test
+    public void abortsSlowBody() throws Exception {
+        assertThat(drain(false)).isEqualTo(StallDetector.SLOW);
+    }
+
+    @Test
+    public void keepsStreamShapedBelowMinDrainRate() throws Exception {
+        assertThat(drain(true)).isNull();
+    }
+
+    /**
+     * Sends 256 bytes at a time through a stream shaped to 1 KB/s, an eighth of the minimum drain rate, for more
+     * than two drain windows.
+     * @param watched True to let the shaper pause the watch while it waits.
+     * @return The reason the body stalled, or null.
+     */
+    private String drain(boolean watched) throws Exception {
+        properties.getShaping().setStreamRate(1024);
+        properties.getShaping().setBurstDuration(0);
+        properties.getShaping().setBurstSize(0);
+        shaper = new BandwidthShaper(properties);
+
+        StallDetector.Watch watch = detector.open(null);
+        try (BandwidthShaper.Stream shaped = shaper.open("client", "video")) {
+            if (watched) {
+                shaped.watch(watch);
+            }
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(600);
+            while (System.nanoTime() < end && watch.getStalled() == null) {
+                shaped.acquire(256);
+                watch.progress(256);
+                detector.check();
+            }
+        }
+        return watch.getStalled();
+    }
+}